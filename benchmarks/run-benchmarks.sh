@@ -0,0 +1,13 @@
+#!/bin/sh
+# Runs the JMH benchmarks in throughput and average time mode with the gc
+# profiler, and archives the results as JSON in results/. The file is named
+# after the date and the commit, so runs can be compared over time.
+# Arguments are passed to JMH, for example a benchmark name pattern.
+#
+# Build first: "mvn install -DskipTests" in the project, then "mvn package" here.
+set -e
+cd "$(dirname "$0")"
+mkdir -p results
+name="${RESULT_NAME:-$(date +%Y-%m-%d)-$(git describe --always --dirty)}"
+java -jar target/benchmarks.jar -bm thrpt,avgt -prof gc -rf json -rff "results/$name.json" "$@"
+echo "Results written to results/$name.json"
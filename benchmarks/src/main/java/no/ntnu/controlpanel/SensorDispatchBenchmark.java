@@ -0,0 +1,85 @@
+package no.ntnu.controlpanel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import no.ntnu.greenhouse.SensorReading;
+import no.ntnu.listeners.controlpanel.GreenhouseEventListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures how the control panel logic hands new sensor readings to its
+ * listeners, such as the GUI tabs. Every listener only consumes the readings,
+ * so the result is the cost of the dispatch itself.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SensorDispatchBenchmark {
+  @Param({"1", "10"})
+  public int listeners;
+
+  private ControlPanelLogic logic;
+  private List<SensorReading> readings;
+
+  @Setup
+  public void setUp(Blackhole blackhole) {
+    logic = new ControlPanelLogic();
+    for (int i = 0; i < listeners; i++) {
+      logic.addListener(new ConsumingListener(blackhole));
+    }
+    readings = new ArrayList<>();
+    readings.add(new SensorReading("temperature", 23.18, "°C"));
+    readings.add(new SensorReading("humidity", 70.55, "%"));
+  }
+
+  @Benchmark
+  public void onSensorData() {
+    logic.onSensorData(1, readings);
+  }
+
+  /**
+   * A listener which passes the events it gets to the blackhole.
+   */
+  private static class ConsumingListener implements GreenhouseEventListener {
+    private final Blackhole blackhole;
+
+    ConsumingListener(Blackhole blackhole) {
+      this.blackhole = blackhole;
+    }
+
+    @Override
+    public void onNodeAdded(SensorActuatorNodeInfo nodeInfo) {
+      blackhole.consume(nodeInfo);
+    }
+
+    @Override
+    public void onNodeRemoved(int nodeId) {
+      blackhole.consume(nodeId);
+    }
+
+    @Override
+    public void onSensorData(int nodeId, List<SensorReading> sensors) {
+      blackhole.consume(sensors);
+    }
+
+    @Override
+    public void onActuatorStateChanged(int nodeId, int actuatorId, boolean isOn) {
+      blackhole.consume(isOn);
+    }
+  }
+}
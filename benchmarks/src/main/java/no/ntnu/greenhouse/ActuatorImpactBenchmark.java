@@ -0,0 +1,69 @@
+package no.ntnu.greenhouse;
+
+import java.util.concurrent.TimeUnit;
+import no.ntnu.tools.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures toggling a heater on a node with four temperature sensors and many
+ * humidity sensors, which the heater does not affect. The node finds the
+ * temperature sensors in its index by type ID; scanByType shows the cost of
+ * the earlier way, comparing the type of every sensor of the node.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ActuatorImpactBenchmark {
+  private static final int TEMPERATURE_SENSORS = 4;
+
+  @Param({"0", "300"})
+  public int humiditySensors;
+
+  @Param({"false", "true"})
+  public boolean store;
+
+  private SensorActuatorNode node;
+  private Actuator heater;
+  private boolean on; // State of the heater in scanByType
+
+  @Setup
+  public void setUp() {
+    Logger.setDebugEnabled(false);
+    node = new SensorActuatorNode(1, store ? new SensorStore() : null);
+    node.addSensors(DeviceFactory.createTemperatureSensor(), TEMPERATURE_SENSORS);
+    if (humiditySensors > 0) {
+      node.addSensors(DeviceFactory.createHumiditySensor(), humiditySensors);
+    }
+    DeviceFactory.addActuators(node, DeviceFactory.createHeater(node.getId()), 1);
+    heater = node.getActuators().iterator().next();
+  }
+
+  @Benchmark
+  public void toggleHeater() {
+    heater.toggle();
+  }
+
+  @Benchmark
+  public void scanByType() {
+    on = !on;
+    double impact = on ? 4.0 : -4.0;
+    for (Sensor sensor : node.getSensors()) {
+      if (sensor.getType().equals("temperature")) {
+        sensor.applyImpact(impact);
+      }
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package no.ntnu.protocol;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the text messages as the clients handle them: the control panel
+ * parses SENSOR and ACTUATOR state messages, the node parses commands, and
+ * the node formats its readings and actuator states.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageCodecBenchmark {
+    private static final String ACTUATOR_STATES = "ACTUATOR:17:1:window=0,2:fan=1,3:heater=0";
+    private static final String ACTUATOR_COMMAND = "ACTUATOR:17:2:1";
+
+    @Param({"2", "8"})
+    public int sensors;
+
+    private final MessageCodec codec = new MessageCodec();
+    private final SensorMessage readings = new SensorMessage();
+    private final ActuatorMessage states = new ActuatorMessage();
+    private final ActuatorCommand command = new ActuatorCommand();
+    private final StringBuilder line = new StringBuilder(256);
+    private String sensorLine;
+
+    @Setup
+    public void setUp() {
+        readings.reset(17);
+        for (int i = 0; i < sensors; i++) {
+            readings.add((i % 2 == 0 ? "temperature" : "humidity") + i, 20 + i + 0.18,
+                    i % 2 == 0 ? "°C" : "%");
+        }
+        MessageCodec.formatSensor(readings, line);
+        sensorLine = line.toString();
+        codec.parseActuatorStates(ACTUATOR_STATES, states);
+    }
+
+    @Benchmark
+    public SensorMessage parseSensor() {
+        codec.parseSensor(sensorLine, readings);
+        return readings;
+    }
+
+    @Benchmark
+    public ActuatorMessage parseActuatorStates() {
+        codec.parseActuatorStates(ACTUATOR_STATES, states);
+        return states;
+    }
+
+    @Benchmark
+    public ActuatorCommand parseActuatorCommand() {
+        codec.parseActuatorCommand(ACTUATOR_COMMAND, command);
+        return command;
+    }
+
+    @Benchmark
+    public int formatSensor() {
+        line.setLength(0);
+        MessageCodec.formatSensor(readings, line);
+        return line.length();
+    }
+
+    @Benchmark
+    public int formatActuatorStates() {
+        line.setLength(0);
+        MessageCodec.formatActuatorStates(states, line);
+        return line.length();
+    }
+}
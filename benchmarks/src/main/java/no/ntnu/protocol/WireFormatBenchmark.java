@@ -0,0 +1,112 @@
+package no.ntnu.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the text and binary formats of a sensor message: the bytes on the
+ * wire, printed when the benchmark starts, and the cost of parsing.
+ *
+ * <p>{@code parseText} splits the line and parses the numbers the way the
+ * control panel did before it used {@link MessageCodec}. {@code parseBinary} decodes the binary frame into a
+ * reused {@link BinaryFrame}. {@code decodeBinaryToText} is what a client
+ * using the binary format does today: the frame is turned back into the text
+ * line, which is then parsed as before.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class WireFormatBenchmark {
+    @Param({"2", "8"})
+    public int sensors;
+
+    private String line;
+    private byte[] textBytes;
+    private TypeTable table;
+    private byte[] frame; // Length prefix, type byte and payload
+    private int payloadOffset;
+    private BinaryFrame decoded;
+    private MessageDecoder decoder;
+
+    @Setup
+    public void setUp() throws ProtocolException {
+        StringBuilder builder = new StringBuilder("SENSOR:17:");
+        for (int i = 0; i < sensors; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(i % 2 == 0 ? "temperature" : "humidity").append(i)
+                    .append('=').append(20 + i).append(".18")
+                    .append(i % 2 == 0 ? "°C" : "%");
+        }
+        line = builder.toString();
+        textBytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+
+        table = new TypeTable();
+        BinaryMessage message = BinaryMessage.encode(line, table);
+        frame = new byte[message.length()];
+        message.buffer().get(frame);
+        payloadOffset = BinaryProtocol.varintLength(frame.length - 1) + 1;
+        decoded = new BinaryFrame();
+
+        ByteArrayOutputStream start = new ByteArrayOutputStream();
+        start.writeBytes((BinaryProtocol.NEGOTIATION_LINE + "\n").getBytes(StandardCharsets.UTF_8));
+        start.writeBytes(new BinaryOutput(table).definesFor(message));
+        decoder = new MessageDecoder();
+        decoder.feed(ByteBuffer.wrap(start.toByteArray()), ignored -> { });
+
+        System.out.printf("%n%d sensors: text %d bytes, binary %d bytes%n", sensors, textBytes.length, frame.length);
+    }
+
+    @Benchmark
+    public double parseText() {
+        String received = new String(textBytes, 0, textBytes.length - 1, StandardCharsets.UTF_8);
+        String[] parts = received.split(":");
+        double sum = Integer.parseInt(parts[1]);
+        for (String sensor : parts[2].split(",")) {
+            String[] typeAndValue = sensor.split("=");
+            String valueAndUnit = typeAndValue[1].trim();
+            int unitStart = 0;
+            while (unitStart < valueAndUnit.length() && (Character.isDigit(valueAndUnit.charAt(unitStart))
+                    || valueAndUnit.charAt(unitStart) == '.' || valueAndUnit.charAt(unitStart) == '-')) {
+                unitStart++;
+            }
+            sum += Double.parseDouble(valueAndUnit.substring(0, unitStart));
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double parseBinary() throws ProtocolException {
+        decoded.decode(frame[payloadOffset - 1], ByteBuffer.wrap(frame, payloadOffset, frame.length - payloadOffset));
+        double sum = decoded.getNodeId();
+        for (int i = 0; i < decoded.getCount(); i++) {
+            sum += decoded.getValue(i, table);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public void decodeBinaryToText(Blackhole blackhole) throws ProtocolException {
+        decoder.feed(ByteBuffer.wrap(frame), blackhole::consume);
+    }
+}
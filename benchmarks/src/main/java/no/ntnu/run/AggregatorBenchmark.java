@@ -0,0 +1,177 @@
+package no.ntnu.run;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import no.ntnu.greenhouse.Actuator;
+import no.ntnu.greenhouse.ActuatorCollection;
+import no.ntnu.greenhouse.DeviceFactory;
+import no.ntnu.greenhouse.Sensor;
+import no.ntnu.tcp.EdgeAggregator;
+import no.ntnu.tcp.GreenhouseNode;
+import no.ntnu.tcp.GreenhouseServer;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.Sockets;
+import no.ntnu.tools.Threads;
+
+/**
+ * Measures the uplink of an EdgeAggregator. Runs a server, an aggregator,
+ * real GreenhouseNode instances connected to the aggregator and one control
+ * panel in a single JVM, for several fleet sizes, and records per second the
+ * messages and bytes the nodes send to the aggregator, the messages and the
+ * uncompressed and compressed bytes it sends to the server, and the messages
+ * delivered to the panel.
+ */
+public class AggregatorBenchmark {
+    private static final int SEND_INTERVAL_SECONDS = 5; // How often a GreenhouseNode sends its data
+
+    private final int seconds; // Length of the measurement window
+
+    /**
+     * Constructs an AggregatorBenchmark.
+     *
+     * @param seconds length of the measurement window
+     */
+    public AggregatorBenchmark(int seconds) {
+        this.seconds = seconds;
+    }
+
+    /**
+     * Runs the benchmark for every fleet size.
+     *
+     * @param args optional: [fleets] [seconds] [batchMillis] [port] [threads],
+     *             where fleets is a comma separated list of node counts
+     *             (default 100,1000,5000) and threads is "platform"
+     *             (default) or "virtual"
+     */
+    public static void main(String[] args) throws Exception {
+        String fleets = args.length > 0 ? args[0] : "100,1000,5000";
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 2 * SEND_INTERVAL_SECONDS;
+        long batchMillis = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 12380;
+        boolean virtual = args.length > 4 && "virtual".equals(args[4]);
+
+        Logger.setDebugEnabled(false);
+        Threads.setVirtual(virtual);
+        EdgeAggregator.setBatchInterval(batchMillis);
+        AggregatorBenchmark benchmark = new AggregatorBenchmark(seconds);
+        List<String> results = new ArrayList<>();
+        for (String fleet : fleets.split(",")) {
+            results.add(benchmark.run(Integer.parseInt(fleet.trim()), port));
+            port += 2;
+        }
+
+        Logger.info("");
+        Logger.info("Batch interval " + batchMillis + " ms");
+        Logger.info(String.format("%8s %10s %12s %10s %12s %12s %8s %10s", "nodes", "local msg/s", "local B/s",
+                "up msg/s", "up raw B/s", "up wire B/s", "ratio", "panel msg/s"));
+        results.forEach(Logger::info);
+    }
+
+    /**
+     * Runs the server, the aggregator, the nodes and the control panel.
+     *
+     * @param nodeCount number of simulated nodes
+     * @param port      the port for the server; the aggregator uses the next
+     * @return one formatted result line
+     */
+    private String run(int nodeCount, int port) throws Exception {
+        Logger.info("=== " + nodeCount + " nodes ===");
+        GreenhouseServer server = new GreenhouseServer(port);
+        Thread serverThread = new Thread(server::start, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Sockets.waitUntilListening(port);
+
+        EdgeAggregator aggregator = new EdgeAggregator(port + 1, "localhost", port);
+        Thread aggregatorThread = new Thread(aggregator::start, "benchmark-aggregator");
+        aggregatorThread.setDaemon(true);
+        aggregatorThread.start();
+        Sockets.waitUntilListening(port + 1);
+
+        AtomicLong delivered = new AtomicLong();
+        Socket panel = new Socket("localhost", port);
+        panel.getOutputStream().write("HELLO:PANEL\n".getBytes(StandardCharsets.UTF_8));
+        startPanelReader(panel, delivered);
+
+        List<GreenhouseNode> nodes = new ArrayList<>();
+        for (int i = 1; i <= nodeCount; i++) {
+            GreenhouseNode node = createNode(i, port + 1);
+            nodes.add(node);
+            Threads.start("node-" + i, node::start);
+        }
+        waitForNodes(aggregator, nodeCount);
+        Thread.sleep(SEND_INTERVAL_SECONDS * 1000L); // Let every node finish its first send
+
+        long received = aggregator.getMessagesReceived();
+        long receivedBytes = aggregator.getBytesReceived();
+        long sent = aggregator.getMessagesSent();
+        long rawBytes = aggregator.getUncompressedBytesSent();
+        long wireBytes = aggregator.getBytesSent();
+        long deliveredAtStart = delivered.get();
+        Thread.sleep(seconds * 1000L);
+        double localMessages = (double) (aggregator.getMessagesReceived() - received) / seconds;
+        double localBytes = (double) (aggregator.getBytesReceived() - receivedBytes) / seconds;
+        double upMessages = (double) (aggregator.getMessagesSent() - sent) / seconds;
+        double upRawBytes = (double) (aggregator.getUncompressedBytesSent() - rawBytes) / seconds;
+        double upWireBytes = (double) (aggregator.getBytesSent() - wireBytes) / seconds;
+        double panelMessages = (double) (delivered.get() - deliveredAtStart) / seconds;
+
+        for (GreenhouseNode node : nodes) {
+            node.stop();
+        }
+        aggregator.stop();
+        panel.close();
+        server.stop();
+
+        return String.format("%8d %10.0f %12.0f %10.0f %12.0f %12.0f %8.1f %10.0f", nodeCount, localMessages,
+                localBytes, upMessages, upRawBytes, upWireBytes, upWireBytes > 0 ? localBytes / upWireBytes : 0,
+                panelMessages);
+    }
+
+    private static GreenhouseNode createNode(int nodeId, int port) {
+        List<Sensor> sensors = new ArrayList<>();
+        sensors.add(DeviceFactory.createTemperatureSensor());
+        sensors.add(DeviceFactory.createHumiditySensor());
+        ActuatorCollection actuators = new ActuatorCollection();
+        actuators.add(new Actuator(1, "fan", nodeId));
+        return new GreenhouseNode(nodeId, "localhost", port, sensors, actuators);
+    }
+
+    private static void startPanelReader(Socket panel, AtomicLong delivered) throws IOException {
+        InputStream in = panel.getInputStream();
+        Threads.start("benchmark-panel", () -> {
+            byte[] buffer = new byte[64 * 1024];
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    long lines = 0;
+                    for (int i = 0; i < read; i++) {
+                        if (buffer[i] == '\n') {
+                            lines++;
+                        }
+                    }
+                    delivered.addAndGet(lines);
+                }
+            } catch (IOException e) {
+                // The socket is closed at the end of the run
+            }
+        });
+    }
+
+
+    private static void waitForNodes(EdgeAggregator aggregator, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60_000;
+        while (aggregator.getNodeCount() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        if (aggregator.getNodeCount() != expected) {
+            Logger.error("Expected " + expected + " nodes, aggregator has " + aggregator.getNodeCount());
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package no.ntnu.run;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+import no.ntnu.greenhouse.Actuator;
+import no.ntnu.greenhouse.ActuatorCollection;
+import no.ntnu.greenhouse.DeviceFactory;
+import no.ntnu.greenhouse.Sensor;
+import no.ntnu.tcp.GreenhouseGateway;
+import no.ntnu.tcp.GreenhouseNode;
+import no.ntnu.tcp.GreenhouseServer;
+import no.ntnu.tcp.ServerEngine;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.Sockets;
+import no.ntnu.tools.Threads;
+
+/**
+ * Compares the resources the server needs for many nodes connected through a
+ * few gateways with one connection per node. Runs a server, the nodes and one
+ * control panel in a single JVM, first with one connection per node and then
+ * with the nodes spread over the gateways, and records the connections, thread
+ * count, heap, open file descriptors and delivered messages per second.
+ *
+ * <p>The thread and file descriptor counts are those of the whole JVM, so
+ * they include the client side: each connection costs a descriptor at both
+ * ends. With one connection per node the run needs a descriptor limit above
+ * twice the number of nodes ({@code ulimit -n}).
+ */
+public class GatewayBenchmark {
+    private static final int SEND_INTERVAL_SECONDS = 5; // How often a GreenhouseNode sends its data
+
+    private final int nodeCount; // Number of simulated nodes
+    private final int gatewayCount; // Number of gateways in the gateway run
+    private final int seconds; // Length of the measurement window
+    private final ServerEngine engine; // Engine of the server
+
+    /**
+     * Constructs a GatewayBenchmark.
+     *
+     * @param nodeCount    number of simulated nodes
+     * @param gatewayCount number of gateways sharing the nodes
+     * @param seconds      length of the measurement window
+     * @param engine       engine of the server
+     */
+    public GatewayBenchmark(int nodeCount, int gatewayCount, int seconds, ServerEngine engine) {
+        this.nodeCount = nodeCount;
+        this.gatewayCount = gatewayCount;
+        this.seconds = seconds;
+        this.engine = engine;
+    }
+
+    /**
+     * Runs the comparison.
+     *
+     * @param args optional: [nodes] [gateways] [seconds] [port] [engine] [modes]
+     *             [threads], where engine is "thread" (default) or "nio",
+     *             modes is "both" (default), "direct" or "gateway", and
+     *             threads is "platform" (default) or "virtual"
+     */
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int gateways = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 2 * SEND_INTERVAL_SECONDS;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 12370;
+        ServerEngine engine = args.length > 4 && "nio".equals(args[4]) ? ServerEngine.NIO
+                : ServerEngine.THREAD_PER_CLIENT;
+        String modes = args.length > 5 ? args[5] : "both";
+        boolean virtual = args.length > 6 && "virtual".equals(args[6]);
+
+        Logger.setDebugEnabled(false);
+        Threads.setVirtual(virtual);
+        GreenhouseNode.setActuatorHeartbeat(SEND_INTERVAL_SECONDS * 1000L); // Keep one ACTUATOR line per send
+        GatewayBenchmark benchmark = new GatewayBenchmark(nodes, gateways, seconds, engine);
+        List<String> results = new ArrayList<>();
+        if (!"gateway".equals(modes)) {
+            results.add(benchmark.run(false, port));
+        }
+        if (!"direct".equals(modes)) {
+            results.add(benchmark.run(true, port + 1));
+        }
+
+        Logger.info("");
+        Logger.info(String.format("%-10s %8s %8s %10s %10s %12s %12s %14s", "mode", "nodes", "clients",
+                "java thr.", "open fds", "heap (MB)", "msg/s", "expected msg/s"));
+        results.forEach(Logger::info);
+    }
+
+    /**
+     * Runs the server, the nodes and the control panel, with or without
+     * gateways.
+     *
+     * @param gateways true to connect the nodes through gateways
+     * @param port     the port for the server
+     * @return one formatted result line
+     */
+    private String run(boolean gateways, int port) throws Exception {
+        String mode = gateways ? gatewayCount + " gw" : "direct";
+        Logger.info("=== " + mode + ", " + nodeCount + " nodes ===");
+        long heapBefore = usedHeap();
+
+        GreenhouseServer server = new GreenhouseServer(port);
+        server.setEngine(engine);
+        Thread serverThread = new Thread(server::start, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Sockets.waitUntilListening(port);
+
+        AtomicLong delivered = new AtomicLong();
+        Socket panel = new Socket("localhost", port);
+        panel.getOutputStream().write("HELLO:PANEL\n".getBytes(StandardCharsets.UTF_8));
+        startPanelReader(panel, delivered);
+
+        List<GreenhouseNode> nodes = new ArrayList<>();
+        List<GreenhouseGateway> started = new ArrayList<>();
+        for (int i = 0; i < (gateways ? gatewayCount : 0); i++) {
+            started.add(new GreenhouseGateway("localhost", port));
+        }
+        for (int i = 1; i <= nodeCount; i++) {
+            GreenhouseNode node = createNode(i, port);
+            nodes.add(node);
+            if (gateways) {
+                started.get(i % gatewayCount).addNode(node);
+            } else {
+                Threads.start("node-" + i, node::start);
+            }
+        }
+        for (int i = 0; i < started.size(); i++) {
+            Threads.start("gateway-" + i, started.get(i)::start);
+        }
+        int clients = (gateways ? gatewayCount : nodeCount) + 1;
+        waitForClients(server, clients);
+        Thread.sleep(SEND_INTERVAL_SECONDS * 1000L); // Let every node finish its first send
+
+        long countAtStart = delivered.get();
+        Thread.sleep(seconds * 1000L);
+        double messagesPerSecond = (double) (delivered.get() - countAtStart) / seconds;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        long descriptors = openFileDescriptors();
+        double heapMegabytes = (usedHeap() - heapBefore) / (1024.0 * 1024.0);
+
+        for (GreenhouseGateway gateway : started) {
+            gateway.stop();
+        }
+        for (GreenhouseNode node : nodes) {
+            node.stop();
+        }
+        panel.close();
+        server.stop();
+        waitForClients(server, 0);
+
+        double expected = 2.0 * nodeCount / SEND_INTERVAL_SECONDS; // One SENSOR and one ACTUATOR line
+        return String.format("%-10s %8d %8d %10d %10d %12.1f %12.0f %14.0f", mode, nodeCount, clients, threads,
+                descriptors, heapMegabytes, messagesPerSecond, expected);
+    }
+
+    private static GreenhouseNode createNode(int nodeId, int port) {
+        List<Sensor> sensors = new ArrayList<>();
+        sensors.add(DeviceFactory.createTemperatureSensor());
+        sensors.add(DeviceFactory.createHumiditySensor());
+        ActuatorCollection actuators = new ActuatorCollection();
+        actuators.add(new Actuator(1, "fan", nodeId));
+        return new GreenhouseNode(nodeId, "localhost", port, sensors, actuators);
+    }
+
+    private static void startPanelReader(Socket panel, AtomicLong delivered) throws IOException {
+        InputStream in = panel.getInputStream();
+        Threads.start("benchmark-panel", () -> {
+            byte[] buffer = new byte[64 * 1024];
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    long lines = 0;
+                    for (int i = 0; i < read; i++) {
+                        if (buffer[i] == '\n') {
+                            lines++;
+                        }
+                    }
+                    delivered.addAndGet(lines);
+                }
+            } catch (IOException e) {
+                // The socket is closed at the end of the run
+            }
+        });
+    }
+
+
+    private static void waitForClients(GreenhouseServer server, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60_000;
+        while (server.getClientCount() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        if (server.getClientCount() != expected) {
+            Logger.error("Expected " + expected + " clients, server has " + server.getClientCount());
+        }
+    }
+
+    private static long openFileDescriptors() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof UnixOperatingSystemMXBean) {
+            return ((UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+        }
+        return -1; // Not available on this platform
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,175 @@
+package no.ntnu.run;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import no.ntnu.greenhouse.DeviceFactory;
+import no.ntnu.greenhouse.Sensor;
+import no.ntnu.tools.LatencyHistogram;
+import no.ntnu.tools.LatencyRecorder;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.Scheduler;
+
+/**
+ * Measures the cost of running the periodic work of many simulated nodes.
+ * Every node has a task which takes a new reading of one sensor at a fixed
+ * rate, like SensorActuatorNode does. The modes are:
+ * <ul>
+ *   <li>spread: the shared {@link Scheduler}, with the phases of the nodes
+ *       spread over the period, as the simulator runs them</li>
+ *   <li>aligned: the shared scheduler, with every node starting at the same
+ *       moment, so all of them wake up together</li>
+ *   <li>timer: one java.util.Timer per node, as the simulator used to run
+ *       them; needs a thread per node, so keep the node count low</li>
+ * </ul>
+ *
+ * <p>For each mode the benchmark prints the number of threads, the heap used
+ * by the nodes, the CPU time per task run, which covers the scheduling and
+ * the reading itself, and the timer jitter: how late each run starts compared
+ * to the time it was due.
+ */
+public class SchedulerBenchmark {
+    private final int nodeCount; // Number of simulated nodes
+    private final int seconds; // Length of the measurement window
+    private final long periodMillis; // Period of the task of every node
+
+    /**
+     * Constructs a SchedulerBenchmark.
+     *
+     * @param nodeCount    number of simulated nodes
+     * @param seconds      length of the measurement window
+     * @param periodMillis period of the task of every node
+     */
+    public SchedulerBenchmark(int nodeCount, int seconds, long periodMillis) {
+        this.nodeCount = nodeCount;
+        this.seconds = seconds;
+        this.periodMillis = periodMillis;
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args optional: [nodes] [seconds] [periodMillis] [modes], where
+     *             modes is a comma separated list of "spread", "aligned" and
+     *             "timer" (default "spread,aligned")
+     */
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        long period = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+        String modes = args.length > 3 ? args[3] : "spread,aligned";
+
+        Logger.setDebugEnabled(false);
+        SchedulerBenchmark benchmark = new SchedulerBenchmark(nodes, seconds, period);
+        List<String> results = new ArrayList<>();
+        for (String mode : modes.split(",")) {
+            results.add(benchmark.run(mode.trim()));
+        }
+
+        Logger.info("");
+        Logger.info(String.format("%-8s %8s %8s %10s %10s %10s  %s", "mode", "nodes", "threads", "heap (MB)",
+                "runs/s", "cpu ns/run", "jitter"));
+        results.forEach(Logger::info);
+    }
+
+    /**
+     * Runs the tasks of all nodes in one mode.
+     *
+     * @param mode "spread", "aligned" or "timer"
+     * @return one formatted result line
+     */
+    private String run(String mode) throws InterruptedException {
+        Logger.info("=== " + mode + ", " + nodeCount + " nodes, period " + periodMillis + " ms ===");
+        long heapBefore = usedHeap();
+        LatencyRecorder jitter = new LatencyRecorder();
+        LongAdder runs = new LongAdder();
+        long periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMillis);
+
+        List<ScheduledFuture<?>> tasks = new ArrayList<>();
+        List<Timer> timers = new ArrayList<>();
+        for (int i = 0; i < nodeCount; i++) {
+            long delay = "spread".equals(mode) ? Scheduler.phase(periodMillis) : periodMillis;
+            Probe probe = new Probe(DeviceFactory.createHumiditySensor(), jitter, runs,
+                    System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay), periodNanos);
+            if ("timer".equals(mode)) {
+                Timer timer = new Timer("node-" + i, true);
+                timer.scheduleAtFixedRate(new TimerTask() {
+                    @Override
+                    public void run() {
+                        probe.run();
+                    }
+                }, delay, periodMillis);
+                timers.add(timer);
+            } else {
+                tasks.add(Scheduler.scheduleAtFixedRate(probe, delay, periodMillis));
+            }
+        }
+        Thread.sleep(2 * periodMillis); // Let every node run once before measuring
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        double heapMegabytes = (usedHeap() - heapBefore) / (1024.0 * 1024.0);
+
+        jitter.snapshot(true);
+        long runsAtStart = runs.sum();
+        long cpuAtStart = processCpuNanos();
+        Thread.sleep(seconds * 1000L);
+        long cpuNanos = processCpuNanos() - cpuAtStart;
+        long measuredRuns = runs.sum() - runsAtStart;
+        LatencyHistogram histogram = jitter.snapshot(false);
+
+        tasks.forEach(task -> task.cancel(false));
+        timers.forEach(Timer::cancel);
+
+        return String.format(Locale.ROOT, "%-8s %8d %8d %10.1f %10.0f %10.0f  %s", mode, nodeCount, threads,
+                heapMegabytes, (double) measuredRuns / seconds,
+                measuredRuns > 0 ? (double) cpuNanos / measuredRuns : 0.0, histogram.summary());
+    }
+
+    private static long processCpuNanos() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os) {
+            return os.getProcessCpuTime();
+        }
+        return 0;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * The periodic task of one node. Records how late each run starts.
+     */
+    private static class Probe implements Runnable {
+        private final Sensor sensor;
+        private final LatencyRecorder jitter;
+        private final LongAdder runs;
+        private final long periodNanos;
+        private long dueNanos; // When the next run should start
+
+        Probe(Sensor sensor, LatencyRecorder jitter, LongAdder runs, long firstDueNanos, long periodNanos) {
+            this.sensor = sensor;
+            this.jitter = jitter;
+            this.runs = runs;
+            this.dueNanos = firstDueNanos;
+            this.periodNanos = periodNanos;
+        }
+
+        @Override
+        public void run() {
+            jitter.record(System.nanoTime() - dueNanos);
+            dueNanos += periodNanos;
+            sensor.addRandomNoise();
+            runs.increment();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package no.ntnu.run;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import no.ntnu.greenhouse.DeviceFactory;
+import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.greenhouse.SensorStore;
+import no.ntnu.tools.Logger;
+
+/**
+ * Compares the two ways a node can keep its sensors: a Sensor object per
+ * sensor, or a {@link SensorStore} shared by all nodes. Creates nodes with
+ * two temperature sensors and one humidity sensor each, and prints the heap
+ * used by the nodes divided by their sensors, and the time per sensor of
+ * adding random noise and of applying an actuator impact to every node, as
+ * the simulation does.
+ */
+public class SensorStoreBenchmark {
+    private static final int SENSORS_PER_NODE = 3;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args optional: [sensors] [rounds], by default one million sensors
+     *             and 20 rounds of updates
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int sensors = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        List<String> results = new ArrayList<>();
+        results.add(run("objects", null, sensors / SENSORS_PER_NODE, rounds));
+        results.add(run("store", new SensorStore(), sensors / SENSORS_PER_NODE, rounds));
+
+        Logger.info("");
+        Logger.info(String.format("%-8s %9s %14s %12s %13s", "layout", "sensors", "heap B/sensor", "noise ns",
+                "impact ns"));
+        results.forEach(Logger::info);
+    }
+
+    /**
+     * Creates the nodes in one layout and updates their sensors.
+     *
+     * @param layout    the name of the layout
+     * @param store     the store to keep the sensors in, or null for objects
+     * @param nodeCount number of nodes
+     * @param rounds    number of times every node is updated
+     * @return one formatted result line
+     */
+    private static String run(String layout, SensorStore store, int nodeCount, int rounds)
+            throws InterruptedException {
+        Logger.info("=== " + layout + ", " + nodeCount + " nodes ===");
+        DeviceFactory.setSensorStore(store);
+        long heapBefore = usedHeap();
+        List<SensorActuatorNode> nodes = new ArrayList<>(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            nodes.add(DeviceFactory.createNode(2, 1, 0, 0, 0));
+        }
+        long heapBytes = usedHeap() - heapBefore;
+        DeviceFactory.setSensorStore(null);
+
+        long sensorUpdates = (long) nodeCount * SENSORS_PER_NODE * rounds;
+        long noiseNanos = 0;
+        long impactNanos = 0;
+        for (int round = -rounds; round < rounds; round++) { // The first half warms up
+            long start = System.nanoTime();
+            for (SensorActuatorNode node : nodes) {
+                node.addRandomNoise();
+            }
+            long middle = System.nanoTime();
+            for (SensorActuatorNode node : nodes) {
+                node.applyActuatorImpact("temperature", round % 2 == 0 ? 1.0 : -1.0);
+            }
+            if (round >= 0) {
+                noiseNanos += middle - start;
+                impactNanos += System.nanoTime() - middle;
+            }
+        }
+
+        return String.format(Locale.ROOT, "%-8s %9d %14.1f %12.2f %13.2f", layout, nodeCount * SENSORS_PER_NODE,
+                (double) heapBytes / (nodeCount * SENSORS_PER_NODE), (double) noiseNanos / sensorUpdates,
+                (double) impactNanos / sensorUpdates);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
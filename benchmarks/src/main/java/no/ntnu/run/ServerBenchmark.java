@@ -0,0 +1,268 @@
+package no.ntnu.run;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import no.ntnu.tcp.GreenhouseServer;
+import no.ntnu.tcp.ServerEngine;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.Sockets;
+
+/**
+ * Compares the server engines. For each engine the benchmark first opens many
+ * idle connections and measures the memory and threads they cost, then lets a
+ * few greenhouse nodes send sensor data as fast as possible while a few
+ * control panels receive the broadcasts.
+ */
+public class ServerBenchmark {
+    private static final long DEFAULT_STACK_BYTES = 1024 * 1024; // Default -Xss on 64-bit Linux
+
+    private final int connections; // Idle connections opened in the memory phase
+    private final int senders; // Nodes sending sensor data in the throughput phase
+    private final int panels; // Control panels receiving broadcasts in the throughput phase
+    private final int seconds; // Duration of the throughput phase
+
+    /**
+     * Constructs a ServerBenchmark.
+     *
+     * @param connections idle connections opened in the memory phase
+     * @param senders     nodes sending sensor data in the throughput phase
+     * @param panels      control panels receiving broadcasts in the throughput phase
+     * @param seconds     duration of the throughput phase
+     */
+    public ServerBenchmark(int connections, int senders, int panels, int seconds) {
+        this.connections = connections;
+        this.senders = senders;
+        this.panels = panels;
+        this.seconds = seconds;
+    }
+
+    /**
+     * Runs the benchmark for both server engines.
+     *
+     * @param args optional: [connections] [senders] [panels] [seconds] [port]
+     */
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int senders = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int panels = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int port = args.length > 4 ? Integer.parseInt(args[4]) : 12350;
+
+        Logger.setDebugEnabled(false);
+        ServerBenchmark benchmark = new ServerBenchmark(connections, senders, panels, seconds);
+        List<String> results = new ArrayList<>();
+        results.add(benchmark.run(ServerEngine.THREAD_PER_CLIENT, port));
+        results.add(benchmark.run(ServerEngine.NIO, port + 1));
+
+        Logger.info("");
+        Logger.info(String.format("%-18s %14s %14s %12s %16s %16s %12s", "engine", "heap/conn (B)",
+                "threads/conn", "conns/GB", "ingest msg/s", "delivered msg/s", "dropped"));
+        results.forEach(Logger::info);
+        Logger.info("Thread stacks are counted at " + stackBytes() / 1024 + " KB (the -Xss reservation).");
+    }
+
+    /**
+     * Runs both phases against a freshly started server.
+     *
+     * @param engine the server engine to measure
+     * @param port   the port for the server
+     * @return one formatted result line
+     */
+    private String run(ServerEngine engine, int port) throws Exception {
+        Logger.info("=== " + engine + " ===");
+        GreenhouseServer server = new GreenhouseServer(port);
+        server.setEngine(engine);
+        Thread serverThread = new Thread(server::start, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Sockets.waitUntilListening(port);
+
+        // Memory phase
+        long heapBefore = usedHeap();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        List<SocketChannel> idle = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            idle.add(SocketChannel.open(new InetSocketAddress("localhost", port)));
+        }
+        waitForClients(server, connections);
+        double heapPerConnection = (double) (usedHeap() - heapBefore) / connections;
+        double threadsPerConnection =
+                (double) (ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore) / connections;
+        for (SocketChannel channel : idle) {
+            channel.close();
+        }
+        waitForClients(server, 0);
+        double bytesPerConnection = Math.max(1, heapPerConnection + threadsPerConnection * stackBytes());
+        double connectionsPerGigabyte = (1024.0 * 1024 * 1024) / bytesPerConnection;
+
+        // Throughput phase
+        AtomicLong delivered = new AtomicLong();
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread reader = startPanelReader(port, delivered, running);
+        List<Socket> nodeSockets = new ArrayList<>();
+        List<Thread> senderThreads = new ArrayList<>();
+        for (int i = 0; i < senders; i++) {
+            Socket socket = new Socket("localhost", port);
+            nodeSockets.add(socket);
+            senderThreads.add(startSender(socket, i + 1, running));
+        }
+        waitForClients(server, senders + panels);
+        long countAtStart = delivered.get();
+        Thread.sleep(seconds * 1000L);
+        long deliveredMessages = delivered.get() - countAtStart;
+        long dropped = server.getDroppedMessages();
+        running.set(false);
+        for (Thread thread : senderThreads) {
+            thread.join();
+        }
+        reader.join();
+        for (Socket socket : nodeSockets) {
+            socket.close();
+        }
+        server.stop();
+
+        double deliveredPerSecond = (double) deliveredMessages / seconds;
+        double ingestPerSecond = deliveredPerSecond / panels;
+        return String.format("%-18s %14.0f %14.3f %12.0f %16.0f %16.0f %12d", engine, heapPerConnection,
+                threadsPerConnection, connectionsPerGigabyte, ingestPerSecond, deliveredPerSecond, dropped);
+    }
+
+    /**
+     * Starts a node sending sensor data as fast as the server accepts it.
+     * Anything the server sends to the node is read and discarded so that the
+     * server never blocks on it.
+     */
+    private Thread startSender(Socket socket, int nodeId, AtomicBoolean running) throws IOException {
+        byte[] line = ("SENSOR:" + nodeId + ":temperature=23.0°C,humidity=70.55%\n")
+                .getBytes(StandardCharsets.UTF_8);
+        InputStream in = socket.getInputStream();
+        Thread drain = new Thread(() -> {
+            byte[] buffer = new byte[8192];
+            try {
+                while (in.read(buffer) != -1) {
+                    // Discard whatever the server sends
+                }
+            } catch (IOException e) {
+                // The socket is closed at the end of the run
+            }
+        }, "benchmark-drain-" + nodeId);
+        drain.setDaemon(true);
+        drain.start();
+
+        Thread sender = new Thread(() -> {
+            try {
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                out.write(("HELLO:NODE:" + nodeId + "\n").getBytes(StandardCharsets.UTF_8));
+                while (running.get()) {
+                    for (int i = 0; i < 100; i++) {
+                        out.write(line);
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                Logger.error("Sender " + nodeId + " failed: " + e.getMessage());
+            }
+        }, "benchmark-sender-" + nodeId);
+        sender.start();
+        return sender;
+    }
+
+    /**
+     * Connects the control panels and counts every line they receive, using a
+     * single selector thread.
+     */
+    private Thread startPanelReader(int port, AtomicLong delivered, AtomicBoolean running) throws IOException {
+        Selector selector = Selector.open();
+        for (int i = 0; i < panels; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+            channel.write(ByteBuffer.wrap("HELLO:PANEL\n".getBytes(StandardCharsets.UTF_8)));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+        }
+        Thread reader = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            try {
+                while (running.get()) {
+                    selector.select(100);
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        buffer.clear();
+                        if (((SocketChannel) key.channel()).read(buffer) < 0) {
+                            key.cancel();
+                            continue;
+                        }
+                        buffer.flip();
+                        long lines = 0;
+                        while (buffer.hasRemaining()) {
+                            if (buffer.get() == '\n') {
+                                lines++;
+                            }
+                        }
+                        delivered.addAndGet(lines);
+                    }
+                }
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                Logger.error("Panel reader failed: " + e.getMessage());
+            }
+        }, "benchmark-panels");
+        reader.start();
+        return reader;
+    }
+
+
+    private static void waitForClients(GreenhouseServer server, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (server.getClientCount() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        if (server.getClientCount() != expected) {
+            Logger.error("Expected " + expected + " clients, server has " + server.getClientCount());
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long stackBytes() {
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (argument.startsWith("-Xss")) {
+                return parseSize(argument.substring(4));
+            }
+        }
+        return DEFAULT_STACK_BYTES;
+    }
+
+    private static long parseSize(String size) {
+        char suffix = Character.toLowerCase(size.charAt(size.length() - 1));
+        long multiplier = suffix == 'k' ? 1024 : suffix == 'm' ? 1024 * 1024 : suffix == 'g' ? 1024L * 1024 * 1024 : 1;
+        String digits = multiplier == 1 ? size : size.substring(0, size.length() - 1);
+        return Long.parseLong(digits) * multiplier;
+    }
+}
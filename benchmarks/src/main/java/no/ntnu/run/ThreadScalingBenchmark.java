@@ -0,0 +1,176 @@
+package no.ntnu.run;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import no.ntnu.greenhouse.ActuatorCollection;
+import no.ntnu.greenhouse.Actuator;
+import no.ntnu.greenhouse.DeviceFactory;
+import no.ntnu.greenhouse.Sensor;
+import no.ntnu.tcp.GreenhouseNode;
+import no.ntnu.tcp.GreenhouseServer;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.Sockets;
+import no.ntnu.tools.Threads;
+
+/**
+ * Scaling test for the thread modes. Runs a thread-per-client server, many
+ * real GreenhouseNode instances and one control panel in a single JVM, first
+ * with platform threads and then with virtual threads, and records memory,
+ * thread count and delivered messages per second for both.
+ *
+ * <p>Every node connects from localhost, so the number of nodes is limited by
+ * the ephemeral port range of the machine (about 28 000 on Linux by default).
+ */
+public class ThreadScalingBenchmark {
+    private static final int SEND_INTERVAL_SECONDS = 5; // How often a GreenhouseNode sends its data
+
+    private final int nodeCount; // Number of simulated nodes
+    private final int seconds; // Length of the measurement window
+
+    /**
+     * Constructs a ThreadScalingBenchmark.
+     *
+     * @param nodeCount number of simulated nodes
+     * @param seconds   length of the measurement window
+     */
+    public ThreadScalingBenchmark(int nodeCount, int seconds) {
+        this.nodeCount = nodeCount;
+        this.seconds = seconds;
+    }
+
+    /**
+     * Runs the scaling test for both thread modes.
+     *
+     * @param args optional: [nodes] [seconds] [port] [modes], where modes is
+     *             "both" (default), "platform" or "virtual"
+     */
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 2 * SEND_INTERVAL_SECONDS;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 12360;
+        String modes = args.length > 3 ? args[3] : "both";
+
+        Logger.setDebugEnabled(false);
+        GreenhouseNode.setActuatorHeartbeat(SEND_INTERVAL_SECONDS * 1000L); // Keep one ACTUATOR line per send
+        ThreadScalingBenchmark benchmark = new ThreadScalingBenchmark(nodes, seconds);
+        List<String> results = new ArrayList<>();
+        if (!"virtual".equals(modes)) {
+            results.add(benchmark.run(false, port));
+        }
+        if (!"platform".equals(modes)) {
+            results.add(benchmark.run(true, port + 1));
+        }
+
+        Logger.info("");
+        Logger.info(String.format("%-10s %8s %10s %14s %14s %14s", "threads", "nodes", "java thr.",
+                "heap (MB)", "msg/s", "expected msg/s"));
+        results.forEach(Logger::info);
+    }
+
+    /**
+     * Runs the server, the nodes and the control panel in one thread mode.
+     *
+     * @param virtual true for virtual threads, false for platform threads
+     * @param port    the port for the server
+     * @return one formatted result line
+     */
+    private String run(boolean virtual, int port) throws Exception {
+        String mode = virtual ? "virtual" : "platform";
+        Logger.info("=== " + mode + " threads, " + nodeCount + " nodes ===");
+        Threads.setVirtual(virtual);
+        long heapBefore = usedHeap();
+
+        GreenhouseServer server = new GreenhouseServer(port);
+        Thread serverThread = new Thread(server::start, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Sockets.waitUntilListening(port);
+
+        AtomicLong delivered = new AtomicLong();
+        Socket panel = new Socket("localhost", port);
+        panel.getOutputStream().write("HELLO:PANEL\n".getBytes(StandardCharsets.UTF_8));
+        startPanelReader(panel, delivered);
+
+        List<GreenhouseNode> nodes = new ArrayList<>();
+        for (int i = 1; i <= nodeCount; i++) {
+            GreenhouseNode node = createNode(i, port);
+            nodes.add(node);
+            Threads.start("node-" + i, node::start);
+        }
+        waitForClients(server, nodeCount + 1);
+        Thread.sleep(SEND_INTERVAL_SECONDS * 1000L); // Let every node finish its first send
+
+        long countAtStart = delivered.get();
+        Thread.sleep(seconds * 1000L);
+        double messagesPerSecond = (double) (delivered.get() - countAtStart) / seconds;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        double heapMegabytes = (usedHeap() - heapBefore) / (1024.0 * 1024.0);
+
+        for (GreenhouseNode node : nodes) {
+            node.stop();
+        }
+        panel.close();
+        server.stop();
+        waitForClients(server, 0);
+
+        double expected = 2.0 * nodeCount / SEND_INTERVAL_SECONDS; // One SENSOR and one ACTUATOR line
+        return String.format("%-10s %8d %10d %14.1f %14.0f %14.0f", mode, nodeCount, threads, heapMegabytes,
+                messagesPerSecond, expected);
+    }
+
+    private static GreenhouseNode createNode(int nodeId, int port) {
+        List<Sensor> sensors = new ArrayList<>();
+        sensors.add(DeviceFactory.createTemperatureSensor());
+        sensors.add(DeviceFactory.createHumiditySensor());
+        ActuatorCollection actuators = new ActuatorCollection();
+        actuators.add(new Actuator(1, "fan", nodeId));
+        return new GreenhouseNode(nodeId, "localhost", port, sensors, actuators);
+    }
+
+    private static void startPanelReader(Socket panel, AtomicLong delivered) throws IOException {
+        InputStream in = panel.getInputStream();
+        Threads.start("benchmark-panel", () -> {
+            byte[] buffer = new byte[64 * 1024];
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    long lines = 0;
+                    for (int i = 0; i < read; i++) {
+                        if (buffer[i] == '\n') {
+                            lines++;
+                        }
+                    }
+                    delivered.addAndGet(lines);
+                }
+            } catch (IOException e) {
+                // The socket is closed at the end of the run
+            }
+        });
+    }
+
+
+    private static void waitForClients(GreenhouseServer server, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60_000;
+        while (server.getClientCount() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        if (server.getClientCount() != expected) {
+            Logger.error("Expected " + expected + " clients, server has " + server.getClientCount());
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,117 @@
+package no.ntnu.run;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import no.ntnu.greenhouse.DeviceFactory;
+import no.ntnu.greenhouse.Sensor;
+import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.greenhouse.SensorStore;
+import no.ntnu.greenhouse.SimulationStep;
+import no.ntnu.tools.Logger;
+
+/**
+ * Measures how the tick mode of the simulator scales with the number of
+ * threads. Creates nodes with two temperature sensors and one humidity sensor
+ * each, and advances all of them with a {@link SimulationStep} of 1, 2, 4 ...
+ * threads, up to the number of cores. For every thread count it prints the
+ * sensor updates per second, the speedup over one thread and a checksum of
+ * the sensor values after ten steps from the same start. The checksums must
+ * be equal: the result of a step does not depend on the thread count.
+ */
+public class TickBenchmark {
+    private static final int SENSORS_PER_NODE = 3;
+    private static final int CHECKSUM_STEPS = 10;
+    private static final long SEED = 42;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args optional: [nodes] [seconds] [threads] [store], where threads
+     *             is a comma separated list of thread counts, and "store" keeps
+     *             the sensors in a columnar store; by default 100 000 nodes for
+     *             5 seconds per thread count
+     */
+    public static void main(String[] args) {
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        List<Integer> threadCounts = new ArrayList<>();
+        if (args.length > 2) {
+            for (String count : args[2].split(",")) {
+                threadCounts.add(Integer.parseInt(count.trim()));
+            }
+        } else {
+            int cores = Runtime.getRuntime().availableProcessors();
+            for (int threads = 1; threads < cores; threads *= 2) {
+                threadCounts.add(threads);
+            }
+            threadCounts.add(cores);
+        }
+        boolean store = args.length > 3 && "store".equals(args[3]);
+
+        DeviceFactory.setSensorStore(store ? new SensorStore() : null);
+        List<SensorActuatorNode> nodes = new ArrayList<>(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            SensorActuatorNode node = DeviceFactory.createNode(2, 1, 0, 0, 0);
+            node.setTicked(true);
+            nodes.add(node);
+        }
+        DeviceFactory.setSensorStore(null);
+        double[] initialValues = readValues(nodes);
+
+        List<String> results = new ArrayList<>();
+        double singleThreadRate = 0;
+        for (int threads : threadCounts) {
+            Logger.info("=== " + threads + " threads, " + nodeCount + " nodes" + (store ? ", store" : "") + " ===");
+            SimulationStep step = new SimulationStep(nodes, SEED, threads);
+            writeValues(nodes, initialValues);
+            for (int i = 0; i < CHECKSUM_STEPS; i++) {
+                step.run();
+            }
+            double checksum = 0;
+            for (double value : readValues(nodes)) {
+                checksum += value;
+            }
+
+            long end = System.nanoTime() + seconds * 1_000_000_000L;
+            long steps = 0;
+            long start = System.nanoTime();
+            while (System.nanoTime() < end) {
+                step.run();
+                steps++;
+            }
+            double rate = (double) steps * nodeCount * SENSORS_PER_NODE * 1e9 / (System.nanoTime() - start);
+            step.close();
+            if (singleThreadRate == 0) {
+                singleThreadRate = rate;
+            }
+            results.add(String.format(Locale.ROOT, "%7d %8d %16.0f %8.2f %18.2f", threads, steps, rate,
+                    rate / singleThreadRate, checksum));
+        }
+
+        Logger.info("");
+        Logger.info(String.format("%7s %8s %16s %8s %18s", "threads", "steps", "updates/s", "speedup", "checksum"));
+        results.forEach(Logger::info);
+    }
+
+    private static double[] readValues(List<SensorActuatorNode> nodes) {
+        double[] values = new double[nodes.size() * SENSORS_PER_NODE];
+        int i = 0;
+        for (SensorActuatorNode node : nodes) {
+            for (Sensor sensor : node.getSensors()) {
+                values[i++] = sensor.getReading().getValue();
+            }
+        }
+        return values;
+    }
+
+    private static void writeValues(List<SensorActuatorNode> nodes, double[] values) {
+        int i = 0;
+        for (SensorActuatorNode node : nodes) {
+            for (Sensor sensor : node.getSensors()) {
+                sensor.getReading().setValue(values[i++]);
+            }
+        }
+    }
+}
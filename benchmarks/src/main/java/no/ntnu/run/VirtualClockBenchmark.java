@@ -0,0 +1,99 @@
+package no.ntnu.run;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+import no.ntnu.greenhouse.DeviceFactory;
+import no.ntnu.greenhouse.PeriodicSwitch;
+import no.ntnu.greenhouse.Sensor;
+import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.greenhouse.VirtualClock;
+import no.ntnu.tools.Logger;
+
+/**
+ * Measures how fast a {@link VirtualClock} simulates a large greenhouse. Every
+ * node has two temperature sensors, one humidity sensor, a window and a
+ * heater; every tenth node has a periodic switch turning its window on and off
+ * every 20 minutes. The simulation runs twice from the same seed, as fast as
+ * possible, and the benchmark prints the simulated time per real second, the
+ * events per second and a checksum of the sensor values, which must be equal
+ * for both runs.
+ */
+public class VirtualClockBenchmark {
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final long SWITCH_PERIOD_MILLIS = 20 * 60 * 1000L;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args optional: [nodes] [days] [seed], by default 1000 nodes for
+     *             one simulated day
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        double days = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+
+        Logger.setDebugEnabled(false);
+        List<String> results = new ArrayList<>();
+        for (int run = 1; run <= 2; run++) {
+            results.add(run(run, nodeCount, (long) (days * DAY_MILLIS), seed));
+        }
+
+        Logger.info("");
+        Logger.info(String.format("%4s %7s %10s %10s %14s %12s %14s", "run", "nodes", "sim days", "real s",
+                "sim/real", "events/s", "checksum"));
+        results.forEach(Logger::info);
+    }
+
+    /**
+     * Simulates the greenhouse once.
+     *
+     * @param run            number of the run, for the result line
+     * @param nodeCount      number of nodes
+     * @param durationMillis simulated time
+     * @param seed           seed of the random generators
+     * @return one formatted result line
+     */
+    private static String run(int run, int nodeCount, long durationMillis, long seed)
+            throws InterruptedException {
+        Logger.info("=== run " + run + ", " + nodeCount + " nodes ===");
+        VirtualClock clock = new VirtualClock(0);
+        SplittableRandom random = new SplittableRandom(seed);
+        DeviceFactory.setRandom(random.split());
+        List<SensorActuatorNode> nodes = new ArrayList<>(nodeCount);
+        List<PeriodicSwitch> switches = new ArrayList<>();
+        for (int i = 0; i < nodeCount; i++) {
+            SensorActuatorNode node = DeviceFactory.createNode(2, 1, 1, 0, 1);
+            node.setClock(clock);
+            node.setRandom(random.split());
+            nodes.add(node);
+            if (i % 10 == 0) {
+                int windowId = node.getActuators().iterator().next().getId();
+                switches.add(new PeriodicSwitch("Switch " + i, node, windowId, SWITCH_PERIOD_MILLIS));
+            }
+        }
+        DeviceFactory.setRandom(null);
+        nodes.forEach(SensorActuatorNode::start);
+        switches.forEach(PeriodicSwitch::start);
+
+        long start = System.nanoTime();
+        clock.runUntil(durationMillis);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        double checksum = 0;
+        for (SensorActuatorNode node : nodes) {
+            for (Sensor sensor : node.getSensors()) {
+                checksum += sensor.getReading().getValue();
+            }
+        }
+        switches.forEach(PeriodicSwitch::stop);
+        nodes.forEach(SensorActuatorNode::stop);
+
+        return String.format(Locale.ROOT, "%4d %7d %10.2f %10.2f %14.0f %12.0f %14.2f", run, nodeCount,
+                (double) durationMillis / DAY_MILLIS, seconds, durationMillis / 1000.0 / seconds,
+                clock.getEventCount() / seconds, checksum);
+    }
+}
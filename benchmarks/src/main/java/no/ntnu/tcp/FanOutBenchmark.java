@@ -0,0 +1,78 @@
+package no.ntnu.tcp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of publishing one sensor reading to many control panels.
+ * Every panel is an in-memory sink which writes its queued messages into a
+ * send buffer, like a socket would. Run with "-prof gc" to see the allocation
+ * per fan-out.
+ *
+ * <p>{@code encodeOnce} is the server's publish path, where the reading is
+ * encoded once and every panel writes the same bytes. {@code encodePerPanel}
+ * encodes the reading separately for every panel, which is what the server did
+ * when each client had its own PrintWriter. {@code broadcast} sends a ready
+ * line to every client through {@link GreenhouseServer#broadcast(String)}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FanOutBenchmark {
+    private static final String READING = "temperature=23.18°C,humidity=70.55%";
+
+    @Param({"10", "200"})
+    public int panels;
+
+    private GreenhouseServer server;
+    private List<SinkConnection> sinks;
+
+    @Setup
+    public void setUp() {
+        server = new GreenhouseServer(0);
+        sinks = new ArrayList<>();
+        for (int i = 0; i < panels; i++) {
+            SinkConnection sink = new SinkConnection(server, "panel-" + i);
+            server.addClient(sink);
+            sink.registerPanel(server);
+            sinks.add(sink);
+        }
+    }
+
+    @Benchmark
+    public long encodeOnce() {
+        server.handleSensorData(1, READING);
+        return sinks.get(0).written;
+    }
+
+    @Benchmark
+    public long broadcast() {
+        server.broadcast("SENSOR:1:" + READING);
+        return sinks.get(0).written;
+    }
+
+    @Benchmark
+    public long encodePerPanel() {
+        String message = "SENSOR:" + 1 + ":" + READING;
+        for (SinkConnection sink : sinks) {
+            sink.send(EncodedMessage.of(message));
+        }
+        return sinks.get(0).written;
+    }
+}
@@ -0,0 +1,82 @@
+package no.ntnu.tcp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how the server handles one message from a client, from the
+ * received line to the messages queued for the other clients. The server has
+ * one node and a number of control panels, all in-memory sinks.
+ *
+ * <p>{@code sensor} and {@code actuatorStates} are the messages a node sends
+ * in the form the server forwards unchanged; {@code sensorReformatted} has
+ * extra whitespace, so the server formats it again. {@code actuatorCommand}
+ * is a command from a panel, routed to the node.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageHandlingBenchmark {
+    private static final String SENSOR = "SENSOR:1:temperature=23.18°C,humidity=70.55%";
+    private static final String SENSOR_REFORMATTED = "SENSOR: 1 : temperature=23.18°C,humidity=70.55% ";
+    private static final String ACTUATOR_STATES = "ACTUATOR:1:1:window=false,2:fan=true,3:heater=false";
+    private static final String ACTUATOR_COMMAND = "ACTUATOR:1:2:true";
+
+    @Param({"1", "10"})
+    public int panels;
+
+    private SinkConnection node;
+    private SinkConnection panel;
+
+    @Setup
+    public void setUp() {
+        GreenhouseServer server = new GreenhouseServer(0);
+        node = new SinkConnection(server, "node");
+        server.addClient(node);
+        server.registerNode(node, 1);
+        for (int i = 0; i < panels; i++) {
+            SinkConnection sink = new SinkConnection(server, "panel-" + i);
+            server.addClient(sink);
+            sink.registerPanel(server);
+            panel = sink;
+        }
+    }
+
+    @Benchmark
+    public long sensor() {
+        node.handleMessage(SENSOR);
+        return panel.written;
+    }
+
+    @Benchmark
+    public long sensorReformatted() {
+        node.handleMessage(SENSOR_REFORMATTED);
+        return panel.written;
+    }
+
+    @Benchmark
+    public long actuatorStates() {
+        node.handleMessage(ACTUATOR_STATES);
+        return panel.written;
+    }
+
+    @Benchmark
+    public long actuatorCommand() {
+        panel.handleMessage(ACTUATOR_COMMAND);
+        return node.written;
+    }
+}
@@ -0,0 +1,63 @@
+package no.ntnu.tcp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import no.ntnu.greenhouse.ActuatorCollection;
+import no.ntnu.greenhouse.DeviceFactory;
+import no.ntnu.greenhouse.Sensor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how a node produces the messages it reports every period: new
+ * readings of its sensors formatted as a SENSOR message, and the state of its
+ * actuators formatted as an ACTUATOR message. Nothing is written to a socket.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class NodeReportBenchmark {
+    @Param({"2", "8"})
+    public int sensors;
+
+    private GreenhouseNode node;
+
+    @Setup
+    public void setUp() {
+        List<Sensor> nodeSensors = new ArrayList<>();
+        for (int i = 0; i < sensors; i++) {
+            nodeSensors.add(i % 2 == 0 ? DeviceFactory.createTemperatureSensor()
+                    : DeviceFactory.createHumiditySensor());
+        }
+        ActuatorCollection actuators = new ActuatorCollection();
+        actuators.add(DeviceFactory.createWindow(1));
+        actuators.add(DeviceFactory.createFan(1));
+        actuators.add(DeviceFactory.createHeater(1));
+        node = new GreenhouseNode(1, "localhost", 0, nodeSensors, actuators);
+    }
+
+    @Benchmark
+    public int sensorReport() {
+        CharSequence report = node.formatSensorReport();
+        return report != null ? report.length() : 0;
+    }
+
+    @Benchmark
+    public int actuatorReport() {
+        return node.formatActuatorReport().length();
+    }
+}
@@ -0,0 +1,51 @@
+package no.ntnu.tcp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client connection for the benchmarks which writes its messages into a
+ * send buffer as soon as they are queued, like a socket would.
+ */
+class SinkConnection extends ClientConnection {
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    long written; // Bytes written so far
+
+    SinkConnection(GreenhouseServer server, String name) {
+        super(server, name);
+    }
+
+    /**
+     * Registers the sink as a control panel and waits until it is subscribed,
+     * since the server subscribes a panel after sending its snapshot from
+     * another thread.
+     */
+    void registerPanel(GreenhouseServer server) {
+        server.registerPanel(this);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!server.isSubscribed(this)) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new IllegalStateException("The panel was not subscribed");
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    @Override
+    protected void onMessageQueued() {
+        EncodedMessage message;
+        while ((message = queue.poll()) != null) {
+            ByteBuffer view = message.buffer();
+            if (sendBuffer.remaining() < view.remaining()) {
+                sendBuffer.clear();
+            }
+            written += view.remaining();
+            sendBuffer.put(view);
+        }
+    }
+
+    @Override
+    public void close() {
+        queue.close();
+    }
+}
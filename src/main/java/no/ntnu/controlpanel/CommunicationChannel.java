@@ -1,5 +1,8 @@
 package no.ntnu.controlpanel;
 
+import java.util.concurrent.CompletableFuture;
+import no.ntnu.protocol.ActuatorBatch;
+
 /**
  * A communication channel for disseminating control commands to the sensor
  * nodes
@@ -16,6 +19,37 @@ public interface CommunicationChannel {
    */
   void sendActuatorChange(int nodeId, int actuatorId, boolean isOn);
 
+  /**
+   * Request that state of an actuator is changed, and learn the state the node
+   * applied. Many requests may be outstanding at the same time. A channel
+   * without acknowledgements completes the future at once with the requested
+   * state.
+   *
+   * @param nodeId     ID of the node to which the actuator is attached
+   * @param actuatorId Node-wide unique ID of the actuator
+   * @param isOn       When true, actuator must be turned on; off when false.
+   * @return A future completed with the state of the actuator once the node has
+   *         acknowledged the command, or exceptionally when the command failed
+   *         or was not acknowledged in time
+   */
+  default CompletableFuture<Boolean> requestActuatorChange(int nodeId, int actuatorId, boolean isOn) {
+    sendActuatorChange(nodeId, actuatorId, isOn);
+    return CompletableFuture.completedFuture(isOn);
+  }
+
+  /**
+   * Request that the states of many actuators, possibly of many nodes, are
+   * changed at once. A channel without batch commands sends one change at a
+   * time.
+   *
+   * @param batch The actuators and their new states
+   */
+  default void sendActuatorBatch(ActuatorBatch batch) {
+    for (int i = 0; i < batch.getCount(); i++) {
+      sendActuatorChange(batch.getNodeId(i), batch.getActuatorId(i), batch.isOn(i));
+    }
+  }
+
   /**
    * Open the communication channel.
    *
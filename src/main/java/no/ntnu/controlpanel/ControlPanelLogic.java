@@ -2,12 +2,14 @@ package no.ntnu.controlpanel;
 
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import no.ntnu.greenhouse.Actuator;
 import no.ntnu.greenhouse.ActuatorCollection;
 import no.ntnu.greenhouse.SensorReading;
 import no.ntnu.listeners.common.ActuatorListener;
 import no.ntnu.listeners.common.CommunicationChannelListener;
 import no.ntnu.listeners.controlpanel.GreenhouseEventListener;
+import no.ntnu.protocol.ActuatorBatch;
 import no.ntnu.tools.Logger;
 
 /**
@@ -88,18 +90,41 @@ public class ControlPanelLogic implements GreenhouseEventListener, ActuatorListe
    * @param actuators The actuators associated with the node
    */
   public void handleInitialActuatorData(int nodeId, ActuatorCollection actuators) {
-    SensorActuatorNodeInfo nodeInfo = getNodeInfo(nodeId);
-    if (nodeInfo != null) {
+    if (getNodeInfo(nodeId) != null) {
       for (Actuator actuator : actuators) {
-        nodeInfo.addActuator(actuator);
-        notifyActuatorAdded(nodeId, actuator); // Notify listeners of the new actuator
+        applyActuatorState(nodeId, actuator.getId(), actuator.getType(), actuator.isOn());
       }
-      notifyActuatorData(nodeId, actuators); // Notify listeners of the actuator states
     } else {
       System.out.println("NodeInfo not found for nodeId: " + nodeId);
     }
   }
 
+  /**
+   * Applies the state of one actuator reported by a node. An actuator which is
+   * not known yet is added. Listeners are only notified of a new actuator or a
+   * changed state, since a node reports all its states again now and then.
+   *
+   * @param nodeId     The ID of the node
+   * @param actuatorId The ID of the actuator within the node
+   * @param type       The actuator type
+   * @param isOn       The reported state
+   */
+  public void applyActuatorState(int nodeId, int actuatorId, String type, boolean isOn) {
+    SensorActuatorNodeInfo nodeInfo = ensureNodeExists(nodeId);
+    Actuator actuator = nodeInfo.getActuator(actuatorId);
+    if (actuator == null) {
+      actuator = new Actuator(actuatorId, type, nodeId);
+      actuator.set(isOn);
+      nodeInfo.addActuator(actuator);
+      notifyActuatorAdded(nodeId, actuator); // Notify listeners of the new actuator
+    } else if (actuator.isOn() != isOn) {
+      actuator.set(isOn);
+    } else {
+      return;
+    }
+    listeners.forEach(listener -> listener.onActuatorStateChanged(nodeId, actuatorId, isOn));
+  }
+
   /**
    * Ensures that a node with the given ID exists. If it doesn't, creates and adds
    * it.
@@ -117,18 +142,6 @@ public class ControlPanelLogic implements GreenhouseEventListener, ActuatorListe
     return nodeInfo;
   }
 
-  /**
-   * Notifies listeners of actuator state changes for a node.
-   *
-   * @param nodeId    The ID of the node
-   * @param actuators The collection of actuators
-   */
-  private void notifyActuatorData(int nodeId, ActuatorCollection actuators) {
-    for (Actuator actuator : actuators) {
-      listeners.forEach(listener -> listener.onActuatorStateChanged(nodeId, actuator.getId(), actuator.isOn()));
-    }
-  }
-
   /**
    * Notifies listeners that a new actuator has been added to a node.
    *
@@ -159,6 +172,11 @@ public class ControlPanelLogic implements GreenhouseEventListener, ActuatorListe
     listeners.forEach(listener -> listener.onSensorData(nodeId, sensors));
   }
 
+  @Override
+  public void onHistoricalSensorData(int nodeId, long epochMillis, List<SensorReading> sensors) {
+    listeners.forEach(listener -> listener.onHistoricalSensorData(nodeId, epochMillis, sensors));
+  }
+
   @Override
   public void onActuatorStateChanged(int nodeId, int actuatorId, boolean isOn) {
     listeners.forEach(listener -> listener.onActuatorStateChanged(nodeId, actuatorId, isOn));
@@ -186,6 +204,70 @@ public class ControlPanelLogic implements GreenhouseEventListener, ActuatorListe
     listeners.forEach(listener -> listener.onActuatorStateChanged(nodeId, actuatorId, isOn));
   }
 
+  /**
+   * Sends commands to change the states of many actuators at once, in as few
+   * messages as possible, and notifies listeners of the new states.
+   *
+   * @param batch The actuators and their desired states
+   */
+  public void sendActuatorBatch(ActuatorBatch batch) {
+    if (communicationChannel != null) {
+      communicationChannel.sendActuatorBatch(batch);
+    }
+    for (int i = 0; i < batch.getCount(); i++) {
+      int nodeId = batch.getNodeId(i);
+      int actuatorId = batch.getActuatorId(i);
+      boolean isOn = batch.isOn(i);
+      listeners.forEach(listener -> listener.onActuatorStateChanged(nodeId, actuatorId, isOn));
+    }
+  }
+
+  /**
+   * Sets all actuators of a type on all known nodes to the same state with one
+   * batch command, for example to open every window of the greenhouse.
+   *
+   * @param type The actuator type, for example "window", or null for all
+   *             actuators
+   * @param isOn The desired state of the actuators
+   */
+  public void setAllActuators(String type, boolean isOn) {
+    ActuatorBatch batch = new ActuatorBatch();
+    for (SensorActuatorNodeInfo node : nodes) {
+      for (Actuator actuator : node.getActuators()) {
+        if (type == null || type.equals(actuator.getType())) {
+          batch.add(node.getId(), actuator.getId(), isOn);
+        }
+      }
+    }
+    if (batch.getCount() > 0) {
+      sendActuatorBatch(batch);
+    }
+  }
+
+  /**
+   * Requests a change of the state of an actuator on a specific node. Listeners
+   * are notified of the state the node applied once it acknowledges the command;
+   * a command which fails or is not acknowledged in time is only logged, and the
+   * next state report of the node shows the actual state.
+   *
+   * @param nodeId     The ID of the node
+   * @param actuatorId The ID of the actuator
+   * @param isOn       The desired state of the actuator
+   * @return A future completed with the applied state, or exceptionally
+   */
+  public CompletableFuture<Boolean> requestActuatorChange(int nodeId, int actuatorId, boolean isOn) {
+    if (communicationChannel == null) {
+      return CompletableFuture.failedFuture(new IllegalStateException("No communication channel"));
+    }
+    return communicationChannel.requestActuatorChange(nodeId, actuatorId, isOn).whenComplete((applied, error) -> {
+      if (error != null) {
+        Logger.error("Command for actuator " + actuatorId + " on node " + nodeId + " failed: " + error.getMessage());
+      } else {
+        listeners.forEach(listener -> listener.onActuatorStateChanged(nodeId, actuatorId, applied));
+      }
+    });
+  }
+
   @Override
   public void onCommunicationChannelClosed() {
     Logger.info("Communication closed, updating logic...");
@@ -1,25 +1,67 @@
 package no.ntnu.controlpanel;
 
-import no.ntnu.greenhouse.Actuator;
-import no.ntnu.greenhouse.ActuatorCollection;
 import no.ntnu.greenhouse.SensorReading;
+import no.ntnu.protocol.ActuatorBatch;
+import no.ntnu.protocol.ActuatorCommand;
+import no.ntnu.protocol.ActuatorMessage;
+import no.ntnu.protocol.BinaryProtocol;
+import no.ntnu.protocol.CommandAck;
+import no.ntnu.protocol.MessageCodec;
+import no.ntnu.protocol.MessageDecoder;
+import no.ntnu.protocol.MessageEncoder;
+import no.ntnu.protocol.SensorHistory;
+import no.ntnu.protocol.SensorMessage;
+import no.ntnu.protocol.TraceStamps;
+import no.ntnu.tools.CoalescingOutputStream;
+import no.ntnu.tools.Threads;
+import no.ntnu.tools.Tracing;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * TcpCommunicationChannel manages communication between the Control Panel and
  * the server using the TCP protocol.
  */
 public class TcpCommunicationChannel implements CommunicationChannel {
+    private static final long DEFAULT_COMMAND_TIMEOUT_MILLIS = 5000;
+    private static final int MAX_BATCH_ENTRIES = 1024; // Keeps a BATCH message well below the line length limit
+
     private final String serverAddress; // Server address to connect to
     private final int port; // Port for the server connection
     private final ControlPanelLogic logic; // Logic handler for the Control Panel
     private Socket socket; // Socket for server communication
-    private PrintWriter out; // Output stream for sending messages
-    private BufferedReader in; // Input stream for receiving messages
+    private CoalescingOutputStream out; // Output stream for sending messages
+    private InputStream in; // Input stream for receiving messages
+    private final MessageEncoder encoder = new MessageEncoder(); // Text lines, or binary frames once negotiated
+    private final MessageCodec codec = new MessageCodec(); // Used by the listener thread
+    private final SensorMessage sensorMessage = new SensorMessage(); // Reused for every SENSOR message
+    private final ActuatorMessage actuatorMessage = new ActuatorMessage(); // Reused for every ACTUATOR message
+    private final Map<Integer, SensorMessage> latestReadings = new HashMap<>(); // Node ID -> every reading; listener thread
+    private final CommandAck ack = new CommandAck(); // Reused for every ACK message
+    private final SensorHistory history = new SensorHistory(); // Reused for every HISTORY message
+    private final SensorMessage historySample = new SensorMessage(); // Every reading of the current HISTORY sample
+    private final Map<Integer, PendingCommand> pendingCommands = new ConcurrentHashMap<>(); // Correlation ID -> command
+    private final AtomicInteger correlationIds = new AtomicInteger(); // Next correlation ID, wrapping around
+    private volatile long commandTimeoutMillis = DEFAULT_COMMAND_TIMEOUT_MILLIS;
+
+    /**
+     * A command waiting for its acknowledgement.
+     *
+     * @param future    completed when the acknowledgement arrives
+     * @param sentNanos when the command was sent, for the round trip time
+     */
+    private record PendingCommand(CompletableFuture<Boolean> future, long sentNanos) {
+    }
 
     /**
      * Constructs a TcpCommunicationChannel instance.
@@ -34,6 +76,19 @@ public class TcpCommunicationChannel implements CommunicationChannel {
         this.logic = logic;
     }
 
+    /**
+     * Sets how long a command may wait for its acknowledgement before its
+     * future fails with a TimeoutException.
+     *
+     * @param commandTimeoutMillis the timeout in milliseconds
+     */
+    public void setCommandTimeout(long commandTimeoutMillis) {
+        if (commandTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Command timeout must be positive");
+        }
+        this.commandTimeoutMillis = commandTimeoutMillis;
+    }
+
     /**
      * Opens a connection to the server and starts a listener thread for incoming
      * messages.
@@ -44,11 +99,16 @@ public class TcpCommunicationChannel implements CommunicationChannel {
     public boolean open() {
         try {
             socket = new Socket(serverAddress, port);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new CoalescingOutputStream(socket.getOutputStream());
+            in = socket.getInputStream();
+            if (BinaryProtocol.isPreferred()) {
+                encoder.requestBinary(out);
+            }
+            encoder.write("HELLO:PANEL", out); // Declare the role, so the server sends telemetry here
+            out.endBatch();
 
             // Start a new thread to listen for messages from the server
-            new Thread(this::listenToServer).start();
+            Threads.start("control-panel-listener", this::listenToServer);
 
             return true;
         } catch (IOException e) {
@@ -62,10 +122,15 @@ public class TcpCommunicationChannel implements CommunicationChannel {
      */
     private void listenToServer() {
         try {
-            String message;
-            while ((message = in.readLine()) != null) {
-                handleServerMessage(message);
+            MessageDecoder decoder = new MessageDecoder();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                decoder.feed(ByteBuffer.wrap(buffer, 0, read), this::handleServerMessage);
             }
+        } catch (ProtocolException e) {
+            System.out.println("Invalid data from the server, disconnecting: " + e.getMessage());
+            close();
         } catch (SocketException e) {
             if ("Socket closed".equals(e.getMessage())) {
                 System.out.println("Socket closed, stopping listener thread.");
@@ -87,138 +152,234 @@ public class TcpCommunicationChannel implements CommunicationChannel {
             handleSensorMessage(message);
         } else if (message.startsWith("ACTUATOR:")) {
             handleActuatorMessage(message);
+        } else if (message.startsWith("ACK:")) {
+            handleAckMessage(message);
+        } else if (message.startsWith("HISTORY:")) {
+            handleHistoryMessage(message);
         }
     }
 
+    /**
+     * Processes a HISTORY message, the readings a node took while it was not
+     * connected. Every sample goes to the logic with its time, as historical
+     * readings; they are older than the readings already shown, so the latest
+     * values of the node are left as they are. A reading a sample leaves out
+     * is the same as in the sample before it.
+     *
+     * @param message the HISTORY message from the server
+     */
+    private void handleHistoryMessage(String message) {
+        if (!codec.parseHistory(message, history)) {
+            System.out.println("Invalid HISTORY message: " + message);
+            return;
+        }
+        int nodeId = history.getNodeId();
+        logic.ensureNodeExists(nodeId);
+        historySample.reset(nodeId);
+        for (int s = 0; s < history.getCount(); s++) {
+            historySample.merge(history.getReadings(s));
+            logic.onHistoricalSensorData(nodeId, history.getTime(s), toReadings(historySample));
+        }
+        long seconds = (history.getTime(history.getCount() - 1) - history.getTime(0)) / 1000;
+        System.out.println("Node " + nodeId + " sent " + history.getCount() + " samples covering " + seconds
+                + " s while it was disconnected");
+    }
+
     /**
      * Processes a SENSOR message and updates the logic with sensor readings.
+     * Readings the message leaves out have not changed, so the logic gets the
+     * ones received before in their place.
      *
      * @param message the SENSOR message from the server
      */
     private void handleSensorMessage(String message) {
-        String[] parts = message.split(":");
-        int nodeId = Integer.parseInt(parts[1]); // Extract node ID
-        String sensorData = parts[2];
+        if (!codec.parseSensor(message, sensorMessage)) {
+            System.out.println("Invalid SENSOR message: " + message);
+            return;
+        }
+        int nodeId = sensorMessage.getNodeId();
+        recordTrace(nodeId, sensorMessage.getTrace());
 
         // Ensure the node exists in the control panel
         logic.ensureNodeExists(nodeId);
 
-        // Parse and update sensor data
-        List<SensorReading> readings = parseSensorData(sensorData);
-        logic.onSensorData(nodeId, readings);
+        SensorMessage latest = latestReadings.computeIfAbsent(nodeId, id -> new SensorMessage());
+        latest.merge(sensorMessage);
+        logic.onSensorData(nodeId, toReadings(latest));
+    }
+
+    /**
+     * Returns the readings of a merged message, leaving out those which are
+     * unknown until the node sends them again.
+     */
+    private static List<SensorReading> toReadings(SensorMessage message) {
+        List<SensorReading> readings = new ArrayList<>(message.getCount());
+        for (int i = 0; i < message.getCount(); i++) {
+            if (!message.isUnchanged(i)) {
+                readings.add(new SensorReading(message.getType(i), message.getValue(i), message.getUnit(i)));
+            }
+        }
+        return readings;
     }
 
     /**
      * Processes an ACTUATOR message and updates the logic with actuator states.
+     * The message may hold only the actuators which changed.
      *
      * @param message the ACTUATOR message from the server
      */
     private void handleActuatorMessage(String message) {
-        String[] parts = message.split(":", 3); // Split into three parts
-        int nodeId = Integer.parseInt(parts[1]);
-        String actuatorData = parts[2];
-
-        ActuatorCollection actuators = new ActuatorCollection();
-
-        // Parse actuator data
-        String[] actuatorInfos = actuatorData.split(",");
-        for (String actuatorInfo : actuatorInfos) {
-            String[] idAndTypeAndState = actuatorInfo.split(":");
-            if (idAndTypeAndState.length != 2) {
-                continue; // Skip invalid data
-            }
-
-            int actuatorId = Integer.parseInt(idAndTypeAndState[0]);
-            String[] typeAndState = idAndTypeAndState[1].split("=");
-
-            if (typeAndState.length != 2) {
-                continue; // Skip invalid data
-            }
-
-            String type = typeAndState[0];
-            boolean state = Boolean.parseBoolean(typeAndState[1]);
-
-            Actuator actuator = new Actuator(actuatorId, type, nodeId);
-            actuator.set(state);
-            actuators.add(actuator);
+        if (!codec.parseActuatorStates(message, actuatorMessage)) {
+            System.out.println("Invalid ACTUATOR message: " + message);
+            return;
         }
+        int nodeId = actuatorMessage.getNodeId();
+        recordTrace(nodeId, actuatorMessage.getTrace());
 
         // Ensure the node exists in the control panel
         logic.ensureNodeExists(nodeId);
 
-        // Update the control panel with actuator data
-        logic.handleInitialActuatorData(nodeId, actuators);
+        // Update the control panel with the states which changed
+        for (int i = 0; i < actuatorMessage.getCount(); i++) {
+            logic.applyActuatorState(nodeId, actuatorMessage.getActuatorId(i), actuatorMessage.getType(i),
+                    actuatorMessage.isOn(i));
+        }
     }
 
     /**
-     * Parses sensor data into a list of SensorReading objects.
+     * Completes the command an ACK message answers and records its round trip
+     * time. An acknowledgement arriving after the timeout is ignored.
      *
-     * @param sensorData the raw sensor data string
-     * @return a list of SensorReading objects
+     * @param message the ACK message from the server
      */
-    private List<SensorReading> parseSensorData(String sensorData) {
-        List<SensorReading> readings = new ArrayList<>();
-        String[] sensors = sensorData.split(",");
-
-        for (String sensor : sensors) {
-            String[] parts = sensor.split("=");
-            if (parts.length != 2) {
-                throw new IllegalArgumentException("Invalid sensor data format: " + sensor);
-            }
+    private void handleAckMessage(String message) {
+        if (!codec.parseAck(message, ack)) {
+            System.out.println("Invalid ACK message: " + message);
+            return;
+        }
+        PendingCommand pending = pendingCommands.remove((int) ack.getCorrelationId());
+        if (pending == null) {
+            return;
+        }
+        Tracing.record(Tracing.Hop.COMMAND_ROUND_TRIP, System.nanoTime() - pending.sentNanos());
+        if (ack.getStatus() == CommandAck.Status.APPLIED) {
+            pending.future().complete(ack.isOn());
+        } else {
+            pending.future().completeExceptionally(new IllegalStateException("Command for actuator "
+                    + ack.getActuatorId() + " on node " + ack.getNodeId() + " failed: " + ack.getStatus()));
+        }
+    }
 
-            String type = parts[0].trim();
+    /**
+     * Records the latency of a traced message from the node and from the
+     * server, and checks its sequence number.
+     *
+     * @param nodeId the ID of the node the message comes from
+     * @param trace  the trace stamps of the message
+     */
+    private void recordTrace(int nodeId, TraceStamps trace) {
+        if (!trace.isPresent()) {
+            return;
+        }
+        long now = Tracing.epochMicros();
+        Tracing.record(Tracing.Hop.NODE_TO_PANEL, (now - trace.getSentMicros()) * 1000);
+        if (trace.hasReceived()) {
+            Tracing.record(Tracing.Hop.SERVER_TO_PANEL, (now - trace.getReceivedMicros()) * 1000);
+        }
+        Tracing.recordSequence(nodeId, trace.getSequence());
+    }
 
-            // Extract value and unit
-            String valueAndUnit = parts[1].trim();
-            int unitStartIndex = findUnitStartIndex(valueAndUnit);
-            if (unitStartIndex == -1) {
-                throw new IllegalArgumentException("Invalid sensor value/unit format: " + valueAndUnit);
+    /**
+     * Sends an actuator state change command to the server.
+     *
+     * @param nodeId     the ID of the node
+     * @param actuatorId the ID of the actuator
+     * @param isOn       the new state of the actuator
+     */
+    @Override
+    public void sendActuatorChange(int nodeId, int actuatorId, boolean isOn) {
+        ActuatorCommand command = new ActuatorCommand();
+        command.set(nodeId, actuatorId, isOn);
+        StringBuilder line = new StringBuilder(32);
+        MessageCodec.formatActuatorCommand(command, line);
+        if (out != null) {
+            try {
+                encoder.write(line, out);
+                out.endBatch();
+            } catch (IOException e) {
+                System.out.println("Could not send actuator change: " + e.getMessage());
             }
-
-            double value = Double.parseDouble(valueAndUnit.substring(0, unitStartIndex).trim());
-            String unit = valueAndUnit.substring(unitStartIndex).trim();
-
-            readings.add(new SensorReading(type, value, unit));
         }
-        return readings;
     }
 
     /**
-     * Finds the starting index of the unit in a value string.
+     * Sends the changes of many actuators as BATCH messages, which the server
+     * splits by node. A large batch is sent as several messages.
      *
-     * @param valueAndUnit the value string containing both number and unit
-     * @return the starting index of the unit, or -1 if no unit is found
-     */
-    private int findUnitStartIndex(String valueAndUnit) {
-        for (int i = 0; i < valueAndUnit.length(); i++) {
-            if (!Character.isDigit(valueAndUnit.charAt(i)) && valueAndUnit.charAt(i) != '.'
-                    && valueAndUnit.charAt(i) != '-') {
-                return i;
+     * @param batch the actuators and their new states
+     */
+    @Override
+    public void sendActuatorBatch(ActuatorBatch batch) {
+        if (out == null || batch.getCount() == 0) {
+            return;
+        }
+        StringBuilder line = new StringBuilder(64);
+        try {
+            for (int from = 0; from < batch.getCount(); from += MAX_BATCH_ENTRIES) {
+                line.setLength(0);
+                MessageCodec.formatBatch(batch, from, Math.min(from + MAX_BATCH_ENTRIES, batch.getCount()), line);
+                encoder.write(line, out);
             }
+            out.endBatch();
+        } catch (IOException e) {
+            System.out.println("Could not send actuator batch: " + e.getMessage());
         }
-        return -1;
     }
 
     /**
-     * Sends an actuator state change command to the server.
+     * Sends an actuator command which the node acknowledges. Commands are not
+     * sent one at a time: any number may wait for their acknowledgements, each
+     * found again by its correlation ID.
      *
      * @param nodeId     the ID of the node
      * @param actuatorId the ID of the actuator
      * @param isOn       the new state of the actuator
+     * @return a future completed with the state the node applied
      */
     @Override
-    public void sendActuatorChange(int nodeId, int actuatorId, boolean isOn) {
-        String command = String.format("ACTUATOR:%d:%d:%b", nodeId, actuatorId, isOn);
-        if (out != null) {
-            out.println(command);
+    public CompletableFuture<Boolean> requestActuatorChange(int nodeId, int actuatorId, boolean isOn) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        if (out == null) {
+            future.completeExceptionally(new IOException("Not connected"));
+            return future;
         }
+        int correlationId = correlationIds.getAndIncrement() & Integer.MAX_VALUE;
+        pendingCommands.put(correlationId, new PendingCommand(future, System.nanoTime()));
+        future.orTimeout(commandTimeoutMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((state, error) -> pendingCommands.remove(correlationId));
+
+        ActuatorCommand command = new ActuatorCommand();
+        command.set(correlationId, nodeId, actuatorId, isOn);
+        StringBuilder line = new StringBuilder(48);
+        MessageCodec.formatCommand(command, line);
+        try {
+            encoder.write(line, out);
+            out.endBatch();
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
     }
 
     /**
      * Closes the communication channel by shutting down the socket and streams.
+     * Commands still waiting for their acknowledgements fail.
      */
     @Override
     public void close() {
+        for (PendingCommand pending : pendingCommands.values()) {
+            pending.future().completeExceptionally(new IOException("Connection closed"));
+        }
         try {
             if (socket != null)
                 socket.close();
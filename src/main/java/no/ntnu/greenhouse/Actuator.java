@@ -1,7 +1,6 @@
 package no.ntnu.greenhouse;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 import no.ntnu.listeners.common.ActuatorListener;
 
 /**
@@ -14,7 +13,8 @@ public class Actuator {
   private final String type;
   private final int nodeId;
   private final int id;
-  private Map<String, Double> impacts = new HashMap<>();
+  private int[] impactTypes = new int[0]; // Sensor type IDs, see SensorTypes
+  private double[] impactDiffs = new double[0]; // Difference when active, for each entry of impactTypes
 
   private ActuatorListener listener;
 
@@ -76,7 +76,18 @@ public class Actuator {
    *                       same node by +2 degrees".
    */
   public void setImpact(String sensorType, double diffWhenActive) {
-    impacts.put(sensorType, diffWhenActive);
+    int typeId = SensorTypes.idOf(sensorType);
+    int index = 0;
+    while (index < impactTypes.length && impactTypes[index] != typeId) {
+      index++;
+    }
+    // New arrays are created, so clones sharing the old ones are not changed
+    int[] types = Arrays.copyOf(impactTypes, Math.max(impactTypes.length, index + 1));
+    double[] diffs = Arrays.copyOf(impactDiffs, types.length);
+    types[index] = typeId;
+    diffs[index] = diffWhenActive;
+    impactTypes = types;
+    impactDiffs = diffs;
   }
 
   public String getType() {
@@ -90,10 +101,9 @@ public class Actuator {
    */
   public Actuator createClone() {
     Actuator a = new Actuator(type, nodeId);
-    // Note - we pass a reference to the same map! This should not be problem, as
-    // long as we
-    // don't modify the impacts AFTER creating the template
-    a.impacts = impacts;
+    // The impact arrays are shared; setImpact replaces them instead of changing them
+    a.impactTypes = impactTypes;
+    a.impactDiffs = impactDiffs;
     return a;
   }
 
@@ -126,13 +136,12 @@ public class Actuator {
    * @param node The sensor node to be affected by this actuator.
    */
   public void applyImpact(SensorActuatorNode node) {
-    for (Map.Entry<String, Double> impactEntry : impacts.entrySet()) {
-      String sensorType = impactEntry.getKey();
-      double impact = impactEntry.getValue();
+    for (int i = 0; i < impactTypes.length; i++) {
+      double impact = impactDiffs[i];
       if (!on) {
         impact = -impact;
       }
-      node.applyActuatorImpact(sensorType, impact);
+      node.applyActuatorImpact(impactTypes[i], impact);
     }
   }
 
@@ -1,5 +1,8 @@
 package no.ntnu.greenhouse;
 
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
+
 /**
  * A factory for producing sensors and actuators of specific types.
  */
@@ -15,6 +18,8 @@ public class DeviceFactory {
   private static final String SENSOR_TYPE_TEMPERATURE = "temperature";
 
   private static int nextNodeId = 1;
+  private static SensorStore sensorStore; // Shared by the nodes created next, or null
+  private static RandomGenerator random; // Starting values of the sensors, or null for ThreadLocalRandom
 
   /**
    * Constructing the factory is not allowed.
@@ -22,6 +27,27 @@ public class DeviceFactory {
   private DeviceFactory() {
   }
 
+  /**
+   * Keep the sensors of the nodes created from now on in a columnar store,
+   * shared by all of them, instead of a Sensor object per sensor. This uses
+   * much less memory for large simulated greenhouses.
+   *
+   * @param store The store to use, or null to create Sensor objects again
+   */
+  public static void setSensorStore(SensorStore store) {
+    sensorStore = store;
+  }
+
+  /**
+   * Take the starting values of the sensors created from now on from the
+   * given random generator, so they are the same every time for the same seed.
+   *
+   * @param random The random generator, or null for a thread local one
+   */
+  public static void setRandom(RandomGenerator random) {
+    DeviceFactory.random = random;
+  }
+
   /**
    * Create a sensor/actuator device with specific number of sensors and
    * actuators.
@@ -37,7 +63,7 @@ public class DeviceFactory {
    */
   public static SensorActuatorNode createNode(int temperatureSensorCount, int humiditySensorCount,
       int windowCount, int fanCount, int heaterCount) {
-    SensorActuatorNode node = new SensorActuatorNode(generateUniqueNodeId());
+    SensorActuatorNode node = new SensorActuatorNode(generateUniqueNodeId(), sensorStore);
     if (temperatureSensorCount > 0) {
       node.addSensors(DeviceFactory.createTemperatureSensor(), temperatureSensorCount);
     }
@@ -135,7 +161,8 @@ public class DeviceFactory {
    * @return a randomized value within the desired range
    */
   private static double randomize(double x, double d) {
-    final double zeroToDoubleD = Math.random() * 2 * d;
+    RandomGenerator generator = random != null ? random : ThreadLocalRandom.current();
+    final double zeroToDoubleD = generator.nextDouble() * 2 * d;
     final double plusMinusD = zeroToDoubleD - d;
     return x + plusMinusD;
   }
@@ -1,12 +1,17 @@
 package no.ntnu.greenhouse;
 
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.SplittableRandom;
 import no.ntnu.listeners.greenhouse.NodeStateListener;
+import no.ntnu.tcp.GreenhouseGateway;
 import no.ntnu.tcp.GreenhouseNode;
 import no.ntnu.tools.Logger;
+import no.ntnu.tools.Threads;
 
 /**
  * A simulator for a greenhouse system. Handles the initialization and
@@ -14,10 +19,22 @@ import no.ntnu.tools.Logger;
  * periodic switches, and communication with a central server.
  */
 public class GreenhouseSimulator {
+  private static final long TICK_PERIOD_MILLIS = 5000; // Same as the sensing delay of a node
+
   private final Map<Integer, SensorActuatorNode> nodes = new HashMap<>(); // Map of node IDs to sensor/actuator nodes
   private final List<GreenhouseNode> greenhouseNodes = new LinkedList<>(); // List of TCP communication nodes
+  private final List<GreenhouseGateway> gateways = new LinkedList<>(); // Connections shared by the TCP nodes
   private final List<PeriodicSwitch> periodicSwitches = new LinkedList<>(); // List of periodic switches
   private final boolean fake; // Indicates whether to use fake communication (for testing)
+  private int tickParallelism; // Number of threads of the tick mode, 0 when the nodes run by themselves
+  private long tickSeed; // Seed of the random generators of the tick mode
+  private SimulationStep step; // Advances all nodes, in tick mode
+  private SimulationClock.Task tickTask; // Runs the step periodically, in tick mode
+  private SimulationClock clock = SimulationClock.REAL_TIME; // Runs the periodic work of the nodes
+  private SplittableRandom random; // Created from the seed, splits into the generators of the nodes, or null
+  private int gatewaySize; // Nodes per gateway connection, 0 when every node connects by itself
+  private String serverHost = "localhost"; // Where the TCP nodes connect to
+  private int serverPort = 12345;
 
   /**
    * Constructs the GreenhouseSimulator.
@@ -29,14 +46,84 @@ public class GreenhouseSimulator {
     this.fake = fake;
   }
 
+  /**
+   * Set the clock running the periodic work of the nodes and switches, for
+   * example a {@link VirtualClock} to simulate faster than real time. The
+   * wall clock is used by default. Must be set before the simulator is
+   * started; the caller runs a virtual clock.
+   *
+   * @param clock The clock to use
+   */
+  public void setClock(SimulationClock clock) {
+    this.clock = clock;
+  }
+
+  /**
+   * Make the simulation reproducible: the starting values of the sensors and
+   * the noise of every node come from random generators created from the
+   * seed. Together with a {@link VirtualClock} a run gives the same sensor
+   * values every time. Must be called before the greenhouse is initialized.
+   *
+   * @param seed The seed of the random generators
+   */
+  public void setSeed(long seed) {
+    this.random = new SplittableRandom(seed);
+  }
+
+  /**
+   * Set where the nodes connect to, the server or an edge aggregator. Must
+   * be called before the simulator is started.
+   *
+   * @param host The host name or address
+   * @param port The port
+   */
+  public void setServer(String host, int port) {
+    this.serverHost = host;
+    this.serverPort = port;
+  }
+
+  /**
+   * Connect the nodes to the server through gateways, each carrying the
+   * messages of up to the given number of nodes over one connection, instead
+   * of one connection per node. Must be called before the simulator is
+   * started.
+   *
+   * @param nodesPerGateway The most nodes of a gateway, 0 for one connection per node
+   */
+  public void setGatewaySize(int nodesPerGateway) {
+    if (nodesPerGateway < 0) {
+      throw new IllegalArgumentException("Gateway size must not be negative");
+    }
+    this.gatewaySize = nodesPerGateway;
+  }
+
+  /**
+   * Advances all nodes together, in one parallel step every five seconds,
+   * instead of letting every node read its sensors by itself. The sensor
+   * values depend on the seed and the actuator events only, not on the number
+   * of threads. Must be called before the simulator is started.
+   *
+   * @param seed        The seed of the random generators of the nodes
+   * @param parallelism The number of threads running the step
+   */
+  public void setTickMode(long seed, int parallelism) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("Parallelism must be positive");
+    }
+    this.tickSeed = seed;
+    this.tickParallelism = parallelism;
+  }
+
   /**
    * Initializes the greenhouse by creating predefined nodes.
    */
   public void initialize() {
+    DeviceFactory.setRandom(random != null ? random.split() : null);
     createNode(1, 2, 1, 0, 0);
     createNode(1, 0, 0, 2, 1);
     createNode(2, 0, 0, 0, 0);
     createNode(2, 3, 2, 1, 0);
+    DeviceFactory.setRandom(null);
     Logger.info("Greenhouse initialized");
   }
 
@@ -61,16 +148,53 @@ public class GreenhouseSimulator {
    * all nodes and periodic switches.
    */
   public void start() {
+    for (SensorActuatorNode node : getNodesInOrder()) {
+      node.setClock(clock);
+      node.setRandom(random != null ? random.split() : null);
+    }
     initiateCommunication();
-    for (SensorActuatorNode node : nodes.values()) {
+    for (SensorActuatorNode node : getNodesInOrder()) {
+      node.setTicked(tickParallelism > 0);
       node.start(); // Start each node
     }
+    if (tickParallelism > 0) {
+      startTicks();
+    }
     for (PeriodicSwitch periodicSwitch : periodicSwitches) {
       periodicSwitch.start(); // Start each periodic switch
     }
     Logger.info("Simulator started");
   }
 
+  /**
+   * Get the nodes in the order of their IDs, so that each gets the same
+   * random generator every time.
+   *
+   * @return The nodes, sorted by ID
+   */
+  private List<SensorActuatorNode> getNodesInOrder() {
+    List<SensorActuatorNode> ordered = new ArrayList<>(nodes.values());
+    ordered.sort(Comparator.comparingInt(SensorActuatorNode::getId));
+    return ordered;
+  }
+
+  /**
+   * Starts advancing all nodes together.
+   */
+  private void startTicks() {
+    List<SensorActuatorNode> ordered = getNodesInOrder();
+    step = new SimulationStep(ordered, tickSeed, tickParallelism);
+    tickTask = clock.scheduleAtFixedRate(this::tick, TICK_PERIOD_MILLIS, TICK_PERIOD_MILLIS);
+    Logger.info("Advancing " + ordered.size() + " nodes every " + TICK_PERIOD_MILLIS + " ms on "
+        + tickParallelism + " threads, seed " + tickSeed);
+  }
+
+  private void tick() {
+    long start = System.nanoTime();
+    step.run();
+    Logger.debug("Tick: " + step.getNodeCount() + " nodes in " + (System.nanoTime() - start) / 1000 + " us");
+  }
+
   /**
    * Initiates communication based on the mode (fake or real).
    */
@@ -83,16 +207,35 @@ public class GreenhouseSimulator {
   }
 
   /**
-   * Establishes real TCP communication with a server for all nodes.
+   * Establishes real TCP communication with a server for all nodes, through
+   * gateways when a gateway size is set.
    */
   private void initiateRealCommunication() {
-    for (SensorActuatorNode node : nodes.values()) {
+    GreenhouseGateway gateway = null;
+    for (SensorActuatorNode node : getNodesInOrder()) {
       int nodeId = node.getId();
       ActuatorCollection actuators = node.getActuators();
       List<Sensor> sensors = node.getSensors();
-      GreenhouseNode tcpNode = new GreenhouseNode(nodeId, "localhost", 12345, sensors, actuators);
+      GreenhouseNode tcpNode = new GreenhouseNode(nodeId, serverHost, serverPort, sensors, actuators);
+      tcpNode.setSensorsSimulated(true); // The node advances them, on the clock or in the ticks
+      node.addActuatorListener(tcpNode); // Changes are sent to the server as they happen
       greenhouseNodes.add(tcpNode); // Add the node to the list of TCP nodes
-      new Thread(tcpNode::start).start(); // Start the TCP node in a new thread
+      if (gatewaySize == 0) {
+        Threads.start("node-" + nodeId, tcpNode::start); // Start the TCP node in a new thread
+        continue;
+      }
+      if (gateway == null || gateway.getNodeCount() == gatewaySize) {
+        gateway = new GreenhouseGateway(serverHost, serverPort);
+        gateways.add(gateway);
+      }
+      gateway.addNode(tcpNode); // Sends over the gateway's connection
+    }
+    int index = 0;
+    for (GreenhouseGateway started : gateways) {
+      Threads.start("gateway-" + index++, started::start);
+    }
+    if (!gateways.isEmpty()) {
+      Logger.info(greenhouseNodes.size() + " nodes connected through " + gateways.size() + " gateways");
     }
   }
 
@@ -110,6 +253,10 @@ public class GreenhouseSimulator {
    */
   public void stop() {
     stopCommunication();
+    if (tickTask != null) {
+      tickTask.cancel();
+      step.close();
+    }
     for (SensorActuatorNode node : nodes.values()) {
       node.stop(); // Stop each node
     }
@@ -125,6 +272,9 @@ public class GreenhouseSimulator {
         periodicSwitch.stop(); // Stop each periodic switch
       }
     } else {
+      for (GreenhouseGateway gateway : gateways) {
+        gateway.stop(); // Stops the nodes of the gateway too
+      }
       for (GreenhouseNode node : greenhouseNodes) {
         node.stop(); // Stop each TCP node
       }
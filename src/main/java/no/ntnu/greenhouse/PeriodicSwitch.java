@@ -1,21 +1,19 @@
 package no.ntnu.greenhouse;
 
-import java.util.Timer;
-import java.util.TimerTask;
 import no.ntnu.tools.Logger;
 
 /**
  * A dummy switch which periodically turns an actuator on and off. Used for
- * manual testing.
+ * manual testing. The switch runs on the clock of its node.
  * Note: this class is used only for debugging, you can remove it in your final
  * project!
  */
 public class PeriodicSwitch {
-  private final Timer timer;
   private final SensorActuatorNode node;
   private final int actuatorId;
   private final long delay;
   private final String name;
+  private volatile SimulationClock.Task task; // Set while the switch is started
 
   /**
    * Create a periodic switcher.
@@ -30,31 +28,35 @@ public class PeriodicSwitch {
     this.actuatorId = actuatorId;
     this.delay = m;
     this.name = name;
-
-    timer = new Timer(name);
   }
 
   /**
    * Start the periodic actuator toggling.
    */
   public void start() {
-    timer.scheduleAtFixedRate(new TimerTask() {
-      @Override
-      public void run() {
-        Logger.info(" > " + name + ": toggle actuator " + actuatorId + " on node " + node.getId());
-        if (node.isRunning()) {
-          try {
-            node.toggleActuator(actuatorId);
-          } catch (Exception e) {
-            Logger.error("Failed to toggle an actuator: " + e.getMessage());
-            timer.cancel();
-          }
-        } else {
-          Logger.info("   Node stopped, stopping the switch");
-          timer.cancel();
-        }
+    task = node.getClock().scheduleAtFixedRate(this::toggle, delay, delay);
+  }
+
+  private void toggle() {
+    Logger.debug(" > " + name + ": toggle actuator " + actuatorId + " on node " + node.getId());
+    if (node.isRunning()) {
+      try {
+        node.toggleActuator(actuatorId);
+      } catch (Exception e) {
+        Logger.error("Failed to toggle an actuator: " + e.getMessage());
+        cancel();
       }
-    }, delay, delay);
+    } else {
+      Logger.info("   Node stopped, stopping the switch");
+      cancel();
+    }
+  }
+
+  private void cancel() {
+    SimulationClock.Task started = task;
+    if (started != null) {
+      started.cancel();
+    }
   }
 
   /**
@@ -62,6 +64,6 @@ public class PeriodicSwitch {
    */
   public void stop() {
     Logger.info("-- Stopping " + this.name);
-    timer.cancel();
+    cancel();
   }
 }
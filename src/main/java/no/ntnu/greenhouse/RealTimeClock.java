@@ -0,0 +1,25 @@
+package no.ntnu.greenhouse;
+
+import java.util.concurrent.ScheduledFuture;
+import no.ntnu.tools.Scheduler;
+
+/**
+ * The wall clock, running tasks on the shared {@link Scheduler}.
+ */
+final class RealTimeClock implements SimulationClock {
+  @Override
+  public long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  @Override
+  public Task scheduleAtFixedRate(Runnable task, long initialDelayMs, long periodMs) {
+    ScheduledFuture<?> future = Scheduler.scheduleAtFixedRate(task, initialDelayMs, periodMs);
+    return () -> future.cancel(false);
+  }
+
+  @Override
+  public long phase(long periodMs) {
+    return Scheduler.phase(periodMs);
+  }
+}
@@ -1,5 +1,8 @@
 package no.ntnu.greenhouse;
 
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
+
 /**
  * A sensor which can sense the environment in a specific way.
  */
@@ -21,7 +24,19 @@ public class Sensor {
     this.reading = new SensorReading(type, current, unit);
     this.min = min;
     this.max = max;
-    ensureValueBoundsAndPrecision(current);
+    reading.setValue(boundValue(current, min, max)); // Not through the getters, which a view overrides
+  }
+
+  /**
+   * Create a sensor whose reading and range are kept somewhere else. Used by
+   * the views of a {@link SensorStore}, which override the getters of the range.
+   *
+   * @param reading The reading, reading and writing the value where it is kept
+   */
+  Sensor(SensorReading reading) {
+    this.reading = reading;
+    this.min = 0;
+    this.max = 0;
   }
 
   public String getType() {
@@ -43,36 +58,67 @@ public class Sensor {
    * @return A clone of this sensor, where all the fields are the same
    */
   public Sensor createClone() {
-    return new Sensor(this.reading.getType(), this.min, this.max,
+    return new Sensor(this.reading.getType(), getMin(), getMax(),
         this.reading.getValue(), this.reading.getUnit());
   }
 
+  double getMin() {
+    return min;
+  }
+
+  double getMax() {
+    return max;
+  }
+
   /**
    * Add a random noise to the sensors to simulate realistic values.
    */
   public void addRandomNoise() {
-    double newValue = this.reading.getValue() + generateRealisticNoise();
+    addRandomNoise(ThreadLocalRandom.current());
+  }
+
+  /**
+   * Add a random noise to the sensor, taken from the given random generator.
+   *
+   * @param random The random generator to use
+   */
+  public void addRandomNoise(RandomGenerator random) {
+    double newValue = this.reading.getValue() + generateRealisticNoise(getMax() - getMin(), random);
     ensureValueBoundsAndPrecision(newValue);
   }
 
   private void ensureValueBoundsAndPrecision(double newValue) {
-    newValue = roundToTwoDecimals(newValue);
-    if (newValue < min) {
-      newValue = min;
-    } else if (newValue > max) {
-      newValue = max;
-    }
-    reading.setValue(newValue);
+    reading.setValue(boundValue(newValue, getMin(), getMax()));
   }
 
-  private double roundToTwoDecimals(double value) {
-    return Math.round(value * 100.0) / 100.0;
+  /**
+   * Round a value to two decimals and keep it within the range of a sensor.
+   *
+   * @param value The new value
+   * @param min   Minimum allowed value
+   * @param max   Maximum allowed value
+   * @return The value to store
+   */
+  static double boundValue(double value, double min, double max) {
+    value = Math.round(value * 100.0) / 100.0;
+    if (value < min) {
+      value = min;
+    } else if (value > max) {
+      value = max;
+    }
+    return value;
   }
 
-  private double generateRealisticNoise() {
-    final double wholeRange = max - min;
+  /**
+   * Generate a random change of at most one percent of the range of a sensor.
+   *
+   * @param wholeRange The maximum minus the minimum value of the sensor
+   * @param random     The random generator to use
+   * @return A change in the range [-1%..+1%] of the whole range
+   */
+  static double generateRealisticNoise(double wholeRange, RandomGenerator random) {
     final double onePercentOfRange = wholeRange / 100.0;
-    final double zeroToTwoPercent = Math.random() * onePercentOfRange * 2;
+    final double zeroToTwoPercent = random.nextDouble() * onePercentOfRange * 2;
     return zeroToTwoPercent - onePercentOfRange; // In the range [-1%..+1%]
   }
 
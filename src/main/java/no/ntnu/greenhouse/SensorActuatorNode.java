@@ -1,10 +1,11 @@
 package no.ntnu.greenhouse;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
 import no.ntnu.listeners.common.ActuatorListener;
 import no.ntnu.listeners.common.CommunicationChannelListener;
 import no.ntnu.listeners.greenhouse.NodeStateListener;
@@ -19,17 +20,31 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
   private static final long SENSING_DELAY = 5000;
   private final int id;
 
-  private final List<Sensor> sensors = new LinkedList<>();
+  private final List<Sensor> sensors;
+  private final SensorStore.Slice storedSensors; // Same list as sensors, or null without a store
+  private int[][] sensorsByType = new int[0][]; // Type ID -> positions in sensors, or null
   private final ActuatorCollection actuators = new ActuatorCollection();
 
   private final List<SensorListener> sensorListeners = new LinkedList<>();
   private final List<ActuatorListener> actuatorListeners = new LinkedList<>();
   private final List<NodeStateListener> stateListeners = new LinkedList<>();
 
-  Timer sensorReadingTimer;
+  private SimulationClock clock = SimulationClock.REAL_TIME; // Runs sensorReadingTask
+  private RandomGenerator random; // Source of the noise, or null for ThreadLocalRandom
+  SimulationClock.Task sensorReadingTask; // Runs on the clock while the node is running
+  private boolean ticked; // Sensors are advanced by tick() instead of sensorReadingTask
+  private List<PendingImpact> pendingImpacts = new ArrayList<>(); // Guarded by this; waiting for tick()
 
   private boolean running;
-  private final Random random = new Random();
+
+  /**
+   * An actuator impact waiting for the next tick.
+   *
+   * @param typeId The ID of the type of sensors affected
+   * @param impact The impact to apply
+   */
+  private record PendingImpact(int typeId, double impact) {
+  }
 
   /**
    * Create a sensor/actuator node. Note: the node itself does not check whether
@@ -39,8 +54,27 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
    * @param id A unique ID of the node
    */
   public SensorActuatorNode(int id) {
+    this(id, null);
+  }
+
+  /**
+   * Create a sensor/actuator node which keeps its sensors in a columnar store.
+   * The store may be shared with other nodes.
+   *
+   * @param id    A unique ID of the node
+   * @param store The store for the sensors, or null to keep a Sensor object
+   *              per sensor
+   */
+  public SensorActuatorNode(int id, SensorStore store) {
     this.id = id;
     this.running = false;
+    if (store != null) {
+      storedSensors = store.createSlice();
+      sensors = storedSensors;
+    } else {
+      storedSensors = null;
+      sensors = new ArrayList<>();
+    }
   }
 
   /**
@@ -74,9 +108,18 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
       throw new IllegalArgumentException("Can't add a negative number of sensors");
     }
 
+    int typeId = SensorTypes.idOf(type);
+    if (typeId >= sensorsByType.length) {
+      sensorsByType = Arrays.copyOf(sensorsByType, typeId + 1);
+    }
+    int[] positions = sensorsByType[typeId] != null ? sensorsByType[typeId] : new int[0];
+    int first = positions.length;
+    positions = Arrays.copyOf(positions, first + n);
     for (int i = 0; i < n; ++i) {
+      positions[first + i] = sensors.size();
       sensors.add(template.createClone());
     }
+    sensorsByType[typeId] = positions;
   }
 
   /**
@@ -126,6 +169,71 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
     }
   }
 
+  /**
+   * Set the clock which runs the periodic sensor readings of the node. The
+   * wall clock is used by default. Must be set before the node is started.
+   *
+   * @param clock The clock to use
+   */
+  public void setClock(SimulationClock clock) {
+    this.clock = clock;
+  }
+
+  /**
+   * Get the clock which runs the periodic work of the node.
+   *
+   * @return The clock of the node
+   */
+  public SimulationClock getClock() {
+    return clock;
+  }
+
+  /**
+   * Set the random generator the noise of the periodic sensor readings is
+   * taken from, to make them reproducible. Only the thread running the
+   * readings may use it afterwards.
+   *
+   * @param random The random generator, or null for a thread local one
+   */
+  public void setRandom(RandomGenerator random) {
+    this.random = random;
+  }
+
+  /**
+   * Let the owner of the node advance its sensors with {@link #tick}, instead
+   * of the node reading them periodically by itself. Actuator impacts then wait
+   * for the next tick, so every change of the sensors happens in a tick. Must
+   * be set before the node is started.
+   *
+   * @param ticked True when the node is advanced by tick()
+   */
+  public void setTicked(boolean ticked) {
+    this.ticked = ticked;
+  }
+
+  /**
+   * Advance the node by one step: apply the actuator impacts received since
+   * the last step, add random noise to the sensors and notify the listeners.
+   * Given the same impacts and a random generator in the same state, a step
+   * gives the same sensor values.
+   *
+   * @param random The random generator of this node
+   */
+  public void tick(RandomGenerator random) {
+    List<PendingImpact> impacts;
+    synchronized (this) {
+      impacts = pendingImpacts;
+      if (!impacts.isEmpty()) {
+        pendingImpacts = new ArrayList<>();
+      }
+    }
+    for (PendingImpact impact : impacts) {
+      applyImpactNow(impact.typeId(), impact.impact());
+    }
+    addRandomNoise(random);
+    notifySensorChanges();
+  }
+
   /**
    * Start simulating the sensor node's operation.
    */
@@ -159,41 +267,47 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
   }
 
   private void startPeriodicSensorReading() {
-    sensorReadingTimer = new Timer();
-    TimerTask newSensorValueTask = new TimerTask() {
-      @Override
-      public void run() {
-        generateNewSensorValues();
-      }
-    };
-    long randomStartDelay = random.nextLong(SENSING_DELAY);
-    sensorReadingTimer.scheduleAtFixedRate(newSensorValueTask, randomStartDelay, SENSING_DELAY);
+    if (ticked) {
+      return;
+    }
+    sensorReadingTask = clock.scheduleAtFixedRate(this::generateNewSensorValues,
+        clock.phase(SENSING_DELAY), SENSING_DELAY);
   }
 
   private void stopPeriodicSensorReading() {
-    if (sensorReadingTimer != null) {
-      sensorReadingTimer.cancel();
+    if (sensorReadingTask != null) {
+      sensorReadingTask.cancel();
     }
   }
 
   /**
-   * Generate new sensor values and send a notification to all listeners.
+   * Generate new sensor values and send a notification to all listeners. The
+   * new values are printed when debug messages are enabled.
    */
   public void generateNewSensorValues() {
-    Logger.infoNoNewline("Node #" + id);
-    addRandomNoiseToSensors();
+    addRandomNoise();
     notifySensorChanges();
-    debugPrint();
-
-    StringBuilder sensorData = new StringBuilder();
-    for (Sensor sensor : sensors) {
-      sensorData.append(sensor.getReading().getFormatted()).append(",");
+    if (Logger.isDebugEnabled()) {
+      Logger.infoNoNewline("Node #" + id);
+      debugPrint();
     }
   }
 
-  private void addRandomNoiseToSensors() {
+  /**
+   * Add random noise to the values of all sensors, without notifying the
+   * listeners.
+   */
+  public void addRandomNoise() {
+    addRandomNoise(random != null ? random : ThreadLocalRandom.current());
+  }
+
+  private void addRandomNoise(RandomGenerator random) {
+    if (storedSensors != null) {
+      storedSensors.addRandomNoise(random);
+      return;
+    }
     for (Sensor sensor : sensors) {
-      sensor.addRandomNoise();
+      sensor.addRandomNoise(random);
     }
   }
 
@@ -239,7 +353,7 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
 
   private void notifyActuatorChange(Actuator actuator) {
     String onOff = actuator.isOn() ? "ON" : "off";
-    Logger.info(" => " + actuator.getType() + " on node " + id + " " + onOff);
+    Logger.debug(" => " + actuator.getType() + " on node " + id + " " + onOff);
     for (ActuatorListener listener : actuatorListeners) {
       listener.actuatorUpdated(id, actuator);
     }
@@ -264,21 +378,53 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
 
   /**
    * An actuator has been turned on or off. Apply an impact from it to all sensors
-   * of given type.
+   * of given type. A ticked node applies it in its next tick.
    *
    * @param sensorType The type of sensors affected
    * @param impact     The impact to apply
    */
   public void applyActuatorImpact(String sensorType, double impact) {
-    for (Sensor sensor : sensors) {
-      if (sensor.getType().equals(sensorType)) {
-        sensor.applyImpact(impact);
+    int typeId = SensorTypes.find(sensorType);
+    if (typeId >= 0) {
+      applyActuatorImpact(typeId, impact);
+    }
+  }
+
+  /**
+   * Apply an impact to all sensors of the given type. Only the sensors of that
+   * type are visited, found in the index of the node.
+   *
+   * @param typeId The ID of the type of sensors affected, see {@link SensorTypes}
+   * @param impact The impact to apply
+   */
+  public void applyActuatorImpact(int typeId, double impact) {
+    if (ticked) {
+      synchronized (this) {
+        pendingImpacts.add(new PendingImpact(typeId, impact));
       }
+    } else {
+      applyImpactNow(typeId, impact);
+    }
+  }
+
+  private void applyImpactNow(int typeId, double impact) {
+    int[] positions = typeId < sensorsByType.length ? sensorsByType[typeId] : null;
+    if (positions == null) {
+      return; // The node has no sensor of this type
+    }
+    if (storedSensors != null) {
+      storedSensors.applyImpact(positions, impact);
+      return;
+    }
+    for (int position : positions) {
+      sensors.get(position).applyImpact(impact);
     }
   }
 
   /**
-   * Get all the sensors available on the device.
+   * Get all the sensors available on the device. When the node keeps its
+   * sensors in a store, the sensors are views of it, created when they are
+   * read from the list.
    *
    * @return List of all the sensors
    */
@@ -41,7 +41,7 @@ public class SensorReading {
 
   @Override
   public String toString() {
-    return "{ type=" + type + ", value=" + value + ", unit=" + unit + " }";
+    return "{ type=" + type + ", value=" + getValue() + ", unit=" + unit + " }";
   }
 
   /**
@@ -51,7 +51,7 @@ public class SensorReading {
    * @return The sensor reading and the unit
    */
   public String getFormatted() {
-    return value + unit;
+    return getValue() + unit;
   }
 
   @Override
@@ -63,13 +63,13 @@ public class SensorReading {
       return false;
     }
     SensorReading that = (SensorReading) o;
-    return Double.compare(value, that.value) == 0
+    return Double.compare(getValue(), that.getValue()) == 0
         && Objects.equals(type, that.type)
         && Objects.equals(unit, that.unit);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(type, value, unit);
+    return Objects.hash(type, getValue(), unit);
   }
 }
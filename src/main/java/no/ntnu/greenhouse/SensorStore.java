@@ -0,0 +1,211 @@
+package no.ntnu.greenhouse;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
+
+/**
+ * Keeps the sensors of many nodes in columns of primitive values instead of a
+ * Sensor object per sensor: the values, minimums, maximums, type IDs and unit
+ * IDs are arrays indexed by the sensor. The types are kept once, in the
+ * {@link SensorTypes} registry, and the units in a table shared by all
+ * stores. Random noise and actuator impacts are applied by loops over these
+ * arrays.
+ *
+ * <p>A node keeps its sensors in a {@link Slice} of the store, which is a
+ * {@code List<Sensor>} of lightweight views, so listeners and the rest of the
+ * code see the same Sensor objects as before. A view reads and writes the
+ * store; it does not copy the value.
+ *
+ * <p>The sensors of a node must be added together, before sensors are added
+ * to another node of the same store, and before the nodes are started.
+ * Different nodes may update their own sensors from different threads.
+ */
+public class SensorStore {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private static final Map<String, Integer> unitIds = new HashMap<>(); // Guarded by the class
+  private static volatile String[] units = new String[0]; // Unit ID -> unit
+
+  private double[] values = new double[INITIAL_CAPACITY];
+  private double[] mins = new double[INITIAL_CAPACITY];
+  private double[] maxes = new double[INITIAL_CAPACITY];
+  private int[] sensorTypes = new int[INITIAL_CAPACITY]; // Type ID of every sensor
+  private int[] sensorUnits = new int[INITIAL_CAPACITY]; // Unit ID of every sensor
+  private int size;
+
+  /**
+   * Get the number of sensors in the store.
+   *
+   * @return The number of sensors of all nodes using the store
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Add random noise to every sensor in the store.
+   */
+  public void addRandomNoise() {
+    addRandomNoise(0, size, ThreadLocalRandom.current());
+  }
+
+  /**
+   * Create an empty slice, where one node keeps its sensors.
+   *
+   * @return The slice, which holds no sensors until they are added to it
+   */
+  Slice createSlice() {
+    return new Slice();
+  }
+
+  private void add(Sensor template) {
+    if (size == values.length) {
+      int capacity = size * 2;
+      values = Arrays.copyOf(values, capacity);
+      mins = Arrays.copyOf(mins, capacity);
+      maxes = Arrays.copyOf(maxes, capacity);
+      sensorTypes = Arrays.copyOf(sensorTypes, capacity);
+      sensorUnits = Arrays.copyOf(sensorUnits, capacity);
+    }
+    SensorReading reading = template.getReading();
+    mins[size] = template.getMin();
+    maxes[size] = template.getMax();
+    values[size] = Sensor.boundValue(reading.getValue(), mins[size], maxes[size]);
+    sensorTypes[size] = SensorTypes.idOf(reading.getType());
+    sensorUnits[size] = getUnitId(reading.getUnit());
+    size++;
+  }
+
+  private void addRandomNoise(int from, int to, RandomGenerator random) {
+    for (int i = from; i < to; i++) {
+      double noise = Sensor.generateRealisticNoise(maxes[i] - mins[i], random);
+      values[i] = Sensor.boundValue(values[i] + noise, mins[i], maxes[i]);
+    }
+  }
+
+  private static synchronized int getUnitId(String unit) {
+    Integer id = unitIds.get(unit);
+    if (id == null) {
+      id = units.length;
+      unitIds.put(unit, id);
+      String[] grown = Arrays.copyOf(units, id + 1);
+      grown[id] = unit;
+      units = grown;
+    }
+    return id;
+  }
+
+  /**
+   * The sensors of one node: a range of the store, seen as a list of sensors.
+   * The list can only grow, by adding sensors at its end.
+   */
+  class Slice extends AbstractList<Sensor> implements RandomAccess {
+    private int from;
+    private int count;
+
+    /**
+     * Add a sensor to the node, copying its type, range, value and unit into
+     * the store.
+     *
+     * @param template The sensor to copy
+     * @return true
+     * @throws IllegalStateException If sensors have been added to another node
+     *                               of the store since the last one of this node
+     */
+    @Override
+    public boolean add(Sensor template) {
+      if (count == 0) {
+        from = size;
+      } else if (from + count != size) {
+        throw new IllegalStateException("The sensors of a node must be added before those of the next node");
+      }
+      SensorStore.this.add(template);
+      count++;
+      return true;
+    }
+
+    /**
+     * Add random noise to every sensor of the node.
+     *
+     * @param random The random generator to take the noise from
+     */
+    void addRandomNoise(RandomGenerator random) {
+      SensorStore.this.addRandomNoise(from, from + count, random);
+    }
+
+    /**
+     * Apply an impact to some sensors of the node.
+     *
+     * @param positions The positions of the affected sensors in the slice
+     * @param impact    The delta for the values
+     */
+    void applyImpact(int[] positions, double impact) {
+      for (int position : positions) {
+        int i = from + position;
+        values[i] = Sensor.boundValue(values[i] + impact, mins[i], maxes[i]);
+      }
+    }
+
+    @Override
+    public Sensor get(int index) {
+      if (index < 0 || index >= count) {
+        throw new IndexOutOfBoundsException("Sensor " + index + " of " + count);
+      }
+      return new View(from + index);
+    }
+
+    @Override
+    public int size() {
+      return count;
+    }
+  }
+
+  /**
+   * A sensor of the store.
+   */
+  private class View extends Sensor {
+    private final int index;
+
+    View(int index) {
+      super(new Reading(index));
+      this.index = index;
+    }
+
+    @Override
+    double getMin() {
+      return mins[index];
+    }
+
+    @Override
+    double getMax() {
+      return maxes[index];
+    }
+  }
+
+  /**
+   * The reading of a sensor of the store.
+   */
+  private class Reading extends SensorReading {
+    private final int index;
+
+    Reading(int index) {
+      super(SensorTypes.nameOf(sensorTypes[index]), 0, units[sensorUnits[index]]);
+      this.index = index;
+    }
+
+    @Override
+    public double getValue() {
+      return values[index];
+    }
+
+    @Override
+    public void setValue(double newValue) {
+      values[index] = newValue;
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package no.ntnu.greenhouse;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The registry of sensor types, shared by the whole process. Every type is
+ * given a small ID, counting from 0, the first time it is seen. Sensors,
+ * actuator impacts and the sensor index of a node use the ID, so applying an
+ * impact compares numbers instead of strings.
+ */
+public final class SensorTypes {
+  private static final Map<String, Integer> ids = new HashMap<>(); // Guarded by the class
+  private static volatile String[] names = new String[0]; // Type ID -> type
+
+  /**
+   * Not allowed to create instances of this class.
+   */
+  private SensorTypes() {
+  }
+
+  /**
+   * Get the ID of a sensor type, registering the type if it is new.
+   *
+   * @param type The sensor type, for example "temperature"
+   * @return The ID of the type
+   */
+  public static synchronized int idOf(String type) {
+    Integer id = ids.get(type);
+    if (id == null) {
+      id = names.length;
+      ids.put(type, id);
+      String[] grown = Arrays.copyOf(names, id + 1);
+      grown[id] = type;
+      names = grown;
+    }
+    return id;
+  }
+
+  /**
+   * Get the ID of a sensor type which may not be registered.
+   *
+   * @param type The sensor type
+   * @return The ID of the type, or -1 when no sensor or impact has used it
+   */
+  public static synchronized int find(String type) {
+    Integer id = ids.get(type);
+    return id != null ? id : -1;
+  }
+
+  /**
+   * Get the sensor type of an ID.
+   *
+   * @param id The ID of the type
+   * @return The sensor type
+   */
+  public static String nameOf(int id) {
+    return names[id];
+  }
+
+  /**
+   * Get the number of registered types. The IDs are below this number.
+   *
+   * @return The number of types
+   */
+  public static int count() {
+    return names.length;
+  }
+}
@@ -0,0 +1,52 @@
+package no.ntnu.greenhouse;
+
+/**
+ * The clock driving the periodic work of the simulated greenhouse: new sensor
+ * readings, periodic switches and ticks. {@link #REAL_TIME} runs the work on
+ * the shared scheduler as time passes; a {@link VirtualClock} runs it in the
+ * order of a simulated time, as fast as the CPU allows or at a multiple of
+ * real time.
+ */
+public interface SimulationClock {
+  /**
+   * The wall clock, running the work on the shared scheduler.
+   */
+  SimulationClock REAL_TIME = new RealTimeClock();
+
+  /**
+   * A periodic task of the clock.
+   */
+  interface Task {
+    /**
+     * Stop running the task. A run which has started is not interrupted.
+     */
+    void cancel();
+  }
+
+  /**
+   * Get the current time of the clock.
+   *
+   * @return The time in milliseconds; only the difference between two times
+   *         has a meaning
+   */
+  long currentTimeMillis();
+
+  /**
+   * Run a task periodically.
+   *
+   * @param task           The task to run
+   * @param initialDelayMs The time until the first run, in milliseconds
+   * @param periodMs       The time between the start of two runs, in milliseconds
+   * @return The task, to cancel it with
+   */
+  Task scheduleAtFixedRate(Runnable task, long initialDelayMs, long periodMs);
+
+  /**
+   * Get the initial delay of the next periodic task, so that the tasks of
+   * many nodes are spread over their period.
+   *
+   * @param periodMs The period of the task, in milliseconds
+   * @return A delay from 0 up to, but not including, the period
+   */
+  long phase(long periodMs);
+}
@@ -0,0 +1,89 @@
+package no.ntnu.greenhouse;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Advances many nodes by one tick, in parallel on a ForkJoinPool. Every node
+ * has its own random generator, split from one seed in the order of the nodes,
+ * so the sensor values after any number of steps depend on the seed and the
+ * actuator impacts only, not on the number of threads or on which thread
+ * advanced which node.
+ */
+public class SimulationStep {
+  private static final int NODES_PER_TASK = 64; // Smaller ranges are not split any further
+
+  private final SensorActuatorNode[] nodes;
+  private final SplittableRandom[] randoms; // Random generator of every node
+  private final ForkJoinPool pool;
+
+  /**
+   * Create a simulation step.
+   *
+   * @param nodes       The nodes to advance; they should be ticked nodes, see
+   *                    {@link SensorActuatorNode#setTicked(boolean)}
+   * @param seed        The seed of the random generators
+   * @param parallelism The number of threads advancing the nodes
+   */
+  public SimulationStep(List<SensorActuatorNode> nodes, long seed, int parallelism) {
+    this.nodes = nodes.toArray(new SensorActuatorNode[0]);
+    this.randoms = new SplittableRandom[this.nodes.length];
+    SplittableRandom root = new SplittableRandom(seed);
+    for (int i = 0; i < randoms.length; i++) {
+      randoms[i] = root.split();
+    }
+    this.pool = new ForkJoinPool(parallelism);
+  }
+
+  /**
+   * Advance every node by one tick, and wait until all of them are done.
+   */
+  public void run() {
+    pool.invoke(new Part(0, nodes.length));
+  }
+
+  /**
+   * Get the number of nodes advanced by every step.
+   *
+   * @return The number of nodes
+   */
+  public int getNodeCount() {
+    return nodes.length;
+  }
+
+  /**
+   * Stop the threads of the step. It can not be run afterwards.
+   */
+  public void close() {
+    pool.shutdown();
+  }
+
+  /**
+   * Advances a range of the nodes, splitting it in halves while it is large.
+   */
+  private class Part extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final int from;
+    private final int to;
+
+    Part(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= NODES_PER_TASK) {
+        for (int i = from; i < to; i++) {
+          nodes[i].tick(randoms[i]);
+        }
+      } else {
+        int middle = (from + to) >>> 1;
+        invokeAll(new Part(from, middle), new Part(middle, to));
+      }
+    }
+  }
+}
@@ -0,0 +1,167 @@
+package no.ntnu.greenhouse;
+
+import java.util.PriorityQueue;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.Scheduler;
+
+/**
+ * A discrete-event clock: the scheduled tasks are kept in the order of their
+ * simulated time, and {@link #runUntil(long)} runs them one after the other on
+ * the calling thread, moving the time forward to each task. With a speed of 0
+ * it does not wait between the tasks, so a day of simulated time takes as long
+ * as its tasks take to run. With a positive speed the simulated time is kept
+ * at that multiple of real time, for example 100 for a day in about 15 minutes.
+ *
+ * <p>Tasks due at the same time run in the order they were scheduled, and all
+ * of them run on one thread, so a simulation started the same way gives the
+ * same results every time. The time starts at 0.
+ */
+public class VirtualClock implements SimulationClock {
+  private final double speed; // Simulated milliseconds per real millisecond, 0 for as fast as possible
+  private final PriorityQueue<Event> events = new PriorityQueue<>(); // Guarded by this
+  private long sequence; // Number of events scheduled, to order the ones due at the same time; guarded by this
+  private long phases; // Number of phases handed out; guarded by this
+  private long processed; // Number of events run; only changed by the thread running the clock
+  private volatile long now; // The simulated time, in milliseconds; written under this
+  private volatile boolean stopped;
+
+  /**
+   * Create a virtual clock.
+   *
+   * @param speed The number of simulated milliseconds per real millisecond, or
+   *              0 to run the tasks as fast as possible
+   */
+  public VirtualClock(double speed) {
+    if (!(speed >= 0) || Double.isInfinite(speed)) {
+      throw new IllegalArgumentException("Speed must be zero or positive");
+    }
+    this.speed = speed;
+  }
+
+  @Override
+  public long currentTimeMillis() {
+    return now;
+  }
+
+  @Override
+  public synchronized Task scheduleAtFixedRate(Runnable task, long initialDelayMs, long periodMs) {
+    if (periodMs <= 0) {
+      throw new IllegalArgumentException("Period must be positive");
+    }
+    Event event = new Event(task, now + Math.max(0, initialDelayMs), periodMs);
+    add(event);
+    return event;
+  }
+
+  @Override
+  public synchronized long phase(long periodMs) {
+    return Scheduler.phase(phases++, periodMs);
+  }
+
+  /**
+   * Run the tasks in the order of their time, until the time is reached or
+   * the clock is stopped. Without tasks left before the time, the clock moves
+   * to the time at once, unless it keeps up with real time.
+   *
+   * @param timeMillis The simulated time to run until, or Long.MAX_VALUE to run
+   *                   until the clock is stopped
+   * @throws InterruptedException If the thread is interrupted while waiting
+   */
+  public void runUntil(long timeMillis) throws InterruptedException {
+    long realStart = System.nanoTime();
+    long simulatedStart = now;
+    while (!stopped) {
+      Event event;
+      synchronized (this) {
+        event = events.peek();
+        long due = event != null ? Math.min(event.time, timeMillis) : timeMillis;
+        if (speed > 0 && due != Long.MAX_VALUE) {
+          long waitNanos = realStart + (long) ((due - simulatedStart) * 1_000_000 / speed) - System.nanoTime();
+          if (waitNanos > 0) {
+            wait(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000)); // Woken up early by new tasks
+            continue;
+          }
+        }
+        if (event == null || event.time > timeMillis) {
+          if (timeMillis == Long.MAX_VALUE) {
+            wait(); // Nothing to do until a task is scheduled
+            continue;
+          }
+          now = timeMillis;
+          return;
+        }
+        events.poll();
+        now = event.time;
+      }
+      if (!event.cancelled) {
+        run(event);
+      }
+    }
+  }
+
+  /**
+   * Stop the clock: the thread running it returns after the current task.
+   */
+  public synchronized void stop() {
+    stopped = true;
+    notifyAll();
+  }
+
+  /**
+   * Get the number of task runs so far.
+   *
+   * @return The number of times a task has been run by the clock
+   */
+  public long getEventCount() {
+    return processed;
+  }
+
+  private void run(Event event) {
+    try {
+      event.task.run();
+    } catch (RuntimeException e) {
+      Logger.error("Scheduled task failed: " + e);
+    }
+    processed++;
+    synchronized (this) {
+      if (!event.cancelled) {
+        event.time += event.period;
+        add(event);
+      }
+    }
+  }
+
+  private void add(Event event) {
+    event.sequence = sequence++;
+    events.add(event);
+    notifyAll();
+  }
+
+  /**
+   * A periodic task and the time of its next run.
+   */
+  private static class Event implements Task, Comparable<Event> {
+    private final Runnable task;
+    private final long period;
+    private long time; // Time of the next run; only changed while not in the queue
+    private long sequence; // Orders the events due at the same time
+    private volatile boolean cancelled;
+
+    Event(Runnable task, long time, long period) {
+      this.task = task;
+      this.time = time;
+      this.period = period;
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+    }
+
+    @Override
+    public int compareTo(Event other) {
+      int byTime = Long.compare(time, other.time);
+      return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+    }
+  }
+}
@@ -85,9 +85,9 @@ public class ActuatorPane extends TitledPane {
     actuatorActive.put(actuator.getId(), isSelected); // Store the actuator's state
     checkbox.selectedProperty().bindBidirectional(isSelected); // Bind the checkbox to the state
 
-    // Add listener to update the actuator's state
+    // Add listener to update the actuator's state, unless the change came from the actuator
     checkbox.selectedProperty().addListener((observable, oldValue, newValue) -> {
-      if (newValue != null) {
+      if (newValue != null && newValue != actuator.isOn()) {
         actuator.set(newValue);
         if (actuatorListener != null) {
           actuatorListener.actuatorUpdated(actuator.getNodeId(), actuator);
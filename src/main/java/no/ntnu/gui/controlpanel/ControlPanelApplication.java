@@ -22,6 +22,7 @@ import no.ntnu.gui.common.SensorPane;
 import no.ntnu.listeners.common.CommunicationChannelListener;
 import no.ntnu.listeners.controlpanel.GreenhouseEventListener;
 import no.ntnu.tools.Logger;
+import no.ntnu.tools.Tracing;
 
 /**
  * Run a control panel with a graphical user interface (GUI), with JavaFX.
@@ -118,7 +119,12 @@ public class ControlPanelApplication extends Application implements GreenhouseEv
     Logger.info("Sensor data from node " + nodeId);
     SensorPane sensorPane = sensorPanes.get(nodeId);
     if (sensorPane != null) {
+      long receivedNanos = System.nanoTime();
       sensorPane.update(sensors);
+      if (Tracing.isEnabled()) {
+        // Runs on the GUI thread after the label updates queued before it
+        Platform.runLater(() -> Tracing.record(Tracing.Hop.PANEL_TO_RENDER, System.nanoTime() - receivedNanos));
+      }
     } else {
       Logger.error("No sensor section for node " + nodeId);
     }
@@ -189,7 +195,7 @@ public class ControlPanelApplication extends Application implements GreenhouseEv
     sensorPanes.put(nodeInfo.getId(), sensorPane);
     ActuatorPane actuatorPane = new ActuatorPane(nodeInfo.getActuators());
     actuatorPane.setActuatorListener((nodeId, actuator) -> {
-      logic.sendActuatorChange(nodeId, actuator.getId(), actuator.isOn());
+      logic.requestActuatorChange(nodeId, actuator.getId(), actuator.isOn());
     });
     actuatorPanes.put(nodeInfo.getId(), actuatorPane);
     tab.setContent(new VBox(sensorPane, actuatorPane));
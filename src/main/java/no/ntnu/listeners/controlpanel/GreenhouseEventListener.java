@@ -38,6 +38,18 @@ public interface GreenhouseEventListener {
    */
   void onSensorData(int nodeId, List<SensorReading> sensors);
 
+  /**
+   * This event is fired for each sample of readings a node took while it was
+   * not connected. The readings are older than the current ones, so they do
+   * not replace them. Ignored unless overridden.
+   *
+   * @param nodeId      ID of the node
+   * @param epochMillis When the node took the readings, in milliseconds since the epoch
+   * @param sensors     List of all sensor values at that time
+   */
+  default void onHistoricalSensorData(int nodeId, long epochMillis, List<SensorReading> sensors) {
+  }
+
   /**
    * This event is fired when an actuator changes state.
    *
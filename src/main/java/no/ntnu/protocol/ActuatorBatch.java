@@ -0,0 +1,58 @@
+package no.ntnu.protocol;
+
+import java.util.Arrays;
+
+/**
+ * A mutable BATCH command: many actuators, of one or many nodes, each turned
+ * on or off. Entries are kept in the order they were added; when an actuator
+ * appears twice, the later entry wins.
+ */
+public final class ActuatorBatch {
+    private int count;
+    private int[] nodeIds = new int[8];
+    private int[] actuatorIds = new int[8];
+    private boolean[] states = new boolean[8];
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        count = 0;
+    }
+
+    /**
+     * Adds the requested state of an actuator.
+     *
+     * @param nodeId     the ID of the node
+     * @param actuatorId the ID of the actuator within the node
+     * @param on         the requested state
+     */
+    public void add(int nodeId, int actuatorId, boolean on) {
+        if (count == nodeIds.length) {
+            int size = count * 2;
+            nodeIds = Arrays.copyOf(nodeIds, size);
+            actuatorIds = Arrays.copyOf(actuatorIds, size);
+            states = Arrays.copyOf(states, size);
+        }
+        nodeIds[count] = nodeId;
+        actuatorIds[count] = actuatorId;
+        states[count] = on;
+        count++;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getNodeId(int index) {
+        return nodeIds[index];
+    }
+
+    public int getActuatorId(int index) {
+        return actuatorIds[index];
+    }
+
+    public boolean isOn(int index) {
+        return states[index];
+    }
+}
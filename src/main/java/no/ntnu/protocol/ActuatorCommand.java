@@ -0,0 +1,68 @@
+package no.ntnu.protocol;
+
+/**
+ * A mutable ACTUATOR command: turn one actuator of a node on or off. A
+ * command with a correlation ID is sent as a COMMAND message, which the node
+ * answers with a {@link CommandAck} carrying the same ID.
+ */
+public final class ActuatorCommand {
+    /** The correlation ID of a command which is not acknowledged. */
+    public static final long UNCORRELATED = -1;
+
+    private long correlationId = UNCORRELATED;
+    private int nodeId;
+    private int actuatorId;
+    private boolean on;
+
+    /**
+     * Sets all fields of a command which is not acknowledged.
+     *
+     * @param nodeId     the ID of the node
+     * @param actuatorId the ID of the actuator within the node
+     * @param on         the requested state
+     */
+    public void set(int nodeId, int actuatorId, boolean on) {
+        set(UNCORRELATED, nodeId, actuatorId, on);
+    }
+
+    /**
+     * Sets all fields of the command.
+     *
+     * @param correlationId the ID the acknowledgement carries, or UNCORRELATED
+     * @param nodeId        the ID of the node
+     * @param actuatorId    the ID of the actuator within the node
+     * @param on            the requested state
+     */
+    public void set(long correlationId, int nodeId, int actuatorId, boolean on) {
+        this.correlationId = correlationId;
+        this.nodeId = nodeId;
+        this.actuatorId = actuatorId;
+        this.on = on;
+    }
+
+    public long getCorrelationId() {
+        return correlationId;
+    }
+
+    /**
+     * Replaces the correlation ID, as the server does when it forwards the
+     * command.
+     *
+     * @param correlationId the new ID, not negative
+     */
+    public void setCorrelationId(long correlationId) {
+        this.correlationId = correlationId;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public int getActuatorId() {
+        return actuatorId;
+    }
+
+    public boolean isOn() {
+        return on;
+    }
+}
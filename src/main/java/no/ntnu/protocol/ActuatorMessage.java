@@ -0,0 +1,97 @@
+package no.ntnu.protocol;
+
+import java.util.Arrays;
+
+/**
+ * A mutable ACTUATOR state message: the states of the actuators of one node.
+ * One instance is filled again for every message.
+ */
+public final class ActuatorMessage {
+    private int nodeId;
+    private int count;
+    private int[] actuatorIds = new int[4];
+    private String[] types = new String[4];
+    private boolean[] states = new boolean[4];
+    private final TraceStamps trace = new TraceStamps();
+
+    /**
+     * Removes all actuators and the trace, and sets the node the next states
+     * belong to.
+     *
+     * @param nodeId the ID of the node
+     */
+    public void reset(int nodeId) {
+        this.nodeId = nodeId;
+        this.count = 0;
+        trace.clear();
+    }
+
+    /**
+     * Adds the state of an actuator.
+     *
+     * @param actuatorId the ID of the actuator within the node
+     * @param type       the actuator type, for example "fan"
+     * @param on         the state of the actuator
+     */
+    public void add(int actuatorId, String type, boolean on) {
+        if (count == types.length) {
+            int size = count * 2;
+            actuatorIds = Arrays.copyOf(actuatorIds, size);
+            types = Arrays.copyOf(types, size);
+            states = Arrays.copyOf(states, size);
+        }
+        actuatorIds[count] = actuatorId;
+        types[count] = type;
+        states[count] = on;
+        count++;
+    }
+
+    /**
+     * Sets the state of an actuator, replacing its earlier state if the
+     * message has one, or adding it otherwise.
+     *
+     * @param actuatorId the ID of the actuator within the node
+     * @param type       the actuator type, for example "fan"
+     * @param on         the state of the actuator
+     */
+    public void put(int actuatorId, String type, boolean on) {
+        for (int i = 0; i < count; i++) {
+            if (actuatorIds[i] == actuatorId) {
+                types[i] = type;
+                states[i] = on;
+                return;
+            }
+        }
+        add(actuatorId, type, on);
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getActuatorId(int index) {
+        return actuatorIds[index];
+    }
+
+    public String getType(int index) {
+        return types[index];
+    }
+
+    public boolean isOn(int index) {
+        return states[index];
+    }
+
+    /**
+     * Returns the trace stamps of the message, which are only present when
+     * the node traces its messages.
+     *
+     * @return the stamps, filled by parsing and written by formatting
+     */
+    public TraceStamps getTrace() {
+        return trace;
+    }
+}
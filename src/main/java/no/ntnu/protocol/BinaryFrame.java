@@ -0,0 +1,453 @@
+package no.ntnu.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+/**
+ * BinaryFrame converts one message between its text line and its binary
+ * frame. A decoded frame is kept in reusable arrays, so decoding many frames
+ * with the same instance does not allocate.
+ *
+ * <p>Only messages which convert back to exactly the same text get a binary
+ * form; any other line, for example a value with more decimals than the
+ * sensor type keeps, is sent as a TYPE_TEXT frame. The binary format is
+ * therefore never lossy.
+ */
+public class BinaryFrame {
+    private static final int MAX_ENTRIES = 1024; // Most readings or actuators in one frame
+    private static final double[] POWERS_OF_TEN = {1, 10, 100, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9};
+
+    private int type; // One of the BinaryProtocol.TYPE_ constants
+    private int nodeId;
+    private int count; // Number of readings or actuators
+    private int[] typeIds = new int[8];
+    private long[] values = new long[8]; // Fixed-point sensor values
+    private int[] actuatorIds = new int[8];
+    private boolean[] states = new boolean[8];
+    private String text; // The line of a TYPE_TEXT frame
+
+    /**
+     * Encodes one text line as a complete frame, including the length prefix.
+     *
+     * @param line  the message, without line terminator
+     * @param table interns the sensor and actuator types
+     * @param out   where to write the frame
+     * @param used  receives the IDs of the types the frame refers to
+     */
+    static void encode(String line, TypeTable table, ByteArrayOutputStream out, BitSet used) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(32 + line.length() / 2);
+        BitSet lineTypes = new BitSet();
+        int frameType = encodePayload(line, table, payload, lineTypes);
+        if (frameType != BinaryProtocol.TYPE_TEXT && !convertsBack(frameType, payload, table, line)) {
+            frameType = BinaryProtocol.TYPE_TEXT;
+        }
+        if (frameType == BinaryProtocol.TYPE_TEXT) {
+            payload.reset();
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            payload.write(bytes, 0, bytes.length);
+            lineTypes.clear();
+        }
+        BinaryProtocol.writeVarint(out, payload.size() + 1);
+        out.write(frameType);
+        out.writeBytes(payload.toByteArray());
+        used.or(lineTypes);
+    }
+
+    /**
+     * Decodes the payload of a frame into this instance.
+     *
+     * @param frameType the type byte of the frame
+     * @param payload   the payload, positioned at its start and limited to its end
+     * @throws ProtocolException if the payload is malformed
+     */
+    public void decode(int frameType, ByteBuffer payload) throws ProtocolException {
+        type = frameType;
+        count = 0;
+        text = null;
+        switch (frameType) {
+            case BinaryProtocol.TYPE_TEXT:
+                text = new String(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(),
+                        StandardCharsets.UTF_8);
+                payload.position(payload.limit());
+                break;
+            case BinaryProtocol.TYPE_SENSOR:
+                nodeId = BinaryProtocol.readVarint(payload);
+                count = readCount(payload);
+                for (int i = 0; i < count; i++) {
+                    typeIds[i] = BinaryProtocol.readVarint(payload);
+                    values[i] = BinaryProtocol.readZigZag(payload);
+                }
+                break;
+            case BinaryProtocol.TYPE_ACTUATOR_STATE:
+                nodeId = BinaryProtocol.readVarint(payload);
+                count = readCount(payload);
+                for (int i = 0; i < count; i++) {
+                    actuatorIds[i] = BinaryProtocol.readVarint(payload);
+                    typeIds[i] = BinaryProtocol.readVarint(payload);
+                    states[i] = readState(payload);
+                }
+                break;
+            case BinaryProtocol.TYPE_ACTUATOR_COMMAND:
+                nodeId = BinaryProtocol.readVarint(payload);
+                count = 1;
+                actuatorIds[0] = BinaryProtocol.readVarint(payload);
+                states[0] = readState(payload);
+                break;
+            default:
+                throw new ProtocolException("Unknown frame type " + frameType);
+        }
+        if (payload.hasRemaining()) {
+            throw new ProtocolException("Unexpected bytes at the end of frame type " + frameType);
+        }
+    }
+
+    /**
+     * Writes the text line of the decoded frame.
+     *
+     * @param line  where to append the line, without line terminator
+     * @param table the types defined by the sender
+     * @throws ProtocolException if the frame refers to an undefined type
+     */
+    public void appendText(StringBuilder line, TypeTable table) throws ProtocolException {
+        switch (type) {
+            case BinaryProtocol.TYPE_TEXT:
+                line.append(text);
+                break;
+            case BinaryProtocol.TYPE_SENSOR:
+                line.append("SENSOR:").append(nodeId).append(':');
+                for (int i = 0; i < count; i++) {
+                    TypeTable.Entry entry = table.get(typeIds[i]);
+                    if (i > 0) {
+                        line.append(',');
+                    }
+                    line.append(entry.name()).append('=')
+                            .append(values[i] / POWERS_OF_TEN[entry.decimals()])
+                            .append(entry.unit());
+                }
+                break;
+            case BinaryProtocol.TYPE_ACTUATOR_STATE:
+                line.append("ACTUATOR:").append(nodeId).append(':');
+                for (int i = 0; i < count; i++) {
+                    if (i > 0) {
+                        line.append(',');
+                    }
+                    line.append(actuatorIds[i]).append(':').append(table.get(typeIds[i]).name()).append('=')
+                            .append(states[i]);
+                }
+                break;
+            case BinaryProtocol.TYPE_ACTUATOR_COMMAND:
+                line.append("ACTUATOR:").append(nodeId).append(':').append(actuatorIds[0]).append(':')
+                        .append(states[0]);
+                break;
+            default:
+                throw new ProtocolException("No frame decoded");
+        }
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns a sensor value of a decoded TYPE_SENSOR frame.
+     *
+     * @param index the index of the reading
+     * @param table the types defined by the sender
+     * @return the value
+     * @throws ProtocolException if the reading refers to an undefined type
+     */
+    public double getValue(int index, TypeTable table) throws ProtocolException {
+        return values[index] / POWERS_OF_TEN[table.get(typeIds[index]).decimals()];
+    }
+
+    public int getTypeId(int index) {
+        return typeIds[index];
+    }
+
+    public int getActuatorId(int index) {
+        return actuatorIds[index];
+    }
+
+    public boolean getState(int index) {
+        return states[index];
+    }
+
+    private int readCount(ByteBuffer payload) throws ProtocolException {
+        int entries = BinaryProtocol.readVarint(payload);
+        if (entries < 0 || entries > MAX_ENTRIES) {
+            throw new ProtocolException("Invalid number of entries: " + entries);
+        }
+        if (entries > typeIds.length) {
+            int size = Math.max(entries, typeIds.length * 2);
+            typeIds = new int[size];
+            values = new long[size];
+            actuatorIds = new int[size];
+            states = new boolean[size];
+        }
+        return entries;
+    }
+
+    private static boolean readState(ByteBuffer payload) throws ProtocolException {
+        if (!payload.hasRemaining()) {
+            throw new ProtocolException("Truncated actuator state");
+        }
+        return payload.get() != 0;
+    }
+
+    /**
+     * Checks that a binary payload converts back to exactly the original line.
+     */
+    private static boolean convertsBack(int frameType, ByteArrayOutputStream payload, TypeTable table, String line) {
+        try {
+            BinaryFrame frame = new BinaryFrame();
+            frame.decode(frameType, ByteBuffer.wrap(payload.toByteArray()));
+            StringBuilder text = new StringBuilder(line.length());
+            frame.appendText(text, table);
+            return line.contentEquals(text);
+        } catch (ProtocolException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the binary payload of a line.
+     *
+     * @return the frame type, or TYPE_TEXT when the line has no binary form
+     */
+    private static int encodePayload(String line, TypeTable table, ByteArrayOutputStream payload, BitSet used) {
+        if (line.indexOf(MessageCodec.TRACE_SEPARATOR) >= 0) {
+            return BinaryProtocol.TYPE_TEXT; // The frames have no place for trace stamps
+        }
+        if (line.startsWith("SENSOR:")) {
+            return encodeSensor(line, table, payload, used) ? BinaryProtocol.TYPE_SENSOR : BinaryProtocol.TYPE_TEXT;
+        }
+        if (line.startsWith("ACTUATOR:")) {
+            if (line.indexOf('=') >= 0) {
+                return encodeActuatorState(line, table, payload, used)
+                        ? BinaryProtocol.TYPE_ACTUATOR_STATE : BinaryProtocol.TYPE_TEXT;
+            }
+            return encodeActuatorCommand(line, payload)
+                    ? BinaryProtocol.TYPE_ACTUATOR_COMMAND : BinaryProtocol.TYPE_TEXT;
+        }
+        return BinaryProtocol.TYPE_TEXT;
+    }
+
+    /**
+     * Encodes "SENSOR:nodeId:type=valueUnit,...".
+     */
+    private static boolean encodeSensor(String line, TypeTable table, ByteArrayOutputStream payload, BitSet used) {
+        int start = "SENSOR:".length();
+        int colon = line.indexOf(':', start);
+        int nodeId = colon < 0 ? -1 : parseId(line, start, colon);
+        if (nodeId < 0) {
+            return false;
+        }
+        BinaryProtocol.writeVarint(payload, nodeId);
+        int entries = countEntries(line, colon + 1);
+        if (entries > MAX_ENTRIES) {
+            return false;
+        }
+        BinaryProtocol.writeVarint(payload, entries);
+        int position = colon + 1;
+        for (int i = 0; i < entries; i++) {
+            int end = line.indexOf(',', position);
+            if (end < 0) {
+                end = line.length();
+            }
+            int equals = line.indexOf('=', position);
+            if (equals < 0 || equals > end) {
+                return false;
+            }
+            int unitStart = equals + 1;
+            while (unitStart < end && isValueChar(line.charAt(unitStart))) {
+                unitStart++;
+            }
+            long value = parseFixedPoint(line, equals + 1, unitStart, BinaryProtocol.DEFAULT_DECIMALS);
+            if (value == Long.MIN_VALUE) {
+                return false;
+            }
+            int typeId = table.intern(line.substring(position, equals), line.substring(unitStart, end),
+                    BinaryProtocol.DEFAULT_DECIMALS);
+            if (typeId < 0) {
+                return false;
+            }
+            used.set(typeId);
+            BinaryProtocol.writeVarint(payload, typeId);
+            BinaryProtocol.writeZigZag(payload, value);
+            position = end + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Encodes "ACTUATOR:nodeId:actuatorId:type=state,...".
+     */
+    private static boolean encodeActuatorState(String line, TypeTable table, ByteArrayOutputStream payload,
+            BitSet used) {
+        int start = "ACTUATOR:".length();
+        int colon = line.indexOf(':', start);
+        int nodeId = colon < 0 ? -1 : parseId(line, start, colon);
+        if (nodeId < 0) {
+            return false;
+        }
+        BinaryProtocol.writeVarint(payload, nodeId);
+        int entries = countEntries(line, colon + 1);
+        if (entries > MAX_ENTRIES) {
+            return false;
+        }
+        BinaryProtocol.writeVarint(payload, entries);
+        int position = colon + 1;
+        for (int i = 0; i < entries; i++) {
+            int end = line.indexOf(',', position);
+            if (end < 0) {
+                end = line.length();
+            }
+            int idEnd = line.indexOf(':', position);
+            int equals = line.indexOf('=', position);
+            if (idEnd < 0 || equals < 0 || idEnd > equals || equals > end) {
+                return false;
+            }
+            int actuatorId = parseId(line, position, idEnd);
+            int state = parseState(line, equals + 1, end);
+            if (actuatorId < 0 || state < 0) {
+                return false;
+            }
+            int typeId = table.intern(line.substring(idEnd + 1, equals), "", 0);
+            if (typeId < 0) {
+                return false;
+            }
+            used.set(typeId);
+            BinaryProtocol.writeVarint(payload, actuatorId);
+            BinaryProtocol.writeVarint(payload, typeId);
+            payload.write(state);
+            position = end + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Encodes "ACTUATOR:nodeId:actuatorId:state".
+     */
+    private static boolean encodeActuatorCommand(String line, ByteArrayOutputStream payload) {
+        int start = "ACTUATOR:".length();
+        int first = line.indexOf(':', start);
+        int second = first < 0 ? -1 : line.indexOf(':', first + 1);
+        if (second < 0) {
+            return false;
+        }
+        int nodeId = parseId(line, start, first);
+        int actuatorId = parseId(line, first + 1, second);
+        int state = parseState(line, second + 1, line.length());
+        if (nodeId < 0 || actuatorId < 0 || state < 0) {
+            return false;
+        }
+        BinaryProtocol.writeVarint(payload, nodeId);
+        BinaryProtocol.writeVarint(payload, actuatorId);
+        payload.write(state);
+        return true;
+    }
+
+    private static int countEntries(String line, int start) {
+        if (start >= line.length()) {
+            return 0;
+        }
+        int entries = 1;
+        for (int i = start; i < line.length(); i++) {
+            if (line.charAt(i) == ',') {
+                entries++;
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Parses a non-negative decimal ID.
+     *
+     * @return the ID, or -1 when the text is not a plain number
+     */
+    private static int parseId(String line, int start, int end) {
+        if (start >= end || end - start > 9) {
+            return -1;
+        }
+        int id = 0;
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            id = id * 10 + (c - '0');
+        }
+        return id;
+    }
+
+    /**
+     * Parses "true" or "false".
+     *
+     * @return 1 for true, 0 for false, -1 for anything else
+     */
+    private static int parseState(String line, int start, int end) {
+        if (line.startsWith("true", start) && end - start == 4) {
+            return 1;
+        }
+        if (line.startsWith("false", start) && end - start == 5) {
+            return 0;
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a decimal number into a fixed-point value.
+     *
+     * @return the value multiplied by 10^decimals, or Long.MIN_VALUE when the
+     *         number has more decimals or is not a plain decimal number
+     */
+    private static long parseFixedPoint(String line, int start, int end, int decimals) {
+        int i = start;
+        boolean negative = i < end && line.charAt(i) == '-';
+        if (negative) {
+            i++;
+        }
+        long value = 0;
+        int digits = 0;
+        int fractionDigits = -1; // -1 until the decimal point is seen
+        for (; i < end; i++) {
+            char c = line.charAt(i);
+            if (c == '.') {
+                if (fractionDigits >= 0) {
+                    return Long.MIN_VALUE;
+                }
+                fractionDigits = 0;
+                continue;
+            }
+            if (c < '0' || c > '9' || ++digits > 15) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + (c - '0');
+            if (fractionDigits >= 0) {
+                fractionDigits++;
+            }
+        }
+        if (digits == 0 || fractionDigits > decimals) {
+            return Long.MIN_VALUE;
+        }
+        for (int scale = Math.max(fractionDigits, 0); scale < decimals; scale++) {
+            value *= 10;
+        }
+        return negative ? -value : value;
+    }
+
+    private static boolean isValueChar(char c) {
+        return (c >= '0' && c <= '9') || c == '.' || c == '-';
+    }
+}
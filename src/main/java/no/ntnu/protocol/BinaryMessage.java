@@ -0,0 +1,78 @@
+package no.ntnu.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * The binary frames of one or more text lines. Immutable, so the same frames
+ * can be written to many connections; each connection adds the TYPE_DEFINE
+ * frames of the types it has not sent yet, see {@link BinaryOutput}.
+ */
+public final class BinaryMessage {
+    private final byte[] frames;
+    private final ByteBuffer view;
+    private final int[] typeIds; // Types the frames refer to
+
+    private BinaryMessage(byte[] frames, int[] typeIds) {
+        this.frames = frames;
+        this.view = ByteBuffer.wrap(frames).asReadOnlyBuffer();
+        this.typeIds = typeIds;
+    }
+
+    /**
+     * Encodes text lines as binary frames.
+     *
+     * @param text  one or more lines separated by '\n', without a final line terminator
+     * @param table interns the sensor and actuator types
+     * @return the encoded frames
+     */
+    public static BinaryMessage encode(String text, TypeTable table) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + text.length() / 2);
+        BitSet used = new BitSet();
+        int start = 0;
+        while (start <= text.length()) {
+            int end = text.indexOf('\n', start);
+            if (end < 0) {
+                end = text.length();
+            }
+            BinaryFrame.encode(text.substring(start, end), table, out, used);
+            start = end + 1;
+        }
+        return new BinaryMessage(out.toByteArray(), used.stream().toArray());
+    }
+
+    /**
+     * Returns the frames as a read-only buffer with its own position.
+     *
+     * @return the frames
+     */
+    public ByteBuffer buffer() {
+        return view.duplicate();
+    }
+
+    /**
+     * Writes the frames to a stream.
+     *
+     * @param out the stream to write to
+     * @throws IOException if writing fails
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(frames);
+    }
+
+    /**
+     * Returns the number of bytes of the frames.
+     *
+     * @return the length in bytes
+     */
+    public int length() {
+        return frames.length;
+    }
+
+    int[] getTypeIds() {
+        return typeIds;
+    }
+}
@@ -0,0 +1,63 @@
+package no.ntnu.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.util.BitSet;
+
+/**
+ * BinaryOutput keeps track of which types have been defined on one
+ * connection, and writes the TYPE_DEFINE frames a message needs before the
+ * message itself.
+ */
+public class BinaryOutput {
+    private final TypeTable table;
+    private final BitSet defined = new BitSet(); // Type IDs sent on this connection
+
+    /**
+     * Creates the binary output of a connection.
+     *
+     * @param table the table the messages are encoded with
+     */
+    public BinaryOutput(TypeTable table) {
+        this.table = table;
+    }
+
+    /**
+     * Returns the TYPE_DEFINE frames to send before a message, and marks the
+     * types as defined.
+     *
+     * @param message the message about to be sent
+     * @return the frames, or null when every type of the message has been defined
+     * @throws ProtocolException if the message refers to a type missing from the table
+     */
+    public synchronized byte[] definesFor(BinaryMessage message) throws ProtocolException {
+        ByteArrayOutputStream defines = null;
+        for (int id : message.getTypeIds()) {
+            if (!defined.get(id)) {
+                if (defines == null) {
+                    defines = new ByteArrayOutputStream();
+                }
+                table.writeDefine(id, defines);
+                defined.set(id);
+            }
+        }
+        return defines != null ? defines.toByteArray() : null;
+    }
+
+    /**
+     * Writes a message, preceded by the definitions of its new types.
+     *
+     * @param message the message
+     * @param out     the stream to write to
+     * @throws IOException if writing fails
+     */
+    public synchronized void write(BinaryMessage message, OutputStream out) throws IOException {
+        byte[] defines = definesFor(message);
+        if (defines != null) {
+            out.write(defines);
+        }
+        message.writeTo(out);
+    }
+}
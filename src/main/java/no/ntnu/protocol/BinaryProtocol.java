@@ -0,0 +1,150 @@
+package no.ntnu.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Constants and helpers of the binary wire format. A connection starts with
+ * text lines. A client which wants the binary format sends the line
+ * {@value #NEGOTIATION_LINE}; every byte it sends after that line is binary.
+ * The server answers with the same line, and every byte it sends after the
+ * answer is binary.
+ *
+ * <p>A binary frame is a varint length, a type byte and the payload. The
+ * length counts the type byte and the payload. Numbers are unsigned varints
+ * (seven bits per byte, least significant group first), sensor values are
+ * zigzag varints holding the value multiplied by ten to the power of the
+ * number of decimals of the sensor type. Sensor and actuator types are sent
+ * once per connection in a {@link #TYPE_DEFINE} frame and referred to by ID
+ * afterwards.
+ *
+ * <p>Whether nodes and control panels ask for the binary format is set with
+ * the system property greenhouse.binaryProtocol=true or with
+ * {@link #setPreferred(boolean)}.
+ */
+public final class BinaryProtocol {
+    /** Sent as a text line to switch the rest of the stream to binary frames. */
+    public static final String NEGOTIATION_LINE = "PROTO:BINARY";
+
+    /** A text line, for messages without a binary form: the UTF-8 bytes of the line. */
+    public static final int TYPE_TEXT = 1;
+    /** Defines a type ID: varint id, varint decimals, string name, string unit. */
+    public static final int TYPE_DEFINE = 2;
+    /** Sensor readings: varint nodeId, varint count, count * (varint typeId, zigzag value). */
+    public static final int TYPE_SENSOR = 3;
+    /** Actuator states: varint nodeId, varint count, count * (varint actuatorId, varint typeId, state). */
+    public static final int TYPE_ACTUATOR_STATE = 4;
+    /** Actuator command: varint nodeId, varint actuatorId, state byte. */
+    public static final int TYPE_ACTUATOR_COMMAND = 5;
+
+    /** Largest frame accepted, the same limit as for a text line. */
+    public static final int MAX_FRAME_LENGTH = 64 * 1024;
+    /** Largest number of sensor and actuator types on one connection. */
+    public static final int MAX_TYPES = 4096;
+    /** Decimals kept for sensor values; values with more are sent as text. */
+    public static final int DEFAULT_DECIMALS = 2;
+
+    private static volatile boolean preferred = Boolean.getBoolean("greenhouse.binaryProtocol");
+
+    /**
+     * Not allowed to create instances of this class.
+     */
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Selects whether nodes and control panels ask the server for the binary
+     * format when they connect.
+     *
+     * @param useBinary true to ask for the binary format
+     */
+    public static void setPreferred(boolean useBinary) {
+        preferred = useBinary;
+    }
+
+    /**
+     * Tells whether nodes and control panels ask for the binary format.
+     *
+     * @return true when the binary format is asked for
+     */
+    public static boolean isPreferred() {
+        return preferred;
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static void writeZigZag(ByteArrayOutputStream out, long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.write((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.write((int) zigzag);
+    }
+
+    static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    static int readVarint(ByteBuffer in) throws ProtocolException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!in.hasRemaining()) {
+                throw new ProtocolException("Truncated varint");
+            }
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Varint too long");
+    }
+
+    static long readZigZag(ByteBuffer in) throws ProtocolException {
+        long zigzag = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            if (!in.hasRemaining()) {
+                throw new ProtocolException("Truncated varint");
+            }
+            byte b = in.get();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new ProtocolException("Varint too long");
+    }
+
+    /**
+     * Reads a string. The buffer must be backed by an array.
+     */
+    static String readString(ByteBuffer in) throws ProtocolException {
+        int length = readVarint(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new ProtocolException("Invalid string length " + length);
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+}
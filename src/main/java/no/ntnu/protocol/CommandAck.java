@@ -0,0 +1,104 @@
+package no.ntnu.protocol;
+
+/**
+ * A mutable ACK message: the answer to a COMMAND with the same correlation
+ * ID. It either carries the state the node applied, or tells why the command
+ * was not applied.
+ */
+public final class CommandAck {
+    /**
+     * The outcome of a command.
+     */
+    public enum Status {
+        /** The node set the actuator; the ACK carries its new state. */
+        APPLIED("true"),
+        /** The node has no actuator with the ID. */
+        UNKNOWN_ACTUATOR("unknown"),
+        /** The server has no connection to the node. */
+        UNREACHABLE("unreachable");
+
+        private final String word;
+
+        Status(String word) {
+            this.word = word;
+        }
+
+        /**
+         * Returns the word of a failure status in an ACK message. An applied
+         * command is written as its state instead.
+         *
+         * @return the word, for example "unreachable"
+         */
+        String getWord() {
+            return word;
+        }
+    }
+
+    private long correlationId;
+    private int nodeId;
+    private int actuatorId;
+    private Status status;
+    private boolean on;
+
+    /**
+     * Sets all fields of the acknowledgement.
+     *
+     * @param correlationId the ID of the acknowledged command
+     * @param nodeId        the ID of the node
+     * @param actuatorId    the ID of the actuator within the node
+     * @param status        the outcome of the command
+     * @param on            the state of the actuator, when applied
+     */
+    public void set(long correlationId, int nodeId, int actuatorId, Status status, boolean on) {
+        this.correlationId = correlationId;
+        this.nodeId = nodeId;
+        this.actuatorId = actuatorId;
+        this.status = status;
+        this.on = status == Status.APPLIED && on;
+    }
+
+    /**
+     * Answers a command which could not be applied.
+     *
+     * @param command the command
+     * @param status  why it was not applied
+     */
+    public void reject(ActuatorCommand command, Status status) {
+        set(command.getCorrelationId(), command.getNodeId(), command.getActuatorId(), status, false);
+    }
+
+    public long getCorrelationId() {
+        return correlationId;
+    }
+
+    /**
+     * Replaces the correlation ID, as the server does when it routes the
+     * acknowledgement back to the control panel.
+     *
+     * @param correlationId the new ID, not negative
+     */
+    public void setCorrelationId(long correlationId) {
+        this.correlationId = correlationId;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public int getActuatorId() {
+        return actuatorId;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the state the node applied.
+     *
+     * @return true when the actuator is on; false when off or not applied
+     */
+    public boolean isOn() {
+        return on;
+    }
+}
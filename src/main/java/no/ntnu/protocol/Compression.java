@@ -0,0 +1,43 @@
+package no.ntnu.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * The compressed stream, for clients on slow links such as an
+ * {@code EdgeAggregator}. A client sends the text line
+ * {@value #NEGOTIATION_LINE}; every byte it sends after that line is one
+ * zlib deflate stream holding the same text lines, or binary frames, as an
+ * uncompressed connection. The client ends every batch of messages with a
+ * sync flush, so the server can read the whole batch as soon as it arrives,
+ * while the dictionary is kept from one batch to the next. The server keeps
+ * sending uncompressed.
+ */
+public final class Compression {
+    /** Sent as a text line to switch the rest of the stream to deflate. */
+    public static final String NEGOTIATION_LINE = "PROTO:DEFLATE";
+
+    /**
+     * Not allowed to create instances of this class.
+     */
+    private Compression() {
+    }
+
+    /**
+     * Sends the negotiation line and returns the stream for the rest of the
+     * messages. Flushing the returned stream ends a batch with a sync flush.
+     *
+     * @param out      the stream to the server
+     * @param deflater compresses the stream; the caller ends it when the
+     *                 connection is closed
+     * @return the compressing stream
+     * @throws IOException if writing fails
+     */
+    public static DeflaterOutputStream start(OutputStream out, Deflater deflater) throws IOException {
+        out.write((NEGOTIATION_LINE + "\n").getBytes(StandardCharsets.UTF_8));
+        return new DeflaterOutputStream(out, deflater, 8192, true);
+    }
+}
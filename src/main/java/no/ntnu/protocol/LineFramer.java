@@ -0,0 +1,81 @@
+package no.ntnu.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * LineFramer splits a stream of bytes arriving in arbitrary chunks into
+ * newline-terminated text lines, the same way BufferedReader.readLine() does
+ * for blocking sockets. A partial line is kept until the rest of it arrives.
+ */
+public class LineFramer {
+    private static final int MAX_LINE_LENGTH = 64 * 1024; // Longer lines are dropped
+
+    private byte[] line = new byte[256]; // Bytes of the line being assembled
+    private int length; // Number of bytes currently in the line
+    private boolean discarding; // True while skipping the rest of a too long line
+
+    /**
+     * Consumes all remaining bytes of the buffer and passes every complete line
+     * to the consumer. A trailing carriage return is removed from the line.
+     *
+     * @param buffer   the bytes received from the socket, ready for reading
+     * @param consumer receives each complete line
+     */
+    public void feed(ByteBuffer buffer, Consumer<String> consumer) {
+        String line;
+        while ((line = next(buffer)) != null) {
+            consumer.accept(line);
+        }
+    }
+
+    /**
+     * Consumes bytes of the buffer up to and including the end of the next
+     * complete line. Bytes after the line are left in the buffer, so the
+     * caller may read them differently.
+     *
+     * @param buffer the bytes received from the socket, ready for reading
+     * @return the line without terminator, or null when the buffer ended
+     *         before the line did
+     */
+    public String next(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                boolean complete = !discarding;
+                discarding = false;
+                String result = complete ? takeLine() : null;
+                length = 0;
+                if (complete) {
+                    return result;
+                }
+            } else if (!discarding) {
+                append(b);
+            }
+        }
+        return null;
+    }
+
+    private void append(byte b) {
+        if (length == MAX_LINE_LENGTH) {
+            System.out.println("Line longer than " + MAX_LINE_LENGTH + " bytes, dropping it");
+            discarding = true;
+            return;
+        }
+        if (length == line.length) {
+            byte[] bigger = new byte[Math.min(line.length * 2, MAX_LINE_LENGTH)];
+            System.arraycopy(line, 0, bigger, 0, length);
+            line = bigger;
+        }
+        line[length++] = b;
+    }
+
+    private String takeLine() {
+        int end = length;
+        if (end > 0 && line[end - 1] == '\r') {
+            end--;
+        }
+        return new String(line, 0, end, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,847 @@
+package no.ntnu.protocol;
+
+/**
+ * MessageCodec parses and formats the SENSOR, ACTUATOR, COMMAND, ACK, BATCH
+ * and HISTORY text messages of the server, the nodes and the control panels.
+ * Messages are parsed straight from the characters of the line into a
+ * caller-supplied mutable message, so no intermediate Strings or arrays are
+ * created; names are taken from a small cache.
+ *
+ * <p>Each parse method accepts exactly the lines the String.split based
+ * parser it replaces accepted, and produces the same values: trailing empty
+ * fields are ignored the way split() ignores them, numbers follow
+ * Integer.parseInt and Double.parseDouble, and whitespace is trimmed only
+ * where String.trim() was called. A line the old parser failed on makes the
+ * method return false. One addition is the optional trace section at the
+ * end of SENSOR and ACTUATOR state messages, see {@link TraceStamps}; text
+ * after the last '|' which is not a valid trace section is data as before.
+ * The other is the empty entry of a SENSOR message, a reading which has not
+ * changed, see {@link SensorMessage}.
+ * COMMAND, ACK, BATCH and HISTORY messages are newer than the others and
+ * parsed strictly.
+ *
+ * <p>An instance keeps its name cache, so it must only be used by one thread
+ * at a time. The format methods are static.
+ */
+public class MessageCodec {
+    /** Starts the optional trace section at the end of a message. */
+    public static final char TRACE_SEPARATOR = '|';
+
+    private static final String SENSOR_PREFIX = "SENSOR:";
+    private static final String ACTUATOR_PREFIX = "ACTUATOR:";
+    private static final String COMMAND_PREFIX = "COMMAND:";
+    private static final String ACK_PREFIX = "ACK:";
+    private static final String BATCH_PREFIX = "BATCH:";
+    private static final String HISTORY_PREFIX = "HISTORY:";
+    private static final long INVALID = Long.MIN_VALUE; // Returned by parseInt for a bad number
+    private static final int MAX_EXACT_DIGITS = 15; // Below 2^53, so the digits are exact in a double
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final NameCache names = new NameCache();
+    private final int[] colons = new int[3]; // Field separators found by splitCorrelated
+
+    /**
+     * Finds the node and the data of a SENSOR or ACTUATOR message received by
+     * the server, "PREFIX:nodeId:data". Whitespace around the node ID and the
+     * data is ignored, and so is a trace section, which goes to the trace of
+     * the message.
+     *
+     * @param line the message
+     * @param into receives the node ID and the position of the data
+     * @return true when the line has a valid node ID
+     */
+    public boolean parseRouted(CharSequence line, RoutedMessage into) {
+        int length = parseTrace(line, line.length(), into.getTrace());
+        int prefixEnd = indexOf(line, ':', 0, length) + 1;
+        int colon = prefixEnd > 0 ? indexOf(line, ':', prefixEnd, length) : -1;
+        if (colon < 0) {
+            return false;
+        }
+        int idStart = trimStart(line, prefixEnd, colon);
+        int idEnd = trimEnd(line, idStart, colon);
+        long nodeId = parseInt(line, idStart, idEnd);
+        if (nodeId == INVALID) {
+            return false;
+        }
+        int dataStart = trimStart(line, colon + 1, length);
+        int dataEnd = trimEnd(line, dataStart, length);
+        boolean canonical = idStart == prefixEnd && idEnd == colon && isCanonicalInt(line, idStart, idEnd)
+                && dataStart == colon + 1 && dataEnd == length;
+        into.set(line, (int) nodeId, dataStart, dataEnd, canonical, indexOf(line, '=', dataStart, dataEnd) >= 0);
+        return true;
+    }
+
+    /**
+     * Parses a SENSOR message, "SENSOR:nodeId:type=valueUnit,...", as the
+     * control panel receives it. An empty entry is an unchanged reading.
+     *
+     * @param line the message
+     * @param into receives the node ID and the readings
+     * @return true when the message is valid
+     */
+    public boolean parseSensor(CharSequence line, SensorMessage into) {
+        int length = line.length();
+        if (!startsWith(line, SENSOR_PREFIX)) {
+            return false;
+        }
+        int idStart = SENSOR_PREFIX.length();
+        int idEnd = indexOf(line, ':', idStart, length);
+        if (idEnd < 0) {
+            return false;
+        }
+        int dataStart = idEnd + 1;
+        int dataEnd = indexOf(line, ':', dataStart, length);
+        if (dataEnd < 0) {
+            dataEnd = length;
+        }
+        if (dataEnd == dataStart) {
+            return false; // No readings at all
+        }
+        long nodeId = parseInt(line, idStart, idEnd);
+        if (nodeId == INVALID) {
+            return false;
+        }
+        into.reset((int) nodeId);
+        int end = trimTrailing(line, dataStart, Math.min(dataEnd, parseTrace(line, length, into.getTrace())), ',');
+        return parseReadings(line, dataStart, end, into); // Data of only commas is valid too, with no readings
+    }
+
+    /**
+     * Parses a HISTORY message, "HISTORY:nodeId:time@type=valueUnit,...;+delta@...",
+     * as the server and the control panel receive it. The time of the first
+     * sample is in milliseconds since the epoch, and every later sample has
+     * the milliseconds since the sample before it. An empty entry is a
+     * reading which is the same as in the sample before.
+     *
+     * @param line the message
+     * @param into receives the node ID and the samples
+     * @return true when the message is valid and has at least one sample
+     */
+    public boolean parseHistory(CharSequence line, SensorHistory into) {
+        if (!startsWith(line, HISTORY_PREFIX)) {
+            return false;
+        }
+        int end = line.length();
+        int colon = indexOf(line, ':', HISTORY_PREFIX.length(), end);
+        long nodeId = colon < 0 ? INVALID : parseInt(line, HISTORY_PREFIX.length(), colon);
+        if (nodeId == INVALID) {
+            return false;
+        }
+        into.reset((int) nodeId);
+        long time = 0;
+        int position = colon + 1;
+        while (true) {
+            int sampleEnd = indexOf(line, ';', position, end);
+            if (sampleEnd < 0) {
+                sampleEnd = end;
+            }
+            int at = indexOf(line, '@', position, sampleEnd);
+            if (at < 0) {
+                return false;
+            }
+            boolean relative = into.getCount() > 0;
+            if (relative != (line.charAt(position) == '+')) {
+                return false; // Only the first time is absolute
+            }
+            long millis = parseDigits(line, relative ? position + 1 : position, at);
+            if (millis < 0) {
+                return false;
+            }
+            time = relative ? time + millis : millis;
+            if (!parseReadings(line, at + 1, trimTrailing(line, at + 1, sampleEnd, ','), into.add(time))) {
+                return false;
+            }
+            if (sampleEnd == end) {
+                return true;
+            }
+            position = sampleEnd + 1;
+        }
+    }
+
+    /**
+     * Parses comma separated readings, "type=valueUnit,...", where an empty
+     * entry is an unchanged reading.
+     *
+     * @return true when every reading is valid
+     */
+    private boolean parseReadings(CharSequence line, int start, int end, SensorMessage into) {
+        int position = start;
+        while (position < end) {
+            int comma = indexOf(line, ',', position, end);
+            if (comma < 0) {
+                comma = end;
+            }
+            if (comma == position) {
+                into.addUnchanged();
+            } else if (!parseReading(line, position, comma, into)) {
+                return false;
+            }
+            position = comma + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Parses an ACTUATOR state message, "ACTUATOR:nodeId:id:type=state,...",
+     * as the control panel receives it. Entries which are not of the form
+     * "id:type=state" are skipped.
+     *
+     * @param line the message
+     * @param into receives the node ID and the actuator states
+     * @return true when the message is valid
+     */
+    public boolean parseActuatorStates(CharSequence line, ActuatorMessage into) {
+        int length = line.length();
+        if (!startsWith(line, ACTUATOR_PREFIX)) {
+            return false;
+        }
+        int idStart = ACTUATOR_PREFIX.length();
+        int idEnd = indexOf(line, ':', idStart, length);
+        if (idEnd < 0) {
+            return false;
+        }
+        long nodeId = parseInt(line, idStart, idEnd);
+        if (nodeId == INVALID) {
+            return false;
+        }
+        into.reset((int) nodeId);
+        int end = trimTrailing(line, idEnd + 1, parseTrace(line, length, into.getTrace()), ',');
+        int position = idEnd + 1;
+        while (position < end) {
+            int comma = indexOf(line, ',', position, end);
+            if (comma < 0) {
+                comma = end;
+            }
+            int entryEnd = trimTrailing(line, position, comma, ':');
+            int colon = indexOf(line, ':', position, entryEnd);
+            if (colon >= 0 && indexOf(line, ':', colon + 1, entryEnd) < 0) {
+                long actuatorId = parseInt(line, position, colon);
+                if (actuatorId == INVALID) {
+                    return false;
+                }
+                int stateEnd = trimTrailing(line, colon + 1, entryEnd, '=');
+                int equals = indexOf(line, '=', colon + 1, stateEnd);
+                if (equals >= 0 && indexOf(line, '=', equals + 1, stateEnd) < 0) {
+                    into.add((int) actuatorId, names.get(line, colon + 1, equals),
+                            equalsIgnoreCase(line, equals + 1, stateEnd, "true"));
+                }
+            }
+            position = comma + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Parses an ACTUATOR command, "ACTUATOR:nodeId:actuatorId:state", as the
+     * node receives it. The state is "true" or "false" in any case. The node
+     * ID is not checked, since the server only sends a node its own commands;
+     * it is -1 when it is not a number.
+     *
+     * @param line the message
+     * @param into receives the command
+     * @return true when the command is valid
+     */
+    public boolean parseActuatorCommand(CharSequence line, ActuatorCommand into) {
+        int end = trimTrailing(line, 0, line.length(), ':');
+        int first = indexOf(line, ':', 0, end);
+        int second = first < 0 ? -1 : indexOf(line, ':', first + 1, end);
+        int third = second < 0 ? -1 : indexOf(line, ':', second + 1, end);
+        if (third < 0 || indexOf(line, ':', third + 1, end) >= 0
+                || first != ACTUATOR_PREFIX.length() - 1 || !startsWith(line, ACTUATOR_PREFIX)) {
+            return false;
+        }
+        long actuatorId = parseInt(line, second + 1, third);
+        if (actuatorId == INVALID) {
+            return false;
+        }
+        boolean on = equalsIgnoreCase(line, third + 1, end, "true");
+        if (!on && !equalsIgnoreCase(line, third + 1, end, "false")) {
+            return false;
+        }
+        long nodeId = parseInt(line, first + 1, second);
+        into.set(nodeId == INVALID ? -1 : (int) nodeId, (int) actuatorId, on);
+        return true;
+    }
+
+    /**
+     * Parses a COMMAND message, "COMMAND:correlationId:nodeId:actuatorId:state",
+     * as the server and the node receive it. The correlation ID is a number of
+     * up to 18 digits, and the state is "true" or "false" in any case.
+     *
+     * @param line the message
+     * @param into receives the command
+     * @return true when the command is valid
+     */
+    public boolean parseCommand(CharSequence line, ActuatorCommand into) {
+        if (!splitCorrelated(line, COMMAND_PREFIX)) {
+            return false;
+        }
+        long correlationId = parseDigits(line, COMMAND_PREFIX.length(), colons[0]);
+        long nodeId = parseInt(line, colons[0] + 1, colons[1]);
+        long actuatorId = parseInt(line, colons[1] + 1, colons[2]);
+        boolean on = equalsIgnoreCase(line, colons[2] + 1, line.length(), "true");
+        if (correlationId < 0 || nodeId == INVALID || actuatorId == INVALID
+                || (!on && !equalsIgnoreCase(line, colons[2] + 1, line.length(), "false"))) {
+            return false;
+        }
+        into.set(correlationId, (int) nodeId, (int) actuatorId, on);
+        return true;
+    }
+
+    /**
+     * Parses an ACK message, "ACK:correlationId:nodeId:actuatorId:result", as
+     * the server and the control panel receive it. The result is the applied
+     * state, "true" or "false", or the word of a failure status.
+     *
+     * @param line the message
+     * @param into receives the acknowledgement
+     * @return true when the acknowledgement is valid
+     */
+    public boolean parseAck(CharSequence line, CommandAck into) {
+        if (!splitCorrelated(line, ACK_PREFIX)) {
+            return false;
+        }
+        long correlationId = parseDigits(line, ACK_PREFIX.length(), colons[0]);
+        long nodeId = parseInt(line, colons[0] + 1, colons[1]);
+        long actuatorId = parseInt(line, colons[1] + 1, colons[2]);
+        if (correlationId < 0 || nodeId == INVALID || actuatorId == INVALID) {
+            return false;
+        }
+        int resultStart = colons[2] + 1;
+        int end = line.length();
+        CommandAck.Status status = null;
+        boolean on = equalsIgnoreCase(line, resultStart, end, "true");
+        if (on || equalsIgnoreCase(line, resultStart, end, "false")) {
+            status = CommandAck.Status.APPLIED;
+        } else {
+            for (CommandAck.Status failure : CommandAck.Status.values()) {
+                if (failure != CommandAck.Status.APPLIED && equalsIgnoreCase(line, resultStart, end, failure.getWord())) {
+                    status = failure;
+                }
+            }
+        }
+        if (status == null) {
+            return false;
+        }
+        into.set(correlationId, (int) nodeId, (int) actuatorId, status, on);
+        return true;
+    }
+
+    /**
+     * Parses a BATCH message, "BATCH:nodeId:actuatorId=state,...;nodeId:...",
+     * as the server and the node receive it: for each node, the actuators to
+     * set and their states, "true" or "false" in any case.
+     *
+     * @param line the message
+     * @param into receives the entries, in the order of the message
+     * @return true when the message is valid and has at least one entry
+     */
+    public boolean parseBatch(CharSequence line, ActuatorBatch into) {
+        if (!startsWith(line, BATCH_PREFIX)) {
+            return false;
+        }
+        into.clear();
+        int end = line.length();
+        int position = BATCH_PREFIX.length();
+        while (true) {
+            int sectionEnd = indexOf(line, ';', position, end);
+            if (sectionEnd < 0) {
+                sectionEnd = end;
+            }
+            int colon = indexOf(line, ':', position, sectionEnd);
+            long nodeId = colon < 0 ? INVALID : parseInt(line, position, colon);
+            if (nodeId == INVALID) {
+                return false;
+            }
+            int entry = colon + 1;
+            while (entry <= sectionEnd) {
+                int comma = indexOf(line, ',', entry, sectionEnd);
+                if (comma < 0) {
+                    comma = sectionEnd;
+                }
+                int equals = indexOf(line, '=', entry, comma);
+                long actuatorId = equals < 0 ? INVALID : parseInt(line, entry, equals);
+                if (actuatorId == INVALID) {
+                    return false;
+                }
+                boolean on = equalsIgnoreCase(line, equals + 1, comma, "true");
+                if (!on && !equalsIgnoreCase(line, equals + 1, comma, "false")) {
+                    return false;
+                }
+                into.add((int) nodeId, (int) actuatorId, on);
+                entry = comma + 1;
+            }
+            if (sectionEnd == end) {
+                return true;
+            }
+            position = sectionEnd + 1;
+        }
+    }
+
+    /**
+     * Finds the three colons after the prefix of a COMMAND or ACK message,
+     * which has exactly four fields.
+     *
+     * @return true when the line starts with the prefix and has four fields
+     */
+    private boolean splitCorrelated(CharSequence line, String prefix) {
+        if (!startsWith(line, prefix)) {
+            return false;
+        }
+        int end = line.length();
+        int position = prefix.length();
+        for (int i = 0; i < colons.length; i++) {
+            int colon = indexOf(line, ':', position, end);
+            if (colon < 0) {
+                return false;
+            }
+            colons[i] = colon;
+            position = colon + 1;
+        }
+        return indexOf(line, ':', position, end) < 0;
+    }
+
+    /**
+     * Formats a SENSOR message. Unchanged readings are written as empty
+     * entries, except at the end, where they are left out.
+     *
+     * @param message the readings
+     * @param out     where to append the message, without line terminator
+     */
+    public static void formatSensor(SensorMessage message, StringBuilder out) {
+        out.append(SENSOR_PREFIX).append(message.getNodeId()).append(':');
+        appendReadings(message, out);
+        appendTrace(message.getTrace(), out);
+    }
+
+    /**
+     * Formats a HISTORY message. Readings which are the same as in the sample
+     * before are written as empty entries, except at the end of a sample,
+     * where they are left out.
+     *
+     * @param history the samples, at least one, oldest first
+     * @param out     where to append the message, without line terminator
+     */
+    public static void formatHistory(SensorHistory history, StringBuilder out) {
+        out.append(HISTORY_PREFIX).append(history.getNodeId()).append(':');
+        for (int i = 0; i < history.getCount(); i++) {
+            if (i > 0) {
+                out.append(';').append('+').append(history.getTime(i) - history.getTime(i - 1));
+            } else {
+                out.append(history.getTime(i));
+            }
+            out.append('@');
+            appendReadings(history.getReadings(i), out);
+        }
+    }
+
+    /**
+     * Appends readings separated by commas. Unchanged readings are written
+     * as empty entries, except at the end, where they are left out.
+     */
+    private static void appendReadings(SensorMessage message, StringBuilder out) {
+        int end = message.getCount();
+        while (end > 0 && message.isUnchanged(end - 1)) {
+            end--; // Readings after the last entry are unchanged anyway
+        }
+        for (int i = 0; i < end; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            if (message.isUnchanged(i)) {
+                continue; // An empty entry
+            }
+            out.append(message.getType(i)).append('=');
+            appendValue(message.getValue(i), out);
+            out.append(message.getUnit(i));
+        }
+    }
+
+    /**
+     * Formats an ACTUATOR state message.
+     *
+     * @param message the actuator states
+     * @param out     where to append the message, without line terminator
+     */
+    public static void formatActuatorStates(ActuatorMessage message, StringBuilder out) {
+        out.append(ACTUATOR_PREFIX).append(message.getNodeId()).append(':');
+        for (int i = 0; i < message.getCount(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(message.getActuatorId(i)).append(':').append(message.getType(i)).append('=')
+                    .append(message.isOn(i));
+        }
+        appendTrace(message.getTrace(), out);
+    }
+
+    /**
+     * Formats an ACTUATOR command.
+     *
+     * @param command the command
+     * @param out     where to append the message, without line terminator
+     */
+    public static void formatActuatorCommand(ActuatorCommand command, StringBuilder out) {
+        out.append(ACTUATOR_PREFIX).append(command.getNodeId()).append(':').append(command.getActuatorId())
+                .append(':').append(command.isOn());
+    }
+
+    /**
+     * Formats a COMMAND message, an actuator command which the node
+     * acknowledges.
+     *
+     * @param command the command, with a correlation ID
+     * @param out     where to append the message, without line terminator
+     */
+    public static void formatCommand(ActuatorCommand command, StringBuilder out) {
+        out.append(COMMAND_PREFIX).append(command.getCorrelationId()).append(':').append(command.getNodeId())
+                .append(':').append(command.getActuatorId()).append(':').append(command.isOn());
+    }
+
+    /**
+     * Formats an ACK message.
+     *
+     * @param ack the acknowledgement
+     * @param out where to append the message, without line terminator
+     */
+    public static void formatAck(CommandAck ack, StringBuilder out) {
+        out.append(ACK_PREFIX).append(ack.getCorrelationId()).append(':').append(ack.getNodeId()).append(':')
+                .append(ack.getActuatorId()).append(':');
+        if (ack.getStatus() == CommandAck.Status.APPLIED) {
+            out.append(ack.isOn());
+        } else {
+            out.append(ack.getStatus().getWord());
+        }
+    }
+
+    /**
+     * Formats a BATCH message with all entries of a batch.
+     *
+     * @param batch the batch, with at least one entry
+     * @param out   where to append the message, without line terminator
+     */
+    public static void formatBatch(ActuatorBatch batch, StringBuilder out) {
+        formatBatch(batch, 0, batch.getCount(), out);
+    }
+
+    /**
+     * Formats a BATCH message with some entries of a batch. Consecutive
+     * entries of the same node share one section.
+     *
+     * @param batch the batch
+     * @param from  the index of the first entry
+     * @param to    the index after the last entry, more than from
+     * @param out   where to append the message, without line terminator
+     */
+    public static void formatBatch(ActuatorBatch batch, int from, int to, StringBuilder out) {
+        out.append(BATCH_PREFIX);
+        for (int i = from; i < to; i++) {
+            if (i == from || batch.getNodeId(i) != batch.getNodeId(i - 1)) {
+                if (i > from) {
+                    out.append(';');
+                }
+                out.append(batch.getNodeId(i)).append(':');
+            } else {
+                out.append(',');
+            }
+            out.append(batch.getActuatorId(i)).append('=').append(batch.isOn(i));
+        }
+    }
+
+    /**
+     * Appends the trace section of a message, if it has one.
+     *
+     * @param trace the stamps of the message
+     * @param out   where to append the section
+     */
+    public static void appendTrace(TraceStamps trace, StringBuilder out) {
+        if (!trace.isPresent()) {
+            return;
+        }
+        out.append(TRACE_SEPARATOR).append(trace.getSequence()).append(',').append(trace.getSentMicros());
+        if (trace.hasReceived()) {
+            out.append(',').append(trace.getReceivedMicros());
+        }
+    }
+
+    /**
+     * Parses the trace section at the end of a line, "|sequence,sent" or
+     * "|sequence,sent,received". When the text after the last '|' is not of
+     * that form, the line has no trace section.
+     *
+     * @return the index of the '|', or the end when the line has no trace section
+     */
+    private static int parseTrace(CharSequence line, int end, TraceStamps into) {
+        into.clear();
+        int separator = end - 1;
+        while (separator >= 0 && line.charAt(separator) != TRACE_SEPARATOR) {
+            separator--;
+        }
+        int first = separator < 0 ? -1 : indexOf(line, ',', separator + 1, end);
+        if (first < 0) {
+            return end;
+        }
+        int second = indexOf(line, ',', first + 1, end);
+        long sequence = parseDigits(line, separator + 1, first);
+        long sent = parseDigits(line, first + 1, second < 0 ? end : second);
+        long received = second < 0 ? 0 : parseDigits(line, second + 1, end);
+        if (sequence < 0 || sent < 0 || received < 0) {
+            return end;
+        }
+        into.set(sequence, sent);
+        if (second >= 0) {
+            into.setReceived(received);
+        }
+        return separator;
+    }
+
+    /**
+     * Parses a number of only digits, at most 18 so it fits in a long.
+     *
+     * @return the value, or -1 when the text is not such a number
+     */
+    private static long parseDigits(CharSequence line, int start, int end) {
+        if (start == end || end - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Appends a value exactly as StringBuilder.append(double) does, without
+     * its temporary objects for values with at most two decimals. Such a
+     * value is the double nearest to hundredths/100, and no shorter decimal
+     * rounds to the same double, so Double.toString writes the hundredths
+     * with trailing zeros removed. Other values, and those Double.toString
+     * writes in scientific notation, are appended the usual way.
+     */
+    private static void appendValue(double value, StringBuilder out) {
+        double magnitude = Math.abs(value);
+        long hundredths = Math.round(value * 100);
+        if (magnitude < 1e-3 || magnitude >= 1e7 || hundredths / 100.0 != value) {
+            out.append(value);
+            return;
+        }
+        if (hundredths < 0) {
+            out.append('-');
+            hundredths = -hundredths;
+        }
+        out.append(hundredths / 100).append('.');
+        int fraction = (int) (hundredths % 100);
+        if (fraction == 0) {
+            out.append('0');
+        } else {
+            out.append((char) ('0' + fraction / 10));
+            if (fraction % 10 != 0) {
+                out.append((char) ('0' + fraction % 10));
+            }
+        }
+    }
+
+    /**
+     * Parses one "type=valueUnit" reading. The value is the leading digits,
+     * '.' and '-' characters, and a unit must follow it.
+     */
+    private boolean parseReading(CharSequence line, int start, int end, SensorMessage into) {
+        int readingEnd = trimTrailing(line, start, end, '=');
+        int equals = indexOf(line, '=', start, readingEnd);
+        if (equals < 0 || indexOf(line, '=', equals + 1, readingEnd) >= 0) {
+            return false;
+        }
+        int typeStart = trimStart(line, start, equals);
+        int typeEnd = trimEnd(line, typeStart, equals);
+        int valueStart = trimStart(line, equals + 1, readingEnd);
+        int valueEnd = trimEnd(line, valueStart, readingEnd);
+        int unitStart = valueStart;
+        while (unitStart < valueEnd && isValueChar(line.charAt(unitStart))) {
+            unitStart++;
+        }
+        if (unitStart == valueEnd) {
+            return false; // No unit
+        }
+        double value = parseDouble(line, valueStart, unitStart);
+        if (Double.isNaN(value)) {
+            return false;
+        }
+        into.add(names.get(line, typeStart, typeEnd), value,
+                names.get(line, trimStart(line, unitStart, valueEnd), valueEnd));
+        return true;
+    }
+
+    /**
+     * Parses a decimal number the way Double.parseDouble does. Numbers of up
+     * to 15 significant digits are converted without allocating: the digits
+     * and the power of ten are both exact doubles, so one division gives the
+     * correctly rounded value.
+     *
+     * @return the value, or NaN when the text is not a number
+     */
+    private static double parseDouble(CharSequence line, int start, int end) {
+        int i = start;
+        boolean negative = i < end && line.charAt(i) == '-';
+        if (negative) {
+            i++;
+        }
+        long digits = 0;
+        int significant = 0;
+        int decimals = -1; // -1 until the decimal point
+        boolean any = false;
+        for (; i < end; i++) {
+            char c = line.charAt(i);
+            if (c == '.') {
+                if (decimals >= 0) {
+                    return Double.NaN;
+                }
+                decimals = 0;
+                continue;
+            }
+            if (c < '0' || c > '9') {
+                return Double.NaN;
+            }
+            any = true;
+            if (decimals >= 0) {
+                decimals++;
+            }
+            if (significant > 0 || c != '0') {
+                if (++significant <= MAX_EXACT_DIGITS) {
+                    digits = digits * 10 + (c - '0');
+                }
+            }
+        }
+        if (!any) {
+            return Double.NaN;
+        }
+        int scale = Math.max(decimals, 0);
+        if (significant > MAX_EXACT_DIGITS || scale >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(line.subSequence(start, end).toString());
+        }
+        double value = digits / POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a number the way Integer.parseInt does.
+     *
+     * @return the value, or INVALID
+     */
+    private static long parseInt(CharSequence line, int start, int end) {
+        try {
+            return Integer.parseInt(line, start, end, 10);
+        } catch (NumberFormatException e) {
+            return INVALID;
+        }
+    }
+
+    /**
+     * Tells whether a number is written the way Integer.toString writes it.
+     */
+    private static boolean isCanonicalInt(CharSequence line, int start, int end) {
+        if (start < end && line.charAt(start) == '-') {
+            start++;
+            if (end - start == 1 && line.charAt(start) == '0') {
+                return false;
+            }
+        }
+        if (start == end || (line.charAt(start) == '0' && end - start > 1)) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares like String.equalsIgnoreCase.
+     */
+    private static boolean equalsIgnoreCase(CharSequence line, int start, int end, String expected) {
+        if (end - start != expected.length()) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c1 = line.charAt(i);
+            char c2 = expected.charAt(i - start);
+            if (c1 != c2) {
+                char u1 = Character.toUpperCase(c1);
+                char u2 = Character.toUpperCase(c2);
+                if (u1 != u2 && Character.toLowerCase(u1) != Character.toLowerCase(u2)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same characters as TcpCommunicationChannel.findUnitStartIndex skipped.
+     */
+    private static boolean isValueChar(char c) {
+        return Character.isDigit(c) || c == '.' || c == '-';
+    }
+
+    private static boolean startsWith(CharSequence line, String prefix) {
+        if (line.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(CharSequence line, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (line.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the end of the range without the separators at its end, which
+     * String.split drops as trailing empty fields.
+     */
+    private static int trimTrailing(CharSequence line, int start, int end, char separator) {
+        while (end > start && line.charAt(end - 1) == separator) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Skips leading characters String.trim() removes.
+     */
+    private static int trimStart(CharSequence line, int start, int end) {
+        while (start < end && line.charAt(start) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * Skips trailing characters String.trim() removes.
+     */
+    private static int trimEnd(CharSequence line, int start, int end) {
+        while (end > start && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+}
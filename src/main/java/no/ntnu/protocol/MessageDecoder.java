@@ -0,0 +1,179 @@
+package no.ntnu.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * MessageDecoder turns the bytes received on one connection into text lines,
+ * whichever format the peer uses. The stream starts as text lines; after the
+ * line {@value BinaryProtocol#NEGOTIATION_LINE} the rest of the stream is read
+ * as binary frames, which are converted back to the lines they stand for.
+ * After the line {@value Compression#NEGOTIATION_LINE} the rest of the stream
+ * is inflated first, and may switch to binary frames inside.
+ */
+public class MessageDecoder {
+    private final LineFramer framer = new LineFramer();
+    private final TypeTable types = new TypeTable(); // Types defined by the peer
+    private final BinaryFrame frame = new BinaryFrame();
+    private final StringBuilder text = new StringBuilder();
+    private boolean binary; // True after the negotiation line
+    private byte[] pending = new byte[256]; // Bytes of binary frames not complete yet
+    private int pendingLength;
+    private Inflater inflater; // Set after the compression negotiation line; freed with the decoder
+    private byte[] inflated; // Output of the inflater, fed to the decoder
+
+    /**
+     * Consumes all remaining bytes of the buffer and passes every complete
+     * message to the consumer.
+     *
+     * @param buffer   the bytes received from the socket, ready for reading
+     * @param consumer receives each complete message as a text line
+     * @throws ProtocolException if a binary frame or the compressed stream is malformed
+     */
+    public void feed(ByteBuffer buffer, Consumer<String> consumer) throws ProtocolException {
+        if (inflater != null) {
+            inflate(buffer, consumer);
+        } else {
+            decode(buffer, consumer);
+        }
+    }
+
+    /**
+     * Decodes uncompressed bytes: text lines until the peer switches to
+     * binary frames or, before it is compressed, to the compressed stream.
+     */
+    private void decode(ByteBuffer buffer, Consumer<String> consumer) throws ProtocolException {
+        while (!binary && buffer.hasRemaining()) {
+            String line = framer.next(buffer);
+            if (line == null) {
+                return;
+            }
+            if (BinaryProtocol.NEGOTIATION_LINE.equals(line)) {
+                binary = true;
+            }
+            consumer.accept(line);
+            if (inflater == null && Compression.NEGOTIATION_LINE.equals(line)) {
+                inflater = new Inflater();
+                inflated = new byte[8192];
+                inflate(buffer, consumer);
+                return;
+            }
+        }
+        if (binary && buffer.hasRemaining()) {
+            feedFrames(buffer, consumer);
+        }
+    }
+
+    /**
+     * Inflates all remaining bytes of the buffer and decodes the result. Bytes
+     * after the end of the deflate stream are ignored.
+     */
+    private void inflate(ByteBuffer buffer, Consumer<String> consumer) throws ProtocolException {
+        inflater.setInput(buffer);
+        try {
+            while (!inflater.finished()) {
+                int length = inflater.inflate(inflated);
+                if (length > 0) {
+                    decode(ByteBuffer.wrap(inflated, 0, length), consumer);
+                } else if (inflater.needsInput()) {
+                    break;
+                } else if (inflater.needsDictionary()) {
+                    throw new ProtocolException("Compressed stream needs a dictionary");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Invalid compressed data: " + e.getMessage());
+        }
+        buffer.position(buffer.limit());
+    }
+
+    /**
+     * Tells whether the peer has switched to binary frames.
+     *
+     * @return true when the stream is read as binary frames
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Tells whether the peer has switched to the compressed stream.
+     *
+     * @return true when the stream is inflated before it is decoded
+     */
+    public boolean isCompressed() {
+        return inflater != null;
+    }
+
+    private void feedFrames(ByteBuffer buffer, Consumer<String> consumer) throws ProtocolException {
+        int received = buffer.remaining();
+        if (pendingLength + received > pending.length) {
+            byte[] bigger = new byte[Math.max(pending.length * 2, pendingLength + received)];
+            System.arraycopy(pending, 0, bigger, 0, pendingLength);
+            pending = bigger;
+        }
+        buffer.get(pending, pendingLength, received);
+        pendingLength += received;
+
+        int position = 0;
+        while (position < pendingLength) {
+            int length = 0;
+            int header = position;
+            for (int shift = 0; ; shift += 7) {
+                if (header == pendingLength) {
+                    compact(position);
+                    return; // The length prefix is not complete yet
+                }
+                byte b = pending[header++];
+                length |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+                if (shift == 14) {
+                    throw new ProtocolException("Frame length prefix too long");
+                }
+            }
+            if (length < 1 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                throw new ProtocolException("Invalid frame length " + length);
+            }
+            if (pendingLength - header < length) {
+                compact(position);
+                return; // The frame is not complete yet
+            }
+            int frameType = pending[header] & 0xFF;
+            ByteBuffer payload = ByteBuffer.wrap(pending, header + 1, length - 1);
+            position = header + length;
+            if (frameType == BinaryProtocol.TYPE_DEFINE) {
+                define(payload);
+            } else {
+                frame.decode(frameType, payload);
+                text.setLength(0);
+                frame.appendText(text, types);
+                consumer.accept(text.toString());
+            }
+        }
+        pendingLength = 0;
+    }
+
+    private void define(ByteBuffer payload) throws ProtocolException {
+        int id = BinaryProtocol.readVarint(payload);
+        int decimals = BinaryProtocol.readVarint(payload);
+        String name = BinaryProtocol.readString(payload);
+        String unit = BinaryProtocol.readString(payload);
+        types.define(id, name, unit, decimals);
+    }
+
+    /**
+     * Moves the bytes of an incomplete frame to the start of the buffer.
+     */
+    private void compact(int position) {
+        pendingLength -= position;
+        System.arraycopy(pending, position, pending, 0, pendingLength);
+        if (pendingLength == 0 && pending.length > 64 * 1024) {
+            pending = new byte[256];
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package no.ntnu.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * MessageEncoder writes the messages of a node or control panel, as text
+ * lines or, after {@link #requestBinary(OutputStream)}, as binary frames.
+ * Text lines are encoded into a reused buffer, so writing one does not
+ * allocate. Writers sharing an encoder write whole messages, one at a time.
+ * The caller still flushes the stream.
+ */
+public class MessageEncoder {
+    private final TypeTable types = new TypeTable();
+    private final BinaryOutput binaryOutput = new BinaryOutput(types);
+    private final ReentrantLock lock = new ReentrantLock(); // Not synchronized: virtual threads may block here
+    private boolean binary;
+    private byte[] buffer = new byte[256]; // UTF-8 bytes of the text line being written
+
+    /**
+     * Sends the negotiation line; every message written after it is binary.
+     * The server keeps reading text from clients which do not send the line.
+     *
+     * @param out the stream to the server
+     * @throws IOException if writing fails
+     */
+    public void requestBinary(OutputStream out) throws IOException {
+        lock.lock();
+        try {
+            write(BinaryProtocol.NEGOTIATION_LINE, out);
+            binary = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes one message.
+     *
+     * @param message the message, without line terminator
+     * @param out     the stream to write to
+     * @throws IOException if writing fails
+     */
+    public void write(CharSequence message, OutputStream out) throws IOException {
+        lock.lock();
+        try {
+            if (binary) {
+                binaryOutput.write(BinaryMessage.encode(message.toString(), types), out);
+            } else {
+                int length = encodeLine(message); // May replace the buffer, so call it first
+                out.write(buffer, 0, length);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Encodes a text line to UTF-8 in the reused buffer, the same bytes as
+     * String.getBytes gives: an unpaired surrogate becomes '?'.
+     *
+     * @return the number of bytes, including the line terminator
+     */
+    private int encodeLine(CharSequence message) {
+        int length = message.length();
+        if (buffer.length < length * 3 + 1) {
+            buffer = new byte[Math.max(buffer.length * 2, length * 3 + 1)];
+        }
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            char c = message.charAt(i);
+            if (c < 0x80) {
+                buffer[n++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[n++] = (byte) (0xC0 | (c >> 6));
+                buffer[n++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                char low = i + 1 < length ? message.charAt(i + 1) : 0;
+                if (Character.isHighSurrogate(c) && Character.isLowSurrogate(low)) {
+                    int codePoint = Character.toCodePoint(c, low);
+                    buffer[n++] = (byte) (0xF0 | (codePoint >> 18));
+                    buffer[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buffer[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buffer[n++] = (byte) (0x80 | (codePoint & 0x3F));
+                    i++;
+                } else {
+                    buffer[n++] = '?';
+                }
+            } else {
+                buffer[n++] = (byte) (0xE0 | (c >> 12));
+                buffer[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[n++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        buffer[n++] = '\n';
+        return n;
+    }
+}
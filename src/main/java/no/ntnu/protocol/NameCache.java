@@ -0,0 +1,47 @@
+package no.ntnu.protocol;
+
+/**
+ * NameCache returns the same String instance for sensor types, actuator
+ * types and units seen before, so parsing a message only creates a String
+ * the first time a name appears. It holds a fixed number of names; a name
+ * whose slot is taken by another one replaces it.
+ */
+final class NameCache {
+    private static final int SIZE = 256; // Must be a power of two
+
+    private final String[] names = new String[SIZE];
+
+    /**
+     * Returns a part of the text as a String.
+     *
+     * @param text  the text
+     * @param start the index of the first character
+     * @param end   the index after the last character
+     * @return the characters in the range, as a cached String when possible
+     */
+    String get(CharSequence text, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        int slot = (hash ^ (hash >>> 16)) & (SIZE - 1);
+        String name = names[slot];
+        if (name == null || !matches(name, text, start, end)) {
+            name = text.subSequence(start, end).toString();
+            names[slot] = name;
+        }
+        return name;
+    }
+
+    private static boolean matches(String name, CharSequence text, int start, int end) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (name.charAt(i - start) != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,71 @@
+package no.ntnu.protocol;
+
+/**
+ * A mutable view of a SENSOR or ACTUATOR message as the server sees it: the
+ * node it is about and where its data starts and ends in the line. The data
+ * itself is not parsed, since the server only forwards it.
+ */
+public final class RoutedMessage {
+    private CharSequence line;
+    private int nodeId;
+    private int dataStart;
+    private int dataEnd;
+    private boolean canonical;
+    private boolean states;
+    private final TraceStamps trace = new TraceStamps();
+
+    void set(CharSequence line, int nodeId, int dataStart, int dataEnd, boolean canonical, boolean states) {
+        this.line = line;
+        this.nodeId = nodeId;
+        this.dataStart = dataStart;
+        this.dataEnd = dataEnd;
+        this.canonical = canonical;
+        this.states = states;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Returns the data after the node ID, without surrounding whitespace and
+     * without the trace section.
+     *
+     * @return the data, for example "temperature=23.0°C"
+     */
+    public String getData() {
+        return line.subSequence(dataStart, dataEnd).toString();
+    }
+
+    /**
+     * Tells whether the line is already in the form the server forwards:
+     * the prefix, the node ID without sign, leading zeros or whitespace, and
+     * the data without surrounding whitespace. Such a line is forwarded as it
+     * is instead of being formatted again. A trace section is not part of
+     * the check.
+     *
+     * @return true when the line can be forwarded unchanged
+     */
+    public boolean isCanonical() {
+        return canonical;
+    }
+
+    /**
+     * Tells whether an ACTUATOR message reports states ("id:type=state,...")
+     * rather than commanding one actuator ("id:state").
+     *
+     * @return true when the data holds a '='
+     */
+    public boolean hasStates() {
+        return states;
+    }
+
+    /**
+     * Returns the trace section of the message.
+     *
+     * @return the stamps, not present when the message has no trace section
+     */
+    public TraceStamps getTrace() {
+        return trace;
+    }
+}
@@ -0,0 +1,78 @@
+package no.ntnu.protocol;
+
+import java.util.Arrays;
+
+/**
+ * A mutable HISTORY message: readings a node took while it was not connected,
+ * replayed when it connects again. Each sample is the readings of the node at
+ * one time, in the same positions as in a SENSOR message. A sample may leave
+ * out the readings which are the same as in the sample before it.
+ *
+ * <p>One instance is filled again for every message; the samples are reused
+ * too, so parsing does not allocate once the arrays are large enough.
+ */
+public final class SensorHistory {
+    private int nodeId;
+    private int count;
+    private long[] times = new long[4];
+    private SensorMessage[] samples = new SensorMessage[4];
+
+    /**
+     * Removes all samples, and sets the node the next samples come from.
+     *
+     * @param nodeId the ID of the node
+     */
+    public void reset(int nodeId) {
+        this.nodeId = nodeId;
+        this.count = 0;
+    }
+
+    /**
+     * Adds a sample, to be filled by the caller.
+     *
+     * @param epochMillis the time the readings were taken
+     * @return the readings of the sample, empty
+     */
+    public SensorMessage add(long epochMillis) {
+        if (count == samples.length) {
+            int size = count * 2;
+            times = Arrays.copyOf(times, size);
+            samples = Arrays.copyOf(samples, size);
+        }
+        if (samples[count] == null) {
+            samples[count] = new SensorMessage();
+        }
+        times[count] = epochMillis;
+        SensorMessage sample = samples[count++];
+        sample.reset(nodeId);
+        return sample;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the time a sample was taken.
+     *
+     * @param index the position of the sample, oldest first
+     * @return the time in milliseconds since the epoch
+     */
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    /**
+     * Returns the readings of a sample.
+     *
+     * @param index the position of the sample, oldest first
+     * @return the readings, valid until the message is reset
+     */
+    public SensorMessage getReadings(int index) {
+        return samples[index];
+    }
+}
@@ -0,0 +1,120 @@
+package no.ntnu.protocol;
+
+import java.util.Arrays;
+
+/**
+ * A mutable SENSOR message: the readings of one node. One instance is filled
+ * again for every message, so parsing and encoding readings does not
+ * allocate once the arrays are large enough.
+ *
+ * <p>Readings are identified by their position, since a node may have several
+ * sensors of one type. A node may leave out readings which have not changed
+ * since its last message; they keep their place as unchanged entries, and
+ * readings after the last entry are unchanged too.
+ */
+public final class SensorMessage {
+    private int nodeId;
+    private int count;
+    private String[] types = new String[4];
+    private double[] values = new double[4];
+    private String[] units = new String[4];
+    private final TraceStamps trace = new TraceStamps();
+
+    /**
+     * Removes all readings and the trace, and sets the node the next
+     * readings come from.
+     *
+     * @param nodeId the ID of the node
+     */
+    public void reset(int nodeId) {
+        this.nodeId = nodeId;
+        this.count = 0;
+        trace.clear();
+    }
+
+    /**
+     * Adds a reading.
+     *
+     * @param type  the sensor type, for example "temperature"
+     * @param value the value
+     * @param unit  the unit, for example "°C"
+     */
+    public void add(String type, double value, String unit) {
+        if (count == types.length) {
+            int size = count * 2;
+            types = Arrays.copyOf(types, size);
+            values = Arrays.copyOf(values, size);
+            units = Arrays.copyOf(units, size);
+        }
+        types[count] = type;
+        values[count] = value;
+        units[count] = unit;
+        count++;
+    }
+
+    /**
+     * Adds a place for a reading which has not changed since the last message.
+     */
+    public void addUnchanged() {
+        add(null, 0, null);
+    }
+
+    /**
+     * Replaces the readings which another message has, keeping the others.
+     * Used to keep the latest value of every reading of a node when messages
+     * leave out the unchanged ones.
+     *
+     * @param changes the newer message from the same node
+     */
+    public void merge(SensorMessage changes) {
+        for (int i = 0; i < changes.count; i++) {
+            if (i == count) {
+                add(changes.types[i], changes.values[i], changes.units[i]);
+            } else if (changes.types[i] != null) {
+                types[i] = changes.types[i];
+                values[i] = changes.values[i];
+                units[i] = changes.units[i];
+            }
+        }
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Tells whether a reading was left out because it has not changed.
+     *
+     * @param index the position of the reading
+     * @return true when the reading has no type, value or unit
+     */
+    public boolean isUnchanged(int index) {
+        return types[index] == null;
+    }
+
+    public String getType(int index) {
+        return types[index];
+    }
+
+    public double getValue(int index) {
+        return values[index];
+    }
+
+    public String getUnit(int index) {
+        return units[index];
+    }
+
+    /**
+     * Returns the trace stamps of the message, which are only present when
+     * the node traces its messages.
+     *
+     * @return the stamps, filled by parsing and written by formatting
+     */
+    public TraceStamps getTrace() {
+        return trace;
+    }
+}
@@ -0,0 +1,70 @@
+package no.ntnu.protocol;
+
+/**
+ * The optional trace section of a SENSOR or ACTUATOR state message,
+ * "|sequence,sent" as the node writes it and "|sequence,sent,received" once
+ * the server has received it. The times are microseconds since the epoch.
+ * The sequence number counts the messages of one node, so gaps show the
+ * messages which were lost or replaced on the way.
+ */
+public final class TraceStamps {
+    private boolean present;
+    private long sequence;
+    private long sentMicros;
+    private long receivedMicros = -1;
+
+    /**
+     * Removes the stamps; the message is then sent without a trace section.
+     */
+    public void clear() {
+        present = false;
+        receivedMicros = -1;
+    }
+
+    /**
+     * Stamps a message as the node sends it.
+     *
+     * @param sequence   the number of the message, counted by the node
+     * @param sentMicros the time the node sent the message
+     */
+    public void set(long sequence, long sentMicros) {
+        this.present = true;
+        this.sequence = sequence;
+        this.sentMicros = sentMicros;
+        this.receivedMicros = -1;
+    }
+
+    /**
+     * Adds the time the server received the message.
+     *
+     * @param receivedMicros the time the server received the message
+     */
+    public void setReceived(long receivedMicros) {
+        this.receivedMicros = receivedMicros;
+    }
+
+    public boolean isPresent() {
+        return present;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getSentMicros() {
+        return sentMicros;
+    }
+
+    /**
+     * Tells whether the server has added the time it received the message.
+     *
+     * @return true when {@link #getReceivedMicros()} is set
+     */
+    public boolean hasReceived() {
+        return receivedMicros >= 0;
+    }
+
+    public long getReceivedMicros() {
+        return receivedMicros;
+    }
+}
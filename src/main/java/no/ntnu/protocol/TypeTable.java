@@ -0,0 +1,125 @@
+package no.ntnu.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * TypeTable maps sensor and actuator types to small IDs, so that the binary
+ * format sends a type name and unit once per connection instead of in every
+ * message. A sensor type is a name and a unit ("temperature", "°C"); an
+ * actuator type is a name with an empty unit.
+ *
+ * <p>A sender interns its types with {@link #intern(String, String, int)}; a
+ * receiver fills its own table from the TYPE_DEFINE frames it receives. The
+ * table is safe to share between threads.
+ */
+public class TypeTable {
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>(); // "name\0unit" -> ID
+    private volatile Entry[] entries = new Entry[16]; // Indexed by ID, replaced when it grows
+
+    /**
+     * Returns the ID of a type, assigning the next free one if the type is new.
+     *
+     * @param name     the type name
+     * @param unit     the unit, empty for actuators
+     * @param decimals decimals kept for values of the type
+     * @return the ID, or -1 when the table is full
+     */
+    public int intern(String name, String unit, int decimals) {
+        Integer id = ids.get(name + '\0' + unit);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(name + '\0' + unit);
+            if (id != null) {
+                return id;
+            }
+            int next = ids.size();
+            if (next >= BinaryProtocol.MAX_TYPES) {
+                return -1;
+            }
+            store(next, new Entry(name, unit, decimals));
+            ids.put(name + '\0' + unit, next);
+            return next;
+        }
+    }
+
+    /**
+     * Stores a type received in a TYPE_DEFINE frame.
+     *
+     * @param id       the ID chosen by the sender
+     * @param name     the type name
+     * @param unit     the unit
+     * @param decimals decimals of the values of the type
+     * @throws ProtocolException if the ID or number of decimals is out of range
+     */
+    public synchronized void define(int id, String name, String unit, int decimals) throws ProtocolException {
+        if (id < 0 || id >= BinaryProtocol.MAX_TYPES) {
+            throw new ProtocolException("Type ID out of range: " + id);
+        }
+        if (decimals < 0 || decimals > 9) {
+            throw new ProtocolException("Invalid number of decimals: " + decimals);
+        }
+        store(id, new Entry(name, unit, decimals));
+        ids.put(name + '\0' + unit, id);
+    }
+
+    /**
+     * Returns a defined type.
+     *
+     * @param id the type ID
+     * @return the type
+     * @throws ProtocolException if the ID has not been defined
+     */
+    public Entry get(int id) throws ProtocolException {
+        Entry[] current = entries;
+        Entry entry = id >= 0 && id < current.length ? current[id] : null;
+        if (entry == null) {
+            throw new ProtocolException("Undefined type ID: " + id);
+        }
+        return entry;
+    }
+
+    /**
+     * Writes the TYPE_DEFINE frame of a type.
+     *
+     * @param id  the type ID
+     * @param out where to write the frame
+     * @throws ProtocolException if the ID has not been defined
+     */
+    public void writeDefine(int id, ByteArrayOutputStream out) throws ProtocolException {
+        Entry entry = get(id);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        BinaryProtocol.writeVarint(payload, id);
+        BinaryProtocol.writeVarint(payload, entry.decimals);
+        BinaryProtocol.writeString(payload, entry.name);
+        BinaryProtocol.writeString(payload, entry.unit);
+        BinaryProtocol.writeVarint(out, payload.size() + 1);
+        out.write(BinaryProtocol.TYPE_DEFINE);
+        out.writeBytes(payload.toByteArray());
+    }
+
+    private void store(int id, Entry entry) {
+        Entry[] current = entries;
+        if (id >= current.length) {
+            Entry[] bigger = new Entry[Math.max(current.length * 2, id + 1)];
+            System.arraycopy(current, 0, bigger, 0, current.length);
+            current = bigger;
+        }
+        current[id] = entry;
+        entries = current; // Publishes the entry to readers
+    }
+
+    /**
+     * A sensor or actuator type.
+     *
+     * @param name     the type name
+     * @param unit     the unit, empty for actuators
+     * @param decimals decimals kept for values of the type
+     */
+    public record Entry(String name, String unit, int decimals) {
+    }
+}
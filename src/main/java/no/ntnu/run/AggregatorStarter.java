@@ -0,0 +1,49 @@
+package no.ntnu.run;
+
+import no.ntnu.protocol.BinaryProtocol;
+import no.ntnu.tcp.EdgeAggregator;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.Threads;
+
+/**
+ * Entry point to start an EdgeAggregator, which the nodes of a greenhouse
+ * connect to instead of the server.
+ */
+public class AggregatorStarter {
+
+    /**
+     * Main method to initialize and start the EdgeAggregator.
+     *
+     * @param args Command-line arguments: "listen=PORT" sets the port the
+     *             nodes connect to (default 12346); "server=HOST:PORT" sets
+     *             the server (default localhost:12345); "batch=MILLIS" sets
+     *             how often a batch is sent to the server (default 1000);
+     *             "virtual" serves the nodes on virtual threads; "binary"
+     *             sends the batches in the binary format
+     */
+    public static void main(String[] args) {
+        int listenPort = 12346;
+        String serverHost = "localhost";
+        int serverPort = 12345;
+        for (String arg : args) {
+            if (arg.startsWith("listen=")) {
+                listenPort = Integer.parseInt(arg.substring("listen=".length()));
+            } else if (arg.startsWith("server=")) {
+                String server = arg.substring("server=".length());
+                int colon = server.lastIndexOf(':');
+                serverHost = server.substring(0, colon);
+                serverPort = Integer.parseInt(server.substring(colon + 1));
+            } else if (arg.startsWith("batch=")) {
+                EdgeAggregator.setBatchInterval(Long.parseLong(arg.substring("batch=".length())));
+            } else if ("virtual".equals(arg)) {
+                Threads.setVirtual(true);
+                Logger.info("Using virtual threads");
+            } else if ("binary".equals(arg)) {
+                BinaryProtocol.setPreferred(true);
+                Logger.info("Using the binary protocol");
+            }
+        }
+
+        new EdgeAggregator(listenPort, serverHost, serverPort).start();
+    }
+}
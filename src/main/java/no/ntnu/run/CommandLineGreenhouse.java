@@ -1,30 +1,151 @@
 package no.ntnu.run;
 
+import java.nio.file.Path;
+import no.ntnu.greenhouse.DeviceFactory;
 import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.greenhouse.SensorStore;
+import no.ntnu.greenhouse.VirtualClock;
+import no.ntnu.protocol.BinaryProtocol;
+import no.ntnu.tcp.GreenhouseNode;
+import no.ntnu.tcp.SensorReportPolicy;
+import no.ntnu.tools.CoalescingOutputStream;
 import no.ntnu.tools.Logger;
+import no.ntnu.tools.Threads;
+import no.ntnu.tools.Tracing;
 
 /**
  * Run a greenhouse simulation using command-line interface (no GUI).
  */
 public class CommandLineGreenhouse {
+  private static final int OUTBOX_SPILL_SAMPLES = 100_000; // Almost six days of reports per node
+
   /**
    * Application entrypoint for the command-line version of the simulator.
    *
-   * @param args Command line arguments, only the first one of them used: when it
-   *             is "fake",
-   *             emulate fake events, when it is either something else or not
-   *             present,
-   *             use real socket communication.
+   * @param args Command line arguments: when one of them is "fake",
+   *             emulate fake events, otherwise use real socket communication.
+   *             When one of them is "virtual", the socket communication runs
+   *             on virtual threads. "linger=MICROS" lets messages wait up to
+   *             that long to be sent together with later ones. "binary"
+   *             asks the server for the binary message format. "trace"
+   *             stamps the messages for latency tracing.
+   *             "actuator-heartbeat=SECONDS" sets how often the state of
+   *             all actuators is sent besides the changes.
+   *             "deadband=[TYPE:]VALUE" sends a reading only when it changed
+   *             by more than VALUE, and "max-silence=[TYPE:]SECONDS" sends it
+   *             at least that often; without TYPE they apply to all sensor
+   *             types without their own setting. "sensor-store" keeps
+   *             the sensors of all nodes in one columnar store.
+   *             "tick[=SEED]" advances all nodes together in one parallel
+   *             step, reproducible for a given seed.
+   *             "speed=N" runs the simulation on a virtual clock at N times
+   *             real time, "speed=max" as fast as possible. "seed=N" makes
+   *             the sensor values reproducible. "duration=SECONDS" stops the
+   *             simulation after that much simulated time.
+   *             "outbox=SAMPLES" sets how many reports a node keeps while
+   *             it is not connected, and "outbox-spill=DIRECTORY" moves
+   *             older ones to a memory-mapped file in that directory.
+   *             "gateway=N" connects the nodes through gateways of up to N
+   *             nodes each, one connection per gateway.
+   *             "server=HOST:PORT" connects to another server than
+   *             localhost:12345, for example an edge aggregator.
    */
-  public static void main(String[] args) {
+  public static void main(String[] args) throws InterruptedException {
     Logger.info("Running greenhouse simulator in command line (without GUI)...");
     boolean fake = false;
-    if (args.length == 1 && "fake".equals(args[0])) {
-      fake = true;
-      Logger.info("Using FAKE events");
+    Long tickSeed = null;
+    VirtualClock clock = null;
+    Long seed = null;
+    Long durationSeconds = null;
+    int gatewaySize = 0;
+    String server = null;
+    for (String arg : args) {
+      if ("fake".equals(arg)) {
+        fake = true;
+        Logger.info("Using FAKE events");
+      } else if ("virtual".equals(arg)) {
+        Threads.setVirtual(true);
+        Logger.info("Using virtual threads");
+      } else if ("binary".equals(arg)) {
+        BinaryProtocol.setPreferred(true);
+        Logger.info("Using the binary protocol");
+      } else if ("trace".equals(arg)) {
+        Tracing.setEnabled(true);
+        Logger.info("Stamping messages for latency tracing");
+      } else if ("sensor-store".equals(arg)) {
+        DeviceFactory.setSensorStore(new SensorStore());
+        Logger.info("Keeping the sensors in a columnar store");
+      } else if ("tick".equals(arg)) {
+        tickSeed = 0L;
+      } else if (arg.startsWith("tick=")) {
+        tickSeed = Long.parseLong(arg.substring("tick=".length()));
+      } else if (arg.startsWith("speed=")) {
+        String speed = arg.substring("speed=".length());
+        clock = new VirtualClock("max".equals(speed) ? 0 : Double.parseDouble(speed));
+        Logger.info("Using a virtual clock, speed " + speed);
+      } else if (arg.startsWith("seed=")) {
+        seed = Long.parseLong(arg.substring("seed=".length()));
+      } else if (arg.startsWith("duration=")) {
+        durationSeconds = Long.parseLong(arg.substring("duration=".length()));
+      } else if (arg.startsWith("outbox=")) {
+        GreenhouseNode.setOutboxCapacity(Integer.parseInt(arg.substring("outbox=".length())));
+      } else if (arg.startsWith("outbox-spill=")) {
+        GreenhouseNode.setOutboxSpill(Path.of(arg.substring("outbox-spill=".length())), OUTBOX_SPILL_SAMPLES);
+        Logger.info("Spilling readings taken while not connected to " + arg.substring("outbox-spill=".length()));
+      } else if (arg.startsWith("gateway=")) {
+        gatewaySize = Integer.parseInt(arg.substring("gateway=".length()));
+      } else if (arg.startsWith("server=")) {
+        server = arg.substring("server=".length());
+      } else if (arg.startsWith("linger=")) {
+        CoalescingOutputStream.setDefaultLingerMicros(Long.parseLong(arg.substring("linger=".length())));
+      } else if (arg.startsWith("actuator-heartbeat=")) {
+        long seconds = Long.parseLong(arg.substring("actuator-heartbeat=".length()));
+        GreenhouseNode.setActuatorHeartbeat(seconds * 1000);
+      } else if (arg.startsWith("deadband=")) {
+        String setting = arg.substring("deadband=".length());
+        SensorReportPolicy.setDeadband(getSensorType(setting), Double.parseDouble(getSettingValue(setting)));
+      } else if (arg.startsWith("max-silence=")) {
+        String setting = arg.substring("max-silence=".length());
+        SensorReportPolicy.setMaxSilence(getSensorType(setting), Long.parseLong(getSettingValue(setting)) * 1000);
+      }
     }
     GreenhouseSimulator simulator = new GreenhouseSimulator(fake);
+    if (clock != null) {
+      simulator.setClock(clock);
+    }
+    if (seed != null) {
+      simulator.setSeed(seed);
+    }
+    simulator.setGatewaySize(gatewaySize);
+    if (server != null) {
+      int colon = server.lastIndexOf(':');
+      simulator.setServer(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1)));
+    }
     simulator.initialize();
+    if (tickSeed != null) {
+      simulator.setTickMode(tickSeed, Runtime.getRuntime().availableProcessors());
+    }
     simulator.start();
+    long durationMillis = durationSeconds != null ? durationSeconds * 1000 : Long.MAX_VALUE;
+    long start = System.nanoTime();
+    if (clock != null) {
+      clock.runUntil(durationMillis); // The events run on this thread
+      Logger.info("Simulated " + clock.currentTimeMillis() / 1000 + " s with " + clock.getEventCount()
+          + " events in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    } else if (durationSeconds != null) {
+      Thread.sleep(durationMillis);
+    } else {
+      Thread.currentThread().join(); // The simulation runs on daemon threads until the process is stopped
+    }
+    simulator.stop();
+  }
+
+  private static String getSensorType(String setting) {
+    int colon = setting.indexOf(':');
+    return colon >= 0 ? setting.substring(0, colon) : null;
+  }
+
+  private static String getSettingValue(String setting) {
+    return setting.substring(setting.indexOf(':') + 1);
   }
 }
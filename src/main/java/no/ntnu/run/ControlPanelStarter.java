@@ -5,7 +5,15 @@ import no.ntnu.controlpanel.ControlPanelLogic;
 import no.ntnu.controlpanel.FakeCommunicationChannel;
 import no.ntnu.controlpanel.TcpCommunicationChannel;
 import no.ntnu.gui.controlpanel.ControlPanelApplication;
+import no.ntnu.protocol.BinaryProtocol;
+import no.ntnu.tools.CoalescingOutputStream;
 import no.ntnu.tools.Logger;
+import no.ntnu.tools.Threads;
+import no.ntnu.tools.Tracing;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 
 /**
  * Starter class for the control panel.
@@ -23,14 +31,55 @@ public class ControlPanelStarter {
 
   public static void main(String[] args) {
     boolean fake = false; // make it true to test in fake mode
-    if (args.length == 1 && "fake".equals(args[0])) {
-      fake = true;
-      Logger.info("Using FAKE events");
+    for (String arg : args) {
+      if ("fake".equals(arg)) {
+        fake = true;
+        Logger.info("Using FAKE events");
+      } else if ("virtual".equals(arg)) {
+        Threads.setVirtual(true);
+        Logger.info("Using virtual threads");
+      } else if ("binary".equals(arg)) {
+        BinaryProtocol.setPreferred(true);
+        Logger.info("Using the binary protocol");
+      } else if ("trace".equals(arg)) {
+        Tracing.setEnabled(true);
+        Logger.info("Recording the GUI render latency of traced messages");
+      } else if (arg.startsWith("linger=")) {
+        CoalescingOutputStream.setDefaultLingerMicros(Long.parseLong(arg.substring("linger=".length())));
+      }
     }
+    startConsole();
     ControlPanelStarter starter = new ControlPanelStarter(fake);
     starter.start();
   }
 
+  /**
+   * Reads commands from the standard input while the control panel runs. The
+   * command "latency" prints the round trip time of the actuator commands and
+   * the latency of every hop of the traced messages received so far; "latency
+   * reset" also starts the measurement again.
+   */
+  private static void startConsole() {
+    Thread console = new Thread(() -> {
+      BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+      try {
+        String command;
+        while ((command = in.readLine()) != null) {
+          String trimmed = command.trim();
+          if ("latency".equals(trimmed) || "latency reset".equals(trimmed)) {
+            Tracing.dump(trimmed.endsWith("reset")).forEach(Logger::info);
+          } else {
+            Logger.info("Unknown command: " + command + " (available: latency, latency reset)");
+          }
+        }
+      } catch (IOException e) {
+        Logger.error("Console stopped: " + e.getMessage());
+      }
+    }, "control-panel-console");
+    console.setDaemon(true);
+    console.start();
+  }
+
   private void start() {
     ControlPanelLogic logic = new ControlPanelLogic();
     channel = initiateCommunication(logic, fake);
@@ -0,0 +1,593 @@
+package no.ntnu.run;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import no.ntnu.tcp.GreenhouseServer;
+import no.ntnu.tcp.ServerEngine;
+import no.ntnu.tools.LatencyHistogram;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.Sockets;
+
+/**
+ * Headless load generator simulating many greenhouse nodes and control panels
+ * against a server. All connections are non-blocking and shared by a few
+ * selector threads, so a node costs a socket and a few hundred bytes instead
+ * of a GreenhouseNode with two threads.
+ *
+ * <p>Every node sends SENSOR messages at a fixed rate. Besides two readings a
+ * message holds the reading "sent", the time it was written in microseconds,
+ * so the panels can measure the end-to-end latency. The panels send actuator
+ * commands to random nodes at a fixed total rate, and the latency of a command
+ * is measured when the node receives it. After a warm-up the load is measured
+ * for a number of seconds and the throughput and latency percentiles are
+ * printed.
+ *
+ * <p>All connections come from one address, so the number of connections is
+ * limited by the ephemeral port range of the machine (about 28 000 on Linux
+ * by default). Every connection also needs a file descriptor, two when the
+ * server runs in the same JVM, so raise "ulimit -n" for large runs.
+ */
+public class LoadGenerator {
+    private static final byte[] SENSOR_DATA =
+            "temperature=23.18°C,humidity=70.55%,sent=".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SENSOR_END = "us\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SENT_READING = "sent=".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] COMMAND_PREFIX = "ACTUATOR:".getBytes(StandardCharsets.UTF_8);
+    private static final long COMMAND_TIMEOUT_NANOS = 5_000_000_000L; // Unanswered commands count as lost
+    private static final int ACTUATORS_PER_NODE = 3;
+
+    private final String host;
+    private final int port;
+    private final int nodeCount;
+    private final int panelCount;
+    private final double sensorRate; // SENSOR messages per second from each node
+    private final double commandRate; // Actuator commands per second from all panels together
+    private final long origin = System.nanoTime(); // The times in the messages are relative to this
+    private final AtomicLongArray commandSentAt; // Per node: send time + 1 of the unanswered command, or 0
+
+    /**
+     * Constructs a LoadGenerator.
+     *
+     * @param host        the address of the server
+     * @param port        the port of the server
+     * @param nodeCount   number of simulated nodes
+     * @param panelCount  number of simulated control panels
+     * @param sensorRate  SENSOR messages per second from each node
+     * @param commandRate actuator commands per second from all panels together
+     */
+    public LoadGenerator(String host, int port, int nodeCount, int panelCount, double sensorRate,
+            double commandRate) {
+        this.host = host;
+        this.port = port;
+        this.nodeCount = nodeCount;
+        this.panelCount = panelCount;
+        this.sensorRate = sensorRate;
+        this.commandRate = commandRate;
+        this.commandSentAt = new AtomicLongArray(nodeCount);
+    }
+
+    /**
+     * Runs the load generator.
+     *
+     * @param args "nodes=N" and "panels=N" set the number of connections;
+     *             "rate=R" the SENSOR messages per second of each node;
+     *             "commands=R" the actuator commands per second of all panels;
+     *             "seconds=N" the length of the measurement and "warmup=N"
+     *             of the warm-up before it; "loops=N" the number of selector
+     *             threads; "host=H" and "port=N" the server address;
+     *             "local" starts an NIO server in this JVM first
+     */
+    public static void main(String[] args) throws Exception {
+        String host = "localhost";
+        int port = 12345;
+        int nodes = 1000;
+        int panels = 4;
+        double rate = 1;
+        double commands = 10;
+        int seconds = 30;
+        int warmup = 5;
+        int loops = Runtime.getRuntime().availableProcessors();
+        boolean local = false;
+        for (String arg : args) {
+            if (arg.startsWith("host=")) {
+                host = arg.substring("host=".length());
+            } else if (arg.startsWith("port=")) {
+                port = Integer.parseInt(arg.substring("port=".length()));
+            } else if (arg.startsWith("nodes=")) {
+                nodes = Integer.parseInt(arg.substring("nodes=".length()));
+            } else if (arg.startsWith("panels=")) {
+                panels = Integer.parseInt(arg.substring("panels=".length()));
+            } else if (arg.startsWith("rate=")) {
+                rate = Double.parseDouble(arg.substring("rate=".length()));
+            } else if (arg.startsWith("commands=")) {
+                commands = Double.parseDouble(arg.substring("commands=".length()));
+            } else if (arg.startsWith("seconds=")) {
+                seconds = Integer.parseInt(arg.substring("seconds=".length()));
+            } else if (arg.startsWith("warmup=")) {
+                warmup = Integer.parseInt(arg.substring("warmup=".length()));
+            } else if (arg.startsWith("loops=")) {
+                loops = Integer.parseInt(arg.substring("loops=".length()));
+            } else if ("local".equals(arg)) {
+                local = true;
+            } else {
+                Logger.error("Unknown argument: " + arg);
+                return;
+            }
+        }
+
+        Logger.setDebugEnabled(false);
+        GreenhouseServer server = null;
+        if (local) {
+            server = new GreenhouseServer(port);
+            server.setEngine(ServerEngine.NIO);
+            Thread serverThread = new Thread(server::start, "load-server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+            Sockets.waitUntilListening(port);
+        }
+        LoadGenerator generator = new LoadGenerator(host, port, nodes, panels, rate, commands);
+        generator.run(loops, warmup, seconds);
+        if (server != null) {
+            Logger.info(String.format(Locale.ROOT, "%-17s%d messages dropped by the server", "Server queues:",
+                    server.getDroppedMessages()));
+            server.stop();
+        }
+    }
+
+    /**
+     * Connects all nodes and panels, applies the load and prints the results.
+     *
+     * @param loopCount     number of selector threads
+     * @param warmupSeconds seconds of load before the measurement starts
+     * @param seconds       length of the measurement
+     */
+    public void run(int loopCount, int warmupSeconds, int seconds) throws IOException, InterruptedException {
+        ClientLoop[] loops = new ClientLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new ClientLoop();
+        }
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        for (int nodeId = 1; nodeId <= nodeCount; nodeId++) {
+            loops[nodeId % loopCount].add(connect(address, "HELLO:NODE:" + nodeId), nodeId);
+        }
+        for (int i = 0; i < panelCount; i++) {
+            loops[i % loopCount].add(connect(address, "HELLO:PANEL"), 0);
+        }
+        Logger.info("Connected " + nodeCount + " nodes and " + panelCount + " panels, warming up for "
+                + warmupSeconds + " s");
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < loopCount; i++) {
+            Thread thread = new Thread(loops[i], "load-loop-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        Thread.sleep(warmupSeconds * 1000L);
+        for (ClientLoop loop : loops) {
+            loop.requestReset();
+        }
+        Logger.info("Measuring for " + seconds + " s");
+        Thread.sleep(seconds * 1000L);
+        for (ClientLoop loop : loops) {
+            loop.stop();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        report(loops, seconds);
+    }
+
+    private static SocketChannel connect(InetSocketAddress address, String hello) throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.write(ByteBuffer.wrap((hello + "\n").getBytes(StandardCharsets.UTF_8)));
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    /**
+     * Prints the combined counters and latencies of all selector threads.
+     */
+    private void report(ClientLoop[] loops, int seconds) {
+        long sensorsSent = 0;
+        long sensorsSkipped = 0;
+        long sensorsDelivered = 0;
+        long commandsSent = 0;
+        long commandsReceived = 0;
+        long commandsLost = 0;
+        long disconnects = 0;
+        LatencyHistogram sensorLatency = new LatencyHistogram();
+        LatencyHistogram commandLatency = new LatencyHistogram();
+        for (ClientLoop loop : loops) {
+            sensorsSent += loop.sensorsSent;
+            sensorsSkipped += loop.sensorsSkipped;
+            sensorsDelivered += loop.sensorsDelivered;
+            commandsSent += loop.commandsSent;
+            commandsReceived += loop.commandsReceived;
+            commandsLost += loop.commandsLost;
+            disconnects += loop.disconnects;
+            sensorLatency.add(loop.sensorLatency);
+            commandLatency.add(loop.commandLatency);
+        }
+        double expected = (double) sensorsSent * panelCount;
+        Logger.info("");
+        Logger.info(String.format(Locale.ROOT, "%-17s%d nodes at %.2f msg/s, %d panels, %.1f commands/s, %d s",
+                "Load:", nodeCount, sensorRate, panelCount, commandRate, seconds));
+        Logger.info(String.format(Locale.ROOT,
+                "%-17s%.0f sensor msg/s sent, %.0f msg/s received per panel, %d skipped (connection backed up)",
+                "Server ingest:", (double) sensorsSent / seconds,
+                panelCount > 0 ? (double) sensorsDelivered / panelCount / seconds : 0, sensorsSkipped));
+        Logger.info(String.format(Locale.ROOT, "%-17s%.0f msg/s delivered to panels (%.1f %% of sent x panels)",
+                "Fan-out:", (double) sensorsDelivered / seconds, expected > 0 ? 100 * sensorsDelivered / expected : 0));
+        Logger.info(String.format(Locale.ROOT, "%-17s%.1f sent/s, %.1f received/s, %d lost",
+                "Commands:", (double) commandsSent / seconds, (double) commandsReceived / seconds, commandsLost));
+        Logger.info(String.format("%-17s%s", "Sensor latency:", sensorLatency.summary()));
+        Logger.info(String.format("%-17s%s", "Command latency:", commandLatency.summary()));
+        if (disconnects > 0) {
+            Logger.error(disconnects + " connections were closed by the server");
+        }
+    }
+
+    /**
+     * A simulated node or control panel.
+     */
+    private static class Connection {
+        private final SocketChannel channel;
+        private final int nodeId; // 0 for a control panel
+        private final byte[] sensorPrefix; // "SENSOR:nodeId:" and the readings, for a node
+        private final ByteBuffer out = ByteBuffer.allocate(256); // The message being written
+        private byte[] line = new byte[256]; // The part of the incoming line read so far
+        private int lineLength;
+        private SelectionKey key;
+
+        Connection(SocketChannel channel, int nodeId) {
+            this.channel = channel;
+            this.nodeId = nodeId;
+            if (nodeId > 0) {
+                byte[] start = ("SENSOR:" + nodeId + ":").getBytes(StandardCharsets.UTF_8);
+                sensorPrefix = Arrays.copyOf(start, start.length + SENSOR_DATA.length);
+                System.arraycopy(SENSOR_DATA, 0, sensorPrefix, start.length, SENSOR_DATA.length);
+            } else {
+                sensorPrefix = null;
+            }
+            out.flip(); // Nothing to write yet
+        }
+
+        boolean isPending() {
+            return out.hasRemaining();
+        }
+
+        void append(byte b) {
+            if (lineLength == line.length) {
+                line = Arrays.copyOf(line, line.length * 2);
+            }
+            line[lineLength++] = b;
+        }
+
+        boolean lineStartsWith(String prefix) {
+            if (lineLength < prefix.length()) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length(); i++) {
+                if (line[i] != prefix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * One selector thread, serving a share of the nodes and panels. It sends
+     * the SENSOR messages of its nodes and the commands of its panels evenly
+     * spread over time, and reads what the server sends to them. The counters
+     * are only touched by the thread itself and read after it has stopped.
+     */
+    private class ClientLoop implements Runnable {
+        private final Selector selector;
+        private final List<Connection> nodes = new ArrayList<>();
+        private final List<Connection> panels = new ArrayList<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        private final byte[] digits = new byte[20];
+        private final LatencyHistogram sensorLatency = new LatencyHistogram();
+        private final LatencyHistogram commandLatency = new LatencyHistogram();
+        private volatile boolean running = true;
+        private volatile int resetRequests;
+        private int resetsDone;
+        private long sensorsSent;
+        private long sensorsSkipped;
+        private long sensorsDelivered;
+        private long commandsSent;
+        private long commandsReceived;
+        private long commandsLost;
+        private long disconnects; // Counted from the start, not only while measuring
+
+        ClientLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**
+         * Adds a connection. Must be called before the thread is started.
+         *
+         * @param channel the non-blocking channel
+         * @param nodeId  the ID of the simulated node, or 0 for a panel
+         */
+        void add(SocketChannel channel, int nodeId) throws IOException {
+            Connection connection = new Connection(channel, nodeId);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            (nodeId > 0 ? nodes : panels).add(connection);
+        }
+
+        /**
+         * Asks the thread to clear its counters, which it does before sending
+         * the next message.
+         */
+        void requestReset() {
+            resetRequests++;
+        }
+
+        void stop() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            double sensorsPerNano = nodes.size() * sensorRate / 1e9;
+            double commandsPerNano = panels.isEmpty() || nodeCount == 0 ? 0 : commandRate * panels.size() / panelCount / 1e9;
+            long start = System.nanoTime();
+            long sensorTicks = 0;
+            long commandTicks = 0;
+            int nextNode = 0;
+            int nextPanel = 0;
+            try {
+                while (running) {
+                    if (resetRequests != resetsDone) {
+                        resetsDone = resetRequests;
+                        resetCounters();
+                    }
+                    long elapsed = System.nanoTime() - start;
+                    long dueSensors = (long) (elapsed * sensorsPerNano);
+                    while (sensorTicks < dueSensors) {
+                        sendSensor(nodes.get(nextNode));
+                        nextNode = (nextNode + 1) % nodes.size();
+                        sensorTicks++;
+                    }
+                    long dueCommands = (long) (elapsed * commandsPerNano);
+                    while (commandTicks < dueCommands) {
+                        sendCommand(panels.get(nextPanel));
+                        nextPanel = (nextPanel + 1) % panels.size();
+                        commandTicks++;
+                    }
+
+                    long wait = Math.min(nanosUntil(sensorTicks + 1, sensorsPerNano, start),
+                            nanosUntil(commandTicks + 1, commandsPerNano, start));
+                    if (wait < 1_000_000) {
+                        selector.selectNow();
+                    } else {
+                        selector.select(Math.min(wait / 1_000_000, 100));
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handleKey(key);
+                    }
+                }
+            } catch (IOException e) {
+                Logger.error("Load loop failed: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    try {
+                        key.channel().close();
+                    } catch (IOException e) {
+                        // Closing at the end of the run
+                    }
+                }
+            }
+        }
+
+        private long nanosUntil(long tick, double perNano, long start) {
+            if (perNano <= 0) {
+                return Long.MAX_VALUE;
+            }
+            return start + (long) (tick / perNano) - System.nanoTime();
+        }
+
+        private void resetCounters() {
+            sensorsSent = 0;
+            sensorsSkipped = 0;
+            sensorsDelivered = 0;
+            commandsSent = 0;
+            commandsReceived = 0;
+            commandsLost = 0;
+            sensorLatency.reset();
+            commandLatency.reset();
+        }
+
+        /**
+         * Sends a SENSOR message from a node, unless the node is still writing
+         * the previous one.
+         */
+        private void sendSensor(Connection node) {
+            if (!node.channel.isOpen() || node.isPending()) {
+                sensorsSkipped++;
+                return;
+            }
+            ByteBuffer out = node.out;
+            out.clear();
+            out.put(node.sensorPrefix);
+            putDigits(out, (System.nanoTime() - origin) / 1000);
+            out.put(SENSOR_END);
+            out.flip();
+            write(node);
+            sensorsSent++;
+        }
+
+        /**
+         * Sends a command for a random actuator of a random node from a panel.
+         * A node gets a new command only when it has received the previous
+         * one, or when that has timed out.
+         */
+        private void sendCommand(Connection panel) {
+            if (!panel.channel.isOpen() || panel.isPending()) {
+                return;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int nodeId = random.nextInt(nodeCount) + 1;
+            long now = System.nanoTime() - origin;
+            long previous = commandSentAt.get(nodeId - 1);
+            if (previous != 0 && now - (previous - 1) < COMMAND_TIMEOUT_NANOS) {
+                return;
+            }
+            if (!commandSentAt.compareAndSet(nodeId - 1, previous, now + 1)) {
+                return;
+            }
+            if (previous != 0) {
+                commandsLost++;
+            }
+            ByteBuffer out = panel.out;
+            out.clear();
+            out.put(COMMAND_PREFIX);
+            putDigits(out, nodeId);
+            out.put((byte) ':');
+            putDigits(out, random.nextInt(ACTUATORS_PER_NODE) + 1);
+            out.put((byte) ':');
+            out.put((byte) (random.nextBoolean() ? '1' : '0'));
+            out.put((byte) '\n');
+            out.flip();
+            write(panel);
+            commandsSent++;
+        }
+
+        private void putDigits(ByteBuffer out, long value) {
+            int n = 0;
+            do {
+                digits[n++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            while (n > 0) {
+                out.put(digits[--n]);
+            }
+        }
+
+        private void write(Connection connection) {
+            try {
+                connection.channel.write(connection.out);
+                int interest = connection.isPending() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                        : SelectionKey.OP_READ;
+                if (connection.key.interestOps() != interest) {
+                    connection.key.interestOps(interest);
+                }
+            } catch (IOException e) {
+                close(connection);
+            }
+        }
+
+        private void handleKey(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isWritable()) {
+                write(connection);
+            }
+            if (key.isValid() && key.isReadable()) {
+                read(connection);
+            }
+        }
+
+        private void read(Connection connection) {
+            readBuffer.clear();
+            int read;
+            try {
+                read = connection.channel.read(readBuffer);
+            } catch (IOException e) {
+                read = -1;
+            }
+            if (read < 0) {
+                close(connection);
+                return;
+            }
+            long now = System.nanoTime() - origin;
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    handleLine(connection, now);
+                    connection.lineLength = 0;
+                } else {
+                    connection.append(b);
+                }
+            }
+        }
+
+        /**
+         * Counts a line received by a panel or a node and records its latency.
+         */
+        private void handleLine(Connection connection, long now) {
+            if (connection.nodeId == 0 && connection.lineStartsWith("SENSOR:")) {
+                sensorsDelivered++;
+                long sentMicros = parseSentMicros(connection.line, connection.lineLength);
+                if (sentMicros >= 0) {
+                    sensorLatency.record(now - sentMicros * 1000);
+                }
+            } else if (connection.nodeId > 0 && connection.lineStartsWith("ACTUATOR:")) {
+                long sentAt = commandSentAt.getAndSet(connection.nodeId - 1, 0);
+                if (sentAt != 0) {
+                    commandLatency.record(now - (sentAt - 1));
+                    commandsReceived++;
+                }
+            }
+        }
+
+        /**
+         * Finds the "sent" reading at the end of a SENSOR message.
+         *
+         * @return the time in microseconds, or -1 when the message has none
+         */
+        private long parseSentMicros(byte[] line, int length) {
+            int start = length - 1;
+            while (start >= 0 && line[start] != '=') {
+                start--;
+            }
+            int name = start - (SENT_READING.length - 1);
+            if (name < 0 || !Arrays.equals(line, name, start + 1, SENT_READING, 0, SENT_READING.length)) {
+                return -1;
+            }
+            long value = 0;
+            int i = start + 1;
+            while (i < length && line[i] >= '0' && line[i] <= '9') {
+                value = value * 10 + (line[i] - '0');
+                i++;
+            }
+            return i > start + 1 ? value : -1;
+        }
+
+        private void close(Connection connection) {
+            if (connection.channel.isOpen()) {
+                disconnects++;
+            }
+            connection.key.cancel();
+            try {
+                connection.channel.close();
+            } catch (IOException e) {
+                // Already counted as lost
+            }
+        }
+    }
+}
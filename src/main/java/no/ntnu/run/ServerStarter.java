@@ -1,6 +1,17 @@
 package no.ntnu.run;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Locale;
+
 import no.ntnu.tcp.GreenhouseServer;
+import no.ntnu.tcp.OverflowPolicy;
+import no.ntnu.tcp.ServerEngine;
+import no.ntnu.tools.CoalescingOutputStream;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.Threads;
+import no.ntnu.tools.Tracing;
 
 /**
  * Entry point to start the GreenhouseServer.
@@ -10,15 +21,79 @@ public class ServerStarter {
     /**
      * Main method to initialize and start the GreenhouseServer.
      *
-     * @param args Command-line arguments (not used in this implementation)
+     * @param args Command-line arguments: "nio" selects the selector-based NIO
+     *             engine, otherwise every client is served by its own thread;
+     *             "virtual" runs those threads as virtual threads;
+     *             "queue=N" sets the outbound queue capacity of each client;
+     *             "overflow=drop-oldest|disconnect|block" sets what happens
+     *             when a client's queue is full;
+     *             "no-conflation" keeps every queued sensor reading instead
+     *             of only the newest one per node;
+     *             "linger=MICROS" lets messages to a client wait up to that
+     *             long to be sent together with later ones;
+     *             "flush-bytes=N" sends as soon as N bytes are collected
      */
     public static void main(String[] args) {
         int port = 12345; // Port number for the server to listen on
 
         // Create an instance of GreenhouseServer
         GreenhouseServer server = new GreenhouseServer(port);
+        for (String arg : args) {
+            if ("nio".equals(arg)) {
+                server.setEngine(ServerEngine.NIO);
+                Logger.info("Using the NIO server engine");
+            } else if ("virtual".equals(arg)) {
+                Threads.setVirtual(true);
+                Logger.info("Using virtual threads");
+            } else if (arg.startsWith("queue=")) {
+                server.setQueueCapacity(Integer.parseInt(arg.substring("queue=".length())));
+            } else if (arg.startsWith("overflow=")) {
+                String policy = arg.substring("overflow=".length()).replace('-', '_').toUpperCase(Locale.ROOT);
+                server.setOverflowPolicy(OverflowPolicy.valueOf(policy));
+            } else if ("no-conflation".equals(arg)) {
+                server.setConflationEnabled(false);
+            } else if (arg.startsWith("linger=")) {
+                CoalescingOutputStream.setDefaultLingerMicros(Long.parseLong(arg.substring("linger=".length())));
+            } else if (arg.startsWith("flush-bytes=")) {
+                CoalescingOutputStream.setDefaultFlushBytes(Integer.parseInt(arg.substring("flush-bytes=".length())));
+            }
+        }
+
+        startConsole(server);
 
         // Start the server to accept client connections and handle communication
         server.start();
     }
+
+    /**
+     * Reads commands from the standard input while the server runs. The command
+     * "stats" prints the outbound queue and write counters of every client;
+     * "latency" prints the latency of every hop of the traced messages seen so
+     * far, and "latency reset" also starts the measurement again.
+     *
+     * @param server the running server
+     */
+    private static void startConsole(GreenhouseServer server) {
+        Thread console = new Thread(() -> {
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+            try {
+                String command;
+                while ((command = in.readLine()) != null) {
+                    String trimmed = command.trim();
+                    if ("stats".equals(trimmed)) {
+                        Logger.info("Clients: " + server.getClientCount());
+                        server.getQueueStats().forEach(Logger::info);
+                    } else if ("latency".equals(trimmed) || "latency reset".equals(trimmed)) {
+                        Tracing.dump(trimmed.endsWith("reset")).forEach(Logger::info);
+                    } else {
+                        Logger.info("Unknown command: " + command + " (available: stats, latency, latency reset)");
+                    }
+                }
+            } catch (IOException e) {
+                Logger.error("Console stopped: " + e.getMessage());
+            }
+        }, "server-console");
+        console.setDaemon(true);
+        console.start();
+    }
 }
@@ -0,0 +1,49 @@
+package no.ntnu.tcp;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The delays between the attempts of a node or gateway to connect to the
+ * server. The delay doubles with every failed attempt, up to a limit, and is
+ * chosen at random between half of it and all of it, so many clients which
+ * lost the server at the same moment do not all come back at the same moment.
+ */
+final class Backoff {
+    private static volatile long initialMillis = 500;
+    private static volatile long maxMillis = 30_000;
+
+    private long next = initialMillis; // The delay before randomizing, for the next attempt
+
+    /**
+     * Sets the delays of attempts made after the call.
+     *
+     * @param initial the first delay in milliseconds
+     * @param max     the longest delay in milliseconds
+     */
+    static void configure(long initial, long max) {
+        if (initial <= 0 || max < initial) {
+            throw new IllegalArgumentException("Invalid reconnect backoff");
+        }
+        initialMillis = initial;
+        maxMillis = max;
+    }
+
+    /**
+     * Starts again from the first delay, after a successful attempt.
+     */
+    void reset() {
+        next = initialMillis;
+    }
+
+    /**
+     * Returns the delay before the next attempt, and doubles the delay of the
+     * one after it.
+     *
+     * @return the delay in milliseconds
+     */
+    long nextDelayMillis() {
+        long delay = next;
+        next = Math.min(next * 2, maxMillis);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+}
@@ -0,0 +1,374 @@
+package no.ntnu.tcp;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import no.ntnu.protocol.ActuatorBatch;
+import no.ntnu.protocol.ActuatorCommand;
+import no.ntnu.protocol.ActuatorMessage;
+import no.ntnu.protocol.BinaryProtocol;
+import no.ntnu.protocol.CommandAck;
+import no.ntnu.protocol.Compression;
+import no.ntnu.protocol.MessageCodec;
+import no.ntnu.protocol.MessageDecoder;
+import no.ntnu.protocol.RoutedMessage;
+import no.ntnu.protocol.SensorHistory;
+import no.ntnu.protocol.SensorMessage;
+import no.ntnu.protocol.TraceStamps;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.Tracing;
+
+/**
+ * ClientConnection holds the message handling which is shared by every server
+ * engine. Subclasses only decide how bytes are read from and written to the
+ * client's socket.
+ */
+abstract class ClientConnection {
+    /**
+     * The role a client declares with its HELLO message.
+     */
+    enum Role {
+        UNKNOWN, NODE, GATEWAY, PANEL
+    }
+
+    protected final GreenhouseServer server; // Reference to the server
+    protected final OutboundQueue queue; // Messages waiting to be written to the client
+    private final MessageDecoder decoder = new MessageDecoder(); // Text lines or binary frames from the client
+    private final MessageCodec codec = new MessageCodec(); // Used by the thread reading from the client
+    private final RoutedMessage routed = new RoutedMessage(); // Reused for every SENSOR and ACTUATOR message
+    private final ActuatorMessage states = new ActuatorMessage(); // Reused for every ACTUATOR state message
+    private final SensorMessage readings = new SensorMessage(); // Reused for every SENSOR message
+    private final ActuatorCommand command = new ActuatorCommand(); // Reused for every COMMAND message
+    private final CommandAck ack = new CommandAck(); // Reused for every ACK message
+    private final ActuatorBatch batch = new ActuatorBatch(); // Reused for every BATCH message
+    private final SensorHistory history = new SensorHistory(); // Reused for every HISTORY message
+    private final int id; // Unique among the connections of the server
+    private final String name; // Describes the client in log messages
+    private volatile Role role = Role.UNKNOWN; // Declared role of the client
+    private final Set<Integer> nodeIds = ConcurrentHashMap.newKeySet(); // The node, or the nodes behind a gateway
+
+    /**
+     * Constructs a ClientConnection for a connected client.
+     *
+     * @param server the server instance managing the connection
+     * @param name   describes the client in log messages, usually its address
+     */
+    ClientConnection(GreenhouseServer server, String name) {
+        this.server = server;
+        this.id = server.newConnectionId();
+        this.name = name;
+        this.queue = new OutboundQueue(server.getQueueCapacity(), server.getOverflowPolicy(),
+                server.isConflationEnabled());
+    }
+
+    /**
+     * Handles bytes received from the client. Every complete message is
+     * handled at once; the start of an incomplete one is kept until the rest
+     * arrives. Called by one thread at a time.
+     *
+     * @param bytes the received bytes, ready for reading
+     * @throws ProtocolException if the client sent a malformed binary frame or compressed stream
+     */
+    void receive(ByteBuffer bytes) throws ProtocolException {
+        decoder.feed(bytes, this::onMessage);
+    }
+
+    private void onMessage(String message) {
+        if (Logger.isDebugEnabled()) {
+            Logger.debug("Received: " + message);
+        }
+        handleMessage(message);
+    }
+
+    /**
+     * Queues a message for the connected client. The caller does not wait for
+     * the client to read it, so a slow client only delays its own messages.
+     *
+     * @param message the message to send
+     */
+    public void sendMessage(String message) {
+        send(EncodedMessage.of(message));
+    }
+
+    /**
+     * Queues an already encoded message for the connected client. Messages
+     * sent to many clients are encoded once and passed to each of them.
+     *
+     * @param message the encoded message to send
+     */
+    void send(EncodedMessage message) {
+        if (!queue.offer(message, canBlockSenders())) {
+            System.out.println("Client " + name + " is too slow, disconnecting it");
+            close();
+            return;
+        }
+        onMessageQueued();
+    }
+
+    /**
+     * Tells whether a sender may wait for space in the queue of this client.
+     *
+     * @return true when senders may be blocked by the BLOCK policy
+     */
+    protected boolean canBlockSenders() {
+        return true;
+    }
+
+    /**
+     * Called after a message has been added to the queue.
+     */
+    protected void onMessageQueued() {
+    }
+
+    /**
+     * Returns the name, queue counters and write counters of the client.
+     *
+     * @return a one-line summary of the outbound queue and socket writes
+     */
+    String getQueueStats() {
+        String writeStats = getWriteStats();
+        return name + " " + queue.getStats() + (writeStats != null ? " " + writeStats : "");
+    }
+
+    /**
+     * Returns the counters of the socket writes to the client, if the engine
+     * keeps them.
+     *
+     * @return a one-line summary of the writes, or null
+     */
+    protected String getWriteStats() {
+        return null;
+    }
+
+    /**
+     * Closes the connection to the client.
+     */
+    public abstract void close();
+
+    int getId() {
+        return id;
+    }
+
+    Role getRole() {
+        return role;
+    }
+
+    /**
+     * Returns the nodes behind the connection: one for a node, any number for
+     * a gateway, and none for other clients.
+     *
+     * @return the IDs of the nodes
+     */
+    Set<Integer> getNodeIds() {
+        return nodeIds;
+    }
+
+    /**
+     * Processes messages from the client based on their type.
+     *
+     * @param message the message received from the client
+     */
+    void handleMessage(String message) {
+        if (message.startsWith("SENSOR:")) {
+            handleSensorMessage(message);
+        } else if (message.startsWith("ACTUATOR:")) {
+            handleActuatorMessage(message);
+        } else if (message.startsWith("COMMAND:")) {
+            handleCommandMessage(message);
+        } else if (message.startsWith("ACK:")) {
+            handleAckMessage(message);
+        } else if (message.startsWith("BATCH:")) {
+            handleBatchMessage(message);
+        } else if (message.startsWith("HISTORY:")) {
+            handleHistoryMessage(message);
+        } else if (message.startsWith("HELLO:")) {
+            handleHelloMessage(message);
+        } else if (BinaryProtocol.NEGOTIATION_LINE.equals(message)) {
+            send(EncodedMessage.BINARY_SWITCH);
+            System.out.println("Client " + name + " uses the binary format");
+        } else if (Compression.NEGOTIATION_LINE.equals(message)) {
+            System.out.println("Client " + name + " compresses its messages"); // The decoder inflates the rest
+        } else {
+            System.out.println("Unknown message type: " + message);
+        }
+    }
+
+    /**
+     * Parses and handles a HELLO message, where the client declares its role:
+     * "HELLO:NODE:nodeId", "HELLO:GATEWAY:nodeId,nodeId,..." or "HELLO:PANEL".
+     * A gateway carries the messages of many nodes over one connection, and
+     * may declare more nodes with further HELLO:GATEWAY messages.
+     *
+     * @param message the HELLO message
+     */
+    private void handleHelloMessage(String message) {
+        try {
+            String[] parts = message.split(":");
+            if (parts.length == 3 && "NODE".equals(parts[1])) {
+                int nodeId = Integer.parseInt(parts[2].trim());
+                role = Role.NODE;
+                nodeIds.add(nodeId);
+                server.registerNode(this, nodeId);
+                System.out.println("Client " + name + " is node " + nodeId);
+            } else if (parts.length == 3 && "GATEWAY".equals(parts[1])) {
+                role = Role.GATEWAY;
+                String[] ids = parts[2].split(",");
+                for (String id : ids) {
+                    int nodeId = Integer.parseInt(id.trim());
+                    nodeIds.add(nodeId);
+                    server.registerNode(this, nodeId);
+                }
+                System.out.println("Client " + name + " is a gateway, now of " + nodeIds.size() + " nodes");
+            } else if (parts.length == 2 && "PANEL".equals(parts[1])) {
+                role = Role.PANEL;
+                server.registerPanel(this);
+                System.out.println("Client " + name + " is a control panel");
+            } else {
+                System.out.println("Invalid HELLO message format: " + message);
+            }
+        } catch (Exception e) {
+            System.out.println("Error processing HELLO message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Parses and handles a SENSOR message. A message which is already in the
+     * forwarded form is passed on as it is, unless it is traced. The readings
+     * are parsed, so the server can merge a message which leaves out the
+     * unchanged ones with the readings it knows.
+     *
+     * @param message the SENSOR message
+     */
+    private void handleSensorMessage(String message) {
+        if (!codec.parseRouted(message, routed)) {
+            System.out.println("Invalid SENSOR message format: " + message);
+            return;
+        }
+        long receivedNanos = 0;
+        String line = message;
+        if (routed.getTrace().isPresent()) {
+            receivedNanos = System.nanoTime();
+            line = stampReceived("SENSOR:");
+        } else if (!routed.isCanonical()) {
+            line = "SENSOR:" + routed.getNodeId() + ":" + routed.getData();
+        }
+        if (codec.parseSensor(line, readings)) {
+            server.handleSensorMessage(readings, line, receivedNanos);
+        } else {
+            System.out.println("Invalid SENSOR message format: " + message);
+        }
+    }
+
+    /**
+     * Parses and handles an ACTUATOR message. Actuator states are parsed, so
+     * the server can merge a message holding only the actuators which changed
+     * with the states it knows. Only actuator states are traced; a command is
+     * forwarded without its trace section.
+     *
+     * @param message the ACTUATOR message
+     */
+    private void handleActuatorMessage(String message) {
+        if (!codec.parseRouted(message, routed)) {
+            System.out.println("Invalid ACTUATOR message format: " + message);
+        } else if (!routed.hasStates()) {
+            if (routed.isCanonical() && !routed.getTrace().isPresent()) {
+                server.handleActuatorCommand(routed.getNodeId(), message);
+            } else {
+                server.handleActuatorData(routed.getNodeId(), routed.getData());
+            }
+        } else {
+            long receivedNanos = 0;
+            String line = message;
+            if (routed.getTrace().isPresent()) {
+                receivedNanos = System.nanoTime();
+                line = stampReceived("ACTUATOR:");
+            } else if (!routed.isCanonical()) {
+                line = "ACTUATOR:" + routed.getNodeId() + ":" + routed.getData();
+            }
+            if (codec.parseActuatorStates(line, states)) {
+                server.handleActuatorStates(states, line, receivedNanos);
+            } else {
+                System.out.println("Invalid ACTUATOR message format: " + message);
+            }
+        }
+    }
+
+    /**
+     * Parses an acknowledged actuator command from a control panel and sends
+     * it on to the node. The panel chooses the correlation ID, so it must fit
+     * in 32 bits; the server uses the rest to find the panel again.
+     *
+     * @param message the COMMAND message
+     */
+    private void handleCommandMessage(String message) {
+        if (!codec.parseCommand(message, command) || command.getCorrelationId() > GreenhouseServer.MAX_CORRELATION_ID) {
+            System.out.println("Invalid COMMAND message format: " + message);
+        } else {
+            server.routeCommand(this, command);
+        }
+    }
+
+    /**
+     * Parses the acknowledgement of a command from a node and sends it back to
+     * the control panel which sent the command.
+     *
+     * @param message the ACK message
+     */
+    private void handleAckMessage(String message) {
+        if (!codec.parseAck(message, ack)) {
+            System.out.println("Invalid ACK message format: " + message);
+        } else {
+            server.routeAck(ack);
+        }
+    }
+
+    /**
+     * Parses a batch of actuator commands from a control panel and sends each
+     * node its own part of it.
+     *
+     * @param message the BATCH message
+     */
+    private void handleBatchMessage(String message) {
+        if (!codec.parseBatch(message, batch)) {
+            System.out.println("Invalid BATCH message format: " + message);
+        } else {
+            server.routeBatch(batch);
+        }
+    }
+
+    /**
+     * Parses the readings a node took while it was not connected, and sends
+     * them on to the control panels.
+     *
+     * @param message the HISTORY message
+     */
+    private void handleHistoryMessage(String message) {
+        if (!codec.parseHistory(message, history)) {
+            System.out.println("Invalid HISTORY message format: " + message);
+        } else {
+            server.handleSensorHistory(this, history, message);
+        }
+    }
+
+    /**
+     * Formats the traced message just parsed again, with the time the server
+     * received it in the trace section, and records the hop from the node.
+     *
+     * @param prefix the message prefix, "SENSOR:" or "ACTUATOR:"
+     * @return the message to forward
+     */
+    private String stampReceived(String prefix) {
+        TraceStamps trace = routed.getTrace();
+        long now = Tracing.epochMicros();
+        Tracing.record(Tracing.Hop.NODE_TO_SERVER, (now - trace.getSentMicros()) * 1000);
+        if (!trace.hasReceived()) {
+            trace.setReceived(now); // Forwarded by another server: the first one's time is kept
+        }
+        StringBuilder line = new StringBuilder(prefix).append(routed.getNodeId()).append(':')
+                .append(routed.getData());
+        MessageCodec.appendTrace(trace, line);
+        return line.toString();
+    }
+}
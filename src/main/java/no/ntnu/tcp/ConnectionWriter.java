@@ -0,0 +1,185 @@
+package no.ntnu.tcp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import no.ntnu.protocol.MessageEncoder;
+import no.ntnu.tools.CoalescingOutputStream;
+import no.ntnu.tools.Threads;
+
+/**
+ * ConnectionWriter writes the messages of the nodes sharing a connection to
+ * the server on its own thread, so the shared scheduler, which formats the
+ * reports, never waits for the socket. Messages queued while the thread is
+ * writing go out together in the next write.
+ *
+ * <p>When writing fails, or the server reads so slowly that the queue fills
+ * up, the writer closes the connection, so the thread reading from it
+ * connects again. The messages still queued are lost; later messages are
+ * refused, and the nodes keep their readings in the outbox instead.
+ */
+class ConnectionWriter {
+    private static final int CAPACITY = 8192; // Most messages queued at once
+
+    private final CoalescingOutputStream out;
+    private final MessageEncoder encoder;
+    private final Closeable connection; // Closed when writing fails
+    private final ArrayDeque<String> messages = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock(); // Not synchronized: the writer may be virtual
+    private final Condition notEmpty = lock.newCondition();
+    private boolean started;
+    private boolean closed;
+
+    /**
+     * Constructs a writer. Until it is started, the connecting thread may
+     * write to the connection itself with {@link #writeNow(CharSequence)}.
+     *
+     * @param out        the stream to the server
+     * @param encoder    the encoder of the connection
+     * @param connection closed when writing fails
+     */
+    ConnectionWriter(CoalescingOutputStream out, MessageEncoder encoder, Closeable connection) {
+        this.out = out;
+        this.encoder = encoder;
+        this.connection = connection;
+    }
+
+    /**
+     * Starts the thread writing the queued messages.
+     *
+     * @param name the name of the thread
+     */
+    void start(String name) {
+        lock.lock();
+        try {
+            started = true;
+        } finally {
+            lock.unlock();
+        }
+        Threads.start(name, this::run);
+    }
+
+    /**
+     * Writes a message on the calling thread. Only allowed before the writer
+     * is started, so the message cannot overtake queued ones. The caller ends
+     * the batch.
+     *
+     * @param message the message, without line terminator
+     * @throws IOException if writing fails
+     */
+    void writeNow(CharSequence message) throws IOException {
+        lock.lock();
+        try {
+            if (started) {
+                throw new IllegalStateException("The writer is already started");
+            }
+        } finally {
+            lock.unlock();
+        }
+        encoder.write(message, out);
+    }
+
+    /**
+     * Queues a message without waiting for the socket.
+     *
+     * @param message the message, without line terminator; copied, so the
+     *                caller may reuse it
+     * @return false when the writer is closed or its queue is full
+     */
+    boolean send(CharSequence message) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (messages.size() >= CAPACITY) {
+                System.out.println("The server does not keep up, closing the connection");
+                fail();
+                return false;
+            }
+            messages.addLast(message.toString());
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the writer and drops the queued messages. The connection is not
+     * closed.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            messages.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the counters of the writes to the server.
+     *
+     * @return a one-line summary, see {@link CoalescingOutputStream#getStats()}
+     */
+    String getStats() {
+        return out.getStats();
+    }
+
+    private void run() {
+        try {
+            String message;
+            while ((message = next(true)) != null) {
+                do {
+                    encoder.write(message, out);
+                } while ((message = next(false)) != null);
+                out.endBatch(); // Everything queued meanwhile goes out in one write
+            }
+        } catch (IOException e) {
+            System.out.println("Could not write to the server: " + e.getMessage());
+            lock.lock();
+            try {
+                fail();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Removes the next message.
+     *
+     * @param wait whether to wait until one is queued
+     * @return the message, or null when the writer is closed, or when none is
+     *         queued and not waiting
+     */
+    private String next(boolean wait) {
+        lock.lock();
+        try {
+            while (wait && messages.isEmpty() && !closed) {
+                notEmpty.awaitUninterruptibly();
+            }
+            return closed ? null : messages.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the writer and the connection. Must be called holding the lock.
+     */
+    private void fail() {
+        close();
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // The connection is gone anyway
+        }
+    }
+}
@@ -0,0 +1,709 @@
+package no.ntnu.tcp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import no.ntnu.protocol.ActuatorBatch;
+import no.ntnu.protocol.ActuatorCommand;
+import no.ntnu.protocol.ActuatorMessage;
+import no.ntnu.protocol.BinaryProtocol;
+import no.ntnu.protocol.CommandAck;
+import no.ntnu.protocol.Compression;
+import no.ntnu.protocol.MessageCodec;
+import no.ntnu.protocol.MessageDecoder;
+import no.ntnu.protocol.MessageEncoder;
+import no.ntnu.protocol.SensorMessage;
+import no.ntnu.tools.CoalescingOutputStream;
+import no.ntnu.tools.Threads;
+
+/**
+ * EdgeAggregator sits between the nodes of a greenhouse and a distant
+ * GreenhouseServer, for sites on a slow uplink. The local nodes connect to it
+ * as they would to the server. It keeps one connection to the server, where it
+ * declares the local nodes as a gateway, see {@link GreenhouseGateway}.
+ *
+ * <p>The SENSOR and ACTUATOR state messages of the nodes are merged per node:
+ * a batch holds the latest value of every reading and the latest state of
+ * every actuator which a node reported since the last batch. Once per batch
+ * interval the batch is written to the server over a compressed stream, see
+ * {@link Compression}, and flushed as one block. History messages, traced
+ * messages and messages the aggregator does not know are passed on as they
+ * are, in the next batch. Acknowledgements are passed on at once, after the
+ * messages the node sent before them. Commands from the server go to the
+ * local node they are for.
+ *
+ * <p>While the server is not connected the batches wait: the merged readings
+ * and states keep only the latest values, and at most
+ * {@value #MAX_PENDING_LINES} other messages are kept.
+ */
+public class EdgeAggregator {
+    private static final int MAX_PENDING_LINES = 10_000; // Messages passed on as they are, waiting for a batch
+    private static final int MAX_HELLO_NODES = 1000; // Keeps a HELLO message well below the line length limit
+    private static volatile long batchIntervalMillis = 1000;
+
+    private final int localPort;
+    private final String serverAddress;
+    private final int serverPort;
+    private final Map<Integer, LocalNode> localNodes = new ConcurrentHashMap<>(); // Node ID -> its connection
+    private final Object pendingLock = new Object(); // Guards the batch being collected
+    private final Map<Integer, SensorMessage> pendingSensors = new LinkedHashMap<>(); // Merged readings per node
+    private final Map<Integer, ActuatorMessage> pendingStates = new LinkedHashMap<>(); // Latest states per node
+    private final List<String> pendingLines = new ArrayList<>(); // Passed on as they are, oldest first
+    private final Set<Integer> undeclared = new LinkedHashSet<>(); // Nodes connected since the last batch
+    private final List<String> batchLines = new ArrayList<>(); // The batch being written, used by the batch thread
+    private final StringBuilder line = new StringBuilder(128); // Formats the merged messages
+    private final Object upstreamLock = new Object(); // Guards the connection to the server; notified when stopped
+    private Socket upstream;
+    private DeflaterOutputStream upstreamOut; // Compressed stream to the server
+    private Deflater deflater; // Of the compressed stream, counts its bytes
+    private MessageEncoder encoder;
+    private ServerSocket serverSocket;
+    private volatile boolean stopped;
+    private long droppedLines; // Messages lost because too many were waiting
+    private final AtomicLong messagesReceived = new AtomicLong(); // From the local nodes
+    private final AtomicLong bytesReceived = new AtomicLong(); // From the local nodes
+    private final AtomicLong messagesSent = new AtomicLong(); // To the server
+    private long closedBytesIn; // Uncompressed bytes of the connections to the server closed so far
+    private long closedBytesOut; // Compressed bytes of the connections to the server closed so far
+
+    /**
+     * Constructs an aggregator.
+     *
+     * @param localPort     the port the local nodes connect to
+     * @param serverAddress the address of the server
+     * @param serverPort    the port of the server
+     */
+    public EdgeAggregator(int localPort, String serverAddress, int serverPort) {
+        this.localPort = localPort;
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+    }
+
+    /**
+     * Sets how often the aggregators send a batch to the server. A longer
+     * interval merges more reports into each batch, and delays them more.
+     *
+     * @param millis the interval in milliseconds
+     */
+    public static void setBatchInterval(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("Batch interval must be positive");
+        }
+        batchIntervalMillis = millis;
+    }
+
+    /**
+     * Starts the aggregator: connects to the server and sends the batches in
+     * the background, and accepts local nodes until the aggregator is stopped.
+     */
+    public void start() {
+        try {
+            serverSocket = new ServerSocket(localPort);
+        } catch (IOException e) {
+            System.out.println("Could not open the aggregator port " + localPort + ": " + e.getMessage());
+            return;
+        }
+        System.out.println("EdgeAggregator is listening on port " + localPort + " for " + serverAddress + ":"
+                + serverPort);
+        Threads.start("aggregator-upstream", this::runUpstream);
+        Threads.start("aggregator-batches", this::runBatches);
+        while (!stopped) {
+            try {
+                Socket socket = serverSocket.accept();
+                LocalNode node = new LocalNode(socket);
+                Threads.start("aggregator-node", node::run);
+            } catch (IOException e) {
+                if (!stopped) {
+                    System.out.println("Could not accept a local node: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the aggregator and closes all its connections. Messages still
+     * waiting for a batch are lost.
+     */
+    public void stop() {
+        stopped = true;
+        synchronized (upstreamLock) {
+            upstreamLock.notifyAll();
+        }
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // Not accepting anyway
+        }
+        for (LocalNode node : localNodes.values()) {
+            node.close();
+        }
+        disconnect();
+    }
+
+    /**
+     * Keeps a connection to the server, connecting again with a growing delay
+     * whenever it is lost, and passes the commands from the server on.
+     */
+    private void runUpstream() {
+        Backoff backoff = new Backoff();
+        while (!stopped) {
+            try {
+                InputStream in = connect();
+                backoff.reset();
+                readFromServer(in);
+                System.out.println("Server closed the connection of the aggregator");
+            } catch (ProtocolException e) {
+                System.out.println("Invalid data from the server, disconnecting: " + e.getMessage());
+            } catch (IOException e) {
+                if (!stopped) {
+                    System.out.println("Aggregator is not connected: " + e.getMessage());
+                }
+            }
+            disconnect();
+            if (!stopped) {
+                waitUpstream(backoff.nextDelayMillis());
+            }
+        }
+    }
+
+    /**
+     * Connects to the server, switches to the compressed stream and declares
+     * the local nodes.
+     *
+     * @return the stream from the server
+     * @throws IOException if connecting or writing fails
+     */
+    private InputStream connect() throws IOException {
+        Socket socket = new Socket(serverAddress, serverPort);
+        synchronized (upstreamLock) {
+            if (stopped) {
+                socket.close();
+                throw new SocketException("Socket closed"); // Stopped while connecting
+            }
+            upstream = socket;
+            deflater = new Deflater();
+            upstreamOut = Compression.start(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024), deflater);
+            encoder = new MessageEncoder();
+            if (BinaryProtocol.isPreferred()) {
+                encoder.requestBinary(upstreamOut);
+            }
+            List<Integer> nodeIds = new ArrayList<>(localNodes.keySet());
+            synchronized (pendingLock) {
+                undeclared.removeAll(nodeIds);
+            }
+            writeHello(nodeIds);
+            upstreamOut.flush();
+            System.out.println("Aggregator of " + nodeIds.size() + " nodes connected to GreenhouseServer");
+            return socket.getInputStream();
+        }
+    }
+
+    /**
+     * Declares nodes as the nodes of this gateway. Called holding the
+     * upstream lock.
+     */
+    private void writeHello(List<Integer> nodeIds) throws IOException {
+        StringBuilder hello = new StringBuilder("HELLO:GATEWAY:");
+        for (int i = 0; i < nodeIds.size(); i++) {
+            if (i > 0 && i % MAX_HELLO_NODES == 0) {
+                encoder.write(hello, upstreamOut);
+                hello.setLength("HELLO:GATEWAY:".length());
+            } else if (i > 0) {
+                hello.append(',');
+            }
+            hello.append(nodeIds.get(i));
+        }
+        if (!nodeIds.isEmpty()) {
+            encoder.write(hello, upstreamOut);
+        }
+    }
+
+    private void readFromServer(InputStream in) throws IOException {
+        MessageDecoder decoder = new MessageDecoder();
+        MessageCodec codec = new MessageCodec();
+        ActuatorCommand command = new ActuatorCommand();
+        ActuatorBatch batch = new ActuatorBatch();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            decoder.feed(ByteBuffer.wrap(buffer, 0, read),
+                    message -> handleServerMessage(message, codec, command, batch));
+        }
+    }
+
+    /**
+     * Passes a command from the server to the local node it is for. A batch
+     * is split, so every node gets only its own actuators. A command for a
+     * node which is not connected is answered as unreachable.
+     */
+    private void handleServerMessage(String message, MessageCodec codec, ActuatorCommand command,
+                                     ActuatorBatch batch) {
+        if (message.startsWith("COMMAND:")) {
+            if (!codec.parseCommand(message, command)) {
+                System.out.println("Invalid COMMAND message: " + message);
+                return;
+            }
+            LocalNode node = localNodes.get(command.getNodeId());
+            if (node != null) {
+                node.send(message);
+            } else {
+                CommandAck ack = new CommandAck();
+                ack.reject(command, CommandAck.Status.UNREACHABLE);
+                StringBuilder answer = new StringBuilder(48);
+                MessageCodec.formatAck(ack, answer);
+                sendNow(answer.toString());
+            }
+        } else if (message.startsWith("ACTUATOR:")) {
+            if (codec.parseActuatorCommand(message, command)) {
+                LocalNode node = localNodes.get(command.getNodeId());
+                if (node != null) {
+                    node.send(message);
+                }
+            }
+        } else if (message.startsWith("BATCH:")) {
+            if (!codec.parseBatch(message, batch)) {
+                System.out.println("Invalid BATCH message: " + message);
+                return;
+            }
+            StringBuilder part = new StringBuilder(64);
+            int from = 0;
+            for (int i = 1; i <= batch.getCount(); i++) {
+                if (i == batch.getCount() || batch.getNodeId(i) != batch.getNodeId(from)) {
+                    LocalNode node = localNodes.get(batch.getNodeId(from));
+                    if (node != null) {
+                        part.setLength(0);
+                        MessageCodec.formatBatch(batch, from, i, part);
+                        node.send(part.toString());
+                    }
+                    from = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the connection to the server, if there is one.
+     */
+    private void disconnect() {
+        synchronized (upstreamLock) {
+            try {
+                if (upstream != null) {
+                    upstream.close();
+                }
+            } catch (IOException e) {
+                // The connection is gone anyway
+            }
+            if (deflater != null) {
+                closedBytesIn += deflater.getBytesRead();
+                closedBytesOut += deflater.getBytesWritten();
+                deflater.end();
+            }
+            upstream = null;
+            upstreamOut = null;
+            deflater = null;
+            encoder = null;
+        }
+    }
+
+    private void waitUpstream(long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        synchronized (upstreamLock) {
+            long remaining = millis;
+            while (!stopped && remaining > 0) {
+                try {
+                    upstreamLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    stopped = true;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Sends a batch every batch interval until the aggregator is stopped.
+     */
+    private void runBatches() {
+        long next = System.currentTimeMillis();
+        while (!stopped) {
+            next = Math.max(next + batchIntervalMillis, System.currentTimeMillis());
+            waitUpstream(next - System.currentTimeMillis());
+            if (!stopped) {
+                sendBatch();
+            }
+        }
+    }
+
+    /**
+     * Writes the messages collected since the last batch to the server and
+     * flushes them as one compressed block. The batch keeps waiting while
+     * the server is not connected.
+     */
+    private void sendBatch() {
+        synchronized (upstreamLock) {
+            if (upstreamOut == null) {
+                return;
+            }
+            synchronized (pendingLock) {
+                collectPassedOn();
+                collectMerged();
+            }
+            writeBatch();
+        }
+    }
+
+    /**
+     * Writes the batch to the server, flushes it as one compressed block and
+     * clears it. Called holding the upstream lock, while connected.
+     */
+    private void writeBatch() {
+        try {
+            for (String message : batchLines) {
+                encoder.write(message, upstreamOut);
+            }
+            upstreamOut.flush();
+            messagesSent.addAndGet(batchLines.size());
+        } catch (IOException e) {
+            System.out.println("Could not send a batch to the server: " + e.getMessage());
+            closeUpstream(); // The reading thread connects again
+        }
+        batchLines.clear();
+    }
+
+    /**
+     * Moves the new nodes and the messages passed on as they are to the
+     * batch. Called holding the pending lock.
+     */
+    private void collectPassedOn() {
+        if (!undeclared.isEmpty()) {
+            List<Integer> nodeIds = new ArrayList<>(undeclared);
+            undeclared.clear();
+            for (int i = 0; i < nodeIds.size(); i += MAX_HELLO_NODES) {
+                line.setLength(0);
+                line.append("HELLO:GATEWAY:");
+                for (int j = i; j < Math.min(nodeIds.size(), i + MAX_HELLO_NODES); j++) {
+                    line.append(j > i ? "," : "").append(nodeIds.get(j));
+                }
+                batchLines.add(line.toString());
+            }
+        }
+        batchLines.addAll(pendingLines);
+        pendingLines.clear();
+        if (droppedLines > 0) {
+            System.out.println("Aggregator dropped " + droppedLines + " messages while not connected");
+            droppedLines = 0;
+        }
+    }
+
+    /**
+     * Moves the merged readings and states of all nodes to the batch. Called
+     * holding the pending lock.
+     */
+    private void collectMerged() {
+        for (SensorMessage readings : pendingSensors.values()) {
+            if (readings.getCount() > 0) {
+                line.setLength(0);
+                MessageCodec.formatSensor(readings, line);
+                batchLines.add(line.toString());
+                readings.reset(readings.getNodeId()); // Kept for the next batch
+            }
+        }
+        for (ActuatorMessage states : pendingStates.values()) {
+            collectStates(states);
+        }
+    }
+
+    /**
+     * Moves the merged states of one node to the batch, if it has any.
+     * Called holding the pending lock.
+     */
+    private void collectStates(ActuatorMessage states) {
+        if (states != null && states.getCount() > 0) {
+            line.setLength(0);
+            MessageCodec.formatActuatorStates(states, line);
+            batchLines.add(line.toString());
+            states.reset(states.getNodeId());
+        }
+    }
+
+    /**
+     * Sends the acknowledgement of a local node to the server at once. The
+     * node applied the command before answering, so what it sent before is
+     * sent first: the messages passed on as they are and the merged states
+     * of its actuators. The server then never gets the acknowledgement
+     * before the new state. Lost when the server is not connected.
+     *
+     * @param nodeId  the node which sent the acknowledgement
+     * @param message the ACK message
+     */
+    private void sendAck(int nodeId, String message) {
+        synchronized (upstreamLock) {
+            if (upstreamOut == null) {
+                return;
+            }
+            synchronized (pendingLock) {
+                collectPassedOn();
+                collectStates(pendingStates.get(nodeId));
+            }
+            batchLines.add(message);
+            writeBatch();
+        }
+    }
+
+    /**
+     * Sends a message to the server at once, outside the batches. It is lost
+     * when the server is not connected.
+     *
+     * @param message the message, without line terminator
+     */
+    private void sendNow(String message) {
+        synchronized (upstreamLock) {
+            if (upstreamOut == null) {
+                return;
+            }
+            try {
+                encoder.write(message, upstreamOut);
+                upstreamOut.flush();
+                messagesSent.incrementAndGet();
+            } catch (IOException e) {
+                System.out.println("Could not send to the server: " + e.getMessage());
+                closeUpstream();
+            }
+        }
+    }
+
+    /**
+     * Closes the socket to the server, so the reading thread notices and
+     * connects again. Called holding the upstream lock.
+     */
+    private void closeUpstream() {
+        try {
+            upstream.close();
+        } catch (IOException e) {
+            // The connection is gone anyway
+        }
+    }
+
+    /**
+     * Adds a message to be passed on as it is in the next batch, dropping the
+     * oldest one when too many are waiting.
+     */
+    private void passOn(String message) {
+        synchronized (pendingLock) {
+            if (pendingLines.size() == MAX_PENDING_LINES) {
+                pendingLines.remove(0);
+                droppedLines++;
+            }
+            pendingLines.add(message);
+        }
+    }
+
+    /**
+     * Returns the number of messages received from the local nodes.
+     *
+     * @return the number of messages since the aggregator started
+     */
+    public long getMessagesReceived() {
+        return messagesReceived.get();
+    }
+
+    /**
+     * Returns the number of bytes received from the local nodes.
+     *
+     * @return the number of bytes since the aggregator started
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Returns the number of messages sent to the server, merged or passed on.
+     *
+     * @return the number of messages since the aggregator started
+     */
+    public long getMessagesSent() {
+        return messagesSent.get();
+    }
+
+    /**
+     * Returns the number of bytes sent to the server, before compression.
+     *
+     * @return the number of bytes since the aggregator started
+     */
+    public long getUncompressedBytesSent() {
+        synchronized (upstreamLock) {
+            return closedBytesIn + (deflater != null ? deflater.getBytesRead() : 0);
+        }
+    }
+
+    /**
+     * Returns the number of bytes sent to the server, as compressed on the
+     * wire.
+     *
+     * @return the number of bytes since the aggregator started
+     */
+    public long getBytesSent() {
+        synchronized (upstreamLock) {
+            return closedBytesOut + (deflater != null ? deflater.getBytesWritten() : 0);
+        }
+    }
+
+    /**
+     * Returns the number of local nodes connected.
+     *
+     * @return the number of nodes which have declared themselves
+     */
+    public int getNodeCount() {
+        return localNodes.size();
+    }
+
+    /**
+     * The connection of a local node. Its messages are merged into the
+     * batch, and commands for the node are written to it.
+     */
+    private class LocalNode {
+        private final Socket socket;
+        private final MessageCodec codec = new MessageCodec(); // Used by the thread reading from the node
+        private final SensorMessage readings = new SensorMessage(); // Reused for every SENSOR message
+        private final ActuatorMessage states = new ActuatorMessage(); // Reused for every ACTUATOR message
+        private CoalescingOutputStream out;
+        private volatile int nodeId = -1; // Declared with HELLO
+
+        LocalNode(Socket socket) {
+            this.socket = socket;
+        }
+
+        /**
+         * Reads the messages of the node until it disconnects.
+         */
+        void run() {
+            try (InputStream in = socket.getInputStream()) {
+                out = new CoalescingOutputStream(socket.getOutputStream());
+                MessageDecoder decoder = new MessageDecoder();
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    bytesReceived.addAndGet(read);
+                    decoder.feed(ByteBuffer.wrap(buffer, 0, read), this::handleMessage);
+                }
+            } catch (ProtocolException e) {
+                System.out.println("Invalid data from a local node, closing the connection: " + e.getMessage());
+            } catch (IOException e) {
+                // The node disconnected
+            } finally {
+                close();
+            }
+        }
+
+        private void handleMessage(String message) {
+            messagesReceived.incrementAndGet();
+            if (message.startsWith("SENSOR:")) {
+                if (codec.parseSensor(message, readings) && !readings.getTrace().isPresent()) {
+                    synchronized (pendingLock) {
+                        SensorMessage merged = pendingSensors.computeIfAbsent(readings.getNodeId(),
+                                id -> new SensorMessage());
+                        if (merged.getCount() == 0) {
+                            merged.reset(readings.getNodeId());
+                        }
+                        merged.merge(readings);
+                    }
+                } else {
+                    passOn(message); // The server checks it; a traced message keeps its stamps
+                }
+            } else if (message.startsWith("ACTUATOR:")) {
+                if (codec.parseActuatorStates(message, states) && !states.getTrace().isPresent()) {
+                    synchronized (pendingLock) {
+                        ActuatorMessage merged = pendingStates.computeIfAbsent(states.getNodeId(),
+                                id -> new ActuatorMessage());
+                        if (merged.getCount() == 0) {
+                            merged.reset(states.getNodeId());
+                        }
+                        for (int i = 0; i < states.getCount(); i++) {
+                            merged.put(states.getActuatorId(i), states.getType(i), states.isOn(i));
+                        }
+                    }
+                } else {
+                    passOn(message);
+                }
+            } else if (message.startsWith("ACK:")) {
+                sendAck(nodeId, message);
+            } else if (message.startsWith("HELLO:")) {
+                handleHello(message);
+            } else if (BinaryProtocol.NEGOTIATION_LINE.equals(message)) {
+                // Read by the decoder; commands are still sent to the node as text
+            } else {
+                passOn(message);
+            }
+        }
+
+        private void handleHello(String message) {
+            String[] parts = message.split(":");
+            if (parts.length != 3 || !"NODE".equals(parts[1])) {
+                System.out.println("Aggregator only accepts nodes: " + message);
+                return;
+            }
+            try {
+                nodeId = Integer.parseInt(parts[2].trim());
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid HELLO message format: " + message);
+                return;
+            }
+            localNodes.put(nodeId, this);
+            synchronized (pendingLock) {
+                undeclared.add(nodeId); // Declared to the server with the next batch
+            }
+        }
+
+        /**
+         * Writes a message to the node. The node is closed when writing fails.
+         *
+         * @param message the message, without line terminator
+         */
+        void send(String message) {
+            CoalescingOutputStream stream = out;
+            if (stream == null) {
+                return;
+            }
+            try {
+                stream.writeLine(message);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Closes the connection. The merged messages of the node which are
+         * not sent yet are dropped, unless it has connected again meanwhile.
+         */
+        void close() {
+            if (nodeId >= 0) {
+                localNodes.remove(nodeId, this);
+                synchronized (pendingLock) {
+                    if (!localNodes.containsKey(nodeId)) { // A new connection merges only after its HELLO
+                        pendingSensors.remove(nodeId);
+                        pendingStates.remove(nodeId);
+                    }
+                }
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closed anyway
+            }
+        }
+    }
+}
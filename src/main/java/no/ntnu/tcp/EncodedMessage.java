@@ -0,0 +1,256 @@
+package no.ntnu.tcp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import no.ntnu.protocol.BinaryMessage;
+import no.ntnu.protocol.BinaryProtocol;
+import no.ntnu.protocol.TypeTable;
+import no.ntnu.tools.Tracing;
+
+/**
+ * EncodedMessage is one message line encoded to UTF-8, including the line
+ * terminator, or several such lines joined together. A message sent to many
+ * clients is encoded once, and every client writes the same bytes. The bytes
+ * are never changed after construction. Clients using the binary format
+ * write the binary frames of the message instead, which are also encoded
+ * once, the first time they are needed.
+ */
+final class EncodedMessage {
+    /** Sensor and actuator types of the binary frames sent by the server. */
+    static final TypeTable TYPES = new TypeTable();
+    /** Answers a client asking for the binary format; everything written after it is binary. */
+    static final EncodedMessage BINARY_SWITCH = new EncodedMessage(
+            (BinaryProtocol.NEGOTIATION_LINE + "\n").getBytes(StandardCharsets.UTF_8), -1, true);
+
+    private final byte[] bytes; // Never modified, shared by every client writing the message
+    private final ByteBuffer view; // Read-only view of the bytes
+    private final int telemetryNodeId; // Node of a sensor reading, which may be dropped or replaced; else -1
+    private final boolean partialReading; // A sensor reading leaving out unchanged values, never dropped
+    private final boolean binarySwitch; // True for BINARY_SWITCH, which must never be dropped
+    private final long receivedNanos; // When the server received a traced message; 0 when not traced
+    private volatile long enqueuedNanos; // When a traced message was queued for its clients
+    private volatile BinaryMessage binary; // Binary frames, encoded when first needed
+
+    private EncodedMessage(byte[] bytes, int telemetryNodeId) {
+        this(bytes, telemetryNodeId, false, 0);
+    }
+
+    private EncodedMessage(byte[] bytes, int telemetryNodeId, boolean binarySwitch) {
+        this(bytes, telemetryNodeId, binarySwitch, 0);
+    }
+
+    private EncodedMessage(byte[] bytes, int telemetryNodeId, boolean binarySwitch, long receivedNanos) {
+        this(bytes, telemetryNodeId, false, binarySwitch, receivedNanos);
+    }
+
+    private EncodedMessage(byte[] bytes, int telemetryNodeId, boolean partialReading, boolean binarySwitch,
+            long receivedNanos) {
+        this.bytes = bytes;
+        this.view = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        this.telemetryNodeId = telemetryNodeId;
+        this.partialReading = partialReading;
+        this.binarySwitch = binarySwitch;
+        this.receivedNanos = receivedNanos;
+    }
+
+    /**
+     * Encodes a message line.
+     *
+     * @param message the message, without line terminator
+     * @return the encoded message
+     */
+    static EncodedMessage of(String message) {
+        return of(message, 0);
+    }
+
+    /**
+     * Encodes a message line which may be traced.
+     *
+     * @param message       the message, without line terminator
+     * @param receivedNanos the System.nanoTime when the server received a
+     *                      traced message, or 0 when it is not traced
+     * @return the encoded message
+     */
+    static EncodedMessage of(String message, long receivedNanos) {
+        byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        return new EncodedMessage(bytes, sensorNodeId(message), false, receivedNanos);
+    }
+
+    /**
+     * Encodes a SENSOR message which leaves out readings that have not
+     * changed. Unlike a complete reading it is never dropped or replaced by a
+     * newer one, since the newer one may not have the values this one changed.
+     *
+     * @param message       the message, without line terminator
+     * @param receivedNanos the System.nanoTime when the server received a
+     *                      traced message, or 0 when it is not traced
+     * @return the encoded message
+     */
+    static EncodedMessage ofPartialReading(String message, long receivedNanos) {
+        byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        return new EncodedMessage(bytes, sensorNodeId(message), true, false, receivedNanos);
+    }
+
+    /**
+     * Returns the node ID of a SENSOR message.
+     *
+     * @param message the message
+     * @return the node ID, or -1 when the message is not a valid SENSOR message
+     */
+    private static int sensorNodeId(String message) {
+        if (!message.startsWith("SENSOR:")) {
+            return -1;
+        }
+        int nodeId = 0;
+        int digits = 0;
+        for (int i = "SENSOR:".length(); i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c == ':') {
+                return digits > 0 ? nodeId : -1;
+            }
+            if (c < '0' || c > '9' || digits == 9) {
+                return -1;
+            }
+            nodeId = nodeId * 10 + (c - '0');
+            digits++;
+        }
+        return -1;
+    }
+
+    /**
+     * Joins several encoded messages into one, which is written as all the
+     * lines one after the other. The joined message is never dropped in favour
+     * of other messages.
+     *
+     * @param messages the messages to join
+     * @return the joined message
+     */
+    static EncodedMessage join(List<EncodedMessage> messages) {
+        int length = 0;
+        for (EncodedMessage message : messages) {
+            length += message.bytes.length;
+        }
+        byte[] bytes = new byte[length];
+        int position = 0;
+        for (EncodedMessage message : messages) {
+            System.arraycopy(message.bytes, 0, bytes, position, message.bytes.length);
+            position += message.bytes.length;
+        }
+        return new EncodedMessage(bytes, -1);
+    }
+
+    /**
+     * Returns a view of the encoded bytes with its own position, for writing
+     * the message to a channel. The bytes themselves are not copied.
+     *
+     * @return a read-only buffer positioned at the start of the message
+     */
+    ByteBuffer buffer() {
+        return view.duplicate();
+    }
+
+    /**
+     * Writes the encoded bytes to a stream.
+     *
+     * @param out the stream to write to
+     * @throws IOException if the stream fails
+     */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+
+    /**
+     * Returns the binary frames of the message. They are encoded by the first
+     * client which needs them; if several clients race, each encodes the same
+     * frames and one of them is kept.
+     *
+     * @return the binary frames
+     */
+    BinaryMessage binary() {
+        BinaryMessage frames = binary;
+        if (frames == null) {
+            frames = BinaryMessage.encode(toString(), TYPES);
+            binary = frames;
+        }
+        return frames;
+    }
+
+    /**
+     * Notes that the message is queued for its clients now. For a traced
+     * message the time since the server received it is recorded.
+     */
+    void markEnqueued() {
+        if (receivedNanos != 0) {
+            long now = System.nanoTime();
+            Tracing.record(Tracing.Hop.SERVER_RECEIVE_TO_ENQUEUE, now - receivedNanos);
+            enqueuedNanos = now;
+        }
+    }
+
+    /**
+     * Notes that a client writes the message to its socket now. For a traced
+     * message the time it waited in the client's queue is recorded.
+     */
+    void markWritten() {
+        if (receivedNanos != 0) {
+            Tracing.record(Tracing.Hop.SERVER_ENQUEUE_TO_WRITE, System.nanoTime() - enqueuedNanos);
+        }
+    }
+
+    /**
+     * Tells whether the message switches the client to the binary format.
+     * The writer switches after writing it, and a full queue never drops it.
+     *
+     * @return true for the answer to a binary format request
+     */
+    boolean isBinarySwitch() {
+        return binarySwitch;
+    }
+
+    /**
+     * Returns the number of encoded bytes, including the line terminator.
+     *
+     * @return the length in bytes
+     */
+    int length() {
+        return bytes.length;
+    }
+
+    /**
+     * Tells whether the message is a sensor reading. A queued sensor reading
+     * may be dropped, or replaced by a newer reading from the same node.
+     *
+     * @return true for a SENSOR message with all readings
+     */
+    boolean isTelemetry() {
+        return telemetryNodeId >= 0 && !partialReading;
+    }
+
+    /**
+     * Tells whether the message is a sensor reading which leaves out the
+     * values that have not changed.
+     *
+     * @return true for a partial SENSOR message
+     */
+    boolean isPartialReading() {
+        return partialReading;
+    }
+
+    /**
+     * Returns the node a sensor reading comes from.
+     *
+     * @return the node ID, or -1 when the message is not a sensor reading
+     */
+    int getTelemetryNodeId() {
+        return telemetryNodeId;
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, bytes.length - 1, StandardCharsets.UTF_8);
+    }
+}
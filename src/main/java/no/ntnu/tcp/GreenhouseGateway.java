@@ -0,0 +1,270 @@
+package no.ntnu.tcp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import no.ntnu.protocol.ActuatorBatch;
+import no.ntnu.protocol.ActuatorCommand;
+import no.ntnu.protocol.BinaryProtocol;
+import no.ntnu.protocol.MessageCodec;
+import no.ntnu.protocol.MessageDecoder;
+import no.ntnu.protocol.MessageEncoder;
+import no.ntnu.tools.CoalescingOutputStream;
+
+/**
+ * GreenhouseGateway carries the messages of many nodes over one connection to
+ * the server, like an edge gateway hosting the nodes of a greenhouse. It
+ * declares all its nodes with "HELLO:GATEWAY:nodeId,nodeId,...", so the
+ * server routes the commands for any of them to this connection, and passes
+ * each command from the server to the node it is for.
+ *
+ * <p>The hosted nodes are not started: they send their reports over the
+ * gateway's connection, each on its own schedule, through one
+ * {@link ConnectionWriter} for all of them, and keep them in their
+ * outbox while the gateway is not connected. The gateway connects again the
+ * way a node does, see {@link GreenhouseNode#setReconnectBackoff(long, long)}.
+ */
+public class GreenhouseGateway {
+    private static final int MAX_HELLO_NODES = 1000; // Keeps a HELLO message well below the line length limit
+
+    private final String serverAddress;
+    private final int port;
+    private final Map<Integer, GreenhouseNode> nodes = new LinkedHashMap<>(); // Node ID -> node; fixed once started
+    private final MessageCodec codec = new MessageCodec(); // Finds the node of each command from the server
+    private final ActuatorCommand command = new ActuatorCommand(); // Reused for every command received
+    private final ActuatorBatch batch = new ActuatorBatch(); // Reused for every batch received
+    private final Object lock = new Object(); // Guards the connection; notified when the gateway is stopped
+    private Socket socket;
+    private InputStream in;
+    private ConnectionWriter writer; // Writes the messages of all nodes; guarded by lock
+    private volatile CoalescingOutputStream out;
+    private volatile boolean stopped;
+
+    /**
+     * Constructs a gateway.
+     *
+     * @param serverAddress the address of the server
+     * @param port          the port to connect to
+     */
+    public GreenhouseGateway(String serverAddress, int port) {
+        this.serverAddress = serverAddress;
+        this.port = port;
+    }
+
+    /**
+     * Hosts a node on this gateway. Must be called before {@link #start()}.
+     *
+     * @param node the node, which must not be started itself
+     */
+    public void addNode(GreenhouseNode node) {
+        nodes.put(node.getNodeId(), node);
+    }
+
+    /**
+     * Returns the number of nodes hosted by the gateway.
+     *
+     * @return the number of nodes
+     */
+    public int getNodeCount() {
+        return nodes.size();
+    }
+
+    /**
+     * Starts the gateway: connects to the server and reads its messages, and
+     * connects again whenever the connection is lost, until the gateway is
+     * stopped.
+     */
+    public void start() {
+        Backoff backoff = new Backoff();
+        while (!stopped) {
+            try {
+                connect();
+                backoff.reset();
+                startReports();
+                readFromServer();
+                System.out.println("Server closed the connection of the gateway");
+            } catch (ProtocolException e) {
+                System.out.println("Invalid data from the server, disconnecting: " + e.getMessage());
+            } catch (IOException e) {
+                if (!stopped) {
+                    System.out.println("Gateway is not connected: " + e.getMessage());
+                }
+            }
+            startReports(); // Also when the first attempt failed, so the readings are kept
+            disconnect();
+            if (!stopped) {
+                waitBeforeReconnect(backoff.nextDelayMillis());
+            }
+        }
+    }
+
+    /**
+     * Connects to the server, declares all nodes and attaches them to the
+     * connection, which sends the readings they kept meanwhile.
+     *
+     * @throws IOException if connecting or writing fails
+     */
+    private void connect() throws IOException {
+        Socket newSocket = new Socket(serverAddress, port);
+        synchronized (lock) {
+            if (stopped) {
+                newSocket.close();
+                throw new SocketException("Socket closed"); // Stopped while connecting
+            }
+            socket = newSocket;
+            in = newSocket.getInputStream();
+            CoalescingOutputStream stream = new CoalescingOutputStream(newSocket.getOutputStream());
+            MessageEncoder encoder = new MessageEncoder(); // Shared by the nodes, so their lines do not mix
+            if (BinaryProtocol.isPreferred()) {
+                encoder.requestBinary(stream);
+            }
+            StringBuilder hello = new StringBuilder("HELLO:GATEWAY:");
+            int declared = 0;
+            for (int nodeId : nodes.keySet()) {
+                if (declared > 0 && declared % MAX_HELLO_NODES == 0) {
+                    encoder.write(hello, stream);
+                    hello.setLength("HELLO:GATEWAY:".length());
+                } else if (declared > 0) {
+                    hello.append(',');
+                }
+                hello.append(nodeId);
+                declared++;
+            }
+            if (declared > 0) {
+                encoder.write(hello, stream);
+            }
+            writer = new ConnectionWriter(stream, encoder, newSocket);
+            for (GreenhouseNode node : nodes.values()) {
+                node.attach(writer);
+            }
+            stream.endBatch();
+            writer.start("gateway-writer");
+            out = stream;
+            System.out.println("Gateway of " + nodes.size() + " nodes connected to GreenhouseServer");
+        }
+    }
+
+    private void readFromServer() throws IOException {
+        MessageDecoder decoder = new MessageDecoder();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            decoder.feed(ByteBuffer.wrap(buffer, 0, read), this::handleServerMessage);
+        }
+    }
+
+    /**
+     * Passes a message from the server to the node it is for. A batch goes to
+     * every node which has entries in it, and each node applies its own.
+     *
+     * @param message the message received from the server
+     */
+    private void handleServerMessage(String message) {
+        if (message.startsWith("COMMAND:")) {
+            if (codec.parseCommand(message, command)) {
+                deliver(command.getNodeId(), message);
+            } else {
+                System.out.println("Invalid COMMAND message: " + message);
+            }
+        } else if (message.startsWith("ACTUATOR:")) {
+            if (codec.parseActuatorCommand(message, command)) {
+                deliver(command.getNodeId(), message);
+            }
+        } else if (message.startsWith("BATCH:")) {
+            if (!codec.parseBatch(message, batch)) {
+                System.out.println("Invalid BATCH message: " + message);
+                return;
+            }
+            for (int i = 0; i < batch.getCount(); i++) {
+                if (i == 0 || batch.getNodeId(i) != batch.getNodeId(i - 1)) {
+                    deliver(batch.getNodeId(i), message); // The server writes the entries of a node together
+                }
+            }
+        }
+    }
+
+    private void deliver(int nodeId, String message) {
+        GreenhouseNode node = nodes.get(nodeId);
+        if (node != null) {
+            node.handleServerMessage(message);
+        } else {
+            System.out.println("Gateway has no node " + nodeId);
+        }
+    }
+
+    private void startReports() {
+        for (GreenhouseNode node : nodes.values()) {
+            node.startReports();
+        }
+    }
+
+    /**
+     * Detaches the nodes and closes the connection, if there is one. The
+     * nodes keep their reports until the gateway has connected again.
+     */
+    private void disconnect() {
+        synchronized (lock) {
+            for (GreenhouseNode node : nodes.values()) {
+                node.detach();
+            }
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // The connection is gone anyway
+            }
+            socket = null;
+            in = null;
+            out = null;
+        }
+    }
+
+    private void waitBeforeReconnect(long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        synchronized (lock) {
+            long remaining = millis;
+            while (!stopped && remaining > 0) {
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    stopped = true;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Stops the gateway and all its nodes, and closes the connection.
+     */
+    public void stop() {
+        stopped = true;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        for (GreenhouseNode node : nodes.values()) {
+            node.stop();
+        }
+        disconnect();
+    }
+
+    /**
+     * Returns the counters of the writes to the server: socket writes, bytes
+     * and bytes per write.
+     *
+     * @return a one-line summary, or null while the gateway is not connected
+     */
+    public String getWriteStats() {
+        CoalescingOutputStream stream = out;
+        return stream != null ? stream.getStats() : null;
+    }
+}
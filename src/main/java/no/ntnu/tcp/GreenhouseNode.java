@@ -2,27 +2,112 @@ package no.ntnu.tcp;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import no.ntnu.greenhouse.Actuator;
 import no.ntnu.greenhouse.ActuatorCollection;
 import no.ntnu.greenhouse.Sensor;
+import no.ntnu.greenhouse.SensorReading;
+import no.ntnu.listeners.common.ActuatorListener;
+import no.ntnu.protocol.ActuatorBatch;
+import no.ntnu.protocol.ActuatorCommand;
+import no.ntnu.protocol.ActuatorMessage;
+import no.ntnu.protocol.BinaryProtocol;
+import no.ntnu.protocol.CommandAck;
+import no.ntnu.protocol.MessageCodec;
+import no.ntnu.protocol.MessageDecoder;
+import no.ntnu.protocol.MessageEncoder;
+import no.ntnu.protocol.SensorHistory;
+import no.ntnu.protocol.SensorMessage;
+import no.ntnu.tools.CoalescingOutputStream;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.Scheduler;
+import no.ntnu.tools.Tracing;
 
 /**
  * GreenhouseNode represents a node in a greenhouse system.
  * It communicates with a server to send sensor data and receive actuator
  * commands.
+ *
+ * <p>Actuator states are sent when they change: the node must be registered
+ * as a listener of its actuators, for example with
+ * SensorActuatorNode.addActuatorListener. The state of all actuators is sent
+ * when the node connects and again every heartbeat interval, so a control
+ * panel which missed a change is corrected.
+ *
+ * <p>Sensor readings are sent by exception too: the first report has all of
+ * them, and later reports only those which {@link SensorReportPolicy} finds
+ * due. A report with no reading due is not sent at all.
+ *
+ * <p>The reports are formatted by the shared {@link Scheduler} and written by
+ * the {@link ConnectionWriter} of the connection, so a slow socket does not
+ * hold up the scheduler; the thread calling {@link #start()} only reads the
+ * messages from the server.
+ *
+ * <p>When the node cannot connect, or the connection is lost, it connects
+ * again after a delay which doubles with every failed attempt, up to a
+ * limit, and is randomized so that many nodes do not all connect at the same
+ * moment after a server restart. Meanwhile the readings which are due go to a
+ * {@link SensorOutbox}, and are sent as HISTORY messages, many samples in
+ * each, when the node has connected again.
+ *
+ * <p>A node may also be hosted by a {@link GreenhouseGateway}, which carries
+ * the messages of many nodes over one connection. The node is then not
+ * started; the gateway attaches it to the shared connection and passes it
+ * the messages from the server.
  */
-public class GreenhouseNode {
+public class GreenhouseNode implements ActuatorListener {
+    private static final long REPORT_INTERVAL_MILLIS = 5000; // How often the sensor readings are checked
+    private static final long DEFAULT_ACTUATOR_HEARTBEAT_MILLIS = 60_000;
+    private static final int MAX_HISTORY_CHARS = 16 * 1024; // Keeps a HISTORY message well below the line length limit
+    private static volatile long actuatorHeartbeatMillis = DEFAULT_ACTUATOR_HEARTBEAT_MILLIS;
+    private static volatile int outboxCapacity = 720; // One hour of reports
+    private static volatile Path outboxSpillDirectory; // Where the outboxes spill to, or null
+    private static volatile int outboxSpillCapacity = 100_000;
+
     private final int nodeId;
     private final String serverAddress;
     private final int port;
     private final List<Sensor> sensors;
     private final ActuatorCollection actuators;
-    private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
+    private Socket socket; // Own connection to the server, or null when hosted by a gateway
+    private InputStream in;
+    private volatile ConnectionWriter writer; // Null while not connected; set holding sendLock
+    private ConnectionWriter ownWriter; // Writer of the own connection; guarded by sendLock
+    private final MessageCodec codec = new MessageCodec(); // Parses the commands from the server
+    private final ActuatorCommand command = new ActuatorCommand(); // Reused for every command received
+    private final CommandAck ack = new CommandAck(); // Reused for every acknowledgement sent
+    private final ActuatorBatch batch = new ActuatorBatch(); // Reused for every batch received
+    private final StringBuilder reply = new StringBuilder(48); // The acknowledgement the receiver is writing
+    private final ReentrantLock sendLock = new ReentrantLock(); // Held while a report is stamped, formatted and queued
+    private final Set<Actuator> changedActuators = new LinkedHashSet<>(); // Not sent yet; guarded by sendLock
+    private final ActuatorMessage changes = new ActuatorMessage(); // Reused for every change report
+    private final StringBuilder changeLine = new StringBuilder(64); // The change report being written
+    private boolean applyingBatch; // Changes wait until the whole batch is applied; guarded by sendLock
+    private final SensorMessage readings = new SensorMessage(); // Reused by the sender for every report
+    private final double[] sentValues; // Value of each sensor in the last report that had it
+    private final long[] sentNanos; // Time of each sensor's last report
+    private boolean sensorsSent; // Whether the first report, with all readings, has been formatted
+    private boolean sensorsSimulated; // The simulation advances the sensors, the reports only read them
+    private final ActuatorMessage states = new ActuatorMessage(); // Reused by the sender for every report
+    private final StringBuilder line = new StringBuilder(128); // The message the sender is writing
+    private long sequence; // Number of the last traced message; guarded by sendLock while connected
+    private long nextActuatorReport; // When the state of all actuators is sent next; guarded by sendLock
+    private volatile ScheduledFuture<?> reportTask; // Sends or buffers the periodic reports until stopped
+    private volatile boolean stopped; // Set by stop(); until then the node connects again when disconnected
+    private final Object stopLock = new Object(); // Notified when the node is stopped
+    private final SensorOutbox outbox; // Readings taken while not connected; guarded by sendLock
+    private final SensorHistory history = new SensorHistory(); // Reused for every HISTORY message
+    private final double[] sample; // Values of one sample of the outbox
+    private final double[] previousSample; // Values of the sample before it in the same message
 
     /**
      * Constructs a GreenhouseNode with the specified parameters.
@@ -40,173 +125,627 @@ public class GreenhouseNode {
         this.port = port;
         this.sensors = sensors;
         this.actuators = actuators;
+        this.sentValues = new double[sensors.size()];
+        this.sentNanos = new long[sensors.size()];
+        this.sample = new double[sensors.size()];
+        this.previousSample = new double[sensors.size()];
+        Path spillDirectory = outboxSpillDirectory;
+        this.outbox = new SensorOutbox(sensors.size(), outboxCapacity,
+                spillDirectory != null ? spillDirectory.resolve("node-" + nodeId + ".outbox") : null,
+                outboxSpillCapacity);
+    }
+
+    /**
+     * Sets how often every node sends the state of all its actuators, besides
+     * the changes. Applies to reports sent after the call.
+     *
+     * @param millis the interval in milliseconds
+     */
+    public static void setActuatorHeartbeat(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("Actuator heartbeat must be positive");
+        }
+        actuatorHeartbeatMillis = millis;
     }
 
     /**
-     * Starts the node by connecting to the server and managing communication.
+     * Sets how long every node and gateway waits before connecting again:
+     * the first delay after a lost connection or a failed attempt is about
+     * the initial time, and it doubles with every failed attempt up to the
+     * maximum. Each delay is chosen at random between half of it and all of
+     * it. Applies to attempts made after the call.
+     *
+     * @param initialMillis the first delay in milliseconds
+     * @param maxMillis     the longest delay in milliseconds
+     */
+    public static void setReconnectBackoff(long initialMillis, long maxMillis) {
+        Backoff.configure(initialMillis, maxMillis);
+    }
+
+    /**
+     * Sets how many samples of readings nodes created after the call keep in
+     * memory while they are not connected. When the outbox is full, the
+     * oldest sample is spilled to a file or dropped.
+     *
+     * @param samples the capacity of the outbox of each node
+     */
+    public static void setOutboxCapacity(int samples) {
+        if (samples <= 0) {
+            throw new IllegalArgumentException("Outbox capacity must be positive");
+        }
+        outboxCapacity = samples;
+    }
+
+    /**
+     * Sets where nodes created after the call spill the oldest samples of
+     * their outbox during a long outage, one memory-mapped file per node.
+     *
+     * @param directory the directory of the spill files, or null to drop the
+     *                  oldest samples instead
+     * @param samples   the most samples kept in the spill file of each node
+     */
+    public static void setOutboxSpill(Path directory, int samples) {
+        if (directory != null && samples <= 0) {
+            throw new IllegalArgumentException("Spill capacity must be positive");
+        }
+        outboxSpillDirectory = directory;
+        outboxSpillCapacity = samples;
+    }
+
+    /**
+     * Lets a simulation advance the sensors, on its clock or in its steps: the
+     * reports then only read their values. By default every report adds
+     * random noise to the sensors first, for a node with no simulation behind
+     * it. Must be called before the node is started.
+     *
+     * @param simulated true when the sensors are advanced by a simulation
+     */
+    public void setSensorsSimulated(boolean simulated) {
+        this.sensorsSimulated = simulated;
+    }
+
+    /**
+     * Starts the node: connects to the server and reads its messages, and
+     * connects again whenever the connection is lost, until the node is
+     * stopped. The reports are sent, or kept in the outbox, meanwhile.
      */
     public void start() {
+        Backoff backoff = new Backoff();
+        while (!stopped) {
+            try {
+                connect();
+                backoff.reset();
+                startReports();
+                readFromServer();
+                System.out.println("Server closed the connection of node " + nodeId);
+            } catch (ProtocolException e) {
+                System.out.println("Invalid data from the server, disconnecting: " + e.getMessage());
+            } catch (IOException e) {
+                if (!stopped) {
+                    System.out.println("Node " + nodeId + " is not connected: " + e.getMessage());
+                }
+            }
+            startReports(); // Also when the first attempt failed, so the readings are kept
+            disconnect();
+            if (!stopped) {
+                waitBeforeReconnect(backoff.nextDelayMillis());
+            }
+        }
+    }
+
+    /**
+     * Connects to the server, declares the role of the node and sends the
+     * readings kept in the outbox. The next reports have all readings and
+     * all actuator states, since the server may have restarted meanwhile.
+     *
+     * @throws IOException if connecting or writing fails
+     */
+    private void connect() throws IOException {
+        Socket newSocket = new Socket(serverAddress, port);
+        sendLock.lock();
         try {
-            socket = new Socket(serverAddress, port);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            if (stopped) {
+                newSocket.close();
+                throw new SocketException("Socket closed"); // Stopped while connecting
+            }
+            socket = newSocket;
+            in = newSocket.getInputStream();
+            CoalescingOutputStream stream = new CoalescingOutputStream(newSocket.getOutputStream());
+            MessageEncoder newEncoder = new MessageEncoder();
 
             System.out.println("Connected to GreenhouseServer");
+            if (BinaryProtocol.isPreferred()) {
+                newEncoder.requestBinary(stream);
+            }
+            newEncoder.write("HELLO:NODE:" + nodeId, stream); // Declare the role, so the server routes commands here
+            ownWriter = new ConnectionWriter(stream, newEncoder, newSocket);
+            attach(ownWriter);
+            stream.endBatch();
+            ownWriter.start("node-" + nodeId + "-writer");
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Starts sending the reports over a connection on which the node has been
+     * declared, first the readings kept in the outbox. The next reports have
+     * all readings and all actuator states, since the server may have
+     * restarted meanwhile. The outbox is written by the calling thread, before
+     * the writer is started; the caller ends the batch and starts the writer.
+     *
+     * @param newWriter the writer of the connection, maybe shared with other
+     *                  nodes
+     * @throws IOException if writing the outbox fails
+     */
+    void attach(ConnectionWriter newWriter) throws IOException {
+        sendLock.lock();
+        try {
+            writer = newWriter;
+            sendOutbox();
+            sensorsSent = false; // The first report has all readings
+            nextActuatorReport = System.nanoTime(); // And all states
+        } finally {
+            sendLock.unlock();
+        }
+    }
 
-            new Thread(() -> {
+    /**
+     * Stops sending over the connection; the reports go to the outbox until
+     * the node is attached again. The connection is not closed.
+     */
+    void detach() {
+        sendLock.lock();
+        try {
+            writer = null;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    private void readFromServer() throws IOException {
+        MessageDecoder decoder = new MessageDecoder();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            decoder.feed(ByteBuffer.wrap(buffer, 0, read), this::handleServerMessage);
+        }
+    }
+
+    /**
+     * Closes the node's own connection, if there is one. Reports are kept in
+     * the outbox until the node has connected again.
+     */
+    private void disconnect() {
+        sendLock.lock();
+        try {
+            detach();
+            if (ownWriter != null) {
+                ownWriter.close();
+                ownWriter = null;
+            }
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // The connection is gone anyway
+            }
+            socket = null;
+            in = null;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    private void waitBeforeReconnect(long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        synchronized (stopLock) {
+            long remaining = millis;
+            while (!stopped && remaining > 0) {
                 try {
-                    while (!socket.isClosed()) {
-                        String sensorData = generateSensorData();
-                        out.println("SENSOR:" + nodeId + ":" + sensorData);
-                        System.out.println("Sent: " + sensorData);
-
-                        String actuatorData = generateActuatorData();
-                        if (actuatorData != null) {
-                            out.println("ACTUATOR:" + nodeId + ":" + actuatorData);
-                            System.out.println("Sent: " + actuatorData);
-                        } else {
-                            System.out.println("No actuator data to send for node " + nodeId);
-                        }
-
-                        Thread.sleep(5000);
-                    }
+                    stopLock.wait(remaining);
                 } catch (InterruptedException e) {
-                    e.printStackTrace();
-                } catch (Exception e) {
-                    if (e instanceof IOException && "Socket closed".equals(e.getMessage())) {
-                        System.out.println("Socket closed, stopping sensor data thread.");
+                    Thread.currentThread().interrupt();
+                    stopped = true;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Queues the readings which are due and, every heartbeat interval, the
+     * state of all actuators, for the writer of the connection. While the
+     * node is not connected, the readings go to the outbox instead. Runs on
+     * the shared scheduler, so it only formats the messages and never waits
+     * for the socket.
+     */
+    private void sendReports() {
+        sendLock.lock();
+        try {
+            if (writer == null) {
+                if (generateSensorData()) {
+                    outbox.add(System.currentTimeMillis(), sentValues);
+                }
+                return;
+            }
+            CharSequence sensorReport = formatSensorReport();
+            if (sensorReport != null && !sendLine(sensorReport)) {
+                System.out.println("Could not send the report of node " + nodeId + ", the connection is closed");
+                outbox.add(System.currentTimeMillis(), sentValues); // Sent again after reconnecting
+                return;
+            }
+            long now = System.nanoTime();
+            if (now - nextActuatorReport >= 0) {
+                nextActuatorReport = now + TimeUnit.MILLISECONDS.toNanos(actuatorHeartbeatMillis);
+                CharSequence actuatorReport = formatActuatorReport();
+                if (actuatorReport == null) {
+                    System.out.println("No actuator data to send for node " + nodeId);
+                } else if (!sendLine(actuatorReport)) {
+                    System.out.println("Could not send the actuator states of node " + nodeId); // Sent on reconnecting
+                }
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Sends the samples in the outbox as HISTORY messages, oldest first, and
+     * removes each message's samples once it is written. A reading which is
+     * the same as in the sample before it in the message is left out. Must be
+     * called holding sendLock, before the writer is started.
+     *
+     * @throws IOException if writing fails; the samples not written stay in
+     *                     the outbox
+     */
+    private void sendOutbox() throws IOException {
+        long dropped = outbox.takeDropped();
+        if (dropped > 0) {
+            System.out.println("Node " + nodeId + " dropped " + dropped + " readings while not connected");
+        }
+        int perMessage = Math.max(1, MAX_HISTORY_CHARS / (sensors.size() * 24 + 24));
+        while (!outbox.isEmpty()) {
+            int count = Math.min(perMessage, outbox.size());
+            history.reset(nodeId);
+            for (int i = 0; i < count; i++) {
+                SensorMessage readings = history.add(outbox.get(i, sample));
+                int position = 0;
+                for (Sensor sensor : sensors) {
+                    if (i > 0 && sample[position] == previousSample[position]) {
+                        readings.addUnchanged();
                     } else {
-                        e.printStackTrace();
+                        SensorReading reading = sensor.getReading(); // For the type and unit
+                        readings.add(reading.getType(), sample[position], reading.getUnit());
                     }
+                    previousSample[position] = sample[position];
+                    position++;
                 }
-            }).start();
-
-            String response;
-            while ((response = in.readLine()) != null) {
-                handleServerMessage(response);
             }
-        } catch (IOException e) {
-            if ("Socket closed".equals(e.getMessage())) {
-                System.out.println("Socket closed, stopping server response thread.");
-            } else {
-                e.printStackTrace();
+            line.setLength(0);
+            MessageCodec.formatHistory(history, line);
+            writer.writeNow(line);
+            if (Logger.isDebugEnabled()) {
+                Logger.debug("Sent: " + line);
             }
+            outbox.removeOldest(count);
         }
     }
 
     /**
-     * Stops the node by closing the socket and streams.
+     * Starts the periodic reports, which are sent while the node is attached
+     * to a connection and kept in the outbox otherwise.
+     */
+    synchronized void startReports() {
+        if (reportTask == null && !stopped) {
+            reportTask = Scheduler.scheduleAtFixedRate(this::sendReports, Scheduler.phase(REPORT_INTERVAL_MILLIS),
+                    REPORT_INTERVAL_MILLIS);
+        }
+    }
+
+    private synchronized void cancelReports() {
+        ScheduledFuture<?> task = reportTask;
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * Stops the node by closing its socket and streams; a node hosted by a
+     * gateway only stops using the gateway's connection. Readings still in the
+     * outbox are lost.
      */
     public void stop() {
+        stopped = true;
+        synchronized (stopLock) {
+            stopLock.notifyAll();
+        }
+        cancelReports();
+        disconnect();
+        sendLock.lock();
         try {
-            if (socket != null) {
-                socket.close();
-            }
-            if (out != null) {
-                out.close();
-            }
-            if (in != null) {
-                in.close();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+            outbox.close();
+        } finally {
+            sendLock.unlock();
         }
     }
 
     /**
-     * Generates a formatted string representing the state of all actuators.
+     * Returns the counters of the writes to the server: socket writes, bytes
+     * and bytes per write.
      *
-     * @return a formatted string of actuator data, or null if no actuators exist
+     * @return a one-line summary, or null before the node has connected
      */
-    private String generateActuatorData() {
-        StringBuilder builder = new StringBuilder();
-        Iterator<Actuator> iterator = actuators.iterator();
+    public String getWriteStats() {
+        ConnectionWriter connectionWriter = writer;
+        return connectionWriter != null ? connectionWriter.getStats() : null;
+    }
 
-        while (iterator.hasNext()) {
-            Actuator actuator = iterator.next();
-            builder.append(actuator.getId())
-                    .append(":")
-                    .append(actuator.getType())
-                    .append("=")
-                    .append(actuator.isOn())
-                    .append(",");
+    /**
+     * Takes new readings of all sensors and formats the ones which are due as
+     * a SENSOR message, stamped with a sequence number and the time when
+     * tracing is enabled.
+     *
+     * @return the message, valid until the next report is formatted, or null
+     *         when no reading is due
+     */
+    CharSequence formatSensorReport() {
+        if (!generateSensorData()) {
+            return null;
+        }
+        if (Tracing.isEnabled()) {
+            readings.getTrace().set(++sequence, Tracing.epochMicros());
         }
+        line.setLength(0);
+        MessageCodec.formatSensor(readings, line);
+        return line;
+    }
 
-        if (builder.length() > 0) {
-            builder.deleteCharAt(builder.length() - 1);
-        } else {
+    /**
+     * Formats the state of all actuators as an ACTUATOR message.
+     *
+     * @return the message, valid until the next report is formatted, or null
+     *         when the node has no actuators
+     */
+    CharSequence formatActuatorReport() {
+        generateActuatorData(states);
+        if (states.getCount() == 0) {
             return null;
         }
+        if (Tracing.isEnabled()) {
+            states.getTrace().set(++sequence, Tracing.epochMicros());
+        }
+        line.setLength(0);
+        MessageCodec.formatActuatorStates(states, line);
+        return line;
+    }
+
+    /**
+     * Queues a message for the writer of the connection. Must be called
+     * holding sendLock, while the node is attached.
+     *
+     * @param message the message, without line terminator
+     * @return false when the connection is closed or does not keep up
+     */
+    private boolean sendLine(CharSequence message) {
+        if (Logger.isDebugEnabled()) {
+            Logger.debug("Sent: " + message);
+        }
+        return writer.send(message);
+    }
+
+    /**
+     * Sends the new state of an actuator which has changed, unless a batch is
+     * being applied, which sends all its changes at the end.
+     *
+     * @param nodeId   ID of the node the actuator belongs to
+     * @param actuator the actuator which has changed
+     */
+    @Override
+    public void actuatorUpdated(int nodeId, Actuator actuator) {
+        sendLock.lock();
+        try {
+            changedActuators.add(actuator);
+            if (!applyingBatch) {
+                sendChanges();
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Sends the actuators changed since the last call in one ACTUATOR message.
+     * Changes made before the node connected are dropped, since it sends all
+     * states when it connects. Must be called holding sendLock.
+     */
+    private void sendChanges() {
+        if (writer == null || changedActuators.isEmpty()) {
+            changedActuators.clear();
+            return;
+        }
+        changes.reset(nodeId);
+        for (Actuator actuator : changedActuators) {
+            changes.add(actuator.getId(), actuator.getType(), actuator.isOn());
+        }
+        changedActuators.clear();
+        if (Tracing.isEnabled()) {
+            changes.getTrace().set(++sequence, Tracing.epochMicros());
+        }
+        changeLine.setLength(0);
+        MessageCodec.formatActuatorStates(changes, changeLine);
+        if (!sendLine(changeLine)) {
+            System.out.println("Could not send the actuator changes of node " + nodeId);
+        }
+    }
 
-        return builder.toString();
+    /**
+     * Fills an actuator message with the state of all actuators.
+     *
+     * @param into the message to fill
+     */
+    private void generateActuatorData(ActuatorMessage into) {
+        into.reset(nodeId);
+        Iterator<Actuator> iterator = actuators.iterator();
+        while (iterator.hasNext()) {
+            Actuator actuator = iterator.next();
+            into.add(actuator.getId(), actuator.getType(), actuator.isOn());
+        }
     }
 
     /**
-     * Generates a formatted string representing the state of all sensors.
+     * Fills the reused sensor message with new readings of all sensors, after
+     * adding noise to them unless they are simulated. A reading which is not
+     * due keeps its place as an unchanged entry.
      *
-     * @return a formatted string of sensor data
+     * @return true when at least one reading is due
      */
-    private String generateSensorData() {
-        StringBuilder builder = new StringBuilder();
+    private boolean generateSensorData() {
+        readings.reset(nodeId);
+        long now = System.nanoTime();
+        boolean due = false;
+        int i = 0;
         for (Sensor sensor : sensors) {
-            sensor.addRandomNoise();
-            builder.append(sensor.getType())
-                    .append("=")
-                    .append(sensor.getReading().getValue())
-                    .append(sensor.getReading().getUnit())
-                    .append(",");
+            if (!sensorsSimulated) {
+                sensor.addRandomNoise();
+            }
+            SensorReading reading = sensor.getReading();
+            double value = reading.getValue();
+            if (!sensorsSent || SensorReportPolicy.isDue(reading.getType(), value, sentValues[i], now - sentNanos[i])) {
+                readings.add(reading.getType(), value, reading.getUnit());
+                sentValues[i] = value;
+                sentNanos[i] = now;
+                due = true;
+            } else {
+                readings.addUnchanged();
+            }
+            i++;
         }
-        return builder.substring(0, builder.length() - 1);
+        sensorsSent = true;
+        return due;
+    }
+
+    /**
+     * Returns the ID of the node.
+     *
+     * @return the ID
+     */
+    public int getNodeId() {
+        return nodeId;
     }
 
     /**
-     * Handles incoming messages from the server.
+     * Handles incoming messages from the server. Called by the thread reading
+     * from the connection, the node's own or its gateway's.
      *
      * @param message the message received from the server
      */
-    private void handleServerMessage(String message) {
+    void handleServerMessage(String message) {
         if (message.startsWith("ACTUATOR:")) {
             handleActuatorStateChange(message);
+        } else if (message.startsWith("COMMAND:")) {
+            handleCommand(message);
+        } else if (message.startsWith("BATCH:")) {
+            handleBatch(message);
         }
     }
 
     /**
-     * Processes actuator state change messages from the server.
+     * Applies the entries of a batch command which are for this node, and
+     * reports the actuators which changed in one ACTUATOR message instead of
+     * one change at a time.
      *
-     * @param message the message containing actuator state change information
+     * @param message the BATCH message
      */
-    private void handleActuatorStateChange(String message) {
-        String[] parts = message.split(":");
-
-        // Validate the base format
-        if (parts.length != 4 || !"ACTUATOR".equals(parts[0])) {
+    private void handleBatch(String message) {
+        if (!codec.parseBatch(message, batch)) {
+            System.out.println("Invalid BATCH message: " + message);
             return;
         }
-
+        int unknown = 0; // Entries for other nodes belong to the other nodes of a gateway
+        sendLock.lock();
         try {
-            int actuatorId = Integer.parseInt(parts[2]);
+            applyingBatch = true;
+            try {
+                for (int i = 0; i < batch.getCount(); i++) {
+                    if (batch.getNodeId(i) != nodeId) {
+                        continue;
+                    }
+                    Actuator actuator = actuators.get(batch.getActuatorId(i));
+                    if (actuator != null) {
+                        actuator.set(batch.isOn(i));
+                    } else {
+                        unknown++;
+                    }
+                }
+            } finally {
+                applyingBatch = false;
+            }
+            sendChanges();
+        } finally {
+            sendLock.unlock();
+        }
+        if (unknown > 0) {
+            System.out.println("Batch command has " + unknown + " unknown actuators");
+        }
+    }
 
-            // Validate the state
-            String statePart = parts[3];
-            boolean state;
-            if ("true".equalsIgnoreCase(statePart) || "false".equalsIgnoreCase(statePart)) {
-                state = Boolean.parseBoolean(statePart);
-            } else {
+    /**
+     * Applies an acknowledged actuator command and answers it with the state
+     * the actuator now has.
+     *
+     * @param message the COMMAND message
+     */
+    private void handleCommand(String message) {
+        if (!codec.parseCommand(message, command)) {
+            System.out.println("Invalid COMMAND message: " + message);
+            return;
+        }
+        Actuator actuator = actuators.get(command.getActuatorId());
+        if (actuator != null) {
+            actuator.set(command.isOn());
+            ack.set(command.getCorrelationId(), nodeId, actuator.getId(), CommandAck.Status.APPLIED, actuator.isOn());
+        } else {
+            ack.reject(command, CommandAck.Status.UNKNOWN_ACTUATOR);
+        }
+        sendLock.lock();
+        try {
+            if (writer == null) {
+                System.out.println("Not connected, command " + command.getCorrelationId() + " is not acknowledged");
                 return;
             }
-
-            // Find the actuator
-            Actuator actuator = actuators.get(actuatorId);
-            if (actuator != null) {
-                // Update the actuator state
-                actuator.set(state);
-            } else {
-                System.out.println("Actuator not found: " + actuatorId);
+            reply.setLength(0);
+            MessageCodec.formatAck(ack, reply);
+            if (!sendLine(reply)) {
+                System.out.println("Could not acknowledge command " + command.getCorrelationId());
             }
-        } catch (Exception e) {
-            System.out.println("Error processing actuator state change message: " + message);
-            e.printStackTrace();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Processes actuator state change messages from the server. A command for
+     * another node is ignored: the server sends the commands for a node which
+     * has not declared itself to every client without a role.
+     *
+     * @param message the message containing actuator state change information
+     */
+    private void handleActuatorStateChange(String message) {
+        if (!codec.parseActuatorCommand(message, command) || command.getNodeId() != nodeId) {
+            return;
+        }
+        Actuator actuator = actuators.get(command.getActuatorId());
+        if (actuator != null) {
+            // Update the actuator state
+            actuator.set(command.isOn());
+        } else {
+            System.out.println("Actuator not found: " + command.getActuatorId());
         }
     }
 
-}
+}
\ No newline at end of file
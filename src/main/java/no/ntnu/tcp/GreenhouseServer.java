@@ -2,15 +2,46 @@ package no.ntnu.tcp;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import no.ntnu.protocol.ActuatorBatch;
+import no.ntnu.protocol.ActuatorCommand;
+import no.ntnu.protocol.ActuatorMessage;
+import no.ntnu.protocol.BinaryOutput;
+import no.ntnu.protocol.CommandAck;
+import no.ntnu.protocol.MessageCodec;
+import no.ntnu.protocol.SensorHistory;
+import no.ntnu.protocol.SensorMessage;
+import no.ntnu.tools.CoalescingOutputStream;
+import no.ntnu.tools.Threads;
 
 /**
  * GreenhouseServer is responsible for managing client connections, broadcasting
  * messages, and handling sensor and actuator data in a greenhouse simulation.
  */
 public class GreenhouseServer {
+    /** The largest correlation ID a control panel may give a command. */
+    static final long MAX_CORRELATION_ID = 0xFFFFFFFFL;
+
     private final int port; // Port number for the server to listen on
-    private final List<ClientHandler> clients = new ArrayList<>(); // List of connected clients
+    private final List<ClientConnection> clients = new CopyOnWriteArrayList<>(); // List of connected clients
+    private final List<ClientConnection> subscribers = new CopyOnWriteArrayList<>(); // Clients receiving telemetry
+    private final Map<Integer, ClientConnection> nodeRoutes = new ConcurrentHashMap<>(); // Node ID -> connection
+    private final Map<Integer, ClientConnection> connections = new ConcurrentHashMap<>(); // Connection ID -> client
+    private final AtomicInteger connectionIds = new AtomicInteger(); // Last connection ID handed out
+    private final TelemetryCache cache = new TelemetryCache(); // Latest telemetry of every node
+    private final ThreadLocal<MessageCodec> codecs = ThreadLocal.withInitial(MessageCodec::new); // For public calls
+    private ServerEngine engine = ServerEngine.THREAD_PER_CLIENT; // How client connections are served
+    private int eventLoopCount = Runtime.getRuntime().availableProcessors(); // Used by the NIO engine
+    private int queueCapacity = 1024; // Most messages queued for one client
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST; // Used when a client queue is full
+    private boolean conflation = true; // Keep only the newest queued sensor reading per node and client
+    private ServerSocket serverSocket; // Listening socket of the thread-per-client engine
+    private NioServerEngine nioEngine; // The NIO engine, when selected
 
     /**
      * Constructs a GreenhouseServer with the specified port.
@@ -21,11 +52,93 @@ public class GreenhouseServer {
         this.port = port;
     }
 
+    /**
+     * Selects how client connections are served. Must be called before
+     * {@link #start()}.
+     *
+     * @param engine the server engine to use
+     */
+    public void setEngine(ServerEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Sets the number of event-loop threads used by the NIO engine. Must be
+     * called before {@link #start()}.
+     *
+     * @param eventLoopCount the number of event loops, at least one
+     */
+    public void setEventLoopCount(int eventLoopCount) {
+        if (eventLoopCount <= 0) {
+            throw new IllegalArgumentException("At least one event loop is needed");
+        }
+        this.eventLoopCount = eventLoopCount;
+    }
+
+    /**
+     * Sets how many messages may wait for one client before the overflow
+     * policy is applied. Must be called before {@link #start()}.
+     *
+     * @param queueCapacity the capacity of each client's outbound queue
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Sets what happens when a client's outbound queue is full. Must be called
+     * before {@link #start()}.
+     *
+     * @param overflowPolicy the overflow policy
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Selects whether a client's queue keeps only the newest sensor reading
+     * of each node. A client which falls behind then skips stale readings.
+     * Must be called before {@link #start()}.
+     *
+     * @param conflation true to replace queued sensor readings by newer ones
+     */
+    public void setConflationEnabled(boolean conflation) {
+        this.conflation = conflation;
+    }
+
+    boolean isConflationEnabled() {
+        return conflation;
+    }
+
+    int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
     /**
      * Starts the server to accept client connections and handle communication.
+     * Blocks until the server is stopped.
      */
     public void start() {
+        if (engine == ServerEngine.NIO) {
+            startNio();
+        } else {
+            startThreadPerClient();
+        }
+    }
+
+    /**
+     * Accepts clients and serves each of them with its own blocking thread.
+     */
+    private void startThreadPerClient() {
         try (ServerSocket serverSocket = new ServerSocket(port)) {
+            this.serverSocket = serverSocket;
             System.out.println("GreenhouseServer is listening on port " + port);
 
             while (true) {
@@ -35,34 +148,201 @@ public class GreenhouseServer {
 
                 // Create a handler for the connected client
                 ClientHandler clientHandler = new ClientHandler(socket, this);
-                clients.add(clientHandler);
+                addClient(clientHandler);
 
                 // Start a new thread to handle client communication
-                new Thread(clientHandler).start();
+                Threads.start("client-handler", clientHandler);
+            }
+        } catch (SocketException e) {
+            System.out.println("Server socket closed, no longer accepting clients.");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Accepts clients and serves all of them from the NIO event loops.
+     */
+    private void startNio() {
+        nioEngine = new NioServerEngine(this, port, eventLoopCount);
+        try {
+            nioEngine.start();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops accepting new clients and closes all client connections.
+     */
+    public void stop() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (nioEngine != null) {
+            nioEngine.stop();
+        }
+        for (ClientConnection client : clients) {
+            client.close();
+        }
     }
 
     /**
-     * Broadcasts a message to all connected clients.
+     * Broadcasts a message to all connected clients. The message is encoded
+     * once and only queued for each client, so a slow client does not delay
+     * the others.
      *
      * @param message the message to broadcast
      */
-    public synchronized void broadcast(String message) {
-        for (ClientHandler client : clients) {
-            client.sendMessage(message);
+    public void broadcast(String message) {
+        EncodedMessage encoded = EncodedMessage.of(message);
+        for (ClientConnection client : clients) {
+            client.send(encoded);
+        }
+    }
+
+    /**
+     * Adds a client to the list of connected clients. Until the client has
+     * declared its role it receives all telemetry, like before the handshake
+     * existed.
+     *
+     * @param client the client connection to add
+     */
+    void addClient(ClientConnection client) {
+        clients.add(client);
+        connections.put(client.getId(), client);
+        subscribers.add(client);
+    }
+
+    /**
+     * Removes a client from the list of connected clients and from the
+     * routing table.
+     *
+     * @param client the client connection to remove
+     */
+    void removeClient(ClientConnection client) {
+        clients.remove(client);
+        subscribers.remove(client);
+        connections.remove(client.getId());
+        for (int nodeId : client.getNodeIds()) {
+            nodeRoutes.remove(nodeId, client);
+        }
+    }
+
+    /**
+     * Registers a client as the connection of a sensor/actuator node. Actuator
+     * commands for the node are sent only to this connection, and the node no
+     * longer receives telemetry. A gateway is registered for each of its
+     * nodes.
+     *
+     * @param client the client connection
+     * @param nodeId the ID of the node behind the connection
+     */
+    void registerNode(ClientConnection client, int nodeId) {
+        if (!clients.contains(client)) {
+            return; // Disconnected while the HELLO message was handled
+        }
+        subscribers.remove(client);
+        ClientConnection previous = nodeRoutes.put(nodeId, client);
+        if (previous != null && previous != client) {
+            System.out.println("Node " + nodeId + " reconnected, replacing its previous connection");
+        }
+    }
+
+    /**
+     * Registers a client as a control panel, receiving all telemetry. The
+     * panel first gets the latest readings and actuator states of every node.
+     * The snapshot is sent from its own thread, so the thread handling the
+     * panel (possibly an event loop serving many clients) is not held up.
+     *
+     * @param client the client connection
+     */
+    void registerPanel(ClientConnection client) {
+        subscribers.remove(client); // Subscribed again once the snapshot is queued
+        Threads.start("panel-snapshot", () -> cache.sendSnapshot(client, () -> {
+            if (!subscribers.contains(client)) {
+                subscribers.add(client);
+            }
+            if (!clients.contains(client)) {
+                subscribers.remove(client); // Disconnected during the snapshot
+            }
+        }));
+    }
+
+    /**
+     * Checks whether a client receives the telemetry. A control panel does so
+     * once its snapshot is queued.
+     *
+     * @param client the client connection
+     * @return true when the client is subscribed
+     */
+    boolean isSubscribed(ClientConnection client) {
+        return subscribers.contains(client);
+    }
+
+    /**
+     * Hands out the ID of a new client connection.
+     *
+     * @return an ID no other connection of this server has, at least 1
+     */
+    int newConnectionId() {
+        return connectionIds.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of currently connected clients.
+     *
+     * @return the number of connected clients
+     */
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * Returns the outbound queue counters of every connected client: queue
+     * depth, largest depth seen, and how many messages were queued and
+     * dropped, followed by the number of socket writes and bytes per write.
+     *
+     * @return one line per client
+     */
+    public List<String> getQueueStats() {
+        List<String> stats = new ArrayList<>();
+        for (ClientConnection client : clients) {
+            stats.add(client.getQueueStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Returns how many messages the connected clients have lost because their
+     * outbound queues were full.
+     *
+     * @return the number of dropped messages
+     */
+    public long getDroppedMessages() {
+        long dropped = 0;
+        for (ClientConnection client : clients) {
+            dropped += client.queue.getDropped();
         }
+        return dropped;
     }
 
     /**
-     * Removes a client from the list of connected clients.
+     * Sends a message to the clients subscribed to telemetry: control panels
+     * and clients which have not declared a role. Every subscriber writes the
+     * same encoded bytes.
      *
-     * @param clientHandler the client handler to remove
+     * @param encoded the message to publish
      */
-    public synchronized void removeClient(ClientHandler clientHandler) {
-        clients.remove(clientHandler);
+    private void publish(EncodedMessage encoded) {
+        encoded.markEnqueued();
+        for (ClientConnection client : subscribers) {
+            client.send(encoded);
+        }
     }
 
     /**
@@ -71,31 +351,209 @@ public class GreenhouseServer {
      * @param nodeId     the ID of the node sending the data
      * @param sensorData the sensor data sent by the client
      */
-    public synchronized void handleSensorData(int nodeId, String sensorData) {
-        String formattedMessage = "SENSOR:" + nodeId + ":" + sensorData;
-        broadcast(formattedMessage); // Broadcast sensor data to all clients
+    public void handleSensorData(int nodeId, String sensorData) {
+        String message = "SENSOR:" + nodeId + ":" + sensorData;
+        SensorMessage readings = new SensorMessage();
+        if (codecs.get().parseSensor(message, readings)) {
+            handleSensorMessage(readings, message, 0);
+        } else {
+            System.out.println("Invalid sensor data: " + message);
+        }
+    }
+
+    /**
+     * Handles a complete SENSOR message, which may leave out the readings
+     * which have not changed.
+     *
+     * @param readings      the parsed message
+     * @param message       the message, "SENSOR:nodeId:data", maybe traced
+     * @param receivedNanos when a traced message was received, or 0
+     */
+    void handleSensorMessage(SensorMessage readings, String message, long receivedNanos) {
+        // Remember the readings and send them to the control panels
+        cache.publishSensors(readings, message, receivedNanos, this::publish);
     }
 
     /**
-     * Handles incoming actuator data from a client.
+     * Handles the readings a node took while it was not connected. They are
+     * sent to the control panels as they are, but not kept in the cache of
+     * the latest telemetry, since the node sends its current readings after
+     * them. Nor are they conflated, so a lagging panel still gets all of them.
+     * Only a client which has declared the node may send its history.
+     *
+     * @param client  the client which sent the message
+     * @param history the parsed message
+     * @param message the message, "HISTORY:nodeId:samples"
+     */
+    void handleSensorHistory(ClientConnection client, SensorHistory history, String message) {
+        if (!client.getNodeIds().contains(history.getNodeId())) {
+            System.out.println("Ignoring the history of node " + history.getNodeId()
+                    + ", which the client has not declared");
+            return;
+        }
+        publish(EncodedMessage.of(message));
+    }
+
+    /**
+     * Handles incoming actuator data from a client. Actuator states reported by
+     * a node ("id:type=state,...") go to the control panels, while actuator
+     * commands ("id:state") go only to the node owning the actuator.
      *
      * @param nodeId       the ID of the node sending the data
      * @param actuatorData the actuator data sent by the client
      */
-    public synchronized void handleActuatorData(int nodeId, String actuatorData) {
-        String formattedMessage = "ACTUATOR:" + nodeId + ":" + actuatorData;
-        broadcast(formattedMessage); // Broadcast actuator data to all clients
+    public void handleActuatorData(int nodeId, String actuatorData) {
+        String message = "ACTUATOR:" + nodeId + ":" + actuatorData;
+        ActuatorMessage states = new ActuatorMessage();
+        if (actuatorData.indexOf('=') < 0) {
+            handleActuatorCommand(nodeId, message);
+        } else if (codecs.get().parseActuatorStates(message, states)) {
+            handleActuatorStates(states, message, 0);
+        } else {
+            System.out.println("Invalid actuator states: " + message);
+        }
+    }
+
+    /**
+     * Handles a complete ACTUATOR state message, which holds all actuators of
+     * the node or only those which changed.
+     *
+     * @param states        the parsed message
+     * @param message       the message, "ACTUATOR:nodeId:data", maybe traced
+     * @param receivedNanos when a traced message was received, or 0
+     */
+    void handleActuatorStates(ActuatorMessage states, String message, long receivedNanos) {
+        // Remember the states and send them to the control panels
+        cache.publishActuators(states, EncodedMessage.of(message, receivedNanos), this::publish);
+    }
+
+    /**
+     * Handles a complete ACTUATOR command, already in the form it is
+     * forwarded in.
+     *
+     * @param nodeId  the ID of the node owning the actuator
+     * @param message the message, "ACTUATOR:nodeId:actuatorId:state"
+     */
+    void handleActuatorCommand(int nodeId, String message) {
+        sendCommand(nodeId, message);
+    }
+
+    /**
+     * Sends an acknowledged actuator command from a control panel to the node
+     * owning the actuator. The correlation ID of the panel is combined with
+     * the ID of the panel's connection, so the acknowledgement finds its way
+     * back without the server remembering the command. When the node is not
+     * connected the panel is answered at once.
+     *
+     * @param panel   the connection the command came from
+     * @param command the command, with a correlation ID of at most 32 bits
+     */
+    void routeCommand(ClientConnection panel, ActuatorCommand command) {
+        StringBuilder line = new StringBuilder(48);
+        ClientConnection node = nodeRoutes.get(command.getNodeId());
+        if (node == null) {
+            CommandAck ack = new CommandAck();
+            ack.reject(command, CommandAck.Status.UNREACHABLE);
+            MessageCodec.formatAck(ack, line);
+            panel.sendMessage(line.toString());
+            return;
+        }
+        command.setCorrelationId(((long) panel.getId() << 32) | command.getCorrelationId());
+        MessageCodec.formatCommand(command, line);
+        node.send(EncodedMessage.of(line.toString()));
+    }
+
+    /**
+     * Sends the acknowledgement of a command back to the control panel which
+     * sent the command, with the panel's own correlation ID. It is dropped
+     * when the panel has disconnected meanwhile.
+     *
+     * @param ack the acknowledgement, with the correlation ID given by
+     *            {@link #routeCommand(ClientConnection, ActuatorCommand)}
+     */
+    void routeAck(CommandAck ack) {
+        ClientConnection panel = connections.get((int) (ack.getCorrelationId() >>> 32));
+        if (panel == null) {
+            return;
+        }
+        ack.setCorrelationId(ack.getCorrelationId() & MAX_CORRELATION_ID);
+        StringBuilder line = new StringBuilder(48);
+        MessageCodec.formatAck(ack, line);
+        panel.sendMessage(line.toString());
+    }
+
+    /**
+     * Splits a batch of actuator commands by connection, and sends every node
+     * one BATCH message with only its own actuators. A gateway gets one
+     * message with the actuators of all its nodes. Entries for nodes which are
+     * not connected are dropped.
+     *
+     * @param batch the batch from a control panel
+     */
+    void routeBatch(ActuatorBatch batch) {
+        Map<Integer, ActuatorBatch> nodeParts = new LinkedHashMap<>();
+        for (int i = 0; i < batch.getCount(); i++) {
+            nodeParts.computeIfAbsent(batch.getNodeId(i), nodeId -> new ActuatorBatch())
+                    .add(batch.getNodeId(i), batch.getActuatorId(i), batch.isOn(i));
+        }
+        Map<ClientConnection, ActuatorBatch> parts = new LinkedHashMap<>();
+        int unreachable = 0;
+        for (Map.Entry<Integer, ActuatorBatch> nodePart : nodeParts.entrySet()) {
+            ClientConnection node = nodeRoutes.get(nodePart.getKey());
+            if (node == null) {
+                unreachable++;
+                continue;
+            }
+            ActuatorBatch part = parts.computeIfAbsent(node, connection -> new ActuatorBatch());
+            ActuatorBatch entries = nodePart.getValue();
+            for (int i = 0; i < entries.getCount(); i++) {
+                part.add(entries.getNodeId(i), entries.getActuatorId(i), entries.isOn(i));
+            }
+        }
+        StringBuilder line = new StringBuilder(64);
+        for (Map.Entry<ClientConnection, ActuatorBatch> part : parts.entrySet()) {
+            line.setLength(0);
+            MessageCodec.formatBatch(part.getValue(), line);
+            part.getKey().send(EncodedMessage.of(line.toString()));
+        }
+        if (unreachable > 0) {
+            System.out.println("Batch command for " + unreachable + " nodes which are not connected");
+        }
+    }
+
+    /**
+     * Sends an actuator command to the connection of the given node. When the
+     * node has not declared itself, the command goes to all clients without a
+     * role, which ignore commands for other nodes.
+     *
+     * @param nodeId  the ID of the node the command is for
+     * @param command the command to send
+     */
+    private void sendCommand(int nodeId, String command) {
+        EncodedMessage encoded = EncodedMessage.of(command);
+        ClientConnection node = nodeRoutes.get(nodeId);
+        if (node != null) {
+            node.send(encoded);
+            return;
+        }
+        for (ClientConnection client : clients) {
+            if (client.getRole() == ClientConnection.Role.UNKNOWN) {
+                client.send(encoded);
+            }
+        }
     }
 }
 
 /**
  * ClientHandler manages communication between the server and a connected
- * client.
+ * client, using one blocking thread for reading from the client and one for
+ * writing its queued messages.
  */
-class ClientHandler implements Runnable {
+class ClientHandler extends ClientConnection implements Runnable {
+    private static final int READ_BUFFER_SIZE = 8192;
+
     private final Socket socket; // Socket representing the client's connection
-    private final GreenhouseServer server; // Reference to the server
-    private PrintWriter out; // Output stream to send messages to the client
+    private volatile CoalescingOutputStream out; // Collects messages and sends them to the client
 
     /**
      * Constructs a ClientHandler for a connected client.
@@ -104,8 +562,8 @@ class ClientHandler implements Runnable {
      * @param server the server instance managing the connection
      */
     public ClientHandler(Socket socket, GreenhouseServer server) {
+        super(server, String.valueOf(socket.getRemoteSocketAddress()));
         this.socket = socket;
-        this.server = server;
     }
 
     /**
@@ -113,90 +571,76 @@ class ClientHandler implements Runnable {
      */
     @Override
     public void run() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-            out = new PrintWriter(socket.getOutputStream(), true);
+        try (InputStream in = socket.getInputStream()) {
+            out = new CoalescingOutputStream(socket.getOutputStream());
+            Threads.start("client-writer", this::writeMessages);
 
-            String message;
-            while ((message = in.readLine()) != null) {
-                System.out.println("Received: " + message);
-                handleMessage(message); // Process incoming messages
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                receive(ByteBuffer.wrap(buffer, 0, read)); // Process incoming messages
             }
+        } catch (SocketException e) {
+            System.out.println("Socket closed, stopping listener thread.");
+        } catch (ProtocolException e) {
+            System.out.println("Invalid data from client, closing the connection: " + e.getMessage());
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
             // Remove client from the server and close the socket
-            server.removeClient(this);
-            try {
-                socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
-    /**
-     * Processes messages from the client based on their type.
-     *
-     * @param message the message received from the client
-     */
-    private void handleMessage(String message) {
-        if (message.startsWith("SENSOR:")) {
-            handleSensorMessage(message);
-        } else if (message.startsWith("ACTUATOR:")) {
-            handleActuatorMessage(message);
-        } else {
-            System.out.println("Unknown message type: " + message);
+            close();
         }
     }
 
     /**
-     * Parses and handles a SENSOR message.
-     *
-     * @param message the SENSOR message
+     * Writes queued messages to the client until the connection is closed.
+     * Runs in its own thread, so only this client waits for its socket. The
+     * encoded bytes of every message already waiting form one batch, which the
+     * output stream sends together.
      */
-    private void handleSensorMessage(String message) {
+    private void writeMessages() {
         try {
-            String[] parts = message.split(":", 3);
-            if (parts.length == 3) {
-                int nodeId = Integer.parseInt(parts[1].trim());
-                String sensorData = parts[2].trim();
-                server.handleSensorData(nodeId, sensorData);
-            } else {
-                System.out.println("Invalid SENSOR message format: " + message);
+            BinaryOutput binaryOutput = null; // Set once the client has switched to the binary format
+            EncodedMessage message;
+            while ((message = queue.take()) != null) {
+                do {
+                    if (binaryOutput != null) {
+                        binaryOutput.write(message.binary(), out);
+                    } else {
+                        message.writeTo(out);
+                        if (message.isBinarySwitch()) {
+                            binaryOutput = new BinaryOutput(EncodedMessage.TYPES);
+                        }
+                    }
+                    message.markWritten();
+                } while ((message = queue.poll()) != null);
+                out.endBatch();
             }
-        } catch (Exception e) {
-            System.out.println("Error processing SENSOR message: " + e.getMessage());
+        } catch (IOException e) {
+            System.out.println("Could not write to client, closing the connection.");
+            close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    /**
-     * Parses and handles an ACTUATOR message.
-     *
-     * @param message the ACTUATOR message
-     */
-    private void handleActuatorMessage(String message) {
-        try {
-            String[] parts = message.split(":", 3);
-            if (parts.length == 3) {
-                int nodeId = Integer.parseInt(parts[1].trim());
-                String actuatorData = parts[2].trim();
-                server.handleActuatorData(nodeId, actuatorData);
-            } else {
-                System.out.println("Invalid ACTUATOR message format: " + message);
-            }
-        } catch (Exception e) {
-            System.out.println("Error processing ACTUATOR message: " + e.getMessage());
-        }
+    @Override
+    protected String getWriteStats() {
+        CoalescingOutputStream stream = out;
+        return stream != null ? stream.getStats() : null;
     }
 
     /**
-     * Sends a message to the connected client.
-     *
-     * @param message the message to send
+     * Removes the client from the server and closes the socket.
      */
-    public void sendMessage(String message) {
-        if (out != null) {
-            out.println(message);
+    @Override
+    public void close() {
+        queue.close();
+        server.removeClient(this);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 }
@@ -0,0 +1,203 @@
+package no.ntnu.tcp;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import no.ntnu.protocol.BinaryMessage;
+import no.ntnu.protocol.BinaryOutput;
+
+/**
+ * NioClientConnection is a non-blocking client connection served by one of the
+ * NioServerEngine event loops. Reads are framed into messages without blocking,
+ * and queued outgoing messages are written whenever the socket accepts more
+ * data.
+ */
+class NioClientConnection extends ClientConnection {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_GATHER = 64; // Most buffers written in one gathering write
+
+    private final SocketChannel channel; // Non-blocking channel of the client
+    private final NioServerEngine.EventLoop loop; // The event loop owning this connection
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ArrayDeque<ByteBuffer> inFlight = new ArrayDeque<>(); // Views of shared messages, not yet written
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private SelectionKey key;
+    private BinaryOutput binaryOutput; // Set once the client has switched to the binary format
+    private long writes; // Gathering writes, each one a system call
+    private long bytesWritten;
+    private volatile boolean closed;
+
+    /**
+     * Constructs a NioClientConnection.
+     *
+     * @param channel the non-blocking client channel
+     * @param loop    the event loop serving the channel
+     * @param server  the server instance managing the connection
+     */
+    NioClientConnection(SocketChannel channel, NioServerEngine.EventLoop loop, GreenhouseServer server) {
+        super(server, String.valueOf(channel.socket().getRemoteSocketAddress()));
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Reads what is available from the channel and handles all complete messages.
+     * Called by the event loop when the channel is readable.
+     */
+    void onReadable() {
+        try {
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            receive(readBuffer);
+            readBuffer.clear();
+        } catch (ProtocolException e) {
+            System.out.println("Invalid data from client, closing the connection: " + e.getMessage());
+            close();
+        } catch (IOException e) {
+            System.out.println("Client connection lost: " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Continues writing queued messages. Called by the event loop when the
+     * channel can accept more data.
+     */
+    void onWritable() {
+        flush();
+    }
+
+    /**
+     * The event loops must never wait for a slow client.
+     *
+     * @return false
+     */
+    @Override
+    protected boolean canBlockSenders() {
+        return false;
+    }
+
+    /**
+     * Asks the event loop to write the queued messages.
+     */
+    @Override
+    protected void onMessageQueued() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+    }
+
+    /**
+     * Writes as many queued messages as the socket accepts. When the socket is
+     * full the event loop is asked to report when it becomes writable again.
+     */
+    private void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            while (true) {
+                EncodedMessage message;
+                while (inFlight.size() < MAX_GATHER - 1 && (message = queue.poll()) != null) {
+                    addInFlight(message);
+                }
+                if (inFlight.isEmpty()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    flushScheduled.set(false);
+                    // A message may have arrived after the queue was found empty
+                    if (queue.size() == 0 || !flushScheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+
+                int count = 0;
+                for (ByteBuffer buffer : inFlight) {
+                    gather[count++] = buffer;
+                }
+                bytesWritten += channel.write(gather, 0, count);
+                writes++;
+                Arrays.fill(gather, 0, count, null);
+                while (!inFlight.isEmpty() && !inFlight.peekFirst().hasRemaining()) {
+                    inFlight.pollFirst();
+                }
+                if (!inFlight.isEmpty()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Could not write to client: " + e.getMessage());
+            close();
+        } catch (CancelledKeyException e) {
+            close(); // The connection was closed by another thread
+        }
+    }
+
+    /**
+     * Adds the bytes of a message to the buffers waiting to be written: the
+     * text line, or the binary frames preceded by the types the client has
+     * not seen yet.
+     */
+    private void addInFlight(EncodedMessage message) throws ProtocolException {
+        message.markWritten();
+        if (binaryOutput == null) {
+            inFlight.add(message.buffer());
+            if (message.isBinarySwitch()) {
+                binaryOutput = new BinaryOutput(EncodedMessage.TYPES);
+            }
+            return;
+        }
+        BinaryMessage frames = message.binary();
+        byte[] defines = binaryOutput.definesFor(frames);
+        if (defines != null) {
+            inFlight.add(ByteBuffer.wrap(defines));
+        }
+        inFlight.add(frames.buffer());
+    }
+
+    @Override
+    protected String getWriteStats() {
+        long writeCount = writes;
+        long bytes = bytesWritten;
+        return String.format("writes=%d bytes=%d bytes/write=%.1f", writeCount, bytes,
+                writeCount == 0 ? 0.0 : (double) bytes / writeCount);
+    }
+
+    /**
+     * Closes the channel and removes the client from the server.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        queue.close();
+        server.removeClient(this);
+    }
+}
@@ -0,0 +1,205 @@
+package no.ntnu.tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * NioServerEngine accepts client connections for a GreenhouseServer and serves
+ * them from a small, fixed set of selector-based event loops instead of one
+ * thread per client.
+ */
+class NioServerEngine {
+    private final GreenhouseServer server; // The server receiving the client messages
+    private final int port; // Port number to listen on
+    private final EventLoop[] loops; // Event loops sharing the connections
+    private ServerSocketChannel serverChannel; // Channel accepting new connections
+    private volatile boolean running;
+
+    /**
+     * Constructs a NioServerEngine.
+     *
+     * @param server    the server receiving the client messages
+     * @param port      the port number to listen on
+     * @param loopCount the number of event-loop threads
+     */
+    NioServerEngine(GreenhouseServer server, int port, int loopCount) {
+        if (loopCount <= 0) {
+            throw new IllegalArgumentException("At least one event loop is needed");
+        }
+        this.server = server;
+        this.port = port;
+        this.loops = new EventLoop[loopCount];
+    }
+
+    /**
+     * Starts the event loops and accepts connections until the engine is
+     * stopped. Connections are handed to the event loops round-robin.
+     *
+     * @throws IOException if the server channel can not be opened
+     */
+    void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        running = true;
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(server);
+            Thread thread = new Thread(loops[i], "nio-event-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        System.out.println("GreenhouseServer (NIO, " + loops.length + " event loops) is listening on port "
+                + port);
+
+        int next = 0;
+        try {
+            while (running) {
+                SocketChannel channel = serverChannel.accept();
+                System.out.println("New client connected: " + channel.getRemoteAddress());
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } catch (ClosedChannelException e) {
+            System.out.println("Server channel closed, no longer accepting clients.");
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Stops accepting connections and shuts down all event loops.
+     */
+    void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    /**
+     * One event-loop thread. It owns a selector and performs all reads and
+     * writes for the connections registered with it.
+     */
+    static class EventLoop implements Runnable {
+        private final GreenhouseServer server;
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // Work from other threads
+        private volatile Thread thread;
+        private volatile boolean running = true;
+
+        EventLoop(GreenhouseServer server) throws IOException {
+            this.server = server;
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Hands a newly accepted channel over to this event loop.
+         *
+         * @param channel the non-blocking client channel
+         */
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    NioClientConnection connection = new NioClientConnection(channel, this, server);
+                    connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+                    server.addClient(connection);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+
+        /**
+         * Runs a task on the event-loop thread. Tasks scheduled by the loop
+         * itself run after the ready channels have been handled, so that
+         * messages produced while reading are written together.
+         *
+         * @param task the task to run
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            try {
+                while (running) {
+                    selector.select();
+                    runTasks();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handleKey(key);
+                    }
+                    runTasks();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                closeAll();
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        private void handleKey(SelectionKey key) {
+            NioClientConnection connection = (NioClientConnection) key.attachment();
+            if (!key.isValid()) {
+                connection.close();
+                return;
+            }
+            if (key.isReadable()) {
+                connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.onWritable();
+            }
+        }
+
+        private void closeAll() {
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                ((NioClientConnection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package no.ntnu.tcp;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * OutboundQueue is the bounded queue of encoded messages waiting to be written
+ * to one client. Producers never wait for the socket, only for the queue, and only
+ * when the BLOCK policy is used. The queue counts how many messages passed
+ * through it and how many were dropped.
+ *
+ * <p>With conflation, the queue holds at most one sensor reading per node. A
+ * newer reading replaces the queued one in its place in the queue, so a client
+ * which falls behind gets the latest readings as soon as it catches up instead
+ * of every stale one. Actuator messages are never conflated, and neither are
+ * sensor readings which leave out unchanged values: a newer reading queued
+ * after such a message goes behind it, so it cannot overtake it.
+ */
+class OutboundQueue {
+    private final ArrayDeque<Slot> messages = new ArrayDeque<>();
+    private final Map<Integer, Slot> pendingReadings = new HashMap<>(); // Node ID -> queued sensor reading
+    private final int capacity; // Most messages held at once
+    private final OverflowPolicy policy; // What to do when the queue is full
+    private final boolean conflate; // Replace queued sensor readings by newer ones from the same node
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private long enqueued; // Messages accepted by the queue
+    private long dropped; // Messages dropped because the queue was full
+    private long conflated; // Sensor readings replaced by newer ones before being written
+    private int highWaterMark; // Largest depth seen
+    private boolean closed;
+
+    /**
+     * Constructs an OutboundQueue.
+     *
+     * @param capacity the most messages held at once
+     * @param policy   what to do when the queue is full
+     * @param conflate true to keep at most one queued sensor reading per node
+     */
+    OutboundQueue(int capacity, OverflowPolicy policy, boolean conflate) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+        this.conflate = conflate;
+    }
+
+    /**
+     * Adds a message to the queue, applying the overflow policy if it is full.
+     *
+     * @param message  the message to add
+     * @param canBlock false when the caller must never wait (an event loop), in
+     *                 which case BLOCK is treated as DISCONNECT
+     * @return false when the client must be disconnected, true otherwise
+     */
+    boolean offer(EncodedMessage message, boolean canBlock) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            if (conflate && message.isTelemetry()) {
+                Slot pending = pendingReadings.get(message.getTelemetryNodeId());
+                if (pending != null) {
+                    pending.message = message;
+                    enqueued++;
+                    conflated++;
+                    return true;
+                }
+            }
+            if (conflate && message.isPartialReading()) {
+                pendingReadings.remove(message.getTelemetryNodeId()); // Later readings must not overtake it
+            }
+            if (messages.size() >= capacity && !(policy == OverflowPolicy.DROP_OLDEST && dropOldestReading())) {
+                if (policy == OverflowPolicy.DROP_OLDEST && message.isTelemetry()) {
+                    dropped++; // Nothing older to drop, so the new reading goes
+                    return true;
+                } else if (policy == OverflowPolicy.BLOCK && canBlock) {
+                    while (messages.size() >= capacity && !closed) {
+                        notFull.awaitUninterruptibly();
+                    }
+                    if (closed) {
+                        return true;
+                    }
+                } else {
+                    dropped++;
+                    return false;
+                }
+            }
+            Slot slot = new Slot(message);
+            messages.addLast(slot);
+            if (conflate && message.isTelemetry()) {
+                pendingReadings.put(message.getTelemetryNodeId(), slot);
+            }
+            enqueued++;
+            highWaterMark = Math.max(highWaterMark, messages.size());
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the oldest sensor reading. Commands, acknowledgements, actuator
+     * states and the switch to the binary format are never dropped, since the
+     * client would miss a change for good.
+     *
+     * @return false when no sensor reading is queued
+     */
+    private boolean dropOldestReading() {
+        Iterator<Slot> iterator = messages.iterator();
+        while (iterator.hasNext()) {
+            Slot slot = iterator.next();
+            if (slot.message.isTelemetry()) {
+                iterator.remove();
+                forget(slot);
+                dropped++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the next message, waiting until one arrives.
+     *
+     * @return the next message, or null when the queue is closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    EncodedMessage take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (messages.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return takeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the next message, waiting at most the given time for one.
+     *
+     * @param timeout how long to wait
+     * @param unit    the unit of the timeout
+     * @return the next message, or null on timeout or when the queue is closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    EncodedMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = unit.toNanos(timeout);
+            while (messages.isEmpty() && !closed) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return takeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the next message without waiting.
+     *
+     * @return the next message, or null when the queue is empty
+     */
+    EncodedMessage poll() {
+        lock.lock();
+        try {
+            return takeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private EncodedMessage takeFirst() {
+        Slot slot = messages.pollFirst();
+        if (slot == null) {
+            return null;
+        }
+        forget(slot);
+        notFull.signal();
+        return slot.message;
+    }
+
+    /**
+     * Removes a slot leaving the queue from the conflation index.
+     */
+    private void forget(Slot slot) {
+        if (conflate && slot.message.isTelemetry()) {
+            pendingReadings.remove(slot.message.getTelemetryNodeId(), slot);
+        }
+    }
+
+    /**
+     * Closes the queue. Waiting producers and consumers are released, and
+     * later messages are ignored.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            messages.clear();
+            pendingReadings.clear();
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a short summary of the queue counters.
+     *
+     * @return depth, high-water mark, enqueued, dropped and conflated counts
+     */
+    String getStats() {
+        lock.lock();
+        try {
+            return "depth=" + messages.size() + "/" + capacity + " max=" + highWaterMark + " enqueued=" + enqueued
+                    + " dropped=" + dropped + " conflated=" + conflated + " policy=" + policy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return messages.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A place in the queue. The message of a queued sensor reading is replaced
+     * when a newer reading from the same node arrives.
+     */
+    private static class Slot {
+        private EncodedMessage message;
+
+        Slot(EncodedMessage message) {
+            this.message = message;
+        }
+    }
+}
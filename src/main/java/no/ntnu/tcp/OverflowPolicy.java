@@ -0,0 +1,27 @@
+package no.ntnu.tcp;
+
+/**
+ * What the server does when the outbound queue of a client is full, because
+ * the client reads slower than messages arrive for it.
+ */
+public enum OverflowPolicy {
+    /**
+     * Drop the oldest queued sensor reading to make room. When no sensor
+     * reading is queued, a new reading is dropped itself, and any other new
+     * message disconnects the client, since commands and actuator states
+     * must not be lost.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Disconnect the slow client.
+     */
+    DISCONNECT,
+
+    /**
+     * Make the sender wait until the client has caught up. This slows down
+     * everyone sending to that client. The NIO engine never blocks its event
+     * loops, so it disconnects the client instead.
+     */
+    BLOCK
+}
@@ -0,0 +1,240 @@
+package no.ntnu.tcp;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * SensorOutbox keeps the readings a node takes while it is not connected to
+ * the server, so they can be sent when it connects again. A sample is the
+ * time and the values of all sensors of the node. The samples are kept in a
+ * ring of primitive arrays, which grows up to the capacity as samples are
+ * added: when it is full, the oldest sample is dropped.
+ *
+ * <p>With a spill file, the oldest sample is moved to the file instead of
+ * being dropped. The file is memory-mapped and is a ring of samples too, so a
+ * long outage only costs disk space, up to the capacity of the file. The file
+ * is created at the first spill and deleted when the outbox is closed; it
+ * does not keep the samples when the process stops.
+ *
+ * <p>Not thread safe; the node uses it holding its send lock.
+ */
+final class SensorOutbox {
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final int sensorCount;
+    private final int capacity; // Most samples in memory
+    private long[] times = new long[0]; // Ring of sample times, in milliseconds since the epoch
+    private double[] values = new double[0]; // Ring of samples, sensorCount values each
+    private int head; // Position of the oldest sample in memory
+    private int size; // Number of samples in memory
+    private final Path spillPath; // Where to spill, or null
+    private final int spillCapacity; // Most samples in the spill file
+    private FileChannel spillChannel; // Open once something has spilled
+    private MappedByteBuffer spill; // Samples older than those in memory
+    private boolean spillFailed; // The spill file could not be opened; samples are dropped
+    private int spillHead; // Position of the oldest sample in the spill file
+    private int spillSize; // Number of samples in the spill file
+    private long dropped; // Samples lost because the outbox was full
+
+    /**
+     * Creates an outbox which keeps samples in memory only.
+     *
+     * @param sensorCount the number of values of a sample
+     * @param capacity    the most samples kept
+     */
+    SensorOutbox(int sensorCount, int capacity) {
+        this(sensorCount, capacity, null, 0);
+    }
+
+    /**
+     * Creates an outbox which moves samples to a spill file when the memory
+     * is full.
+     *
+     * @param sensorCount   the number of values of a sample
+     * @param capacity      the most samples kept in memory
+     * @param spillPath     the spill file, or null to drop the oldest samples
+     * @param spillCapacity the most samples kept in the spill file
+     */
+    SensorOutbox(int sensorCount, int capacity, Path spillPath, int spillCapacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Outbox capacity must be positive");
+        }
+        this.sensorCount = sensorCount;
+        this.capacity = capacity;
+        this.spillPath = spillPath;
+        this.spillCapacity = spillCapacity;
+    }
+
+    /**
+     * Adds a sample, moving or dropping the oldest one when the outbox is
+     * full.
+     *
+     * @param epochMillis the time the values were taken
+     * @param sample      the values of all sensors, copied
+     */
+    void add(long epochMillis, double[] sample) {
+        if (size == times.length && size < capacity) {
+            grow();
+        }
+        if (size == times.length) {
+            if (!spillOldest()) {
+                dropped++;
+            }
+            head = (head + 1) % times.length;
+            size--;
+        }
+        int slot = (head + size) % times.length;
+        times[slot] = epochMillis;
+        System.arraycopy(sample, 0, values, slot * sensorCount, sensorCount);
+        size++;
+    }
+
+    /**
+     * Returns the number of samples waiting, in memory and in the spill file.
+     *
+     * @return the number of samples
+     */
+    int size() {
+        return spillSize + size;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Copies a waiting sample, without removing it.
+     *
+     * @param index the position of the sample, 0 for the oldest
+     * @param into  receives the values of all sensors
+     * @return the time the values were taken
+     */
+    long get(int index, double[] into) {
+        if (index < spillSize) {
+            int position = ((spillHead + index) % spillCapacity) * recordBytes();
+            for (int i = 0; i < sensorCount; i++) {
+                into[i] = spill.getDouble(position + Long.BYTES + i * Double.BYTES);
+            }
+            return spill.getLong(position);
+        }
+        int slot = (head + index - spillSize) % times.length;
+        System.arraycopy(values, slot * sensorCount, into, 0, sensorCount);
+        return times[slot];
+    }
+
+    /**
+     * Removes the oldest samples, once they have been sent.
+     *
+     * @param count the number of samples to remove, at most {@link #size()}
+     */
+    void removeOldest(int count) {
+        int fromSpill = Math.min(count, spillSize);
+        if (fromSpill > 0) {
+            spillHead = (spillHead + fromSpill) % spillCapacity;
+            spillSize -= fromSpill;
+        }
+        int fromMemory = count - fromSpill;
+        if (fromMemory > 0) {
+            head = (head + fromMemory) % times.length;
+            size -= fromMemory;
+        }
+    }
+
+    /**
+     * Returns the number of samples lost because the outbox was full, and
+     * starts counting again.
+     *
+     * @return the number of samples dropped since the last call
+     */
+    long takeDropped() {
+        long count = dropped;
+        dropped = 0;
+        return count;
+    }
+
+    /**
+     * Closes and deletes the spill file, if there is one. The samples in it
+     * are lost.
+     */
+    void close() {
+        spillSize = 0;
+        spill = null;
+        if (spillChannel != null) {
+            try {
+                spillChannel.close();
+            } catch (IOException e) {
+                System.out.println("Could not delete the outbox spill file: " + e.getMessage());
+            }
+            spillChannel = null;
+        }
+    }
+
+    /**
+     * Doubles the ring, up to the capacity, with the oldest sample first.
+     */
+    private void grow() {
+        int length = Math.min(capacity, Math.max(INITIAL_CAPACITY, times.length * 2));
+        long[] grownTimes = new long[length];
+        double[] grownValues = new double[length * sensorCount];
+        for (int i = 0; i < size; i++) {
+            int slot = (head + i) % times.length;
+            grownTimes[i] = times[slot];
+            System.arraycopy(values, slot * sensorCount, grownValues, i * sensorCount, sensorCount);
+        }
+        times = grownTimes;
+        values = grownValues;
+        head = 0;
+    }
+
+    private int recordBytes() {
+        return Long.BYTES + sensorCount * Double.BYTES;
+    }
+
+    /**
+     * Moves the oldest sample in memory to the spill file, dropping the
+     * oldest one in the file when it is full.
+     *
+     * @return false when there is no spill file to move it to
+     */
+    private boolean spillOldest() {
+        if (spillPath == null || spillCapacity <= 0 || !openSpill()) {
+            return false;
+        }
+        if (spillSize == spillCapacity) {
+            spillHead = (spillHead + 1) % spillCapacity;
+            spillSize--;
+            dropped++;
+        }
+        int position = ((spillHead + spillSize) % spillCapacity) * recordBytes();
+        spill.putLong(position, times[head]);
+        for (int i = 0; i < sensorCount; i++) {
+            spill.putDouble(position + Long.BYTES + i * Double.BYTES, values[head * sensorCount + i]);
+        }
+        spillSize++;
+        return true;
+    }
+
+    private boolean openSpill() {
+        if (spill != null) {
+            return true;
+        }
+        if (spillFailed) {
+            return false;
+        }
+        try {
+            spillChannel = FileChannel.open(spillPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+            spill = spillChannel.map(FileChannel.MapMode.READ_WRITE, 0, (long) spillCapacity * recordBytes());
+            return true;
+        } catch (IOException e) {
+            System.out.println("Could not open the outbox spill file " + spillPath + ": " + e.getMessage());
+            spillFailed = true;
+            close();
+            return false;
+        }
+    }
+}
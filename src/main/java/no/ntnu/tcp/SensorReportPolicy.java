@@ -0,0 +1,87 @@
+package no.ntnu.tcp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a node sends the reading of a sensor. A reading is sent when it
+ * differs from the value last sent by more than the deadband of its sensor
+ * type, or when the sensor has not been sent for the maximum silence of its
+ * type. Types without their own settings use the defaults: a deadband of 0,
+ * so every change is sent, and a maximum silence of 60 seconds.
+ *
+ * <p>The settings are shared by all nodes of the process and apply to the
+ * reports formatted after they are changed.
+ */
+public final class SensorReportPolicy {
+    private static final long DEFAULT_MAX_SILENCE_MILLIS = 60_000;
+
+    private static final Map<String, Double> deadbands = new ConcurrentHashMap<>(); // Sensor type -> deadband
+    private static final Map<String, Long> maxSilences = new ConcurrentHashMap<>(); // Sensor type -> nanoseconds
+    private static volatile double defaultDeadband;
+    private static volatile long defaultMaxSilenceNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_SILENCE_MILLIS);
+
+    /**
+     * Not allowed to create instances of this class.
+     */
+    private SensorReportPolicy() {
+    }
+
+    /**
+     * Sets the deadband of one sensor type, or the default of all types.
+     *
+     * @param type     the sensor type, for example "humidity", or null for the
+     *                 default
+     * @param deadband the largest change which is not sent, in the unit of the
+     *                 sensor
+     */
+    public static void setDeadband(String type, double deadband) {
+        if (!(deadband >= 0)) {
+            throw new IllegalArgumentException("Deadband must be zero or positive");
+        }
+        if (type == null) {
+            defaultDeadband = deadband;
+        } else {
+            deadbands.put(type, deadband);
+        }
+    }
+
+    /**
+     * Sets the maximum silence of one sensor type, or the default of all types.
+     *
+     * @param type   the sensor type, for example "humidity", or null for the
+     *               default
+     * @param millis the longest time a reading is not sent, in milliseconds
+     */
+    public static void setMaxSilence(String type, long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("Maximum silence must be positive");
+        }
+        long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        if (type == null) {
+            defaultMaxSilenceNanos = nanos;
+        } else {
+            maxSilences.put(type, nanos);
+        }
+    }
+
+    /**
+     * Tells whether a reading must be sent.
+     *
+     * @param type        the sensor type
+     * @param value       the new value
+     * @param sentValue   the value last sent
+     * @param silentNanos the time since the value was last sent
+     * @return true when the change is larger than the deadband or the sensor
+     *         has been silent for its maximum time
+     */
+    static boolean isDue(String type, double value, double sentValue, long silentNanos) {
+        Double deadband = deadbands.get(type);
+        if (Math.abs(value - sentValue) > (deadband != null ? deadband : defaultDeadband)) {
+            return true;
+        }
+        Long maxSilence = maxSilences.get(type);
+        return silentNanos >= (maxSilence != null ? maxSilence : defaultMaxSilenceNanos);
+    }
+}
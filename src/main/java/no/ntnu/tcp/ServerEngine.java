@@ -0,0 +1,17 @@
+package no.ntnu.tcp;
+
+/**
+ * The ways a GreenhouseServer can serve its client connections.
+ */
+public enum ServerEngine {
+    /**
+     * One blocking thread per connected client (the original engine).
+     */
+    THREAD_PER_CLIENT,
+
+    /**
+     * A small, fixed set of selector-based event loops serving all clients
+     * with non-blocking I/O.
+     */
+    NIO
+}
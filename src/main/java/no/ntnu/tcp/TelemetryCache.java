@@ -0,0 +1,210 @@
+package no.ntnu.tcp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import no.ntnu.protocol.ActuatorMessage;
+import no.ntnu.protocol.MessageCodec;
+import no.ntnu.protocol.SensorMessage;
+
+/**
+ * TelemetryCache keeps the latest sensor readings and actuator states of every
+ * node, so that a control panel which connects gets the current state at once
+ * instead of waiting for the next report of each node. Messages may hold only
+ * the readings and actuators which changed, so they are merged into one value
+ * per sensor and one state per actuator, which bounds the memory per node.
+ */
+class TelemetryCache {
+    private static final int SNAPSHOT_CHUNK_BYTES = 64 * 1024; // Snapshot lines are sent in chunks of this size
+
+    private final Map<Integer, NodeState> nodes = new ConcurrentHashMap<>(); // Node ID -> latest messages
+
+    /**
+     * Merges sensor readings of a node into the stored ones and publishes the
+     * message. Only the merge is done under the lock of the node; publishing
+     * may block on a full client queue, and must not hold up the snapshots.
+     * The messages of a node arrive on one connection, so the message is
+     * published before the next one of the node is merged, and a snapshot
+     * sent meanwhile holds it already. A message which leaves out unchanged
+     * readings is encoded so that the client queues never drop or replace it.
+     *
+     * @param readings      the parsed readings, only read during the call
+     * @param message       the SENSOR message, "SENSOR:nodeId:data"
+     * @param receivedNanos when a traced message was received, or 0
+     * @param publish       sends the message to the subscribers
+     */
+    void publishSensors(SensorMessage readings, String message, long receivedNanos,
+            Consumer<EncodedMessage> publish) {
+        NodeState state = nodes.computeIfAbsent(readings.getNodeId(), NodeState::new);
+        boolean partial;
+        synchronized (state) {
+            partial = state.merge(readings);
+            state.version++;
+        }
+        publish.accept(partial ? EncodedMessage.ofPartialReading(message, receivedNanos)
+                : EncodedMessage.of(message, receivedNanos));
+    }
+
+    /**
+     * Merges actuator states of a node into the stored ones and publishes the
+     * message as it is, after the lock of the node is released, like
+     * {@link #publishSensors}. The message may hold all actuators of the node
+     * or only those which changed.
+     *
+     * @param states  the parsed states, only read during the call
+     * @param message the encoded ACTUATOR state message
+     * @param publish sends the message to the subscribers
+     */
+    void publishActuators(ActuatorMessage states, EncodedMessage message, Consumer<EncodedMessage> publish) {
+        NodeState state = nodes.computeIfAbsent(states.getNodeId(), NodeState::new);
+        synchronized (state) {
+            state.merge(states);
+            state.version++;
+        }
+        publish.accept(message);
+    }
+
+    /**
+     * Sends the latest state of every node to a client, then subscribes it to
+     * live updates. The snapshot is taken without holding up the nodes; what
+     * changed while it was sent is sent again after subscribing, so the client
+     * never ends with an older value than the latest one. A message merged
+     * before that may still be published to the client too, which repeats a
+     * value it has already.
+     *
+     * @param client    the client to send the snapshot to
+     * @param subscribe subscribes the client to live updates
+     */
+    void sendSnapshot(ClientConnection client, Runnable subscribe) {
+        Map<Integer, Long> sentVersions = new HashMap<>();
+        List<EncodedMessage> lines = new ArrayList<>();
+        for (NodeState state : nodes.values()) {
+            synchronized (state) {
+                sentVersions.put(state.nodeId, state.version);
+                state.addTo(lines);
+            }
+        }
+        sendChunked(client, lines);
+
+        subscribe.run();
+
+        for (NodeState state : nodes.values()) {
+            synchronized (state) {
+                Long sent = sentVersions.get(state.nodeId);
+                if (sent == null || sent != state.version) {
+                    List<EncodedMessage> changed = new ArrayList<>(2);
+                    state.addTo(changed);
+                    changed.forEach(client::send);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of nodes in the cache.
+     *
+     * @return the number of nodes
+     */
+    int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Sends the lines joined into a few large messages, so that a snapshot of
+     * many nodes takes only a few places in the client's queue.
+     */
+    private static void sendChunked(ClientConnection client, List<EncodedMessage> lines) {
+        List<EncodedMessage> chunk = new ArrayList<>();
+        int chunkBytes = 0;
+        for (EncodedMessage line : lines) {
+            if (chunkBytes + line.length() > SNAPSHOT_CHUNK_BYTES && !chunk.isEmpty()) {
+                client.send(EncodedMessage.join(chunk));
+                chunk.clear();
+                chunkBytes = 0;
+            }
+            chunk.add(line);
+            chunkBytes += line.length();
+        }
+        if (!chunk.isEmpty()) {
+            client.send(EncodedMessage.join(chunk));
+        }
+    }
+
+    /**
+     * The latest messages of one node. Guarded by its own lock.
+     */
+    private static class NodeState {
+        private final int nodeId;
+        private ActuatorMessage actuatorStates; // Latest state of every actuator, or null
+        private EncodedMessage actuators; // The states encoded for snapshots, or null until needed
+        private SensorMessage sensorReadings; // Latest value of every reading, or null
+        private EncodedMessage sensors; // The readings encoded for snapshots, or null until needed
+        private long version; // Incremented on every update
+
+        NodeState(int nodeId) {
+            this.nodeId = nodeId;
+        }
+
+        /**
+         * Stores new states of some or all actuators of the node. The trace of
+         * the message is not kept, since a snapshot is not a fresh message.
+         */
+        void merge(ActuatorMessage states) {
+            if (actuatorStates == null) {
+                actuatorStates = new ActuatorMessage();
+                actuatorStates.reset(nodeId);
+            }
+            for (int i = 0; i < states.getCount(); i++) {
+                actuatorStates.put(states.getActuatorId(i), states.getType(i), states.isOn(i));
+            }
+            actuators = null;
+        }
+
+        /**
+         * Stores the readings a message has, keeping the others. The trace of
+         * the message is not kept, since a snapshot is not a fresh message.
+         *
+         * @return true when the message left out readings
+         */
+        boolean merge(SensorMessage readings) {
+            boolean partial = sensorReadings != null && readings.getCount() < sensorReadings.getCount();
+            for (int i = 0; i < readings.getCount() && !partial; i++) {
+                partial = readings.isUnchanged(i);
+            }
+            if (sensorReadings == null) {
+                sensorReadings = new SensorMessage();
+                sensorReadings.reset(nodeId);
+            }
+            sensorReadings.merge(readings);
+            sensors = null;
+            return partial;
+        }
+
+        /**
+         * Adds the actuator states before the sensor readings, so a control
+         * panel knows the actuators of a node when the node first appears.
+         */
+        void addTo(List<EncodedMessage> lines) {
+            if (actuatorStates != null) {
+                if (actuators == null) {
+                    StringBuilder line = new StringBuilder(32 + actuatorStates.getCount() * 16);
+                    MessageCodec.formatActuatorStates(actuatorStates, line);
+                    actuators = EncodedMessage.of(line.toString());
+                }
+                lines.add(actuators);
+            }
+            if (sensorReadings != null) {
+                if (sensors == null) {
+                    StringBuilder line = new StringBuilder(32 + sensorReadings.getCount() * 24);
+                    MessageCodec.formatSensor(sensorReadings, line);
+                    sensors = EncodedMessage.of(line.toString());
+                }
+                lines.add(sensors);
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package no.ntnu.tools;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An output stream for sockets which collects written messages and sends them
+ * together. The writer marks the end of each message (or group of messages)
+ * with {@link #endBatch()}. What happens then depends on the linger time:
+ * <ul>
+ *   <li>0 (the default): the collected bytes are sent at once, which gives the
+ *   lowest latency. Messages written before endBatch still go out together.</li>
+ *   <li>More than 0: the bytes are sent when the linger time has passed since
+ *   the first unsent message, so messages written meanwhile share one socket
+ *   write.</li>
+ * </ul>
+ * In both cases the bytes are sent as soon as the flush threshold is reached.
+ *
+ * <p>The defaults are set with the system properties greenhouse.lingerMicros and
+ * greenhouse.flushBytes, or with {@link #setDefaultLingerMicros(long)} and
+ * {@link #setDefaultFlushBytes(int)}. The stream counts the socket writes and
+ * bytes, so the effect can be seen with {@link #getStats()}.
+ */
+public class CoalescingOutputStream extends OutputStream {
+  private static volatile long defaultLingerMicros = Long.getLong("greenhouse.lingerMicros", 0);
+  private static volatile int defaultFlushBytes = Integer.getInteger("greenhouse.flushBytes", 8192);
+
+  private final OutputStream out;
+  private final byte[] buffer; // Bytes not sent yet; its size is the flush threshold
+  private final long lingerNanos;
+  private final ReentrantLock lock = new ReentrantLock(); // Not synchronized: virtual threads may block here
+  private int count; // Number of bytes in the buffer
+  private boolean flushScheduled;
+  private boolean closed;
+  private IOException lingerFailure; // Failure of a flush done by the linger timer
+  private long writes; // Writes to the underlying stream, each one a system call for a socket
+  private long bytesWritten;
+  private long batches;
+
+  /**
+   * Create a stream using the default flush threshold and linger time.
+   *
+   * @param out The stream to send the bytes to, usually the socket's stream
+   */
+  public CoalescingOutputStream(OutputStream out) {
+    this(out, defaultFlushBytes, defaultLingerMicros);
+  }
+
+  /**
+   * Create a stream.
+   *
+   * @param out          The stream to send the bytes to, usually the socket's stream
+   * @param flushBytes   Send as soon as this many bytes are collected
+   * @param lingerMicros How long a message may wait for more messages, in
+   *                     microseconds. 0 sends at the end of every batch
+   */
+  public CoalescingOutputStream(OutputStream out, int flushBytes, long lingerMicros) {
+    if (flushBytes <= 0) {
+      throw new IllegalArgumentException("The flush threshold must be positive");
+    }
+    if (lingerMicros < 0) {
+      throw new IllegalArgumentException("The linger time can't be negative");
+    }
+    this.out = out;
+    this.buffer = new byte[flushBytes];
+    this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+  }
+
+  /**
+   * Set the linger time of streams created later.
+   *
+   * @param lingerMicros The linger time in microseconds, 0 for lowest latency
+   */
+  public static void setDefaultLingerMicros(long lingerMicros) {
+    if (lingerMicros < 0) {
+      throw new IllegalArgumentException("The linger time can't be negative");
+    }
+    defaultLingerMicros = lingerMicros;
+  }
+
+  /**
+   * Set the flush threshold of streams created later.
+   *
+   * @param flushBytes The number of bytes which are sent at once
+   */
+  public static void setDefaultFlushBytes(int flushBytes) {
+    if (flushBytes <= 0) {
+      throw new IllegalArgumentException("The flush threshold must be positive");
+    }
+    defaultFlushBytes = flushBytes;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    lock.lock();
+    try {
+      checkOpen();
+      if (length > buffer.length - count) {
+        writeBuffer();
+      }
+      if (length >= buffer.length) {
+        writeOut(bytes, offset, length); // Too large to collect
+        return;
+      }
+      System.arraycopy(bytes, offset, buffer, count, length);
+      count += length;
+      if (count == buffer.length) {
+        writeBuffer();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Write one text line, encoded as UTF-8, and end the batch.
+   *
+   * @param line The line, without line terminator
+   * @throws IOException When the stream fails
+   */
+  public void writeLine(String line) throws IOException {
+    lock.lock();
+    try {
+      write((line + "\n").getBytes(StandardCharsets.UTF_8));
+      endBatch();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Mark the end of a message or group of messages. The collected bytes are
+   * sent now, or within the linger time when one is set.
+   *
+   * @throws IOException When the stream fails
+   */
+  public void endBatch() throws IOException {
+    lock.lock();
+    try {
+      checkOpen();
+      batches++;
+      if (count == 0) {
+        return;
+      }
+      if (lingerNanos == 0) {
+        writeBuffer();
+      } else if (!flushScheduled) {
+        flushScheduled = true;
+        LingerTimer.TIMER.schedule(() -> Thread.startVirtualThread(this::lingerExpired), lingerNanos,
+            TimeUnit.NANOSECONDS);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Send all collected bytes now.
+   *
+   * @throws IOException When the stream fails
+   */
+  @Override
+  public void flush() throws IOException {
+    lock.lock();
+    try {
+      checkOpen();
+      writeBuffer();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      if (closed) {
+        return;
+      }
+      try {
+        writeBuffer();
+      } finally {
+        closed = true;
+        out.close();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get a summary of the counters: socket writes, bytes, batches and the
+   * average number of bytes and batches per write.
+   *
+   * @return The counters on one line
+   */
+  public String getStats() {
+    lock.lock();
+    try {
+      double perWrite = writes == 0 ? 0 : (double) bytesWritten / writes;
+      double batchesPerWrite = writes == 0 ? 0 : (double) batches / writes;
+      return String.format("writes=%d bytes=%d batches=%d bytes/write=%.1f batches/write=%.2f", writes,
+          bytesWritten, batches, perWrite, batchesPerWrite);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getWriteCount() {
+    lock.lock();
+    try {
+      return writes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getBytesWritten() {
+    lock.lock();
+    try {
+      return bytesWritten;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void lingerExpired() {
+    lock.lock();
+    try {
+      flushScheduled = false;
+      if (!closed) {
+        writeBuffer();
+      }
+    } catch (IOException e) {
+      lingerFailure = e; // Reported to the next writer
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void checkOpen() throws IOException {
+    if (lingerFailure != null) {
+      throw lingerFailure;
+    }
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  private void writeBuffer() throws IOException {
+    if (count > 0) {
+      int length = count;
+      count = 0;
+      writeOut(buffer, 0, length);
+    }
+  }
+
+  private void writeOut(byte[] bytes, int offset, int length) throws IOException {
+    out.write(bytes, offset, length);
+    out.flush();
+    writes++;
+    bytesWritten += length;
+  }
+
+  /**
+   * The timer sending lingering bytes, created when it is first needed. The
+   * writes themselves run on virtual threads, so one slow socket does not
+   * delay the others.
+   */
+  private static class LingerTimer {
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "linger-timer");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+}
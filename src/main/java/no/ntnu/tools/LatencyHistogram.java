@@ -0,0 +1,147 @@
+package no.ntnu.tools;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A histogram of latencies in nanoseconds, in the style of HdrHistogram:
+ * values below 256 are counted exactly, larger values in buckets whose width
+ * grows with the value, so every value is kept with a relative error below
+ * 1 %. Recording a value only increments a counter, so the histogram can be
+ * updated on hot paths, and the memory is fixed (about 60 KB) whatever the
+ * range of the values.
+ *
+ * <p>A histogram is not thread safe. To record from many threads, use a
+ * {@link LatencyRecorder}: it spreads the threads over a few histograms, each
+ * guarded by its own lock, and combines them with
+ * {@link #add(LatencyHistogram)} when the results are read.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // Buckets per power of two
+  private static final int EXACT_LIMIT = 2 * SUB_BUCKETS; // Values below are counted exactly
+  private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS + EXACT_LIMIT;
+
+  private final long[] counts = new long[BUCKET_COUNT];
+  private long count;
+  private long sum;
+  private long min = Long.MAX_VALUE;
+  private long max;
+
+  /**
+   * Record one value. Negative values are recorded as 0.
+   *
+   * @param value The latency in nanoseconds
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts[indexOf(value)]++;
+    count++;
+    sum += value;
+    if (value < min) {
+      min = value;
+    }
+    if (value > max) {
+      max = value;
+    }
+  }
+
+  /**
+   * Add all values recorded in another histogram to this one.
+   *
+   * @param other The histogram to add
+   */
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts[i] += other.counts[i];
+    }
+    count += other.count;
+    sum += other.sum;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  /**
+   * Remove all recorded values.
+   */
+  public void reset() {
+    Arrays.fill(counts, 0);
+    count = 0;
+    sum = 0;
+    min = Long.MAX_VALUE;
+    max = 0;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getMax() {
+    return max;
+  }
+
+  public long getMin() {
+    return count > 0 ? min : 0;
+  }
+
+  public double getMean() {
+    return count > 0 ? (double) sum / count : 0;
+  }
+
+  /**
+   * Get the value below which the given share of the recorded values lie. The
+   * result is the highest value of the bucket holding that value, but never
+   * more than the largest recorded value.
+   *
+   * @param percentile The percentile, from 0 to 100
+   * @return The value at the percentile, 0 when nothing is recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(highestValueOf(i), max);
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Describe the distribution on one line, in microseconds.
+   *
+   * @return The count, the usual percentiles and the maximum
+   */
+  public String summary() {
+    return String.format(Locale.ROOT, "n=%d p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f us", count,
+        micros(getValueAtPercentile(50)), micros(getValueAtPercentile(90)), micros(getValueAtPercentile(99)),
+        micros(getValueAtPercentile(99.9)), micros(max));
+  }
+
+  private static double micros(long nanos) {
+    return nanos / 1000.0;
+  }
+
+  private static int indexOf(long value) {
+    if (value < EXACT_LIMIT) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return shift * SUB_BUCKETS + (int) (value >>> shift);
+  }
+
+  private static long highestValueOf(int index) {
+    if (index < EXACT_LIMIT) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long subBucket = index - (long) shift * SUB_BUCKETS;
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,52 @@
+package no.ntnu.tools;
+
+/**
+ * Records latencies from many threads. The values go into a few
+ * {@link LatencyHistogram}s, chosen by the recording thread, each with its
+ * own lock, so threads seldom wait for each other and recording stays cheap.
+ */
+public class LatencyRecorder {
+  private static final int STRIPES = 8; // Must be a power of two
+
+  private final LatencyHistogram[] stripes = new LatencyHistogram[STRIPES];
+
+  /**
+   * Create an empty recorder.
+   */
+  public LatencyRecorder() {
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new LatencyHistogram();
+    }
+  }
+
+  /**
+   * Record one latency.
+   *
+   * @param nanos The latency in nanoseconds
+   */
+  public void record(long nanos) {
+    LatencyHistogram stripe = stripes[(int) Thread.currentThread().threadId() & (STRIPES - 1)];
+    synchronized (stripe) {
+      stripe.record(nanos);
+    }
+  }
+
+  /**
+   * Get all latencies recorded so far.
+   *
+   * @param reset When true, the recorder is emptied
+   * @return A new histogram holding the latencies
+   */
+  public LatencyHistogram snapshot(boolean reset) {
+    LatencyHistogram total = new LatencyHistogram();
+    for (LatencyHistogram stripe : stripes) {
+      synchronized (stripe) {
+        total.add(stripe);
+        if (reset) {
+          stripe.reset();
+        }
+      }
+    }
+    return total;
+  }
+}
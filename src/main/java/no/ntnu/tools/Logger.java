@@ -8,6 +8,8 @@ package no.ntnu.tools;
  * places of our code.
  */
 public class Logger {
+  private static volatile boolean debugEnabled = true;
+
   /**
    * Not allowed to create an instance of this class.
    */
@@ -32,6 +34,37 @@ public class Logger {
     System.out.print(message);
   }
 
+  /**
+   * Log a debug message. Debug messages are written for every message passing
+   * through a node, so they can be turned off when running under heavy load.
+   *
+   * @param message The message to log. A newline is appended automatically.
+   */
+  public static void debug(String message) {
+    if (debugEnabled) {
+      System.out.println(message);
+    }
+  }
+
+  /**
+   * Tells whether debug messages are logged, so that a hot path can skip
+   * building a message nobody will see.
+   *
+   * @return true when debug messages are logged
+   */
+  public static boolean isDebugEnabled() {
+    return debugEnabled;
+  }
+
+  /**
+   * Enable or disable the debug messages. They are enabled by default.
+   *
+   * @param enabled When true, debug messages are logged; ignored when false
+   */
+  public static void setDebugEnabled(boolean enabled) {
+    debugEnabled = enabled;
+  }
+
   /**
    * Log an error message.
    *
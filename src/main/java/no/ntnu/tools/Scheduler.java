@@ -0,0 +1,102 @@
+package no.ntnu.tools;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The scheduler running the periodic work of the simulated greenhouse: new
+ * sensor readings, periodic switches and the reports of the nodes to the
+ * server. One executor with a thread per core serves every node, so the
+ * number of threads does not grow with the number of nodes.
+ *
+ * <p>Periodic tasks should start at the phase given by {@link #phase(long)}:
+ * the phases of the tasks are spread evenly over the period, so thousands of
+ * nodes started together do not all wake up at the same moment. Tasks must be
+ * short and should not block, since they hold up the other tasks of their
+ * thread.
+ */
+public class Scheduler {
+  private static final double GOLDEN_RATIO_FRACTION = 0.6180339887498949;
+  private static final AtomicLong phases = new AtomicLong(); // Number of phases handed out
+
+  /**
+   * Not allowed to create instances of this class.
+   */
+  private Scheduler() {
+  }
+
+  /**
+   * Run a task periodically on the shared scheduler. An exception thrown by
+   * the task is logged, and the task runs again at its next time.
+   *
+   * @param task           The task to run
+   * @param initialDelayMs The time until the first run, in milliseconds
+   * @param periodMs       The time between the start of two runs, in milliseconds
+   * @return The future of the task, to cancel it with
+   */
+  public static ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long initialDelayMs, long periodMs) {
+    return Executor.INSTANCE.scheduleAtFixedRate(() -> {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        Logger.error("Scheduled task failed: " + e);
+      }
+    }, initialDelayMs, periodMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Get the initial delay of the next periodic task. The delays follow the
+   * golden ratio sequence, so however many tasks there are, their phases are
+   * spread evenly over the period and no two are close to each other.
+   *
+   * @param periodMs The period of the task, in milliseconds
+   * @return A delay from 0 up to, but not including, the period
+   */
+  public static long phase(long periodMs) {
+    return phase(phases.getAndIncrement(), periodMs);
+  }
+
+  /**
+   * Get the initial delay of a periodic task in the golden ratio sequence, for
+   * a scheduler which counts its tasks itself.
+   *
+   * @param index    The number of the task in the sequence, starting at 0
+   * @param periodMs The period of the task, in milliseconds
+   * @return A delay from 0 up to, but not including, the period
+   */
+  public static long phase(long index, long periodMs) {
+    double fraction = (index * GOLDEN_RATIO_FRACTION) % 1.0;
+    return (long) (fraction * periodMs);
+  }
+
+  /**
+   * Get the number of threads of the shared scheduler.
+   *
+   * @return The number of threads, one per core
+   */
+  public static int getThreadCount() {
+    return Executor.INSTANCE.getCorePoolSize();
+  }
+
+  /**
+   * The executor, created when it is first needed.
+   */
+  private static class Executor {
+    private static final ScheduledThreadPoolExecutor INSTANCE = create();
+
+    private static ScheduledThreadPoolExecutor create() {
+      AtomicInteger threads = new AtomicInteger();
+      ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+          Runtime.getRuntime().availableProcessors(), task -> {
+            Thread thread = new Thread(task, "scheduler-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          });
+      executor.setRemoveOnCancelPolicy(true); // Stopped nodes do not stay in the queue
+      return executor;
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package no.ntnu.tools;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Helpers for programs which start a server in the same JVM and then connect
+ * to it, such as the load generator and the benchmarks.
+ */
+public class Sockets {
+  /**
+   * Not allowed to create instances of this class.
+   */
+  private Sockets() {
+  }
+
+  /**
+   * Wait until a server accepts connections on a local port. Each attempt
+   * connects and closes the connection at once; after the first success the
+   * server gets a moment to register and drop the probe.
+   *
+   * @param port The port to probe on localhost
+   * @throws InterruptedException  If interrupted while waiting
+   * @throws IllegalStateException If nothing listens on the port after about
+   *                               five seconds
+   */
+  public static void waitUntilListening(int port) throws InterruptedException {
+    for (int attempt = 0; attempt < 100; attempt++) {
+      try {
+        new Socket("localhost", port).close();
+        Thread.sleep(200); // Let the server register and drop the probe
+        return;
+      } catch (IOException e) {
+        Thread.sleep(50);
+      }
+    }
+    throw new IllegalStateException("Server did not start listening on port " + port);
+  }
+}
@@ -0,0 +1,63 @@
+package no.ntnu.tools;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads running the blocking socket loops of the server, the
+ * greenhouse nodes and the control panel. All of them are either classic
+ * platform threads or virtual threads, depending on the selected mode. The
+ * mode can be set with the system property greenhouse.virtualThreads=true or
+ * with {@link #setVirtual(boolean)}.
+ */
+public class Threads {
+  private static volatile boolean virtual = Boolean.getBoolean("greenhouse.virtualThreads");
+
+  /**
+   * Not allowed to create instances of this class.
+   */
+  private Threads() {
+  }
+
+  /**
+   * Select whether new threads are virtual threads or platform threads.
+   *
+   * @param useVirtualThreads When true, virtual threads are created; platform
+   *                          threads when false
+   */
+  public static void setVirtual(boolean useVirtualThreads) {
+    virtual = useVirtualThreads;
+  }
+
+  /**
+   * Check whether new threads are virtual threads.
+   *
+   * @return True when virtual threads are used, false for platform threads
+   */
+  public static boolean isVirtual() {
+    return virtual;
+  }
+
+  /**
+   * Start a new thread in the selected mode.
+   *
+   * @param name The name of the thread, used for debugging
+   * @param task The task the thread will run
+   * @return The started thread
+   */
+  public static Thread start(String name, Runnable task) {
+    Thread thread = factory(name).newThread(task);
+    thread.start();
+    return thread;
+  }
+
+  /**
+   * Get a factory creating unstarted threads in the selected mode. Useful for
+   * executors.
+   *
+   * @param name The name of the created threads
+   * @return The thread factory
+   */
+  public static ThreadFactory factory(String name) {
+    return virtual ? Thread.ofVirtual().name(name).factory() : Thread.ofPlatform().name(name).factory();
+  }
+}
@@ -0,0 +1,150 @@
+package no.ntnu.tools;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency tracing of the telemetry on its way from the nodes to the control
+ * panels. A node with tracing enabled stamps its SENSOR and ACTUATOR state
+ * messages with a sequence number and the time they were sent, and the
+ * server adds the time it received them. The server and the control panel
+ * record the latency of every hop of a traced message in a histogram; the
+ * histograms of a process are printed with {@link #dump(boolean)}.
+ *
+ * <p>The hops from one process to the next compare the clocks of two
+ * processes, so they are only exact when the clocks are synchronized, for
+ * example when everything runs on one machine. Tracing is enabled with the
+ * system property greenhouse.tracing=true or with {@link #setEnabled(boolean)}.
+ * The server and the panel record traced messages either way; the panel only
+ * records the GUI render hop when tracing is enabled.
+ *
+ * <p>The control panel also records the round trip of every acknowledged
+ * actuator command, from sending the COMMAND to receiving its ACK.
+ */
+public class Tracing {
+  /**
+   * The hops of a traced message.
+   */
+  public enum Hop {
+    NODE_TO_SERVER("node send -> server receive"),
+    SERVER_RECEIVE_TO_ENQUEUE("server receive -> enqueue"),
+    SERVER_ENQUEUE_TO_WRITE("server enqueue -> write"),
+    SERVER_TO_PANEL("server receive -> panel receive"),
+    NODE_TO_PANEL("node send -> panel receive"),
+    PANEL_TO_RENDER("panel receive -> GUI render"),
+    COMMAND_ROUND_TRIP("panel command -> node ack");
+
+    private final String label;
+
+    Hop(String label) {
+      this.label = label;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+  }
+
+  private static final long START_NANOS;
+  private static final long START_EPOCH_MICROS; // Wall clock time at START_NANOS
+  private static final LatencyRecorder[] recorders = new LatencyRecorder[Hop.values().length];
+  private static final Map<Integer, Long> lastSequences = new ConcurrentHashMap<>(); // Node ID -> sequence
+  private static final AtomicLong missing = new AtomicLong(); // Sequence numbers never received
+  private static volatile boolean enabled = Boolean.getBoolean("greenhouse.tracing");
+
+  static {
+    Instant now = Instant.now();
+    START_NANOS = System.nanoTime();
+    START_EPOCH_MICROS = now.getEpochSecond() * 1_000_000 + now.getNano() / 1000;
+    for (int i = 0; i < recorders.length; i++) {
+      recorders[i] = new LatencyRecorder();
+    }
+  }
+
+  /**
+   * Not allowed to create instances of this class.
+   */
+  private Tracing() {
+  }
+
+  /**
+   * Select whether this process stamps the messages it sends.
+   *
+   * @param tracing When true, messages are stamped
+   */
+  public static void setEnabled(boolean tracing) {
+    enabled = tracing;
+  }
+
+  /**
+   * Check whether this process stamps the messages it sends.
+   *
+   * @return True when tracing is enabled
+   */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Get the current time for a trace stamp. The time follows the monotonic
+   * clock of the JVM from the wall clock time it started at, so it has
+   * microsecond resolution and never goes back.
+   *
+   * @return Microseconds since the epoch
+   */
+  public static long epochMicros() {
+    return START_EPOCH_MICROS + (System.nanoTime() - START_NANOS) / 1000;
+  }
+
+  /**
+   * Record the latency of one hop.
+   *
+   * @param hop   The hop
+   * @param nanos The latency in nanoseconds
+   */
+  public static void record(Hop hop, long nanos) {
+    recorders[hop.ordinal()].record(nanos);
+  }
+
+  /**
+   * Remember the sequence number of a message from a node, counting the
+   * numbers skipped since the previous message. A lower number than before
+   * means that the node was restarted.
+   *
+   * @param nodeId   The ID of the node
+   * @param sequence The sequence number of the message
+   */
+  public static void recordSequence(int nodeId, long sequence) {
+    Long previous = lastSequences.put(nodeId, sequence);
+    if (previous != null && sequence > previous + 1) {
+      missing.addAndGet(sequence - previous - 1);
+    }
+  }
+
+  /**
+   * Describe the latencies recorded in this process, one line per hop which
+   * has seen any traced message.
+   *
+   * @param reset When true, the histograms and counters start again
+   * @return The lines to print
+   */
+  public static List<String> dump(boolean reset) {
+    List<String> lines = new ArrayList<>();
+    for (Hop hop : Hop.values()) {
+      LatencyHistogram histogram = recorders[hop.ordinal()].snapshot(reset);
+      if (histogram.getCount() > 0) {
+        lines.add(String.format("%-34s %s", hop.getLabel(), histogram.summary()));
+      }
+    }
+    if (lines.isEmpty()) {
+      lines.add("No traced messages");
+    } else if (!lastSequences.isEmpty()) {
+      lines.add("Messages missing from the sequence: " + (reset ? missing.getAndSet(0) : missing.get()));
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,616 @@
+package no.ntnu.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks that MessageCodec parses SENSOR and ACTUATOR lines exactly like the
+ * split() based parsers it replaced, which are kept here as the oracle, on
+ * seeded random and mutated lines; and that every message survives a
+ * format and parse round trip.
+ *
+ * <p>The one place where the codec accepts more than the old parsers is the
+ * empty entry of a SENSOR message, an unchanged reading; lines with one are
+ * checked against the oracle with the empty entries left out. The random
+ * lines hold no '|', so no trace section is involved.
+ */
+public class MessageCodecTest {
+    private static final long SEED = 20231016L;
+    private static final int LINES = 200_000;
+    private static final String[] FRAGMENTS = {
+        "0", "1", "2", "7", "9", "12", "-", ".", ",", "=", ":", " ", "\t", "e", "E", "+",
+        "temperature", "humidity", "fan", "heater", "°C", "%", "C", "true", "false", "TRUE", "x", ""
+    };
+
+    private final MessageCodec codec = new MessageCodec();
+
+    // ---- The old parsers ----
+
+    /** A reading as the old control panel parsed it. */
+    private static final class Reading {
+        final String type;
+        final double value;
+        final String unit;
+
+        Reading(String type, double value, String unit) {
+            this.type = type;
+            this.value = value;
+            this.unit = unit;
+        }
+    }
+
+    /** An actuator state as the old control panel parsed it. */
+    private static final class State {
+        final int actuatorId;
+        final String type;
+        final boolean on;
+
+        State(int actuatorId, String type, boolean on) {
+            this.actuatorId = actuatorId;
+            this.type = type;
+            this.on = on;
+        }
+    }
+
+    /** The old control panel: readings of a SENSOR message, or null when it threw. */
+    private static List<Reading> oldParseSensor(String message) {
+        try {
+            String[] parts = message.split(":");
+            Integer.parseInt(parts[1]);
+            List<Reading> readings = new ArrayList<>();
+            for (String sensor : parts[2].split(",")) {
+                String[] pair = sensor.split("=");
+                if (pair.length != 2) {
+                    throw new IllegalArgumentException("Invalid sensor data format: " + sensor);
+                }
+                String type = pair[0].trim();
+                String valueAndUnit = pair[1].trim();
+                int unitStart = oldFindUnitStart(valueAndUnit);
+                if (unitStart == -1) {
+                    throw new IllegalArgumentException("Invalid sensor value/unit format: " + valueAndUnit);
+                }
+                double value = Double.parseDouble(valueAndUnit.substring(0, unitStart).trim());
+                readings.add(new Reading(type, value, valueAndUnit.substring(unitStart).trim()));
+            }
+            return readings;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static int oldFindUnitStart(String valueAndUnit) {
+        for (int i = 0; i < valueAndUnit.length(); i++) {
+            char c = valueAndUnit.charAt(i);
+            if (!Character.isDigit(c) && c != '.' && c != '-') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int oldSensorNodeId(String message) {
+        return Integer.parseInt(message.split(":")[1]);
+    }
+
+    /** The old control panel: states of an ACTUATOR message, or null when it threw. */
+    private static List<State> oldParseActuatorStates(String message) {
+        try {
+            String[] parts = message.split(":", 3);
+            Integer.parseInt(parts[1]);
+            List<State> states = new ArrayList<>();
+            for (String actuatorInfo : parts[2].split(",")) {
+                String[] idAndTypeAndState = actuatorInfo.split(":");
+                if (idAndTypeAndState.length != 2) {
+                    continue;
+                }
+                int actuatorId = Integer.parseInt(idAndTypeAndState[0]);
+                String[] typeAndState = idAndTypeAndState[1].split("=");
+                if (typeAndState.length != 2) {
+                    continue;
+                }
+                states.add(new State(actuatorId, typeAndState[0], Boolean.parseBoolean(typeAndState[1])));
+            }
+            return states;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** The old node: {actuatorId, state} of an ACTUATOR command, or null when it was rejected. */
+    private static int[] oldParseActuatorCommand(String message) {
+        String[] parts = message.split(":");
+        if (parts.length != 4 || !"ACTUATOR".equals(parts[0])) {
+            return null;
+        }
+        try {
+            int actuatorId = Integer.parseInt(parts[2]);
+            String state = parts[3];
+            if (!"true".equalsIgnoreCase(state) && !"false".equalsIgnoreCase(state)) {
+                return null;
+            }
+            return new int[] {actuatorId, Boolean.parseBoolean(state) ? 1 : 0};
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** The old server: {nodeId, data} of a SENSOR or ACTUATOR message, or null when it was rejected. */
+    private static Object[] oldParseRouted(String message) {
+        try {
+            String[] parts = message.split(":", 3);
+            if (parts.length != 3) {
+                return null;
+            }
+            return new Object[] {Integer.parseInt(parts[1].trim()), parts[2].trim()};
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    // ---- Differential tests against the old parsers ----
+
+    @Test
+    public void sensorMatchesOldParser() {
+        Random random = new Random(SEED);
+        SensorMessage parsed = new SensorMessage();
+        int compared = 0;
+        for (int i = 0; i < LINES; i++) {
+            String line = mutate(random, "SENSOR:" + randomNodeId(random) + ":" + randomReadings(random), i);
+            if (!line.startsWith("SENSOR:")) {
+                continue; // The old parser was only called for SENSOR lines
+            }
+            String withoutEmpty = withoutEmptyEntries(line);
+            List<Reading> expected = oldParseSensor(withoutEmpty);
+            boolean ok = codec.parseSensor(line, parsed);
+            if (!withoutEmpty.equals(line) && isEmptyData(withoutEmpty)) {
+                continue; // Only empty entries: unchanged readings, which the old parser never saw
+            }
+            assertEquals(line, expected != null, ok);
+            if (ok) {
+                assertEquals(line, oldSensorNodeId(line), parsed.getNodeId());
+                assertSameReadings(line, expected, parsed);
+            }
+            compared++;
+        }
+        assertTrue("too few lines compared: " + compared, compared > LINES / 2);
+    }
+
+    @Test
+    public void actuatorStatesMatchOldParser() {
+        Random random = new Random(SEED + 1);
+        ActuatorMessage parsed = new ActuatorMessage();
+        for (int i = 0; i < LINES; i++) {
+            String line = mutate(random, "ACTUATOR:" + randomNodeId(random) + ":" + randomStates(random), i);
+            if (!line.startsWith("ACTUATOR:")) {
+                continue;
+            }
+            List<State> expected = oldParseActuatorStates(line);
+            boolean ok = codec.parseActuatorStates(line, parsed);
+            assertEquals(line, expected != null, ok);
+            if (ok) {
+                assertEquals(line, Integer.parseInt(line.split(":", 3)[1]), parsed.getNodeId());
+                assertEquals(line, expected.size(), parsed.getCount());
+                for (int j = 0; j < expected.size(); j++) {
+                    assertEquals(line, expected.get(j).actuatorId, parsed.getActuatorId(j));
+                    assertEquals(line, expected.get(j).type, parsed.getType(j));
+                    assertEquals(line, expected.get(j).on, parsed.isOn(j));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void actuatorCommandMatchesOldParser() {
+        Random random = new Random(SEED + 2);
+        ActuatorCommand parsed = new ActuatorCommand();
+        for (int i = 0; i < LINES; i++) {
+            String state = random.nextBoolean() ? "true" : pick(random, "false", "TRUE", "False", "on", "");
+            String line = mutate(random, "ACTUATOR:" + randomNodeId(random) + ":" + random.nextInt(20) + ":"
+                    + state, i);
+            int[] expected = oldParseActuatorCommand(line);
+            boolean ok = codec.parseActuatorCommand(line, parsed);
+            assertEquals(line, expected != null, ok);
+            if (ok) {
+                assertEquals(line, expected[0], parsed.getActuatorId());
+                assertEquals(line, expected[1] == 1, parsed.isOn());
+            }
+        }
+    }
+
+    @Test
+    public void routedMatchesOldParser() {
+        Random random = new Random(SEED + 3);
+        RoutedMessage parsed = new RoutedMessage();
+        for (int i = 0; i < LINES; i++) {
+            String data = random.nextBoolean() ? randomReadings(random) : randomStates(random);
+            String prefix = random.nextBoolean() ? "SENSOR:" : "ACTUATOR:";
+            String line = mutate(random, prefix + randomNodeId(random) + ":" + data, i);
+            if (!line.startsWith(prefix)) {
+                continue;
+            }
+            Object[] expected = oldParseRouted(line);
+            boolean ok = codec.parseRouted(line, parsed);
+            assertEquals(line, expected != null, ok);
+            if (ok) {
+                assertEquals(line, expected[0], parsed.getNodeId());
+                assertEquals(line, expected[1], parsed.getData());
+            }
+        }
+    }
+
+    // ---- The unchanged reading extension ----
+
+    @Test
+    public void emptyEntriesAreUnchangedReadings() {
+        SensorMessage parsed = new SensorMessage();
+        assertTrue(codec.parseSensor("SENSOR:3:,humidity=40.5%,,temperature=21°C", parsed));
+        assertEquals(3, parsed.getNodeId());
+        assertEquals(4, parsed.getCount());
+        assertTrue(parsed.isUnchanged(0));
+        assertEquals("humidity", parsed.getType(1));
+        assertEquals(40.5, parsed.getValue(1), 0);
+        assertEquals("%", parsed.getUnit(1));
+        assertTrue(parsed.isUnchanged(2));
+        assertEquals("temperature", parsed.getType(3));
+        assertEquals("°C", parsed.getUnit(3));
+        assertNull("the old parser rejected empty entries",
+                oldParseSensor("SENSOR:3:,humidity=40.5%,,temperature=21°C"));
+    }
+
+    @Test
+    public void trailingEmptyEntriesAreIgnoredLikeSplit() {
+        SensorMessage parsed = new SensorMessage();
+        assertTrue(codec.parseSensor("SENSOR:3:humidity=40.5%,,", parsed));
+        assertEquals(1, parsed.getCount());
+        assertNotNull(oldParseSensor("SENSOR:3:humidity=40.5%,,"));
+        assertTrue(codec.parseSensor("SENSOR:3:,,,", parsed));
+        assertEquals(0, parsed.getCount());
+        assertFalse(codec.parseSensor("SENSOR:3:", parsed));
+    }
+
+    @Test
+    public void mergeKeepsReadingsLeftOut() {
+        SensorMessage latest = new SensorMessage();
+        SensorMessage changes = new SensorMessage();
+        assertTrue(codec.parseSensor("SENSOR:1:temperature=20°C,humidity=40%", latest));
+        assertTrue(codec.parseSensor("SENSOR:1:,humidity=41%", changes));
+        latest.merge(changes);
+        assertEquals(2, latest.getCount());
+        assertEquals(20, latest.getValue(0), 0);
+        assertEquals(41, latest.getValue(1), 0);
+    }
+
+    // ---- Round trips ----
+
+    @Test
+    public void sensorRoundTrip() {
+        Random random = new Random(SEED + 4);
+        SensorMessage message = new SensorMessage();
+        SensorMessage parsed = new SensorMessage();
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < LINES / 10; i++) {
+            message.reset(random.nextInt(1000));
+            int count = 1 + random.nextInt(6);
+            for (int j = 0; j < count; j++) {
+                if (j > 0 && random.nextInt(4) == 0) {
+                    message.addUnchanged();
+                } else {
+                    message.add(pick(random, "temperature", "humidity", "co2"), plainValue(random),
+                            pick(random, "°C", "%", "ppm"));
+                }
+            }
+            line.setLength(0);
+            MessageCodec.formatSensor(message, line);
+            assertTrue(line.toString(), codec.parseSensor(line, parsed));
+            assertEquals(message.getNodeId(), parsed.getNodeId());
+            int last = message.getCount();
+            while (last > 0 && message.isUnchanged(last - 1)) {
+                last--;
+            }
+            assertEquals(line.toString(), last, parsed.getCount());
+            for (int j = 0; j < last; j++) {
+                assertEquals(line.toString(), message.isUnchanged(j), parsed.isUnchanged(j));
+                if (!message.isUnchanged(j)) {
+                    assertEquals(line.toString(), message.getType(j), parsed.getType(j));
+                    assertEquals(line.toString(), Double.doubleToLongBits(message.getValue(j)),
+                            Double.doubleToLongBits(parsed.getValue(j)));
+                    assertEquals(line.toString(), message.getUnit(j), parsed.getUnit(j));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void historyRoundTrip() {
+        Random random = new Random(SEED + 8);
+        SensorHistory history = new SensorHistory();
+        SensorHistory parsed = new SensorHistory();
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < LINES / 10; i++) {
+            history.reset(random.nextInt(1000));
+            long time = 1_700_000_000_000L + random.nextInt(1_000_000);
+            int samples = 1 + random.nextInt(5);
+            for (int s = 0; s < samples; s++) {
+                time += random.nextInt(10_000);
+                SensorMessage readings = history.add(time);
+                readings.add("temperature", plainValue(random), "°C");
+                if (s > 0 && random.nextBoolean()) {
+                    readings.addUnchanged();
+                } else {
+                    readings.add("humidity", plainValue(random), "%");
+                }
+            }
+            line.setLength(0);
+            MessageCodec.formatHistory(history, line);
+            assertTrue(line.toString(), codec.parseHistory(line, parsed));
+            assertEquals(history.getNodeId(), parsed.getNodeId());
+            assertEquals(samples, parsed.getCount());
+            for (int s = 0; s < samples; s++) {
+                assertEquals(line.toString(), history.getTime(s), parsed.getTime(s));
+                SensorMessage expected = history.getReadings(s);
+                SensorMessage actual = parsed.getReadings(s);
+                assertEquals(line.toString(), expected.getValue(0), actual.getValue(0), 0);
+                assertEquals(line.toString(), expected.isUnchanged(1) ? 1 : 2, actual.getCount());
+            }
+        }
+    }
+
+    @Test
+    public void actuatorStatesRoundTrip() {
+        Random random = new Random(SEED + 5);
+        ActuatorMessage message = new ActuatorMessage();
+        ActuatorMessage parsed = new ActuatorMessage();
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < LINES / 10; i++) {
+            message.reset(random.nextInt(1000));
+            int count = 1 + random.nextInt(5);
+            for (int j = 0; j < count; j++) {
+                message.add(random.nextInt(100), pick(random, "fan", "heater", "window"), random.nextBoolean());
+            }
+            line.setLength(0);
+            MessageCodec.formatActuatorStates(message, line);
+            assertTrue(line.toString(), codec.parseActuatorStates(line, parsed));
+            assertEquals(message.getNodeId(), parsed.getNodeId());
+            assertEquals(count, parsed.getCount());
+            for (int j = 0; j < count; j++) {
+                assertEquals(message.getActuatorId(j), parsed.getActuatorId(j));
+                assertEquals(message.getType(j), parsed.getType(j));
+                assertEquals(message.isOn(j), parsed.isOn(j));
+            }
+        }
+    }
+
+    @Test
+    public void commandsRoundTrip() {
+        Random random = new Random(SEED + 6);
+        ActuatorCommand command = new ActuatorCommand();
+        ActuatorCommand parsed = new ActuatorCommand();
+        CommandAck ack = new CommandAck();
+        CommandAck parsedAck = new CommandAck();
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < LINES / 10; i++) {
+            command.set(random.nextInt() & 0xFFFFFFFFL, random.nextInt(1000), random.nextInt(100),
+                    random.nextBoolean());
+
+            line.setLength(0);
+            MessageCodec.formatActuatorCommand(command, line);
+            assertTrue(line.toString(), codec.parseActuatorCommand(line, parsed));
+            assertEquals(command.getNodeId(), parsed.getNodeId());
+            assertEquals(command.getActuatorId(), parsed.getActuatorId());
+            assertEquals(command.isOn(), parsed.isOn());
+
+            line.setLength(0);
+            MessageCodec.formatCommand(command, line);
+            assertTrue(line.toString(), codec.parseCommand(line, parsed));
+            assertEquals(command.getCorrelationId(), parsed.getCorrelationId());
+            assertEquals(command.getNodeId(), parsed.getNodeId());
+            assertEquals(command.getActuatorId(), parsed.getActuatorId());
+            assertEquals(command.isOn(), parsed.isOn());
+
+            CommandAck.Status status = CommandAck.Status.values()[random.nextInt(CommandAck.Status.values().length)];
+            ack.set(command.getCorrelationId(), command.getNodeId(), command.getActuatorId(), status,
+                    command.isOn());
+            line.setLength(0);
+            MessageCodec.formatAck(ack, line);
+            assertTrue(line.toString(), codec.parseAck(line, parsedAck));
+            assertEquals(ack.getCorrelationId(), parsedAck.getCorrelationId());
+            assertEquals(ack.getStatus(), parsedAck.getStatus());
+            assertEquals(ack.isOn(), parsedAck.isOn());
+        }
+    }
+
+    @Test
+    public void batchRoundTrip() {
+        Random random = new Random(SEED + 7);
+        ActuatorBatch batch = new ActuatorBatch();
+        ActuatorBatch parsed = new ActuatorBatch();
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < LINES / 10; i++) {
+            batch.clear();
+            int nodes = 1 + random.nextInt(4);
+            for (int n = 0; n < nodes; n++) {
+                int nodeId = random.nextInt(1000);
+                int entries = 1 + random.nextInt(4);
+                for (int e = 0; e < entries; e++) {
+                    batch.add(nodeId, random.nextInt(100), random.nextBoolean());
+                }
+            }
+            line.setLength(0);
+            MessageCodec.formatBatch(batch, line);
+            assertTrue(line.toString(), codec.parseBatch(line, parsed));
+            assertEquals(batch.getCount(), parsed.getCount());
+            for (int j = 0; j < batch.getCount(); j++) {
+                assertEquals(batch.getNodeId(j), parsed.getNodeId(j));
+                assertEquals(batch.getActuatorId(j), parsed.getActuatorId(j));
+                assertEquals(batch.isOn(j), parsed.isOn(j));
+            }
+        }
+    }
+
+    // ---- Helpers ----
+
+    private static void assertSameReadings(String line, List<Reading> expected, SensorMessage parsed) {
+        int j = 0;
+        for (int i = 0; i < parsed.getCount(); i++) {
+            if (parsed.isUnchanged(i)) {
+                continue; // An empty entry, left out for the old parser
+            }
+            Reading reading = expected.get(j++);
+            assertEquals(line, reading.type, parsed.getType(i));
+            assertEquals(line, Double.doubleToLongBits(reading.value), Double.doubleToLongBits(parsed.getValue(i)));
+            assertEquals(line, reading.unit, parsed.getUnit(i));
+        }
+        assertEquals(line, expected.size(), j);
+    }
+
+    /**
+     * Removes the empty entries from the readings of a SENSOR line, the ones
+     * the codec reads as unchanged readings. Trailing ones are kept, since
+     * split() ignored them anyway.
+     */
+    private static String withoutEmptyEntries(String line) {
+        int first = line.indexOf(':');
+        int second = first < 0 ? -1 : line.indexOf(':', first + 1);
+        if (second < 0) {
+            return line;
+        }
+        int dataEnd = line.indexOf(':', second + 1);
+        if (dataEnd < 0) {
+            dataEnd = line.length();
+        }
+        String data = line.substring(second + 1, dataEnd);
+        int kept = data.length();
+        while (kept > 0 && data.charAt(kept - 1) == ',') {
+            kept--;
+        }
+        StringBuilder cleaned = new StringBuilder();
+        for (String entry : data.substring(0, kept).split(",", -1)) {
+            if (!entry.isEmpty()) {
+                cleaned.append(cleaned.length() > 0 ? "," : "").append(entry);
+            }
+        }
+        cleaned.append(data, kept, data.length());
+        return line.substring(0, second + 1) + cleaned + line.substring(dataEnd);
+    }
+
+    private static boolean isEmptyData(String line) {
+        String[] parts = line.split(":", -1);
+        return parts.length < 3 || parts[2].replace(",", "").isEmpty();
+    }
+
+    private static String mutate(Random random, String line, int iteration) {
+        if (iteration % 3 == 0) {
+            return line; // A third of the lines stay well formed
+        }
+        StringBuilder mutated = new StringBuilder(line);
+        int edits = 1 + random.nextInt(3);
+        for (int i = 0; i < edits; i++) {
+            int position = random.nextInt(mutated.length() + 1);
+            switch (random.nextInt(3)) {
+                case 0:
+                    mutated.insert(position, FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+                    break;
+                case 1:
+                    if (position < mutated.length()) {
+                        mutated.deleteCharAt(position);
+                    }
+                    break;
+                default:
+                    if (position < mutated.length()) {
+                        mutated.replace(position, position + 1, FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+                    }
+                    break;
+            }
+        }
+        return mutated.toString();
+    }
+
+    private static String randomNodeId(Random random) {
+        switch (random.nextInt(8)) {
+            case 0:
+                return " " + random.nextInt(100);
+            case 1:
+                return "-" + random.nextInt(100);
+            case 2:
+                return "+" + random.nextInt(100);
+            case 3:
+                return "0" + random.nextInt(100);
+            case 4:
+                return "99999999999";
+            default:
+                return String.valueOf(random.nextInt(100_000));
+        }
+    }
+
+    private static String randomReadings(Random random) {
+        StringBuilder data = new StringBuilder();
+        int count = 1 + random.nextInt(4);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                data.append(',');
+            }
+            if (random.nextInt(8) == 0) {
+                continue; // An unchanged reading
+            }
+            data.append(pick(random, "temperature", "humidity", " co2 ", "t"))
+                    .append('=')
+                    .append(random.nextInt(4) == 0 ? " " : "")
+                    .append(randomValue(random))
+                    .append(pick(random, "°C", "%", " ppm", "C", "lux "));
+        }
+        return data.toString();
+    }
+
+    private static String randomStates(Random random) {
+        StringBuilder data = new StringBuilder();
+        int count = 1 + random.nextInt(4);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                data.append(',');
+            }
+            data.append(random.nextInt(20)).append(':')
+                    .append(pick(random, "fan", "heater", "window"))
+                    .append('=')
+                    .append(pick(random, "true", "false", "TRUE", "yes"));
+        }
+        return data.toString();
+    }
+
+    private static double randomValue(Random random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return random.nextInt(10_000) / 100.0 - 20;
+            case 1:
+                return random.nextInt(1000) / 10.0;
+            case 2:
+                return (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(8));
+            default:
+                return random.nextInt(100);
+        }
+    }
+
+    /**
+     * A value Double.toString writes without an exponent. Like the old
+     * parser, the codec reads "E-4°C" as the unit, so only such values
+     * survive a round trip.
+     */
+    private static double plainValue(Random random) {
+        double value;
+        do {
+            value = randomValue(random);
+        } while (value != 0 && (Math.abs(value) < 1e-3 || Math.abs(value) >= 1e7));
+        return value;
+    }
+
+    private static String pick(Random random, String... options) {
+        return options[random.nextInt(options.length)];
+    }
+}
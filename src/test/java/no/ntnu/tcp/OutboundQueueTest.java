@@ -0,0 +1,80 @@
+package no.ntnu.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks what a full OutboundQueue drops: with DROP_OLDEST only sensor
+ * readings may go, and a queue holding nothing else disconnects the client.
+ */
+public class OutboundQueueTest {
+    private final EncodedMessage command = EncodedMessage.of("COMMAND:1:2:3:true");
+    private final EncodedMessage states = EncodedMessage.of("ACTUATOR:2:1:fan=true");
+    private final EncodedMessage ack = EncodedMessage.of("ACK:1:2:3:true");
+
+    @Test
+    public void dropOldestDropsTheOldestReading() {
+        OutboundQueue queue = new OutboundQueue(3, OverflowPolicy.DROP_OLDEST, false);
+        EncodedMessage first = reading(1);
+        EncodedMessage second = reading(2);
+        assertTrue(queue.offer(command, false));
+        assertTrue(queue.offer(first, false));
+        assertTrue(queue.offer(second, false));
+
+        assertTrue(queue.offer(states, false));
+        assertEquals(1, queue.getDropped());
+        assertSame(command, queue.poll());
+        assertSame(second, queue.poll());
+        assertSame(states, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void dropOldestDisconnectsWhenNoReadingIsQueued() {
+        OutboundQueue queue = new OutboundQueue(3, OverflowPolicy.DROP_OLDEST, false);
+        assertTrue(queue.offer(EncodedMessage.BINARY_SWITCH, false));
+        assertTrue(queue.offer(command, false));
+        assertTrue(queue.offer(states, false));
+
+        assertFalse(queue.offer(ack, true));
+        assertSame(EncodedMessage.BINARY_SWITCH, queue.poll()); // Nothing queued was dropped
+        assertSame(command, queue.poll());
+        assertSame(states, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void dropOldestDropsANewReadingWhenNoReadingIsQueued() {
+        OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DROP_OLDEST, true);
+        assertTrue(queue.offer(command, false));
+        assertTrue(queue.offer(states, false));
+
+        assertTrue(queue.offer(reading(1), false));
+        assertEquals(1, queue.getDropped());
+        assertEquals(2, queue.size());
+        assertSame(command, queue.poll());
+        assertSame(states, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void partialReadingsAreNeverDropped() {
+        OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DROP_OLDEST, true);
+        EncodedMessage partial = EncodedMessage.ofPartialReading("SENSOR:1:,humidity=40.0%", 0);
+        assertTrue(queue.offer(partial, false));
+        assertTrue(queue.offer(command, false));
+
+        assertFalse(queue.offer(states, false));
+        assertSame(partial, queue.poll());
+        assertSame(command, queue.poll());
+    }
+
+    private static EncodedMessage reading(int nodeId) {
+        return EncodedMessage.of("SENSOR:" + nodeId + ":temperature=21.5C");
+    }
+}
@@ -0,0 +1,162 @@
+package no.ntnu.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that SensorOutbox keeps its samples oldest first across the spill
+ * file and the ring in memory. Sample n has the time n and the values n and
+ * -n, so a sample out of order shows in both.
+ */
+public class SensorOutboxTest {
+    private Path directory;
+    private Path spillPath;
+    private final double[] sample = new double[2];
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("outbox-test");
+        spillPath = directory.resolve("outbox.spill");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        Files.deleteIfExists(spillPath);
+        Files.deleteIfExists(directory);
+    }
+
+    @Test
+    public void memoryOnlyDropsOldest() {
+        SensorOutbox outbox = new SensorOutbox(2, 4);
+        addSamples(outbox, 0, 6);
+        assertEquals(4, outbox.size());
+        assertSamples(outbox, 2, 6);
+        assertEquals(2, outbox.takeDropped());
+        assertEquals(0, outbox.takeDropped());
+    }
+
+    @Test
+    public void getSpansSpillThenMemory() {
+        SensorOutbox outbox = new SensorOutbox(2, 4, spillPath, 10);
+        addSamples(outbox, 0, 9); // Five in the spill file, four in memory
+        assertEquals(9, outbox.size());
+        assertSamples(outbox, 0, 9);
+        assertEquals(0, outbox.takeDropped());
+        outbox.close();
+    }
+
+    @Test
+    public void removeOldestCrossesFromSpillToMemory() {
+        SensorOutbox outbox = new SensorOutbox(2, 4, spillPath, 10);
+        addSamples(outbox, 0, 9);
+
+        outbox.removeOldest(3); // Within the spill file
+        assertEquals(6, outbox.size());
+        assertSamples(outbox, 3, 9);
+
+        outbox.removeOldest(4); // The last two in the spill file and two in memory
+        assertEquals(2, outbox.size());
+        assertSamples(outbox, 7, 9);
+
+        addSamples(outbox, 9, 14); // Fills memory and spills again
+        assertSamples(outbox, 7, 14);
+
+        outbox.removeOldest(outbox.size());
+        assertTrue(outbox.isEmpty());
+        outbox.close();
+    }
+
+    @Test
+    public void fullSpillFileDropsOldest() {
+        SensorOutbox outbox = new SensorOutbox(2, 2, spillPath, 3);
+        addSamples(outbox, 0, 10);
+        assertEquals(5, outbox.size());
+        assertSamples(outbox, 5, 10);
+        assertEquals(5, outbox.takeDropped());
+        outbox.close();
+    }
+
+    @Test
+    public void closeDropsSpilledSamples() {
+        SensorOutbox outbox = new SensorOutbox(2, 2, spillPath, 3);
+        addSamples(outbox, 0, 4);
+        outbox.close();
+        assertFalse(Files.exists(spillPath));
+        assertEquals(2, outbox.size()); // The samples in memory are kept
+        assertSamples(outbox, 2, 4);
+    }
+
+    @Test
+    public void matchesQueueUnderRandomAddsAndRemoves() {
+        Random random = new Random(42);
+        int capacity = 5;
+        int spillCapacity = 7;
+        SensorOutbox outbox = new SensorOutbox(2, capacity, spillPath, spillCapacity);
+        Deque<Long> expected = new ArrayDeque<>();
+        long next = 0;
+        long dropped = 0;
+        for (int step = 0; step < 10_000; step++) {
+            if (random.nextInt(3) > 0) {
+                int count = 1 + random.nextInt(4);
+                for (int i = 0; i < count; i++) {
+                    add(outbox, next);
+                    expected.addLast(next++);
+                    if (expected.size() > capacity + spillCapacity) {
+                        expected.removeFirst();
+                        dropped++;
+                    }
+                }
+            } else if (!expected.isEmpty()) {
+                int count = 1 + random.nextInt(expected.size());
+                outbox.removeOldest(count);
+                for (int i = 0; i < count; i++) {
+                    expected.removeFirst();
+                }
+            }
+            assertEquals(expected.size(), outbox.size());
+            Iterator<Long> iterator = expected.iterator();
+            for (int i = 0; i < expected.size(); i++) {
+                assertSample(outbox, i, iterator.next());
+            }
+        }
+        assertEquals(dropped, outbox.takeDropped());
+        outbox.close();
+    }
+
+    private void addSamples(SensorOutbox outbox, int from, int to) {
+        for (int n = from; n < to; n++) {
+            add(outbox, n);
+        }
+    }
+
+    private void add(SensorOutbox outbox, long n) {
+        sample[0] = n;
+        sample[1] = -n;
+        outbox.add(n, sample);
+    }
+
+    private void assertSamples(SensorOutbox outbox, int from, int to) {
+        for (int n = from; n < to; n++) {
+            assertSample(outbox, n - from, n);
+        }
+    }
+
+    private void assertSample(SensorOutbox outbox, int index, long n) {
+        double[] into = new double[2];
+        assertEquals("time of sample " + index, n, outbox.get(index, into));
+        assertEquals("first value of sample " + index, n, into[0], 0);
+        assertEquals("second value of sample " + index, -n, into[1], 0);
+    }
+}